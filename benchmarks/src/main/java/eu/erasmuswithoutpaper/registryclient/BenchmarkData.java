@@ -0,0 +1,148 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.IOException;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueGenerator.GeneratedCatalogue;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
+
+/**
+ * A generated catalogue, along with the credentials it refers to.
+ *
+ * <p>
+ * All benchmarks run against catalogues generated by {@link CatalogueGenerator} (with the settings
+ * defined here), so they don't need network access.
+ * </p>
+ */
+final class BenchmarkData {
+
+  static final int API_CLASS_COUNT = 10;
+  static final int HEIS_PER_HOST = 2;
+
+  /**
+   * Generate a new catalogue.
+   *
+   * @param heiCount The number of HEIs in the catalogue (there will be one host per
+   *        {@value #HEIS_PER_HOST} HEIs).
+   * @param revision Different revisions of the catalogue differ in the names of a few HEIs (one in
+   *        a hundred).
+   * @return The catalogue.
+   */
+  static BenchmarkData generate(int heiCount, int revision) {
+    return new BenchmarkData(new CatalogueGenerator().setHeiCount(heiCount)
+        .setHostCount(Math.max(1, heiCount / HEIS_PER_HOST)).setApiClassCount(API_CLASS_COUNT)
+        .setApisPerHost(3).setRevision(revision).generate());
+  }
+
+  /**
+   * @param n Any non-negative number.
+   * @return The namespace of one of the generated API classes (if <code>n</code> is the index of
+   *         a host, then this API is implemented by this host).
+   */
+  static String getApiNamespace(int n) {
+    return CatalogueGenerator.getApiNamespace(n % API_CLASS_COUNT);
+  }
+
+  private final GeneratedCatalogue catalogue;
+  private final List<Certificate> certificates;
+
+  private BenchmarkData(GeneratedCatalogue catalogue) {
+    this.catalogue = catalogue;
+    List<Certificate> certs = new ArrayList<>(catalogue.getHostCount());
+    for (int host = 0; host < catalogue.getHostCount(); host++) {
+      certs.add(catalogue.getCertificates(host).get(0));
+    }
+    this.certificates = Collections.unmodifiableList(certs);
+  }
+
+  /**
+   * @return The underlying generated catalogue.
+   */
+  GeneratedCatalogue getCatalogue() {
+    return this.catalogue;
+  }
+
+  /**
+   * @return Client certificates, one per host (in document order).
+   */
+  List<Certificate> getCertificates() {
+    return this.certificates;
+  }
+
+  /**
+   * @param host The index of the host.
+   * @return The client key used by the host.
+   */
+  RSAPublicKey getClientKey(int host) {
+    return this.catalogue.getClientKeys(host).get(0);
+  }
+
+  /**
+   * @return The raw catalogue.
+   */
+  byte[] getContent() {
+    return this.catalogue.getContent();
+  }
+
+  /**
+   * @return All HEI IDs (in document order).
+   */
+  List<String> getHeiIds() {
+    return this.catalogue.getHeiIds();
+  }
+
+  /**
+   * @param host The index of the host.
+   * @return The IDs of the HEIs covered by the host.
+   */
+  List<String> getHeiIds(int host) {
+    return this.catalogue.getHeiIds(host);
+  }
+
+  /**
+   * @param hei The index of the HEI.
+   * @return The index of the host which covers the HEI.
+   */
+  int getHostOf(int hei) {
+    return this.catalogue.getHostOf(hei);
+  }
+
+  /**
+   * @param host The index of the host.
+   * @return The server key used by the host.
+   */
+  RSAPublicKey getServerKey(int host) {
+    return this.catalogue.getServerKeys(host).get(0);
+  }
+
+  /**
+   * @return A new response containing this catalogue (valid for an hour).
+   */
+  CatalogueFetcher.Http200RegistryResponse newResponse() {
+    return this.catalogue.newResponse(new Date(System.currentTimeMillis() + 3600000));
+  }
+
+  /**
+   * @return A new client, with this catalogue already loaded.
+   * @throws RefreshFailureException if the catalogue could not be loaded.
+   */
+  ClientImpl newClient() throws RefreshFailureException {
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        return newResponse();
+      }
+    });
+    ClientImpl client = new ClientImpl(options);
+    client.refresh();
+    return client;
+  }
+}
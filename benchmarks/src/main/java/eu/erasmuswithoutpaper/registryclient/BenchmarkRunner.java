@@ -0,0 +1,42 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the <code>benchmarks.jar</code>.
+ *
+ * <p>
+ * Accepts the usual JMH command line options (e.g. <code>java -jar benchmarks.jar Query -t 4</code>
+ * or <code>-h</code>). The only difference is that, unless some other profilers are requested
+ * explicitly (via <code>-prof</code>), the GC profiler is always turned on. This way, each result
+ * is accompanied by the allocation rate (<code>gc.alloc.rate.norm</code> is the number of bytes
+ * allocated per operation), which is as important for this library as the timings.
+ * </p>
+ */
+public final class BenchmarkRunner {
+
+  /**
+   * Run the benchmarks.
+   *
+   * @param args JMH command line options.
+   * @throws Exception if JMH fails.
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options = new CommandLineOptions(args);
+    boolean runsBenchmarks = !(options.shouldHelp() || options.shouldList()
+        || options.shouldListWithParams() || options.shouldListProfilers()
+        || options.shouldListResultFormats());
+    if (!runsBenchmarks || !options.getProfilers().isEmpty()) {
+      Main.main(args);
+      return;
+    }
+    new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+  }
+
+  private BenchmarkRunner() {
+  }
+}
@@ -0,0 +1,91 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.concurrent.TimeUnit;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of building a {@link CatalogueDocument} (in all the ways {@link ClientImpl}
+ * does it).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CatalogueParsingBenchmark {
+
+  @Param({ "100", "1000", "10000" })
+  public int heiCount;
+
+  private Http200RegistryResponse response;
+  private Http200RegistryResponse changedResponse;
+  private CatalogueDocument previous;
+  private RsaKeyCache keyCache;
+  private byte[] snapshot;
+
+  /**
+   * Full parse, without any previous version of the catalogue (cold start).
+   */
+  @Benchmark
+  public CatalogueDocument parse() throws Exception {
+    return new CatalogueDocument(this.response);
+  }
+
+  /**
+   * Parse a catalogue which differs slightly from the previous one (a typical refresh).
+   */
+  @Benchmark
+  public CatalogueDocument parseIncremental() throws Exception {
+    return new CatalogueDocument(this.changedResponse, this.previous, this.keyCache, false);
+  }
+
+  /**
+   * Full parse, with lazy key decoding.
+   */
+  @Benchmark
+  public CatalogueDocument parseWithLazyKeys() throws Exception {
+    return new CatalogueDocument(this.response, (CatalogueDocument) null, new RsaKeyCache(),
+        true);
+  }
+
+  /**
+   * Restore the document from a serialized {@link IndexSnapshot} (a start with a warm cache).
+   */
+  @Benchmark
+  public CatalogueDocument restoreFromSnapshot() throws Exception {
+    return new CatalogueDocument(this.response, IndexSnapshot.deserialize(this.snapshot),
+        new RsaKeyCache(), false);
+  }
+
+  /**
+   * Serialize the indexes (done after each refresh, if snapshots are turned on).
+   */
+  @Benchmark
+  public byte[] serializeSnapshot() {
+    return this.previous.toIndexSnapshot().serialize();
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    this.response = BenchmarkData.generate(this.heiCount, 0).newResponse();
+    this.changedResponse = BenchmarkData.generate(this.heiCount, 1).newResponse();
+    this.keyCache = new RsaKeyCache();
+    this.previous = new CatalogueDocument(this.response, (CatalogueDocument) null, this.keyCache,
+        false);
+    this.snapshot = this.previous.toIndexSnapshot().serialize();
+  }
+}
@@ -0,0 +1,123 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the read throughput of a single {@link ClientImpl} shared by many threads, with and
+ * without concurrent refreshes.
+ *
+ * <p>
+ * Each operation is a mix of the most common queries: an authentication check, an API lookup and
+ * a HEI name lookup. Use JMH's <code>-t</code> option to scale the number of threads of
+ * {@link #mixedReads(Cursor)}.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentReadBenchmark {
+
+  /**
+   * Per-thread position in the list of HEIs.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int position;
+
+    int next(int bound) {
+      return (this.position++ & Integer.MAX_VALUE) % bound;
+    }
+  }
+
+  @Param({ "10000" })
+  public int heiCount;
+
+  private BenchmarkData[] revisions;
+  private ClientImpl client;
+  private final AtomicInteger refreshes = new AtomicInteger();
+
+  @Benchmark
+  @Threads(4)
+  public int mixedReads(Cursor cursor) throws Exception {
+    return this.read(cursor);
+  }
+
+  @Benchmark
+  @Group("readWhileRefreshing")
+  @GroupThreads(3)
+  public int reader(Cursor cursor) throws Exception {
+    return this.read(cursor);
+  }
+
+  /**
+   * Keeps swapping the catalogue between two revisions.
+   */
+  @Benchmark
+  @Group("readWhileRefreshing")
+  @GroupThreads(1)
+  public void refresher() throws Exception {
+    this.client.refresh();
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    this.revisions = new BenchmarkData[] { BenchmarkData.generate(this.heiCount, 0),
+        BenchmarkData.generate(this.heiCount, 1) };
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) {
+        int revision = ConcurrentReadBenchmark.this.refreshes.getAndIncrement() % 2;
+        return ConcurrentReadBenchmark.this.revisions[revision].newResponse();
+      }
+    });
+    this.client = new ClientImpl(options);
+    this.client.refresh();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.client.close();
+  }
+
+  private int read(Cursor cursor) throws Exception {
+    BenchmarkData data = this.revisions[0];
+    int hei = cursor.next(this.heiCount);
+    int host = data.getHostOf(hei);
+    String heiId = data.getHeiIds().get(hei);
+    RSAPublicKey clientKey = data.getClientKey(host);
+    int result = this.client.isHeiCoveredByClientKey(heiId, clientKey) ? 1 : 0;
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(BenchmarkData.getApiNamespace(host),
+        CatalogueGenerator.API_LOCAL_NAME);
+    conds.setRequiredHei(heiId);
+    if (this.client.findApi(conds) != null) {
+      result++;
+    }
+    return result + this.client.findHei(heiId).getName().length();
+  }
+}
@@ -0,0 +1,83 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import eu.erasmuswithoutpaper.registryclient.ConcurrentStressHarness.Result;
+
+/**
+ * Runs the {@link ConcurrentStressHarness} with an increasing number of reader threads, and
+ * prints a table of the results: throughput (and its scaling relative to a single thread), monitor
+ * contention of the reader threads, and the number of inconsistent results (which should always be
+ * zero).
+ *
+ * <p>
+ * Unlike the JMH benchmarks, this is a stress test - each run keeps refreshing the catalogue while
+ * the readers are running, and verifies every result. It exits with status 1 if any inconsistency
+ * has been found. Usage:
+ * </p>
+ *
+ * <pre style="margin: 1em 2em">
+ * java -cp benchmarks.jar eu.erasmuswithoutpaper.registryclient.ConcurrentStressRunner \
+ *     [heiCount [seconds [threads...]]]
+ * </pre>
+ *
+ * <p>
+ * The defaults are 10000 HEIs, 5 seconds per run, and 1, 2, 4 and 8 reader threads.
+ * </p>
+ */
+public final class ConcurrentStressRunner {
+
+  /**
+   * Run the stress test.
+   *
+   * @param args See {@link ConcurrentStressRunner}.
+   * @throws Exception if the harness fails.
+   */
+  public static void main(String[] args) throws Exception {
+    int heiCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int i = 2; i < args.length; i++) {
+      threadCounts.add(Integer.parseInt(args[i]));
+    }
+    if (threadCounts.isEmpty()) {
+      threadCounts.add(1);
+      threadCounts.add(2);
+      threadCounts.add(4);
+      threadCounts.add(8);
+    }
+
+    ConcurrentStressHarness harness = new ConcurrentStressHarness(heiCount);
+    System.out.println("Warming up (" + heiCount + " HEIs)...");
+    harness.run(threadCounts.get(threadCounts.size() - 1), seconds, TimeUnit.SECONDS);
+
+    System.out.println(String.format(Locale.ROOT, "%8s %12s %8s %10s %10s %12s %10s %11s",
+        "threads", "ops/s", "scaling", "refreshes", "blocked", "blocked ms", "waited",
+        "violations"));
+    double baseline = 0;
+    long violations = 0;
+    for (int threads : threadCounts) {
+      Result result = harness.run(threads, seconds, TimeUnit.SECONDS);
+      if (baseline == 0) {
+        baseline = result.getThroughput() / threads;
+      }
+      System.out.println(String.format(Locale.ROOT, "%8d %12.0f %8.2f %10d %10d %12d %10d %11d",
+          threads, result.getThroughput(), result.getThroughput() / baseline,
+          result.getRefreshes(), result.getBlockedCount(), result.getBlockedTime(),
+          result.getWaitedCount(), result.getViolations()));
+      if (result.getFirstViolation() != null) {
+        System.out.println("  first violation: " + result.getFirstViolation());
+      }
+      violations += result.getViolations();
+    }
+    if (violations > 0) {
+      System.exit(1);
+    }
+  }
+
+  private ConcurrentStressRunner() {
+  }
+}
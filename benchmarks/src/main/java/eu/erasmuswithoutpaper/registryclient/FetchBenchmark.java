@@ -0,0 +1,99 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end-to-end refreshes over HTTPS, against a local {@link RegistrySimulator}.
+ *
+ * <p>
+ * Use the <code>latency</code> and <code>bandwidth</code> parameters to simulate slow links
+ * (<code>bandwidth</code> is in bytes per second, <code>0</code> means no limit).
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int heiCount;
+
+  @Param({ "false", "true" })
+  public boolean gzip;
+
+  @Param({ "0" })
+  public long latency;
+
+  @Param({ "0" })
+  public long bandwidth;
+
+  private RegistrySimulator simulator;
+  private DefaultCatalogueFetcher fetcher;
+  private ClientImpl client;
+  private BenchmarkData[] revisions;
+  private int refreshes;
+
+  /**
+   * Fetch the catalogue (HTTP 200), without parsing it.
+   */
+  @Benchmark
+  public CatalogueFetcher.RegistryResponse fetch() throws Exception {
+    return this.fetcher.fetchCatalogue(null);
+  }
+
+  /**
+   * A conditional request for a catalogue which didn't change (HTTP 304).
+   */
+  @Benchmark
+  public CatalogueFetcher.RegistryResponse fetchNotModified() throws Exception {
+    return this.fetcher.fetchCatalogue(this.revisions[this.refreshes % 2].getCatalogue().getETag());
+  }
+
+  /**
+   * A full refresh (fetch and parse) of a catalogue which has changed since the previous one.
+   */
+  @Benchmark
+  public void refresh() throws Exception {
+    this.simulator.setCatalogue(this.revisions[++this.refreshes % 2].getCatalogue());
+    this.client.refresh();
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    this.revisions = new BenchmarkData[] { BenchmarkData.generate(this.heiCount, 0),
+        BenchmarkData.generate(this.heiCount, 1) };
+    this.simulator = new RegistrySimulator();
+    this.simulator.setCatalogue(this.revisions[0].getCatalogue());
+    this.simulator.setGzipEnabled(this.gzip);
+    this.simulator.setLatency(this.latency);
+    this.simulator.setBandwidth(this.bandwidth);
+    this.fetcher = this.simulator.newCatalogueFetcher();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(this.fetcher);
+    this.client = new ClientImpl(options);
+    this.client.refresh();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.client.close();
+    this.simulator.close();
+  }
+}
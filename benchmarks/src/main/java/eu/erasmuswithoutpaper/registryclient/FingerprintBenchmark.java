@@ -0,0 +1,70 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Measures the fingerprinting primitives. Credentials are fingerprinted on every authentication
+ * query, and catalogue sections are fingerprinted during each refresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FingerprintBenchmark {
+
+  private Certificate certificate;
+  private RSAPublicKey key;
+  private Element hostElement;
+  private Element heiElement;
+
+  @Benchmark
+  public String certificateFingerprint() {
+    return Utils.extractFingerprint(this.certificate);
+  }
+
+  @Benchmark
+  public String heiContentFingerprint() {
+    return Utils.computeContentFingerprint(this.heiElement);
+  }
+
+  @Benchmark
+  public String hostContentFingerprint() {
+    return Utils.computeContentFingerprint(this.hostElement);
+  }
+
+  @Benchmark
+  public String keyFingerprint() {
+    return Utils.extractFingerprint(this.key);
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkData data = BenchmarkData.generate(10, 0);
+    this.certificate = data.getCertificates().get(0);
+    this.key = data.getClientKey(0);
+    Document doc = Utils.newSecureDocumentBuilder()
+        .parse(new ByteArrayInputStream(data.getContent()));
+    this.hostElement = (Element) doc
+        .getElementsByTagNameNS(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI, "host").item(0);
+    this.heiElement = (Element) doc
+        .getElementsByTagNameNS(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI, "hei").item(0);
+  }
+}
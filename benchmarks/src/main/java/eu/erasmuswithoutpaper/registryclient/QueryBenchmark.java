@@ -0,0 +1,187 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+
+/**
+ * Measures every family of {@link RegistryClient} queries, against a loaded catalogue.
+ *
+ * <p>
+ * Each invocation queries a different HEI (or host), cycling through all of them, so that the
+ * results are not skewed by a single hot entry.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int heiCount;
+
+  private BenchmarkData data;
+  private ClientImpl client;
+  private Element apiElement;
+  private int cursor;
+
+  @Benchmark
+  public boolean areHeisCoveredByClientKey() throws Exception {
+    int host = this.nextHost();
+    return this.client.areHeisCoveredByClientKey(this.data.getHeiIds(host),
+        this.data.getClientKey(host));
+  }
+
+  @Benchmark
+  public Element findApi() throws Exception {
+    int hei = this.nextHei();
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(BenchmarkData.getApiNamespace(this.data.getHostOf(hei)),
+        CatalogueGenerator.API_LOCAL_NAME);
+    conds.setRequiredHei(this.data.getHeiIds().get(hei));
+    return this.client.findApi(conds);
+  }
+
+  @Benchmark
+  public Collection<Element> findApisByClass() throws Exception {
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(BenchmarkData.getApiNamespace(this.next()),
+        CatalogueGenerator.API_LOCAL_NAME, "1.2.0");
+    return this.client.findApis(conds);
+  }
+
+  @Benchmark
+  public HeiEntry findHei() throws Exception {
+    return this.client.findHei(this.data.getHeiIds().get(this.nextHei()));
+  }
+
+  @Benchmark
+  public String findHeiIdByOtherId() throws Exception {
+    return this.client.findHeiId(CatalogueGenerator.getOtherIdType(1),
+        CatalogueGenerator.getOtherId(this.nextHei(), 1));
+  }
+
+  @Benchmark
+  public Collection<HeiEntry> findHeisByApi() throws Exception {
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(BenchmarkData.getApiNamespace(this.next()),
+        CatalogueGenerator.API_LOCAL_NAME);
+    return this.client.findHeis(conds);
+  }
+
+  @Benchmark
+  public RSAPublicKey findRsaPublicKey() throws Exception {
+    RSAPublicKey key = this.data.getServerKey(this.nextHost());
+    return this.client.findRsaPublicKey(Utils.extractFingerprint(key));
+  }
+
+  @Benchmark
+  public int getAllHeis() throws Exception {
+    return this.client.getAllHeis().size();
+  }
+
+  @Benchmark
+  public Collection<String> getHeisCoveredByCertificate() throws Exception {
+    return this.client.getHeisCoveredByCertificate(this.nextCertificate());
+  }
+
+  @Benchmark
+  public RSAPublicKey getServerKeyCoveringApi() throws Exception {
+    return this.client.getServerKeyCoveringApi(this.apiElement);
+  }
+
+  @Benchmark
+  public String heiName() throws Exception {
+    return this.client.findHei(this.data.getHeiIds().get(this.nextHei())).getName("es");
+  }
+
+  @Benchmark
+  public boolean isApiCoveredByServerKey() throws Exception {
+    return this.client.isApiCoveredByServerKey(this.apiElement, this.data.getServerKey(0));
+  }
+
+  @Benchmark
+  public boolean isCertificateKnown() throws Exception {
+    return this.client.isCertificateKnown(this.nextCertificate());
+  }
+
+  @Benchmark
+  public boolean isClientKeyKnown() throws Exception {
+    return this.client.isClientKeyKnown(this.data.getClientKey(this.nextHost()));
+  }
+
+  @Benchmark
+  public boolean isHeiCoveredByCertificate() throws Exception {
+    int hei = this.nextHei();
+    Certificate cert = this.data.getCertificates().get(this.data.getHostOf(hei));
+    return this.client.isHeiCoveredByCertificate(this.data.getHeiIds().get(hei), cert);
+  }
+
+  @Benchmark
+  public boolean isHeiCoveredByClientKey() throws Exception {
+    int hei = this.nextHei();
+    RSAPublicKey key = this.data.getClientKey(this.data.getHostOf(hei));
+    return this.client.isHeiCoveredByClientKey(this.data.getHeiIds().get(hei), key);
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    this.data = BenchmarkData.generate(this.heiCount, 0);
+    this.client = this.data.newClient();
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(BenchmarkData.getApiNamespace(0), CatalogueGenerator.API_LOCAL_NAME);
+    conds.setRequiredHei(this.data.getHeiIds().get(0));
+    this.apiElement = this.client.findApi(conds);
+    if (this.apiElement == null
+        || !this.client.isHeiCoveredByClientKey(this.data.getHeiIds().get(0),
+            this.data.getClientKey(0))
+        || this.client.findHeiId(CatalogueGenerator.getOtherIdType(1),
+            CatalogueGenerator.getOtherId(0, 1)) == null
+        || !this.client.areHeisCoveredByClientKey(Arrays.asList(this.data.getHeiIds().get(0)),
+            this.data.getClientKey(0))) {
+      throw new IllegalStateException("Generated catalogue doesn't match the benchmark.");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.client.close();
+  }
+
+  private int next() {
+    return this.cursor++ & Integer.MAX_VALUE;
+  }
+
+  private Certificate nextCertificate() {
+    List<Certificate> certs = this.data.getCertificates();
+    return certs.get(this.next() % certs.size());
+  }
+
+  private int nextHei() {
+    return this.next() % this.heiCount;
+  }
+
+  private int nextHost() {
+    return this.data.getHostOf(this.nextHei());
+  }
+}
@@ -0,0 +1,183 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes for a new {@link ClientImpl} to become usable: the construction time,
+ * and the latency of the first query (which includes loading the catalogue, if it is loaded
+ * lazily).
+ *
+ * <p>
+ * The <code>cache</code> parameter selects the persistent cache setup:
+ * </p>
+ *
+ * <ul>
+ * <li><code>none</code> - no persistent cache. The client needs to be refreshed before it can be
+ * used (the catalogue is fetched from memory, so this measures parsing only).</li>
+ * <li><code>objectStream</code> - the catalogue response is loaded from an in-memory cache (as a
+ * serialized object stream), and then parsed.</li>
+ * <li><code>indexSnapshot</code> - same as above, but the indexes are restored from a cached
+ * {@link IndexSnapshot} (see {@link ClientImplOptions#setIndexSnapshotCaching(boolean)}).</li>
+ * <li><code>mappedFile</code> - same as above, but the cache is a {@link FilePersistentCacheMap}
+ * (whose entries are memory-mapped).</li>
+ * <li><code>lazy</code> - same as <code>indexSnapshot</code>, but with
+ * {@link ClientImplOptions#setLazyLoading(boolean)} turned on (so the cost moves from the
+ * construction to the first query).</li>
+ * </ul>
+ *
+ * <p>
+ * Each invocation constructs a new client, so this benchmark runs in single-shot mode, without
+ * warm-up iterations. The first iterations of each fork show the cost in a (mostly) cold JVM. To
+ * get the results as JSON (e.g. for tracking them over time), use the standard JMH options:
+ * <code>StartupBenchmark -rf json -rff startup.json</code>.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 20)
+@Fork(3)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+  /**
+   * A client constructed (but not queried yet) before each invocation of
+   * {@link StartupBenchmark#firstQuery(ConstructedClient)}.
+   */
+  @State(Scope.Thread)
+  public static class ConstructedClient {
+
+    private ClientImpl client;
+
+    @Setup(Level.Invocation)
+    public void setUp(StartupBenchmark benchmark) throws Exception {
+      this.client = benchmark.newStartedClient();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      this.client.close();
+    }
+  }
+
+  @Param({ "1000", "10000", "50000" })
+  public int heiCount;
+
+  @Param({ "none", "objectStream", "indexSnapshot", "mappedFile", "lazy" })
+  public String cache;
+
+  private BenchmarkData data;
+  private Path cacheDirectory;
+  private Map<String, byte[]> cacheMap;
+  private String queriedHeiId;
+  private ClientImpl constructed;
+
+  /**
+   * Construct a new client, and make it ready for queries (this includes the initial refresh if
+   * there is no persistent cache).
+   */
+  @Benchmark
+  public ClientImpl construct() throws Exception {
+    this.constructed = this.newStartedClient();
+    return this.constructed;
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeConstructed() {
+    if (this.constructed != null) {
+      this.constructed.close();
+      this.constructed = null;
+    }
+  }
+
+  /**
+   * The first query run on a newly constructed client.
+   */
+  @Benchmark
+  public HeiEntry firstQuery(ConstructedClient state) {
+    return state.client.findHei(this.queriedHeiId);
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    this.data = BenchmarkData.generate(this.heiCount, 0);
+    this.queriedHeiId = this.data.getHeiIds().get(this.heiCount / 2);
+    switch (this.cache) {
+      case "none":
+        this.cacheMap = null;
+        break;
+      case "mappedFile":
+        this.cacheDirectory = Files.createTempDirectory("ewp-startup-benchmark");
+        this.cacheMap = new FilePersistentCacheMap(this.cacheDirectory);
+        break;
+      case "objectStream":
+      case "indexSnapshot":
+      case "lazy":
+        this.cacheMap = new HashMap<>();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown cache: " + this.cache);
+    }
+    if (this.cacheMap != null) {
+      // Populate the cache.
+      try (ClientImpl client = new ClientImpl(this.newOptions())) {
+        client.refresh();
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (this.cacheDirectory != null) {
+      this.cacheMap.clear();
+      Files.deleteIfExists(this.cacheDirectory);
+      this.cacheDirectory = null;
+    }
+  }
+
+  private ClientImpl newStartedClient() throws Exception {
+    ClientImpl client = new ClientImpl(this.newOptions());
+    if (this.cacheMap == null) {
+      client.refresh();
+    }
+    return client;
+  }
+
+  private ClientImplOptions newOptions() {
+    ClientImplOptions options = new ClientImplOptions();
+    // Refreshes are run explicitly (a background refresh would distort the results).
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        return StartupBenchmark.this.data.newResponse();
+      }
+    });
+    if (this.cacheMap != null) {
+      options.setPersistentCacheMap(this.cacheMap);
+      options.setIndexSnapshotCaching(!"objectStream".equals(this.cache));
+      options.setLazyLoading("lazy".equals(this.cache));
+    }
+    return options;
+  }
+}
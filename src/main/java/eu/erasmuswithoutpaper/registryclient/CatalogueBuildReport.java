@@ -0,0 +1,325 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a single copy of the catalogue has been built (see
+ * {@link ClientImpl#getCatalogueBuildReport()}). Immutable.
+ *
+ * <p>
+ * The report contains:
+ * </p>
+ *
+ * <ul>
+ * <li>the duration of each {@link Phase} of building the indexes (and the number of bytes allocated
+ * during this phase, if the JVM supports measuring it),</li>
+ * <li>the number of hosts, HEIs, API entries and RSA keys found in the catalogue (and the number
+ * of hosts and HEIs reused from the previous copy of the catalogue),</li>
+ * <li>the estimated retained size of each {@link CatalogueIndex}.</li>
+ * </ul>
+ *
+ * <p>
+ * The sizes are <b>estimates</b>. They are computed from the number and length of the indexed
+ * objects, assuming a 64-bit JVM with compressed object pointers and compact strings. They don't
+ * require a heap dump, but they may differ from the actual sizes by tens of percent.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public final class CatalogueBuildReport {
+
+  /**
+   * Phases of building a new copy of the catalogue, in the order in which they are run.
+   *
+   * @since 1.11.0
+   */
+  public enum Phase {
+
+    /**
+     * Parsing the raw XML content into a DOM (and verifying its root element).
+     */
+    XML_PARSING,
+
+    /**
+     * Extracting the data of all <code>&lt;host&gt;</code> elements (coverage sets, server keys
+     * and API entries).
+     */
+    HOST_INDEXES,
+
+    /**
+     * Building the "other-id -&gt; heiId" maps.
+     */
+    OTHER_ID_INDEX,
+
+    /**
+     * Extracting the data of all <code>&lt;hei&gt;</code> elements.
+     */
+    HEI_INDEX,
+
+    /**
+     * Decoding the RSA keys (or - in lazy key decoding mode - just storing them for later).
+     */
+    KEY_DECODING,
+
+    /**
+     * Deriving the persistent indexes from the previous version of the catalogue (sharing all
+     * their unchanged entries).
+     */
+    PERSISTENT_INDEXES,
+
+    /**
+     * Restoring the indexes from a previously cached index snapshot (instead of all the above,
+     * except {@link #KEY_DECODING}). See
+     * {@link ClientImplOptions#setIndexSnapshotCaching(boolean)}.
+     */
+    SNAPSHOT_RESTORE
+  }
+
+  /**
+   * Collects the durations of the phases while a {@link CatalogueDocument} is being built. It also
+   * emits the matching {@link FlightRecorderEvents}. Not thread-safe (it is used by the
+   * constructing thread only).
+   */
+  static final class Recorder {
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or -1 if the JVM cannot
+     *         measure it.
+     */
+    private static long getAllocatedBytes() {
+      if (threadBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+          return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+      }
+      return -1;
+    }
+
+    private final long start = System.nanoTime();
+    private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> allocations = new EnumMap<>(Phase.class);
+    private long totalDuration = -1;
+    private int hostCount;
+    private int reusedHostCount;
+    private int heiCount;
+    private int reusedHeiCount;
+    private int apiEntryCount;
+    private int rsaKeyCount;
+
+    private Phase phase;
+    private Object phaseEvent;
+    private long phaseStart;
+    private long phaseAllocatedBytes;
+
+    /**
+     * Start measuring the given phase.
+     */
+    void begin(Phase phase) {
+      this.phase = phase;
+      this.phaseEvent = FlightRecorderEvents.INSTANCE.beginBuildPhase();
+      this.phaseAllocatedBytes = getAllocatedBytes();
+      this.phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Stop measuring the phase started by the most recent {@link #begin(Phase)} call.
+     */
+    void end() {
+      final long duration = System.nanoTime() - this.phaseStart;
+      long allocated = getAllocatedBytes();
+      FlightRecorderEvents.INSTANCE.endBuildPhase(this.phaseEvent, this.phase);
+      this.durations.merge(this.phase, duration, Long::sum);
+      if (allocated >= 0 && this.phaseAllocatedBytes >= 0) {
+        this.allocations.merge(this.phase, allocated - this.phaseAllocatedBytes, Long::sum);
+      }
+      this.phase = null;
+      this.phaseEvent = null;
+    }
+
+    /**
+     * Stop measuring the total duration, and record the sizes of the catalogue.
+     */
+    void finish(int hosts, int reusedHosts, int heis, int reusedHeis, int apiEntries,
+        int rsaKeys) {
+      this.totalDuration = System.nanoTime() - this.start;
+      this.hostCount = hosts;
+      this.reusedHostCount = reusedHosts;
+      this.heiCount = heis;
+      this.reusedHeiCount = reusedHeis;
+      this.apiEntryCount = apiEntries;
+      this.rsaKeyCount = rsaKeys;
+    }
+  }
+
+  private final String etag;
+  private final int contentLength;
+  private final long totalDuration;
+  private final Map<Phase, Long> durations;
+  private final Map<Phase, Long> allocations;
+  private final int hostCount;
+  private final int reusedHostCount;
+  private final int heiCount;
+  private final int reusedHeiCount;
+  private final int apiEntryCount;
+  private final int rsaKeyCount;
+  private final Map<CatalogueIndex, Long> estimatedSizes;
+
+  CatalogueBuildReport(String etag, int contentLength, Recorder recorder,
+      Map<CatalogueIndex, Long> estimatedSizes) {
+    this.etag = etag;
+    this.contentLength = contentLength;
+    this.totalDuration = recorder.totalDuration;
+    this.durations = new EnumMap<>(recorder.durations);
+    this.allocations = new EnumMap<>(recorder.allocations);
+    this.hostCount = recorder.hostCount;
+    this.reusedHostCount = recorder.reusedHostCount;
+    this.heiCount = recorder.heiCount;
+    this.reusedHeiCount = recorder.reusedHeiCount;
+    this.apiEntryCount = recorder.apiEntryCount;
+    this.rsaKeyCount = recorder.rsaKeyCount;
+    this.estimatedSizes = new EnumMap<>(estimatedSizes);
+  }
+
+  /**
+   * @param phase The phase to look up.
+   * @return The number of bytes allocated by the building thread during the given phase, or -1 if
+   *         the phase was not run, or the JVM cannot measure allocations (see
+   *         <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes</code>).
+   */
+  public long getAllocatedBytes(Phase phase) {
+    Long result = this.allocations.get(phase);
+    return result != null ? result : -1;
+  }
+
+  /**
+   * @return The number of API entries in the catalogue.
+   */
+  public int getApiEntryCount() {
+    return this.apiEntryCount;
+  }
+
+  /**
+   * @return The length of the raw catalogue content (in bytes).
+   */
+  public int getContentLength() {
+    return this.contentLength;
+  }
+
+  /**
+   * @param phase The phase to look up.
+   * @param unit The unit in which to return the result.
+   * @return The duration of the given phase (0 if it was not run).
+   */
+  public long getDuration(Phase phase, TimeUnit unit) {
+    Long result = this.durations.get(phase);
+    return unit.convert(result != null ? result : 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param index The index to look up.
+   * @return The estimated retained size of the given index (in bytes).
+   */
+  public long getEstimatedSize(CatalogueIndex index) {
+    Long result = this.estimatedSizes.get(index);
+    return result != null ? result : 0;
+  }
+
+  /**
+   * @return The sum of the estimated retained sizes of all the indexes (in bytes).
+   */
+  public long getEstimatedTotalSize() {
+    long result = 0;
+    for (long size : this.estimatedSizes.values()) {
+      result += size;
+    }
+    return result;
+  }
+
+  /**
+   * @return The ETag of the catalogue copy (possibly <b>null</b>).
+   */
+  public String getETag() {
+    return this.etag;
+  }
+
+  /**
+   * @return The number of HEIs in the catalogue.
+   */
+  public int getHeiCount() {
+    return this.heiCount;
+  }
+
+  /**
+   * @return The number of <code>&lt;host&gt;</code> elements in the catalogue.
+   */
+  public int getHostCount() {
+    return this.hostCount;
+  }
+
+  /**
+   * @return The phases which have been run for building this copy of the catalogue (in the order
+   *         in which they are declared in {@link Phase}).
+   */
+  public List<Phase> getPhases() {
+    return Collections.unmodifiableList(new ArrayList<>(this.durations.keySet()));
+  }
+
+  /**
+   * @return The number of HEIs whose data has been reused from the previous copy of the catalogue
+   *         (instead of being extracted again).
+   */
+  public int getReusedHeiCount() {
+    return this.reusedHeiCount;
+  }
+
+  /**
+   * @return The number of <code>&lt;host&gt;</code> elements whose data has been reused from the
+   *         previous copy of the catalogue (instead of being extracted again).
+   */
+  public int getReusedHostCount() {
+    return this.reusedHostCount;
+  }
+
+  /**
+   * @return The number of RSA keys in the catalogue's <code>&lt;binaries&gt;</code> section.
+   */
+  public int getRsaKeyCount() {
+    return this.rsaKeyCount;
+  }
+
+  /**
+   * @param unit The unit in which to return the result.
+   * @return The total time it took to build this copy of the catalogue.
+   */
+  public long getTotalDuration(TimeUnit unit) {
+    return unit.convert(this.totalDuration, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder phases = new StringBuilder();
+    for (Phase phase : this.durations.keySet()) {
+      if (phases.length() > 0) {
+        phases.append(", ");
+      }
+      phases.append(phase).append('=').append(this.getDuration(phase, TimeUnit.MICROSECONDS))
+          .append("us");
+    }
+    return "CatalogueBuildReport[ETag=" + this.etag + ", contentLength=" + this.contentLength
+        + ", total=" + this.getTotalDuration(TimeUnit.MICROSECONDS) + "us, phases={" + phases
+        + "}, hosts=" + this.hostCount + " (" + this.reusedHostCount + " reused), heis="
+        + this.heiCount + " (" + this.reusedHeiCount + " reused), apiEntries="
+        + this.apiEntryCount + ", rsaKeys=" + this.rsaKeyCount + ", estimatedSizes="
+        + this.estimatedSizes + "]";
+  }
+}
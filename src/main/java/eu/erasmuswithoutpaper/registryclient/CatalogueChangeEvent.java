@@ -0,0 +1,238 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Describes the differences between two versions of the catalogue (see
+ * {@link CatalogueChangeListener}). Immutable.
+ *
+ * <p>
+ * The differences are described in terms of:
+ * </p>
+ *
+ * <ul>
+ * <li>HEIs (added, removed and renamed),</li>
+ * <li>credentials (added and revoked), identified by their SHA-256 fingerprints. This includes
+ * client certificates, client RSA keys and server RSA keys,</li>
+ * <li>API entries (added, removed and version-changed), per host (see {@link ApiChange}).</li>
+ * </ul>
+ *
+ * @since 1.11.0
+ */
+public final class CatalogueChangeEvent {
+
+  /**
+   * Describes a change of a single API entry, on a single host.
+   *
+   * <p>
+   * The <code>&lt;host&gt;</code> elements in the catalogue don't have any identifiers. For the
+   * purpose of comparing two versions of the catalogue, hosts are identified by the set of HEIs
+   * they cover (see {@link #getHostHeiIds()}). If the set of HEIs covered by a host changes, then
+   * all its API entries will be reported as removed (from the old host), and added (to the new
+   * one).
+   * </p>
+   *
+   * @since 1.11.0
+   */
+  public static final class ApiChange {
+
+    private final Type type;
+    private final Set<String> hostHeiIds;
+    private final String namespaceUri;
+    private final String localName;
+    private final String previousVersion;
+    private final String newVersion;
+
+    ApiChange(Type type, Set<String> hostHeiIds, String namespaceUri, String localName,
+        String previousVersion, String newVersion) {
+      this.type = type;
+      this.hostHeiIds = Collections.unmodifiableSet(hostHeiIds);
+      this.namespaceUri = namespaceUri;
+      this.localName = localName;
+      this.previousVersion = previousVersion;
+      this.newVersion = newVersion;
+    }
+
+    /**
+     * @return The set of SCHAC IDs of all HEIs covered by the host on which the change occurred
+     *         (can be empty).
+     */
+    public Set<String> getHostHeiIds() {
+      return this.hostHeiIds;
+    }
+
+    /**
+     * @return The local name of the API entry element.
+     */
+    public String getLocalName() {
+      return this.localName;
+    }
+
+    /**
+     * @return The namespace URI of the API entry element.
+     */
+    @SuppressFBWarnings("NM_CONFUSING")
+    public String getNamespaceUri() {
+      return this.namespaceUri;
+    }
+
+    /**
+     * @return The value of the <code>version</code> attribute in the new version of the catalogue
+     *         (empty string if the attribute is missing), or <b>null</b> if the API entry has been
+     *         {@link Type#REMOVED}.
+     */
+    public String getNewVersion() {
+      return this.newVersion;
+    }
+
+    /**
+     * @return The value of the <code>version</code> attribute in the previous version of the
+     *         catalogue (empty string if the attribute was missing), or <b>null</b> if the API
+     *         entry has been {@link Type#ADDED}.
+     */
+    public String getPreviousVersion() {
+      return this.previousVersion;
+    }
+
+    /**
+     * @return The type of the change.
+     */
+    public Type getType() {
+      return this.type;
+    }
+
+    @Override
+    public String toString() {
+      return "ApiChange[" + this.type + " {" + this.namespaceUri + "}" + this.localName + " "
+          + this.previousVersion + " -> " + this.newVersion + " on host " + this.hostHeiIds + "]";
+    }
+
+    /**
+     * Type of the {@link ApiChange}.
+     *
+     * @since 1.11.0
+     */
+    public enum Type {
+
+      /**
+       * The API entry is present only in the new version of the catalogue.
+       */
+      ADDED,
+
+      /**
+       * The API entry is present only in the previous version of the catalogue.
+       */
+      REMOVED,
+
+      /**
+       * The API entry is present in both versions, but its <code>version</code> attribute has
+       * changed.
+       */
+      VERSION_CHANGED
+    }
+  }
+
+  private final String previousETag;
+  private final String newETag;
+  private final Set<String> addedHeiIds;
+  private final Set<String> removedHeiIds;
+  private final Set<String> renamedHeiIds;
+  private final Set<String> addedCredentials;
+  private final Set<String> revokedCredentials;
+  private final List<ApiChange> apiChanges;
+
+  CatalogueChangeEvent(String previousETag, String newETag, Set<String> addedHeiIds,
+      Set<String> removedHeiIds, Set<String> renamedHeiIds, Set<String> addedCredentials,
+      Set<String> revokedCredentials, List<ApiChange> apiChanges) {
+    this.previousETag = previousETag;
+    this.newETag = newETag;
+    this.addedHeiIds = Collections.unmodifiableSet(addedHeiIds);
+    this.removedHeiIds = Collections.unmodifiableSet(removedHeiIds);
+    this.renamedHeiIds = Collections.unmodifiableSet(renamedHeiIds);
+    this.addedCredentials = Collections.unmodifiableSet(addedCredentials);
+    this.revokedCredentials = Collections.unmodifiableSet(revokedCredentials);
+    this.apiChanges = Collections.unmodifiableList(apiChanges);
+  }
+
+  /**
+   * @return SHA-256 fingerprints of all credentials (client certificates, client RSA keys and
+   *         server RSA keys) which are present only in the new version of the catalogue.
+   */
+  public Set<String> getAddedCredentials() {
+    return this.addedCredentials;
+  }
+
+  /**
+   * @return SCHAC IDs of all HEIs which are present only in the new version of the catalogue.
+   */
+  public Set<String> getAddedHeiIds() {
+    return this.addedHeiIds;
+  }
+
+  /**
+   * @return All changes of API entries, grouped by host.
+   */
+  public List<ApiChange> getApiChanges() {
+    return this.apiChanges;
+  }
+
+  /**
+   * @return The ETag of the new version of the catalogue.
+   */
+  public String getNewETag() {
+    return this.newETag;
+  }
+
+  /**
+   * @return The ETag of the previous version of the catalogue.
+   */
+  public String getPreviousETag() {
+    return this.previousETag;
+  }
+
+  /**
+   * @return SCHAC IDs of all HEIs which are present only in the previous version of the catalogue.
+   */
+  public Set<String> getRemovedHeiIds() {
+    return this.removedHeiIds;
+  }
+
+  /**
+   * @return SCHAC IDs of all HEIs which are present in both versions of the catalogue, but whose
+   *         names (in any language) have changed.
+   */
+  public Set<String> getRenamedHeiIds() {
+    return this.renamedHeiIds;
+  }
+
+  /**
+   * @return SHA-256 fingerprints of all credentials (client certificates, client RSA keys and
+   *         server RSA keys) which are present only in the previous version of the catalogue.
+   */
+  public Set<String> getRevokedCredentials() {
+    return this.revokedCredentials;
+  }
+
+  /**
+   * @return <b>true</b> if none of the differences described by this event have been found (this
+   *         may happen if the catalogue has changed in some other way).
+   */
+  public boolean isEmpty() {
+    return this.addedHeiIds.isEmpty() && this.removedHeiIds.isEmpty()
+        && this.renamedHeiIds.isEmpty() && this.addedCredentials.isEmpty()
+        && this.revokedCredentials.isEmpty() && this.apiChanges.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "CatalogueChangeEvent[" + this.previousETag + " -> " + this.newETag + ": "
+        + this.addedHeiIds.size() + " HEIs added, " + this.removedHeiIds.size() + " removed, "
+        + this.renamedHeiIds.size() + " renamed; " + this.addedCredentials.size()
+        + " credentials added, " + this.revokedCredentials.size() + " revoked; "
+        + this.apiChanges.size() + " API changes]";
+  }
+}
@@ -0,0 +1,36 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+/**
+ * A listener notified whenever {@link ClientImpl} starts using a new version of the catalogue.
+ *
+ * <p>
+ * Listeners are registered via {@link ClientImpl#addCatalogueChangeListener}. Each notification
+ * carries a {@link CatalogueChangeEvent}, describing the differences between the previous and the
+ * new version of the catalogue. This allows you to invalidate your own caches (derived from the
+ * catalogue) incrementally, instead of flushing them all after each refresh.
+ * </p>
+ *
+ * <p>
+ * Listeners are called <b>after</b> the new catalogue has been put to use (so, when you receive the
+ * event, all {@link RegistryClient} queries already return the new results). The differences are
+ * computed, and the listeners are called, in a background thread (the refresh thread, if
+ * {@link ClientImplOptions#isAutoRefreshing()} is on), never in the threads running the queries.
+ * Notifications are delivered one at a time, in the order in which the catalogue versions have been
+ * swapped.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public interface CatalogueChangeListener {
+
+  /**
+   * Called after {@link ClientImpl} has started using a new version of the catalogue.
+   *
+   * <p>
+   * This method should return quickly. Exceptions thrown by it are logged and ignored.
+   * </p>
+   *
+   * @param event The description of the changes.
+   */
+  void catalogueChanged(CatalogueChangeEvent event);
+}
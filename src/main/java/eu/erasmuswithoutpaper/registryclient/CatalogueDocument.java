@@ -2,24 +2,26 @@ package eu.erasmuswithoutpaper.registryclient;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
@@ -28,6 +30,9 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import eu.erasmuswithoutpaper.registryclient.CatalogueBuildReport.Phase;
+import eu.erasmuswithoutpaper.registryclient.CatalogueBuildReport.Recorder;
+import eu.erasmuswithoutpaper.registryclient.CatalogueChangeEvent.ApiChange;
 import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient.InvalidApiEntryElement;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient.RegistryClientException;
@@ -56,14 +61,31 @@ class CatalogueDocument {
   private static final Logger logger = LoggerFactory.getLogger(CatalogueDocument.class);
 
   /**
-   * The underlying catalogue document.
+   * Lock guarding the lazy parsing of the DOM (see {@link #getApiElements()}).
+   */
+  private final Object domLock = new Object();
+
+  /**
+   * Raw catalogue content, kept only until the DOM is parsed. It is <b>null</b> once
+   * {@link #apiElements} are available.
+   */
+  private byte[] pendingContent;
+
+  /**
+   * All API entry elements of the underlying catalogue document, in document order (the indexes of
+   * this list match {@link ApiEntryRecord#getOrdinal()}).
+   *
+   * <p>
+   * This is <b>null</b> until the DOM is parsed. If the document was created from an
+   * {@link IndexSnapshot}, then the parsing is delayed until the DOM is actually needed.
+   * </p>
    *
    * <p>
-   * This field is final, but its data is still mutable (and thus, not thread-safe). Thus, clones
-   * need to be created whenever the elements of this document are exposed outside.
+   * The elements are still mutable (and thus, not thread-safe). Thus, clones need to be created
+   * whenever the elements of this document are exposed outside.
    * </p>
    */
-  private final Document doc;
+  private volatile List<Element> apiElements;
 
   /**
    * This is the ETag we got along the retrieved catalogue document.
@@ -71,7 +93,12 @@ class CatalogueDocument {
   private final String etag;
 
   /**
-   * "SHA-256 -> heiIds" index for {@link #doc}.
+   * The length of the raw catalogue content (used for validating {@link IndexSnapshot}s).
+   */
+  private final int contentLength;
+
+  /**
+   * "SHA-256 -> heiIds" index for the catalogue.
    *
    * <p>
    * Client certificate's SHA-256 hex fingerprint is mapped to the set of all HEI IDs covered by
@@ -79,20 +106,21 @@ class CatalogueDocument {
    * </p>
    *
    * <p>
-   * This field is final, but its data is still mutable (and thus, not thread-safe). Unmodifiable
-   * views need to be used before its values are exposed outside.
+   * This is a {@link PersistentHashMap}, which shares all its unchanged entries (and trie nodes)
+   * with the same index of the previous version of the catalogue. Its values are still mutable
+   * though. Unmodifiable views need to be used before its values are exposed outside.
    * </p>
    */
-  private final Map<String, Set<String>> certHeis;
+  private final PersistentHashMap<String, Set<String>> certHeis;
 
-  private final Map<String, Set<String>> cliKeyHeis;
+  private final PersistentHashMap<String, Set<String>> cliKeyHeis;
 
   /**
-   * "Host Element -> heiIds" index for {@link #doc}.
+   * "Host index -> heiIds" index for the catalogue.
    *
    * <p>
-   * For each <code>&lt;host&gt;</code> element in the catalogue, a set of HEI IDs covered by this
-   * host (can be empty).
+   * For each <code>&lt;host&gt;</code> element in the catalogue (in document order), a set of HEI
+   * IDs covered by this host (can be empty).
    * </p>
    *
    * <p>
@@ -100,14 +128,14 @@ class CatalogueDocument {
    * views need to be used before its values are exposed outside.
    * </p>
    */
-  private final Map<Element, Set<String>> hostHeis;
+  private final List<Set<String>> hostHeis;
 
   /**
-   * "Host Element -> rsa-server-key fingerprints" index for {@link #doc}.
+   * "Host index -> rsa-server-key fingerprints" index for the catalogue.
    *
    * <p>
-   * For each <code>&lt;host&gt;</code> element in the catalogue, a set of rsa-server-key
-   * fingerprints covering this host (can be empty).
+   * For each <code>&lt;host&gt;</code> element in the catalogue (in document order), a set of
+   * rsa-server-key fingerprints covering this host (can be empty).
    * </p>
    *
    * <p>
@@ -115,60 +143,108 @@ class CatalogueDocument {
    * views need to be used before its values are exposed outside.
    * </p>
    */
-  private final Map<Element, Set<String>> hostServerKeys;
+  private final List<Set<String>> hostServerKeys;
 
   /**
-   * "HEI other-id type -> other-id value -> heiId" index for {@link #doc}.
+   * "HEI other-id type -> other-id value -> heiId" index for the catalogue.
    *
    * <p>
    * We keep a separate map for each <code>type</code> attribute of <code>&lt;other-id&gt;</code>
-   * elements present in the {@link #doc}. The keys of each such map contain all values present for
+   * elements present in the catalogue. The keys of each such map contain all values present for
    * the type, and the value contains a single HEI ID mapped for this value (if there are many HEI
    * IDs mapped for this value (which should not happen in general) then a random one is stored
    * here).
    * </p>
    *
    * <p>
-   * This field is final, but its data is still mutable (and thus, not thread-safe). Unmodifiable
-   * views need to be used before its values are exposed outside.
+   * This is a {@link PersistentHashMap}, which shares all its unchanged entries (and trie nodes)
+   * with the same index of the previous version of the catalogue. Its values are
+   * {@link PersistentHashMap}s too.
    * </p>
    */
-  private final Map<String, Map<String, String>> heiIdMaps;
+  private final PersistentHashMap<String, Map<String, String>> heiIdMaps;
 
   /**
-   * "heiId -> HeiEntry" index for {@link #doc}.
+   * "heiId -> HeiEntry" index for the catalogue.
    *
    * <p>
-   * This field is final, but its data is still mutable (and thus, not thread-safe). Unmodifiable
-   * views need to be used before its values are exposed outside.
+   * This is a {@link PersistentHashMap}, which shares all its unchanged entries (and trie nodes)
+   * with the same index of the previous version of the catalogue.
    * </p>
    */
-  private final Map<String, HeiEntry> heiEntries;
+  private final PersistentHashMap<String, HeiEntry> heiEntries;
 
   /**
-   * "Unique API ID -> API entry elements" index for {@link #doc}.
+   * "Unique API ID -> API entries" index for the catalogue.
    *
    * <p>
    * Unique API ID is constructed from both namespaceUri and localName of the API entry element (see
-   * {@link #getApiIndexKey(String, String)}). Each such ID is mapped to a list of all DOM
-   * {@link Element}s found under <code>&lt;apis-implemented&gt;</code> element in the {@link #doc}.
+   * {@link #getApiIndexKey(String, String)}). Each such ID is mapped to a list of all
+   * {@link ApiEntryRecord}s describing the elements found under
+   * <code>&lt;apis-implemented&gt;</code> element in the catalogue.
    * </p>
    *
    * <p>
-   * This field is final, but its data is still mutable (and thus, not thread-safe). Unmodifiable
-   * views need to be used before its values are exposed outside.
+   * This is a {@link PersistentHashMap}, which shares all its unchanged entries (and trie nodes)
+   * with the same index of the previous version of the catalogue. Its values are still mutable
+   * though. Unmodifiable views need to be used before its values are exposed outside.
+   * </p>
+   */
+  private final PersistentHashMap<String, List<ApiEntryRecord>> apiIndex;
+
+  /**
+   * All API entries of the catalogue, in document order.
+   */
+  private final List<ApiEntryRecord> apiEntries;
+
+  /**
+   * "Content fingerprint -> host section" index for the catalogue.
+   *
+   * <p>
+   * Data extracted from each <code>&lt;host&gt;</code> element, keyed by the element's content
+   * fingerprint (see {@link Utils#computeContentFingerprint(Element)}). It allows the next version
+   * of the catalogue to reuse the data of the hosts which didn't change (see
+   * {@link #CatalogueDocument(Http200RegistryResponse, CatalogueDocument, RsaKeyCache, boolean)}).
+   * It is empty if this document has been created from an {@link IndexSnapshot}.
+   * </p>
+   */
+  private final Map<String, HostSection> hostSections;
+
+  /**
+   * "Content fingerprint -> HEI entry" index for the catalogue. Similar to {@link #hostSections},
+   * but for <code>&lt;hei&gt;</code> elements. Reused entries are detached from the DOM (see
+   * {@link HeiEntryImpl#detach()}), so an unchanged HEI is represented by the same instance in all
+   * subsequent versions of the catalogue.
+   */
+  private final Map<String, HeiEntryImpl> heiSections;
+
+  /**
+   * "SHA-256 -> RSA public key" index for the catalogue.
+   *
+   * <p>
+   * This map holds RSA public keys parsed from catalogue's binaries. The key objects are usually
+   * shared with other versions of the catalogue (see {@link RsaKeyCache}). In lazy key decoding
+   * mode, keys are added to this map when they are first requested (see {@link #pendingKeys}).
    * </p>
    */
-  private final Map<String, List<Element>> apiIndex;
+  private final ConcurrentHashMap<String, RSAPublicKey> keyBodies;
 
   /**
-   * "SHA-256 -> RSA public key" index for {@link #doc}.
+   * "SHA-256 -> X.509-encoded RSA public key" map of keys which have not been decoded yet.
    *
    * <p>
-   * This map holds RSA public keys parsed from catalogue's binaries.
+   * This map is empty, unless lazy key decoding is turned on (see
+   * {@link ClientImplOptions#setLazyKeyDecoding(boolean)}). Keys are moved from this map to
+   * {@link #keyBodies} by {@link #findRsaPublicKey(String)}.
    * </p>
    */
-  private final HashMap<String, RSAPublicKey> keyBodies;
+  private final ConcurrentHashMap<String, byte[]> pendingKeys;
+
+  /**
+   * The cache used for decoding RSA keys (both during construction, and later, for the keys in
+   * {@link #pendingKeys}).
+   */
+  private final RsaKeyCache keyCache;
 
   /**
    * Indicates the time after which this copy of the catalogue should be considered stale. It is
@@ -181,6 +257,16 @@ class CatalogueDocument {
    */
   private volatile Date expires;
 
+  /**
+   * Durations of the phases of building this document (used by {@link #getBuildReport()}).
+   */
+  private final Recorder buildRecorder;
+
+  /**
+   * Created when it is first requested (see {@link #getBuildReport()}).
+   */
+  private volatile CatalogueBuildReport buildReport;
+
   /**
    * Parse the response received from the Registry Service and create a new
    * {@link CatalogueDocument} based on it.
@@ -190,159 +276,116 @@ class CatalogueDocument {
    * @throws CatalogueParserException if registryResponse did not contain a valid catalogue.
    */
   CatalogueDocument(Http200RegistryResponse registryResponse) throws CatalogueParserException {
+    this(registryResponse, (CatalogueDocument) null, new RsaKeyCache(), false);
+  }
 
-    DocumentBuilder docBuilder = Utils.newSecureDocumentBuilder();
+  /**
+   * Parse the response received from the Registry Service and create a new
+   * {@link CatalogueDocument} based on it, reusing the unchanged parts of the previous version of
+   * the catalogue.
+   *
+   * <p>
+   * Each <code>&lt;host&gt;</code> and <code>&lt;hei&gt;</code> element is fingerprinted (see
+   * {@link Utils#computeContentFingerprint(Element)}). If the previous document contained an
+   * element with the same fingerprint, then the data extracted from it by the previous document
+   * (coverage sets, API entries, HEI names and IDs) is reused, instead of being extracted again.
+   * Similarly, RSA keys are decoded only if they are not yet present in the given
+   * {@link RsaKeyCache}. Usually, only a small fraction of the catalogue changes between refreshes.
+   * </p>
+   *
+   * @param registryResponse The {@link Http200RegistryResponse} response received from the Registry
+   *        Service.
+   * @param previous The previous version of the catalogue (or <b>null</b>, if there's none).
+   * @param keyCache The cache of RSA keys decoded for previous versions of the catalogue.
+   * @param lazyKeyDecoding <b>true</b> if RSA keys should be decoded only when they are first
+   *        requested (see {@link ClientImplOptions#setLazyKeyDecoding(boolean)}).
+   * @throws CatalogueParserException if registryResponse did not contain a valid catalogue.
+   */
+  CatalogueDocument(Http200RegistryResponse registryResponse, CatalogueDocument previous,
+      RsaKeyCache keyCache, boolean lazyKeyDecoding) throws CatalogueParserException {
 
-    this.expires = registryResponse.getExpires();
-    if (this.expires == null) {
-      // It seems that the Registry didn't supply the "Expires" header.
-      // (In general, this shouldn't happen.)
-      logger.warn("Missing 'Expires' header in catalogue response. Will assume 5 minutes.");
-      this.expires = new Date((new Date().getTime()) + 1000 * 60 * 5);
-    }
+    this.buildRecorder = new Recorder();
+    this.expires = getEffectiveExpiryDate(registryResponse);
     this.etag = registryResponse.getETag();
+    this.contentLength = registryResponse.getContent().length;
 
     // Parse it.
 
-    try {
-      this.doc = docBuilder.parse(new ByteArrayInputStream(registryResponse.getContent()));
-    } catch (SAXException e) {
-      throw new CatalogueParserException("Problem parsing the catalogue response", e);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    // Run a basic validation. (Just a sanity check. No detailed validation is necessary.)
-
-    Element root = this.doc.getDocumentElement();
-    if (root.getNamespaceURI() == null
-        || (!root.getNamespaceURI().equals(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI))) {
-      throw new CatalogueParserException("Catalogue namespace URI mismatch.");
-    }
-    if (!root.getLocalName().equals("catalogue")) {
-      throw new CatalogueParserException("Catalogue localName mismatch.");
-    }
+    this.buildRecorder.begin(Phase.XML_PARSING);
+    Element root = parseAndVerify(registryResponse.getContent());
+    this.buildRecorder.end();
 
     // Prepare dependencies for traversal.
 
-    XPathFactory xpathfactory = XPathFactory.newInstance();
-    XPath xpath = xpathfactory.newXPath();
-    xpath.setNamespaceContext(new NamespaceContext() {
-
-      @Override
-      public String getNamespaceURI(String prefix) {
-        if ("r".equals(prefix)) {
-          return RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI;
-        }
-        throw new IllegalArgumentException(prefix);
-      }
-
-      @Override
-      public String getPrefix(String namespaceUri) {
-        throw new UnsupportedOperationException();
-      }
-
-      @Override
-      public Iterator<String> getPrefixes(String namespaceUri) {
-        throw new UnsupportedOperationException();
-      }
-    });
-
-    this.certHeis = new HashMap<>();
-    this.cliKeyHeis = new HashMap<>();
-    this.hostHeis = new HashMap<>();
-    this.hostServerKeys = new HashMap<>();
-    this.heiIdMaps = new HashMap<>();
-    this.apiIndex = new HashMap<>();
-    this.heiEntries = new HashMap<>();
-    this.keyBodies = new HashMap<>();
+    XPath xpath = newXPath();
+
+    Map<String, Set<String>> certHeis = new HashMap<>();
+    Map<String, Set<String>> cliKeyHeis = new HashMap<>();
+    this.hostHeis = new ArrayList<>();
+    this.hostServerKeys = new ArrayList<>();
+    Map<String, Map<String, String>> heiIdMaps = new HashMap<>();
+    Map<String, List<ApiEntryRecord>> apiIndex = new HashMap<>();
+    this.apiEntries = new ArrayList<>();
+    Map<String, HeiEntry> heiEntries = new HashMap<>();
+    this.keyBodies = new ConcurrentHashMap<>();
+    this.pendingKeys = new ConcurrentHashMap<>();
+    this.keyCache = keyCache;
+    this.hostSections = new HashMap<>();
+    this.heiSections = new HashMap<>();
+    List<Element> allApiElements = new ArrayList<>();
+    int reusedHosts = 0;
+    int reusedHeis = 0;
 
     // Create indexes.
 
     try {
+      this.buildRecorder.begin(Phase.HOST_INDEXES);
       List<? extends Element> elements = Utils.asElementList((NodeList) xpath.evaluate(
           "r:host", root, XPathConstants.NODESET));
       for (Element hostElem : elements) {
 
-        List<? extends Node> children = Utils.asNodeList(hostElem.getChildNodes());
-        Node institutionsCovered = null;
-        Node clientCredentials = null;
-        Node serverCredentials = null;
-        for (Node child : children) {
-          if ("institutions-covered".equals(child.getLocalName())) {
-            institutionsCovered = child;
-          } else if ("client-credentials-in-use".equals(child.getLocalName())) {
-            clientCredentials = child;
-          } else if ("server-credentials-in-use".equals(child.getLocalName())) {
-            serverCredentials = child;
-          }
+        String sectionFingerprint = Utils.computeContentFingerprint(hostElem);
+        HostSection section =
+            previous != null ? previous.hostSections.get(sectionFingerprint) : null;
+        if (section != null) {
+          reusedHosts++;
+        } else {
+          section = new HostSection(hostElem);
         }
+        this.hostSections.put(sectionFingerprint, section);
 
-        Set<String> coveredHeis = new HashSet<>();
+        int hostIndex = this.hostHeis.size();
+        this.hostHeis.add(section.heis);
+        this.hostServerKeys.add(section.serverKeys);
 
-        if (institutionsCovered != null) {
-          List<? extends Node> heiNodes = Utils.asNodeList(institutionsCovered.getChildNodes());
-          for (Node heiIdNode : heiNodes) {
-            if ("hei-id".equals(heiIdNode.getLocalName())) {
-              coveredHeis.add(heiIdNode.getTextContent());
-            }
+        for (String fingerprint : section.certificates) {
+          Set<String> coveredCertHeis = certHeis.get(fingerprint);
+          if (coveredCertHeis == null) {
+            coveredCertHeis = new HashSet<>();
+            certHeis.put(fingerprint, coveredCertHeis);
           }
+          coveredCertHeis.addAll(section.heis);
         }
-
-        Set<String> heis = new HashSet<>();
-        this.hostHeis.put(hostElem, heis);
-        heis.addAll(coveredHeis);
-
-        Set<String> keys = new HashSet<>();
-        this.hostServerKeys.put(hostElem, keys);
-
-        if (clientCredentials != null) {
-          List<? extends Node> credentialNodes =
-              Utils.asNodeList(clientCredentials.getChildNodes());
-          for (Node credential : credentialNodes) {
-            if ("certificate".equals(credential.getLocalName())) {
-              String fingerprint =
-                  credential.getAttributes().getNamedItem("sha-256").getTextContent();
-
-              Set<String> coveredCertHeis;
-
-              if (this.certHeis.containsKey(fingerprint)) {
-                coveredCertHeis = this.certHeis.get(fingerprint);
-              } else {
-                coveredCertHeis = new HashSet<>();
-                this.certHeis.put(fingerprint, coveredCertHeis);
-              }
-
-              coveredCertHeis.addAll(coveredHeis);
-
-            } else if ("rsa-public-key".equals(credential.getLocalName())) {
-              String fingerprint =
-                  credential.getAttributes().getNamedItem("sha-256").getTextContent();
-              Set<String> coveredKeyHeis;
-              if (this.cliKeyHeis.containsKey(fingerprint)) {
-                coveredKeyHeis = this.cliKeyHeis.get(fingerprint);
-              } else {
-                coveredKeyHeis = new HashSet<>();
-                this.cliKeyHeis.put(fingerprint, coveredKeyHeis);
-              }
-              coveredKeyHeis.addAll(coveredHeis);
-            }
+        for (String fingerprint : section.clientKeys) {
+          Set<String> coveredKeyHeis = cliKeyHeis.get(fingerprint);
+          if (coveredKeyHeis == null) {
+            coveredKeyHeis = new HashSet<>();
+            cliKeyHeis.put(fingerprint, coveredKeyHeis);
           }
+          coveredKeyHeis.addAll(section.heis);
         }
 
-        if (serverCredentials != null) {
-          List<? extends Node> credentialNodes =
-              Utils.asNodeList(serverCredentials.getChildNodes());
-          for (Node credential : credentialNodes) {
-            if ("rsa-public-key".equals(credential.getLocalName())) {
-              String fingerprint =
-                  credential.getAttributes().getNamedItem("sha-256").getTextContent();
-              keys.add(fingerprint);
-            }
-          }
+        int firstOrdinal = allApiElements.size();
+        collectApiElements(hostElem, allApiElements);
+        for (ApiEntryRecord template : section.apis) {
+          addApiEntry(apiIndex, this.apiEntries, new ApiEntryRecord(template.getNamespaceUri(),
+              template.getLocalName(), template.getVersion(), hostIndex,
+              firstOrdinal + template.getOrdinal()));
         }
       }
+      this.buildRecorder.end();
 
+      this.buildRecorder.begin(Phase.OTHER_ID_INDEX);
       List<? extends Element> otherIdElems = Utils.asElementList((NodeList) xpath
           .evaluate("r:institutions/r:hei/r:other-id", root, XPathConstants.NODESET));
       for (Element otherIdElem : otherIdElems) {
@@ -350,71 +393,188 @@ class CatalogueDocument {
         String value = otherIdElem.getTextContent();
         String heiId = ((Element) otherIdElem.getParentNode()).getAttribute("id");
 
-        Map<String, String> mapForType = this.heiIdMaps.get(type);
+        Map<String, String> mapForType = heiIdMaps.get(type);
         if (mapForType == null) {
           mapForType = new HashMap<>();
-          this.heiIdMaps.put(type, mapForType);
+          heiIdMaps.put(type, mapForType);
         }
 
         mapForType.put(getCanonicalId(value), heiId);
       }
+      this.buildRecorder.end();
 
+      this.buildRecorder.begin(Phase.HEI_INDEX);
       List<? extends Element> heiElems = Utils.asElementList(
           (NodeList) xpath.evaluate("r:institutions/r:hei", root, XPathConstants.NODESET));
 
       for (Element heiElem : heiElems) {
         String id = heiElem.getAttribute("id");
-        HeiEntry hei = new HeiEntryImpl(id, heiElem);
-        this.heiEntries.put(id, hei);
-      }
-
-      List<? extends Element> apiElems = Utils.asElementList(
-          (NodeList) xpath.evaluate("r:host/r:apis-implemented/*", root, XPathConstants.NODESET));
-
-      for (Element apiElem : apiElems) {
-
-        // newApiIndex's keys uniquely identify API's namespaceURI and localName.
-
-        String key = getApiIndexKey(apiElem.getNamespaceURI(), apiElem.getLocalName());
-        List<Element> entries = this.apiIndex.get(key);
-        if (entries == null) {
-          entries = new ArrayList<>();
-          this.apiIndex.put(key, entries);
+        String sectionFingerprint = Utils.computeContentFingerprint(heiElem);
+        HeiEntryImpl hei =
+            previous != null ? previous.heiSections.get(sectionFingerprint) : null;
+        if (hei != null) {
+          // Detached entries are carried forward as they are (so they stay the same instances).
+          hei = hei.detach();
+          reusedHeis++;
+        } else {
+          hei = new HeiEntryImpl(id, heiElem);
         }
-
-        // entries - the list of all API entry elements for this key.
-
-        entries.add(apiElem);
-      }
-
-      KeyFactory rsaKeyFactory;
-      try {
-        rsaKeyFactory = KeyFactory.getInstance("RSA");
-      } catch (NoSuchAlgorithmException e) {
-        throw new RuntimeException(e);
+        this.heiSections.put(sectionFingerprint, hei);
+        heiEntries.put(id, hei);
       }
+      this.buildRecorder.end();
 
+      this.buildRecorder.begin(Phase.KEY_DECODING);
       List<? extends Element> keyElems = Utils.asElementList(
           (NodeList) xpath.evaluate("r:binaries/r:rsa-public-key", root, XPathConstants.NODESET));
 
       for (Element keyElem : keyElems) {
         String fingerprint = keyElem.getAttribute("sha-256");
         byte[] data = Base64.getMimeDecoder().decode(keyElem.getTextContent());
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(data);
-        RSAPublicKey value;
-        try {
-          value = (RSAPublicKey) rsaKeyFactory.generatePublic(spec);
-          this.keyBodies.put(fingerprint, value);
-        } catch (InvalidKeySpecException | ClassCastException e) {
-          if (logger.isWarnEnabled()) {
-            logger.warn("Could not load object " + fingerprint + " as RSAPublicKey: " + e);
-          }
-        }
+        this.addKey(fingerprint, data, lazyKeyDecoding);
       }
+      this.buildRecorder.end();
 
     } catch (XPathExpressionException e) {
       throw new RuntimeException(e);
     }
+
+    // Derive the persistent indexes from the previous ones (sharing all their unchanged entries).
+
+    this.buildRecorder.begin(Phase.PERSISTENT_INDEXES);
+    this.certHeis = deriveIndex(previous != null ? previous.certHeis : null, certHeis);
+    this.cliKeyHeis = deriveIndex(previous != null ? previous.cliKeyHeis : null, cliKeyHeis);
+    for (Map.Entry<String, Map<String, String>> entry : heiIdMaps.entrySet()) {
+      Map<String, String> previousMap =
+          previous != null ? previous.heiIdMaps.get(entry.getKey()) : null;
+      entry.setValue(deriveIndex(previousMap, entry.getValue()));
+    }
+    this.heiIdMaps = deriveIndex(previous != null ? previous.heiIdMaps : null, heiIdMaps);
+    this.heiEntries = deriveIndex(previous != null ? previous.heiEntries : null, heiEntries);
+    this.apiIndex = deriveIndex(previous != null ? previous.apiIndex : null, apiIndex);
+    this.buildRecorder.end();
+
+    this.apiElements = allApiElements;
+    this.buildRecorder.finish(this.hostHeis.size(), reusedHosts, this.heiEntries.size(),
+        reusedHeis, this.apiEntries.size(), this.keyBodies.size() + this.pendingKeys.size());
+    if (previous != null) {
+      logger.debug("Reused {} of {} hosts and {} of {} HEIs of the previous catalogue copy",
+          reusedHosts, this.hostHeis.size(), reusedHeis, this.heiEntries.size());
+    }
+  }
+
+  /**
+   * Create a new {@link CatalogueDocument} from a previously stored {@link IndexSnapshot}.
+   *
+   * <p>
+   * This is much faster than {@link #CatalogueDocument(Http200RegistryResponse)}, because no XML
+   * parsing is needed. The raw content of the catalogue is kept in memory, and it will be parsed
+   * only when the DOM is actually needed (that is, when API entry elements are requested).
+   * </p>
+   *
+   * @param registryResponse The {@link Http200RegistryResponse} which the snapshot has been created
+   *        for.
+   * @param snapshot The snapshot of indexes, previously created with {@link #toIndexSnapshot()}.
+   * @param keyCache The cache of RSA keys decoded for previous versions of the catalogue.
+   * @param lazyKeyDecoding <b>true</b> if RSA keys should be decoded only when they are first
+   *        requested (see {@link ClientImplOptions#setLazyKeyDecoding(boolean)}).
+   * @throws CatalogueParserException if the snapshot doesn't match the response.
+   */
+  CatalogueDocument(Http200RegistryResponse registryResponse, IndexSnapshot snapshot,
+      RsaKeyCache keyCache, boolean lazyKeyDecoding) throws CatalogueParserException {
+    this.buildRecorder = new Recorder();
+    if (registryResponse.getETag() == null
+        || !registryResponse.getETag().equals(snapshot.getETag())
+        || registryResponse.getContent().length != snapshot.getContentLength()) {
+      throw new CatalogueParserException("Index snapshot doesn't match the catalogue.");
+    }
+    this.expires = getEffectiveExpiryDate(registryResponse);
+    this.etag = registryResponse.getETag();
+    this.contentLength = snapshot.getContentLength();
+    this.pendingContent = registryResponse.getContent();
+    this.apiElements = null;
+
+    this.buildRecorder.begin(Phase.SNAPSHOT_RESTORE);
+    this.certHeis = PersistentHashMap.copyOf(snapshot.getCertHeis());
+    this.cliKeyHeis = PersistentHashMap.copyOf(snapshot.getCliKeyHeis());
+    this.hostHeis = snapshot.getHostHeis();
+    this.hostServerKeys = snapshot.getHostServerKeys();
+    Map<String, Map<String, String>> heiIdMaps = new HashMap<>();
+    for (Map.Entry<String, Map<String, String>> entry : snapshot.getHeiIdMaps().entrySet()) {
+      heiIdMaps.put(entry.getKey(), PersistentHashMap.copyOf(entry.getValue()));
+    }
+    this.heiIdMaps = PersistentHashMap.copyOf(heiIdMaps);
+    Map<String, HeiEntry> heiEntries = new HashMap<>();
+    for (HeiEntryImpl hei : snapshot.getHeiEntries()) {
+      heiEntries.put(hei.getId(), hei);
+    }
+    this.heiEntries = PersistentHashMap.copyOf(heiEntries);
+    Map<String, List<ApiEntryRecord>> apiIndex = new HashMap<>();
+    this.apiEntries = new ArrayList<>();
+    for (ApiEntryRecord record : snapshot.getApiEntries()) {
+      if (record.getHost() >= this.hostHeis.size()
+          || record.getOrdinal() != this.apiEntries.size()) {
+        throw new CatalogueParserException("Index snapshot is inconsistent.");
+      }
+      addApiEntry(apiIndex, this.apiEntries, record);
+    }
+    this.apiIndex = PersistentHashMap.copyOf(apiIndex);
+    this.hostSections = new HashMap<>();
+    this.heiSections = new HashMap<>();
+    this.keyBodies = new ConcurrentHashMap<>();
+    this.pendingKeys = new ConcurrentHashMap<>();
+    this.keyCache = keyCache;
+    this.buildRecorder.end();
+
+    this.buildRecorder.begin(Phase.KEY_DECODING);
+    for (Map.Entry<String, byte[]> entry : snapshot.getEncodedKeys().entrySet()) {
+      this.addKey(entry.getKey(), entry.getValue(), lazyKeyDecoding);
+    }
+    this.buildRecorder.end();
+    this.buildRecorder.finish(this.hostHeis.size(), 0, this.heiEntries.size(), 0,
+        this.apiEntries.size(), this.keyBodies.size() + this.pendingKeys.size());
+  }
+
+  /**
+   * Append all API entry elements of the given <code>&lt;host&gt;</code> element to the list (in
+   * document order).
+   */
+  private static void collectApiElements(Element hostElem, List<Element> out) {
+    for (Node child : Utils.asNodeList(hostElem.getChildNodes())) {
+      if (!"apis-implemented".equals(child.getLocalName())
+          || !RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI.equals(child.getNamespaceURI())) {
+        continue;
+      }
+      for (Node apiNode : Utils.asNodeList(child.getChildNodes())) {
+        if (apiNode.getNodeType() == Node.ELEMENT_NODE) {
+          out.add((Element) apiNode);
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a persistent version of the index, sharing all unchanged entries with its previous
+   * version (if there is one).
+   */
+  private static <K, V> PersistentHashMap<K, V> deriveIndex(Map<K, V> previous,
+      Map<K, V> current) {
+    PersistentHashMap<K, V> base =
+        previous != null ? PersistentHashMap.copyOf(previous) : PersistentHashMap.empty();
+    return base.withContentsOf(current);
+  }
+
+  /**
+   * Estimate the size of {@link #certHeis} or {@link #cliKeyHeis} (see {@link SizeEstimator}). HEI
+   * IDs are not counted here (they are shared with {@link #hostHeis}).
+   */
+  private static long estimateCoverageIndexSize(Map<String, Set<String>> index) {
+    long result = SizeEstimator.persistentMap(index.size());
+    for (Map.Entry<String, Set<String>> entry : index.entrySet()) {
+      result +=
+          SizeEstimator.string(entry.getKey()) + SizeEstimator.hashSet(entry.getValue().size());
+    }
+    return result;
   }
 
   private static String getApiIndexKey(String namespaceUri, String localName) {
@@ -428,6 +588,72 @@ class CatalogueDocument {
     return value.trim().toLowerCase(Locale.ENGLISH);
   }
 
+  private static Date getEffectiveExpiryDate(Http200RegistryResponse registryResponse) {
+    Date result = registryResponse.getExpires();
+    if (result == null) {
+      // It seems that the Registry didn't supply the "Expires" header.
+      // (In general, this shouldn't happen.)
+      logger.warn("Missing 'Expires' header in catalogue response. Will assume 5 minutes.");
+      result = new Date((new Date().getTime()) + 1000 * 60 * 5);
+    }
+    return result;
+  }
+
+  private static XPath newXPath() {
+    XPathFactory xpathfactory = XPathFactory.newInstance();
+    XPath xpath = xpathfactory.newXPath();
+    xpath.setNamespaceContext(new NamespaceContext() {
+
+      @Override
+      public String getNamespaceURI(String prefix) {
+        if ("r".equals(prefix)) {
+          return RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI;
+        }
+        throw new IllegalArgumentException(prefix);
+      }
+
+      @Override
+      public String getPrefix(String namespaceUri) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Iterator<String> getPrefixes(String namespaceUri) {
+        throw new UnsupportedOperationException();
+      }
+    });
+    return xpath;
+  }
+
+  /**
+   * Parse the raw catalogue content and run a basic validation on it.
+   *
+   * @return The root element of the parsed document.
+   */
+  private static Element parseAndVerify(byte[] content) throws CatalogueParserException {
+    DocumentBuilder docBuilder = Utils.newSecureDocumentBuilder();
+    Document doc;
+    try {
+      doc = docBuilder.parse(new ByteArrayInputStream(content));
+    } catch (SAXException e) {
+      throw new CatalogueParserException("Problem parsing the catalogue response", e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    // Run a basic validation. (Just a sanity check. No detailed validation is necessary.)
+
+    Element root = doc.getDocumentElement();
+    if (root.getNamespaceURI() == null
+        || (!root.getNamespaceURI().equals(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI))) {
+      throw new CatalogueParserException("Catalogue namespace URI mismatch.");
+    }
+    if (!root.getLocalName().equals("catalogue")) {
+      throw new CatalogueParserException("Catalogue localName mismatch.");
+    }
+    return root;
+  }
+
   /**
    * Check if first version string matches the "minimum required" version string in the second
    * argument.
@@ -489,17 +715,50 @@ class CatalogueDocument {
     return "CatalogueDocument[ETag=" + this.getETag() + ", Expires=" + this.getExpiryDate() + "]";
   }
 
-  private boolean doesElementMatchConditions(Element elem, ApiSearchConditions conds) {
+  private static void addApiEntry(Map<String, List<ApiEntryRecord>> apiIndex,
+      List<ApiEntryRecord> apiEntries, ApiEntryRecord record) {
+
+    // apiIndex's keys uniquely identify API's namespaceURI and localName.
+
+    String key = getApiIndexKey(record.getNamespaceUri(), record.getLocalName());
+    List<ApiEntryRecord> entries = apiIndex.get(key);
+    if (entries == null) {
+      entries = new ArrayList<>();
+      apiIndex.put(key, entries);
+    }
+
+    // entries - the list of all API entries for this key.
+
+    entries.add(record);
+    apiEntries.add(record);
+  }
+
+  /**
+   * Either decode the key right away (and add it to {@link #keyBodies}), or (in lazy key decoding
+   * mode) put it into {@link #pendingKeys}. Used only during construction.
+   */
+  private void addKey(String fingerprint, byte[] data, boolean lazyKeyDecoding) {
+    if (lazyKeyDecoding) {
+      this.pendingKeys.put(fingerprint, data);
+      return;
+    }
+    RSAPublicKey value = this.keyCache.getOrDecode(fingerprint, data);
+    if (value != null) {
+      this.keyBodies.put(fingerprint, value);
+    }
+  }
+
+  private boolean doesEntryMatchConditions(ApiEntryRecord entry, ApiSearchConditions conds) {
     if (conds.getRequiredNamespaceUri() != null
-        && (!conds.getRequiredNamespaceUri().equals(elem.getNamespaceURI()))) {
+        && (!conds.getRequiredNamespaceUri().equals(entry.getNamespaceUri()))) {
       return false;
     }
     if (conds.getRequiredLocalName() != null
-        && (!conds.getRequiredLocalName().equals(elem.getLocalName()))) {
+        && (!conds.getRequiredLocalName().equals(entry.getLocalName()))) {
       return false;
     }
     if (conds.getRequiredMinVersion() != null) {
-      String attrVer = elem.getAttribute("version");
+      String attrVer = entry.getVersion();
       if (attrVer.isEmpty()) {
         return false;
       }
@@ -508,11 +767,7 @@ class CatalogueDocument {
       }
     }
     if (conds.getRequiredHei() != null) {
-      Element hostElem = (Element) elem.getParentNode().getParentNode();
-      Set<String> heis = this.hostHeis.get(hostElem);
-      if (heis == null) {
-        return false;
-      }
+      Set<String> heis = this.hostHeis.get(entry.getHost());
       return heis.contains(conds.getRequiredHei());
     }
     return true;
@@ -540,13 +795,232 @@ class CatalogueDocument {
     // This will fix the issue of clients getting wrong results, but may cause
     // more memory leaks, if clients cache apiElements somewhere.
 
-    if (!meta.catalogueDocument.hostServerKeys.containsKey(meta.host)) {
-      // The host of this API doesn't have *any* server keys.
-      return new HashSet<>();
-    }
     return meta.catalogueDocument.hostServerKeys.get(meta.host);
   }
 
+  /**
+   * Get all API entry elements of this document, parsing the DOM first, if it wasn't yet parsed.
+   */
+  private List<Element> getApiElements() {
+    List<Element> result = this.apiElements;
+    if (result == null) {
+      synchronized (this.domLock) {
+        result = this.apiElements;
+        if (result == null) {
+          logger.debug("Parsing the DOM of {}", this);
+          Element root;
+          try {
+            root = parseAndVerify(this.pendingContent);
+          } catch (CatalogueParserException e) {
+            // The content was successfully parsed before the snapshot was created.
+            throw new RuntimeException(e);
+          }
+          result = new ArrayList<>();
+          for (Node child : Utils.asNodeList(root.getChildNodes())) {
+            if ("host".equals(child.getLocalName())
+                && RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI
+                    .equals(child.getNamespaceURI())) {
+              collectApiElements((Element) child, result);
+            }
+          }
+          if (result.size() != this.apiEntries.size()) {
+            throw new RuntimeException("API entries don't match the index snapshot.");
+          }
+          this.apiElements = result;
+          this.pendingContent = null;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compute the differences between the given (previous) version of the catalogue and this one.
+   *
+   * <p>
+   * The catalogues are compared by their indexes (no DOM parsing is needed). HEI names are compared
+   * only for the HEIs whose <code>&lt;hei&gt;</code> elements have changed (according to the
+   * fingerprints in {@link #heiSections}), so the names of unchanged HEIs are never extracted from
+   * the DOM. Documents restored from index snapshots have no fingerprints, so all their HEIs are
+   * compared (but their names are already extracted). See {@link CatalogueChangeEvent} for the
+   * kinds of differences we look for.
+   * </p>
+   *
+   * @param previous The previous version of the catalogue.
+   * @return A new {@link CatalogueChangeEvent}.
+   */
+  CatalogueChangeEvent computeChangesSince(CatalogueDocument previous) {
+
+    // HEIs.
+
+    Set<String> addedHeis = new TreeSet<>(this.heiEntries.keySet());
+    addedHeis.removeAll(previous.heiEntries.keySet());
+    Set<String> removedHeis = new TreeSet<>(previous.heiEntries.keySet());
+    removedHeis.removeAll(this.heiEntries.keySet());
+    Collection<? extends HeiEntry> changedHeis;
+    if (this.heiSections.isEmpty() || previous.heiSections.isEmpty()) {
+      changedHeis = this.heiEntries.values();
+    } else {
+      List<HeiEntry> changed = new ArrayList<>();
+      for (Map.Entry<String, HeiEntryImpl> entry : this.heiSections.entrySet()) {
+        if (!previous.heiSections.containsKey(entry.getKey())) {
+          changed.add(entry.getValue());
+        }
+      }
+      changedHeis = changed;
+    }
+    Set<String> renamedHeis = new TreeSet<>();
+    for (HeiEntry hei : changedHeis) {
+      HeiEntry previousHei = previous.heiEntries.get(hei.getId());
+      if (previousHei != null && previousHei != hei && !((HeiEntryImpl) previousHei).getAllNames()
+          .equals(((HeiEntryImpl) hei).getAllNames())) {
+        renamedHeis.add(hei.getId());
+      }
+    }
+
+    // Credentials.
+
+    Set<String> previousCredentials = previous.getAllCredentials();
+    Set<String> currentCredentials = this.getAllCredentials();
+    Set<String> addedCredentials = new TreeSet<>(currentCredentials);
+    addedCredentials.removeAll(previousCredentials);
+    Set<String> revokedCredentials = new TreeSet<>(previousCredentials);
+    revokedCredentials.removeAll(currentCredentials);
+
+    // API entries (per host).
+
+    List<ApiChange> apiChanges = new ArrayList<>();
+    Map<Set<String>, Map<List<String>, Set<String>>> previousApis =
+        previous.getApiVersionsByHost();
+    Map<Set<String>, Map<List<String>, Set<String>>> currentApis = this.getApiVersionsByHost();
+    Set<Set<String>> hosts = new LinkedHashSet<>(previousApis.keySet());
+    hosts.addAll(currentApis.keySet());
+    for (Set<String> host : hosts) {
+      Map<List<String>, Set<String>> previousHostApis =
+          previousApis.getOrDefault(host, Collections.emptyMap());
+      Map<List<String>, Set<String>> currentHostApis =
+          currentApis.getOrDefault(host, Collections.emptyMap());
+      Set<List<String>> apis = new LinkedHashSet<>(previousHostApis.keySet());
+      apis.addAll(currentHostApis.keySet());
+      for (List<String> api : apis) {
+        Set<String> previousVersions = previousHostApis.getOrDefault(api, Collections.emptySet());
+        Set<String> currentVersions = currentHostApis.getOrDefault(api, Collections.emptySet());
+        Set<String> removedVersions = new TreeSet<>(previousVersions);
+        removedVersions.removeAll(currentVersions);
+        Set<String> addedVersions = new TreeSet<>(currentVersions);
+        addedVersions.removeAll(previousVersions);
+        Set<String> hostHeiIds = new TreeSet<>(host);
+        if (removedVersions.size() == 1 && addedVersions.size() == 1) {
+          apiChanges.add(new ApiChange(ApiChange.Type.VERSION_CHANGED, hostHeiIds, api.get(0),
+              api.get(1), removedVersions.iterator().next(), addedVersions.iterator().next()));
+          continue;
+        }
+        for (String version : removedVersions) {
+          apiChanges.add(new ApiChange(ApiChange.Type.REMOVED, hostHeiIds, api.get(0),
+              api.get(1), version, null));
+        }
+        for (String version : addedVersions) {
+          apiChanges.add(new ApiChange(ApiChange.Type.ADDED, hostHeiIds, api.get(0),
+              api.get(1), null, version));
+        }
+      }
+    }
+
+    return new CatalogueChangeEvent(previous.getETag(), this.getETag(), addedHeis, removedHeis,
+        renamedHeis, addedCredentials, revokedCredentials, apiChanges);
+  }
+
+  /**
+   * Estimate the current heap footprint of this document (the DOM and all the indexes). Unlike
+   * {@link #getBuildReport()}, this is computed anew on each call.
+   *
+   * @return The estimated footprint.
+   */
+  CatalogueFootprint estimateFootprint() {
+    byte[] content;
+    synchronized (this.domLock) {
+      content = this.pendingContent;
+    }
+    long domSize = content != null ? SizeEstimator.bytes(content)
+        : SizeEstimator.dom(this.contentLength);
+    return new CatalogueFootprint(this.etag, domSize, content == null, this.estimateIndexSizes());
+  }
+
+  /**
+   * Estimate the retained size of each of this document's indexes (see {@link SizeEstimator}).
+   * Entries shared with other versions of the catalogue are counted too (they are retained by this
+   * version as well). The DOM is not included.
+   *
+   * @return "index -&gt; estimated size in bytes" map.
+   */
+  Map<CatalogueIndex, Long> estimateIndexSizes() {
+    Map<CatalogueIndex, Long> result = new EnumMap<>(CatalogueIndex.class);
+
+    result.put(CatalogueIndex.CERTIFICATE_HEIS, estimateCoverageIndexSize(this.certHeis));
+    result.put(CatalogueIndex.CLIENT_KEY_HEIS, estimateCoverageIndexSize(this.cliKeyHeis));
+
+    long size = SizeEstimator.arrayList(this.hostHeis.size());
+    for (Set<String> heis : this.hostHeis) {
+      size += SizeEstimator.hashSet(heis.size()) + SizeEstimator.strings(heis);
+    }
+    result.put(CatalogueIndex.HOST_HEIS, size);
+
+    size = SizeEstimator.arrayList(this.hostServerKeys.size());
+    for (Set<String> keys : this.hostServerKeys) {
+      size += SizeEstimator.hashSet(keys.size()) + SizeEstimator.strings(keys);
+    }
+    result.put(CatalogueIndex.HOST_SERVER_KEYS, size);
+
+    size = SizeEstimator.persistentMap(this.heiIdMaps.size());
+    for (Map.Entry<String, Map<String, String>> entry : this.heiIdMaps.entrySet()) {
+      size += SizeEstimator.string(entry.getKey())
+          + SizeEstimator.persistentMap(entry.getValue().size())
+          + SizeEstimator.strings(entry.getValue().keySet())
+          + SizeEstimator.strings(entry.getValue().values());
+    }
+    result.put(CatalogueIndex.OTHER_ID_HEIS, size);
+
+    size = SizeEstimator.persistentMap(this.heiEntries.size());
+    for (HeiEntry hei : this.heiEntries.values()) {
+      size += ((HeiEntryImpl) hei).estimateSize();
+    }
+    result.put(CatalogueIndex.HEI_ENTRIES, size);
+
+    // Namespace URIs and local names are not counted (the parser shares them among all entries).
+    size = SizeEstimator.arrayList(this.apiEntries.size())
+        + SizeEstimator.persistentMap(this.apiIndex.size());
+    for (Map.Entry<String, List<ApiEntryRecord>> entry : this.apiIndex.entrySet()) {
+      size += SizeEstimator.string(entry.getKey())
+          + SizeEstimator.arrayList(entry.getValue().size());
+    }
+    for (ApiEntryRecord record : this.apiEntries) {
+      size += ApiEntryRecord.SIZE + SizeEstimator.string(record.getVersion());
+    }
+    result.put(CatalogueIndex.API_ENTRIES, size);
+
+    size = SizeEstimator.hashMap(this.keyBodies.size())
+        + SizeEstimator.hashMap(this.pendingKeys.size());
+    for (Map.Entry<String, RSAPublicKey> entry : this.keyBodies.entrySet()) {
+      size += SizeEstimator.string(entry.getKey()) + SizeEstimator.rsaKey(entry.getValue());
+    }
+    for (Map.Entry<String, byte[]> entry : this.pendingKeys.entrySet()) {
+      size += SizeEstimator.string(entry.getKey()) + SizeEstimator.bytes(entry.getValue());
+    }
+    result.put(CatalogueIndex.RSA_KEYS, size);
+
+    // Coverage sets and HEI entries are not counted (they are shared with other indexes).
+    size = SizeEstimator.hashMap(this.hostSections.size())
+        + SizeEstimator.strings(this.hostSections.keySet())
+        + SizeEstimator.hashMap(this.heiSections.size())
+        + SizeEstimator.strings(this.heiSections.keySet());
+    for (HostSection section : this.hostSections.values()) {
+      size += section.estimateSize();
+    }
+    result.put(CatalogueIndex.SECTION_FINGERPRINTS, size);
+
+    return result;
+  }
+
   /**
    * Extend the expiry date of the document.
    *
@@ -569,21 +1043,24 @@ class CatalogueDocument {
    * particular version of the catalogue document.
    */
   Element findApi(ApiSearchConditions conditions) {
-    Element bestChoice = null;
-    for (Element entry : this.findApis(conditions)) {
+    ApiEntryRecord bestChoice = null;
+    for (ApiEntryRecord entry : this.findApiEntries(conditions)) {
       if (bestChoice == null) {
         bestChoice = entry;
-      } else if (bestChoice.getAttribute("version").length() == 0) {
+      } else if (bestChoice.getVersion().length() == 0) {
         bestChoice = entry;
       } else {
-        String currentBest = bestChoice.getAttribute("version");
-        String newCandidate = entry.getAttribute("version");
+        String currentBest = bestChoice.getVersion();
+        String newCandidate = entry.getVersion();
         if (doesVersionXMatchMinimumRequiredVersionY(newCandidate, currentBest)) {
           bestChoice = entry;
         }
       }
     }
-    return bestChoice;
+    if (bestChoice == null) {
+      return null;
+    }
+    return this.exposeApiElement(bestChoice);
   }
 
   /**
@@ -591,23 +1068,9 @@ class CatalogueDocument {
    * particular version of the catalogue document.
    */
   Collection<Element> findApis(ApiSearchConditions conditions) {
-    // First, determine the minimum set of elements we need to look through.
-
-    List<List<Element>> lookupBase = this.getApiLookupBase(conditions);
-
-    // Then, iterate through all the elements and filter the ones that match.
-
     List<Element> results = new ArrayList<>();
-    for (List<Element> lst : lookupBase) {
-      for (Element elem : lst) {
-        if (this.doesElementMatchConditions(elem, conditions)) {
-          // Create a copy of the element, so that it's thread-safe.
-          Element clone = (Element) elem.cloneNode(true);
-          ApiEntryElement apiEntryElement = new ApiEntryElement(clone,
-              new InternalApiEntryAttachment(this, (Element) elem.getParentNode().getParentNode()));
-          results.add(apiEntryElement);
-        }
-      }
+    for (ApiEntryRecord entry : this.findApiEntries(conditions)) {
+      results.add(this.exposeApiElement(entry));
     }
     return results;
   }
@@ -652,27 +1115,18 @@ class CatalogueDocument {
    */
   Collection<HeiEntry> findHeis(ApiSearchConditions conditions) {
 
-    // First, determine the minimum set of elements we need to look through.
-
-    List<List<Element>> lookupBase = this.getApiLookupBase(conditions);
+    // First, find all hosts which include the matched APIs.
 
-    // Then, find all <host> elements which include the matched APIs.
-
-    Set<Element> hostElems = new HashSet<>();
-    for (List<Element> lst : lookupBase) {
-      for (Element apiElem : lst) {
-        if (this.doesElementMatchConditions(apiElem, conditions)) {
-          Element hostElem = (Element) apiElem.getParentNode().getParentNode();
-          hostElems.add(hostElem);
-        }
-      }
+    Set<Integer> hosts = new HashSet<>();
+    for (ApiEntryRecord entry : this.findApiEntries(conditions)) {
+      hosts.add(entry.getHost());
     }
 
-    // Finally, collect the unique HEI entries covered by these hosts.
+    // Then, collect the unique HEI entries covered by these hosts.
 
     Set<HeiEntry> results = new HashSet<>();
-    for (Element hostElem : hostElems) {
-      Set<String> heiIds = this.hostHeis.get(hostElem);
+    for (Integer host : hosts) {
+      Set<String> heiIds = this.hostHeis.get(host);
       for (String heiId : heiIds) {
         HeiEntry hei = this.heiEntries.get(heiId);
         if (hei == null) {
@@ -686,7 +1140,25 @@ class CatalogueDocument {
   }
 
   RSAPublicKey findRsaPublicKey(String fingerprint) {
-    return this.keyBodies.get(fingerprint);
+    RSAPublicKey key = this.keyBodies.get(fingerprint);
+    if (key != null) {
+      return key;
+    }
+    byte[] data = this.pendingKeys.get(fingerprint);
+    if (data == null) {
+      return null;
+    }
+    key = this.keyCache.getOrDecode(fingerprint, data);
+    if (key != null) {
+      // If some other thread has decoded it in the meantime, then stick to its instance.
+      RSAPublicKey existing = this.keyBodies.putIfAbsent(fingerprint, key);
+      if (existing != null) {
+        key = existing;
+      }
+    }
+    // Keys which could not be decoded are dropped (the same happens in the eager mode).
+    this.pendingKeys.remove(fingerprint, data);
+    return key;
   }
 
   /**
@@ -697,13 +1169,13 @@ class CatalogueDocument {
     return Collections.unmodifiableCollection(this.heiEntries.values());
   }
 
-  List<List<Element>> getApiLookupBase(ApiSearchConditions conditions) {
-    List<List<Element>> lookupBase = new ArrayList<>();
+  List<List<ApiEntryRecord>> getApiLookupBase(ApiSearchConditions conditions) {
+    List<List<ApiEntryRecord>> lookupBase = new ArrayList<>();
     if (conditions.getRequiredNamespaceUri() != null && conditions.getRequiredLocalName() != null) {
 
       // We can make use of our namespaceUri+localName index in this case.
 
-      List<Element> match = this.apiIndex.get(
+      List<ApiEntryRecord> match = this.apiIndex.get(
           getApiIndexKey(conditions.getRequiredNamespaceUri(), conditions.getRequiredLocalName()));
       if (match != null) {
         lookupBase.add(match);
@@ -717,6 +1189,20 @@ class CatalogueDocument {
     return lookupBase;
   }
 
+  /**
+   * @return A report describing how this document has been built (including the estimated sizes of
+   *         its indexes, computed when the report is first requested).
+   */
+  CatalogueBuildReport getBuildReport() {
+    CatalogueBuildReport result = this.buildReport;
+    if (result == null) {
+      result = new CatalogueBuildReport(this.etag, this.contentLength, this.buildRecorder,
+          this.estimateIndexSizes());
+      this.buildReport = result;
+    }
+    return result;
+  }
+
   /**
    * @return ETag of this document.
    */
@@ -732,6 +1218,21 @@ class CatalogueDocument {
     return new Date(this.expires.getTime());
   }
 
+  /**
+   * @return expiry time of this document, in milliseconds since the epoch (same as
+   *         {@link #getExpiryDate()}, but without allocating a new {@link Date}).
+   */
+  long getExpiryTime() {
+    return this.expires.getTime();
+  }
+
+  /**
+   * @return The "heiId -&gt; HeiEntry" index of this document (see {@link #heiEntries}).
+   */
+  PersistentHashMap<String, HeiEntry> getHeiEntries() {
+    return this.heiEntries;
+  }
+
   /**
    * This implements {@link RegistryClient#getHeisCoveredByCertificate(Certificate)}, but only for
    * this particular version of the catalogue document.
@@ -740,7 +1241,7 @@ class CatalogueDocument {
     String fingerprint = Utils.extractFingerprint(clientCert);
     Set<String> heis = this.certHeis.get(fingerprint);
     if (heis == null) {
-      heis = new HashSet<>();
+      return Collections.emptySet();
     }
     return Collections.unmodifiableSet(heis);
   }
@@ -749,11 +1250,21 @@ class CatalogueDocument {
     String fingerprint = Utils.extractFingerprint(clientKey);
     Set<String> heis = this.cliKeyHeis.get(fingerprint);
     if (heis == null) {
-      heis = new HashSet<>();
+      return Collections.emptySet();
     }
     return Collections.unmodifiableSet(heis);
   }
 
+  /**
+   * @return SHA-256 fingerprints of all RSA keys of this catalogue (which could be decoded, or have
+   *         not been decoded yet).
+   */
+  Set<String> getRsaKeyFingerprints() {
+    Set<String> result = new HashSet<>(this.pendingKeys.keySet());
+    result.addAll(this.keyBodies.keySet());
+    return Collections.unmodifiableSet(result);
+  }
+
   RSAPublicKey getServerKeyCoveringApi(Element apiElement) {
     for (String fingerprint : this.extractFingerprintsForApiElement(apiElement)) {
       RSAPublicKey key = this.findRsaPublicKey(fingerprint);
@@ -797,6 +1308,280 @@ class CatalogueDocument {
     return this.cliKeyHeis.containsKey(fingerprint);
   }
 
+  /**
+   * This implements {@link RegistryClient#isHeiCoveredByCertificate(String, Certificate)}, but only
+   * for this particular version of the catalogue document. (Unlike
+   * {@link #getHeisCoveredByCertificate(Certificate)}, it doesn't allocate any views.)
+   */
+  boolean isHeiCoveredByCertificate(String heiId, Certificate clientCert) {
+    Set<String> heis = this.certHeis.get(Utils.extractFingerprint(clientCert));
+    return heis != null && heis.contains(heiId);
+  }
+
+  /**
+   * This implements {@link RegistryClient#isHeiCoveredByClientKey(String, RSAPublicKey)}, but only
+   * for this particular version of the catalogue document.
+   */
+  boolean isHeiCoveredByClientKey(String heiId, RSAPublicKey clientKey) {
+    Set<String> heis = this.cliKeyHeis.get(Utils.extractFingerprint(clientKey));
+    return heis != null && heis.contains(heiId);
+  }
+
+  /**
+   * Create an {@link IndexSnapshot} of this document's indexes, which can later be used to quickly
+   * recreate this document (see
+   * {@link #CatalogueDocument(Http200RegistryResponse, IndexSnapshot, RsaKeyCache, boolean)}).
+   *
+   * @return A new snapshot.
+   */
+  IndexSnapshot toIndexSnapshot() {
+    List<HeiEntryImpl> heis = new ArrayList<>();
+    for (HeiEntry hei : this.heiEntries.values()) {
+      heis.add((HeiEntryImpl) hei);
+    }
+    // Pending keys go first. Keys are added to keyBodies before being removed from pendingKeys, so
+    // this order guarantees that none of them will be missed.
+    Map<String, byte[]> encodedKeys = new HashMap<>(this.pendingKeys);
+    for (Map.Entry<String, RSAPublicKey> entry : this.keyBodies.entrySet()) {
+      encodedKeys.put(entry.getKey(), entry.getValue().getEncoded());
+    }
+    return new IndexSnapshot(this.etag, this.contentLength, this.certHeis, this.cliKeyHeis,
+        this.hostHeis, this.hostServerKeys, this.heiIdMaps, heis, this.apiEntries, encodedKeys);
+  }
+
+  /**
+   * @return SHA-256 fingerprints of all credentials referenced by the hosts of this catalogue
+   *         (client certificates, client RSA keys and server RSA keys).
+   */
+  private Set<String> getAllCredentials() {
+    Set<String> result = new HashSet<>();
+    result.addAll(this.certHeis.keySet());
+    result.addAll(this.cliKeyHeis.keySet());
+    for (Set<String> keys : this.hostServerKeys) {
+      result.addAll(keys);
+    }
+    return result;
+  }
+
+  /**
+   * Group the versions of all API entries by hosts (identified by the sets of HEIs they cover), and
+   * then by APIs (identified by the namespaceUri and localName pairs). Used for computing
+   * {@link CatalogueChangeEvent}s.
+   */
+  private Map<Set<String>, Map<List<String>, Set<String>>> getApiVersionsByHost() {
+    Map<Set<String>, Map<List<String>, Set<String>>> result = new LinkedHashMap<>();
+    for (ApiEntryRecord entry : this.apiEntries) {
+      Set<String> host = this.hostHeis.get(entry.getHost());
+      Map<List<String>, Set<String>> hostApis = result.get(host);
+      if (hostApis == null) {
+        hostApis = new LinkedHashMap<>();
+        result.put(host, hostApis);
+      }
+      List<String> api = Arrays.asList(entry.getNamespaceUri(), entry.getLocalName());
+      Set<String> versions = hostApis.get(api);
+      if (versions == null) {
+        versions = new HashSet<>();
+        hostApis.put(api, versions);
+      }
+      versions.add(entry.getVersion());
+    }
+    return result;
+  }
+
+  /**
+   * Create a thread-safe copy of the API entry element (which can be exposed outside).
+   */
+  private Element exposeApiElement(ApiEntryRecord entry) {
+    Element elem = this.getApiElements().get(entry.getOrdinal());
+    Element clone = (Element) elem.cloneNode(true);
+    return new ApiEntryElement(clone, new InternalApiEntryAttachment(this, entry.getHost()));
+  }
+
+  /**
+   * Find all API entries matching the given conditions (no DOM is needed for this).
+   */
+  private List<ApiEntryRecord> findApiEntries(ApiSearchConditions conditions) {
+
+    // First, determine the minimum set of entries we need to look through.
+
+    List<List<ApiEntryRecord>> lookupBase = this.getApiLookupBase(conditions);
+
+    // Then, iterate through all the entries and filter the ones that match.
+
+    List<ApiEntryRecord> results = new ArrayList<>();
+    for (List<ApiEntryRecord> lst : lookupBase) {
+      for (ApiEntryRecord entry : lst) {
+        if (this.doesEntryMatchConditions(entry, conditions)) {
+          results.add(entry);
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Describes a single API entry element, found in one of the <code>&lt;host&gt;</code>'s
+   * <code>&lt;apis-implemented&gt;</code> sections. Immutable.
+   */
+  static final class ApiEntryRecord {
+
+    /**
+     * The estimated size of a single record (excluding the strings it references). See
+     * {@link SizeEstimator}.
+     */
+    static final int SIZE = 32;
+
+    private final String namespaceUri;
+    private final String localName;
+    private final String version;
+    private final int host;
+    private final int ordinal;
+
+    /**
+     * @param namespaceUri namespace URI of the API entry element.
+     * @param localName local name of the API entry element.
+     * @param version value of the <code>version</code> attribute (empty string if missing).
+     * @param host index of the <code>&lt;host&gt;</code> element (in document order).
+     * @param ordinal index of the API entry element among all API entry elements of the catalogue
+     *        (in document order).
+     */
+    ApiEntryRecord(String namespaceUri, String localName, String version, int host,
+        int ordinal) {
+      this.namespaceUri = namespaceUri;
+      this.localName = localName;
+      this.version = version;
+      this.host = host;
+      this.ordinal = ordinal;
+    }
+
+    int getHost() {
+      return this.host;
+    }
+
+    String getLocalName() {
+      return this.localName;
+    }
+
+    String getNamespaceUri() {
+      return this.namespaceUri;
+    }
+
+    int getOrdinal() {
+      return this.ordinal;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof ApiEntryRecord)) {
+        return false;
+      }
+      ApiEntryRecord other = (ApiEntryRecord) obj;
+      return this.host == other.host && this.ordinal == other.ordinal
+          && this.namespaceUri.equals(other.namespaceUri) && this.localName.equals(other.localName)
+          && this.version.equals(other.version);
+    }
+
+    String getVersion() {
+      return this.version;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * this.localName.hashCode() + this.host) + this.ordinal;
+    }
+  }
+
+  /**
+   * Data extracted from a single <code>&lt;host&gt;</code> element. Immutable (it may be shared by
+   * many versions of the catalogue).
+   */
+  private static final class HostSection {
+
+    /**
+     * HEI IDs covered by this host.
+     */
+    private final Set<String> heis;
+
+    /**
+     * Fingerprints of the server keys covering this host.
+     */
+    private final Set<String> serverKeys;
+
+    /**
+     * Fingerprints of the client certificates in use by this host.
+     */
+    private final List<String> certificates;
+
+    /**
+     * Fingerprints of the client keys in use by this host.
+     */
+    private final List<String> clientKeys;
+
+    /**
+     * API entries of this host. Their {@link ApiEntryRecord#getHost()} is always zero, and their
+     * {@link ApiEntryRecord#getOrdinal()} is relative to the first API entry of this host.
+     */
+    private final List<ApiEntryRecord> apis;
+
+    private HostSection(Element hostElem) {
+      this.heis = new HashSet<>();
+      this.serverKeys = new HashSet<>();
+      this.certificates = new ArrayList<>();
+      this.clientKeys = new ArrayList<>();
+      this.apis = new ArrayList<>();
+
+      for (Node child : Utils.asNodeList(hostElem.getChildNodes())) {
+        if ("institutions-covered".equals(child.getLocalName())) {
+          for (Node heiIdNode : Utils.asNodeList(child.getChildNodes())) {
+            if ("hei-id".equals(heiIdNode.getLocalName())) {
+              this.heis.add(heiIdNode.getTextContent());
+            }
+          }
+        } else if ("client-credentials-in-use".equals(child.getLocalName())) {
+          for (Node credential : Utils.asNodeList(child.getChildNodes())) {
+            if ("certificate".equals(credential.getLocalName())) {
+              this.certificates
+                  .add(credential.getAttributes().getNamedItem("sha-256").getTextContent());
+            } else if ("rsa-public-key".equals(credential.getLocalName())) {
+              this.clientKeys
+                  .add(credential.getAttributes().getNamedItem("sha-256").getTextContent());
+            }
+          }
+        } else if ("server-credentials-in-use".equals(child.getLocalName())) {
+          for (Node credential : Utils.asNodeList(child.getChildNodes())) {
+            if ("rsa-public-key".equals(credential.getLocalName())) {
+              this.serverKeys
+                  .add(credential.getAttributes().getNamedItem("sha-256").getTextContent());
+            }
+          }
+        }
+      }
+
+      List<Element> apiElems = new ArrayList<>();
+      collectApiElements(hostElem, apiElems);
+      for (int i = 0; i < apiElems.size(); i++) {
+        Element apiElem = apiElems.get(i);
+        this.apis.add(new ApiEntryRecord(apiElem.getNamespaceURI(), apiElem.getLocalName(),
+            apiElem.getAttribute("version"), 0, i));
+      }
+    }
+
+    /**
+     * Estimate the size of this section (see {@link SizeEstimator}), excluding {@link #heis} and
+     * {@link #serverKeys} (which are shared with other indexes), and the credential fingerprints
+     * (which are shared with the keys of the coverage indexes).
+     */
+    private long estimateSize() {
+      return 32 + SizeEstimator.arrayList(this.certificates.size())
+          + SizeEstimator.arrayList(this.clientKeys.size())
+          + SizeEstimator.arrayList(this.apis.size())
+          + (long) this.apis.size() * ApiEntryRecord.SIZE;
+    }
+  }
+
   /**
    * Instances of this class get attached to the Elements returned by
    * {@link CatalogueDocument#findApis(ApiSearchConditions)} and
@@ -810,9 +1595,10 @@ class CatalogueDocument {
     private final CatalogueDocument catalogueDocument;
 
     /**
-     * The parent <code>&lt;host&gt;</code> element which this API entry has been cloned from.
+     * The index of the parent <code>&lt;host&gt;</code> element which this API entry has been
+     * cloned from.
      */
-    private final Element host;
+    private final int host;
 
     /**
      * The time when this object was created, in the Date.getTime format (number of milliseconds
@@ -820,7 +1606,7 @@ class CatalogueDocument {
      */
     private final long created;
 
-    private InternalApiEntryAttachment(CatalogueDocument catalogueDocument, Element host) {
+    private InternalApiEntryAttachment(CatalogueDocument catalogueDocument, int host) {
       this.catalogueDocument = catalogueDocument;
       this.host = host;
       this.created = new Date().getTime();
@@ -1,11 +1,11 @@
 package eu.erasmuswithoutpaper.registryclient;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
@@ -45,9 +45,18 @@ public interface CatalogueFetcher {
      * response.)
      */
     static Http200RegistryResponse deserialize(byte[] raw) throws CouldNotDeserialize {
+      return deserialize(ByteBuffer.wrap(raw));
+    }
+
+    /**
+     * Same as {@link #deserialize(byte[])}, but reads the data directly from a buffer (e.g. a
+     * memory-mapped file, see {@link FilePersistentCacheMap#getBuffer(String)}).
+     */
+    static Http200RegistryResponse deserialize(ByteBuffer raw) throws CouldNotDeserialize {
       try {
         try {
-          ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(raw));
+          ObjectInputStream in =
+              new ObjectInputStream(new Utils.ByteBufferInputStream(raw.duplicate()));
           int version = in.readInt();
           if (version != 1) {
             throw new CouldNotDeserialize();
@@ -55,8 +64,9 @@ public interface CatalogueFetcher {
           Date expires = (Date) in.readObject();
           byte[] content = (byte[]) in.readObject();
           String etag = (String) in.readObject();
-          return new Http200RegistryResponse(content, etag, expires);
-        } catch (StreamCorruptedException | ClassNotFoundException e) {
+          // The content array has just been created, so there's no need to copy it.
+          return new Http200RegistryResponse(content, etag, expires, false);
+        } catch (StreamCorruptedException | ClassNotFoundException | ClassCastException e) {
           throw new CouldNotDeserialize();
         }
       } catch (IOException e) {
@@ -76,8 +86,13 @@ public interface CatalogueFetcher {
      *        a proper Expires value from other HTTP headers (i.e. Cache-Control header).
      */
     public Http200RegistryResponse(byte[] content, String etag, Date expires) {
+      this(content, etag, expires, true);
+    }
+
+    private Http200RegistryResponse(byte[] content, String etag, Date expires,
+        boolean copyContent) {
       super(expires);
-      this.content = content.clone();
+      this.content = copyContent ? content.clone() : content;
       this.etag = etag;
     }
 
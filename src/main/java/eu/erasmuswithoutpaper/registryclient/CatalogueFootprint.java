@@ -0,0 +1,108 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The estimated heap footprint of a single copy of the catalogue (see
+ * {@link ClientImpl#getCatalogueFootprint()}). Immutable.
+ *
+ * <p>
+ * The footprint consists of the DOM of the catalogue, and of the indexes built from it (see
+ * {@link CatalogueIndex}). Unlike the sizes in {@link CatalogueBuildReport}, which are computed
+ * once per copy of the catalogue, the footprint is computed whenever it is requested, so it also
+ * reflects the data which has been loaded lazily since (e.g. decoded RSA keys, or the DOM itself).
+ * </p>
+ *
+ * <p>
+ * All sizes are <b>estimates</b>, computed without walking the heap. The indexes are estimated
+ * from the number and length of their objects (see {@link CatalogueBuildReport}). The DOM is
+ * estimated from the length of the raw XML content (a DOM built by the JDK's default parser takes
+ * about six bytes per byte of the XML). Use them for sizing containers and for spotting
+ * regressions, not as exact numbers.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public final class CatalogueFootprint {
+
+  private final String etag;
+  private final long domSize;
+  private final boolean domParsed;
+  private final Map<CatalogueIndex, Long> indexSizes;
+
+  CatalogueFootprint(String etag, long domSize, boolean domParsed,
+      Map<CatalogueIndex, Long> indexSizes) {
+    this.etag = etag;
+    this.domSize = domSize;
+    this.domParsed = domParsed;
+    this.indexSizes = new EnumMap<>(indexSizes);
+  }
+
+  /**
+   * @return The estimated retained size of the DOM (in bytes). If the DOM hasn't been parsed yet
+   *         (see {@link #isDomParsed()}), then this is the size of the raw XML content, which is
+   *         retained instead.
+   */
+  public long getDomSize() {
+    return this.domSize;
+  }
+
+  /**
+   * @return The ETag of the catalogue copy (possibly <b>null</b>).
+   */
+  public String getETag() {
+    return this.etag;
+  }
+
+  /**
+   * @param index The index to look up.
+   * @return The estimated retained size of the given index (in bytes).
+   */
+  public long getIndexSize(CatalogueIndex index) {
+    Long result = this.indexSizes.get(index);
+    return result != null ? result : 0;
+  }
+
+  /**
+   * @return The sum of the estimated retained sizes of all the indexes (in bytes).
+   */
+  public long getIndexesSize() {
+    long result = 0;
+    for (long size : this.indexSizes.values()) {
+      result += size;
+    }
+    return result;
+  }
+
+  /**
+   * @return The estimated retained size of the whole catalogue copy (the DOM and all the indexes,
+   *         in bytes).
+   */
+  public long getTotalSize() {
+    return this.domSize + this.getIndexesSize();
+  }
+
+  /**
+   * @return <b>true</b> if the DOM of the catalogue has been parsed. Catalogues restored from index
+   *         snapshots (see {@link ClientImplOptions#setIndexSnapshotCaching(boolean)}) keep the raw
+   *         content instead, until the DOM is first needed.
+   */
+  public boolean isDomParsed() {
+    return this.domParsed;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder indexes = new StringBuilder();
+    for (Map.Entry<CatalogueIndex, Long> entry : this.indexSizes.entrySet()) {
+      if (indexes.length() > 0) {
+        indexes.append(", ");
+      }
+      indexes.append(entry.getKey()).append('=').append(entry.getValue() / 1024).append("KB");
+    }
+    return "CatalogueFootprint[ETag=" + this.etag + ", total=" + this.getTotalSize() / 1024
+        + "KB, dom=" + this.domSize / 1024 + "KB" + (this.domParsed ? "" : " (raw content)")
+        + ", indexes=" + this.getIndexesSize() / 1024 + "KB {" + indexes + "}]";
+  }
+}
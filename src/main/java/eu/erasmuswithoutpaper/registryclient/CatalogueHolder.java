@@ -0,0 +1,1300 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueDocument.CatalogueParserException;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse.CouldNotDeserialize;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http304RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.ClientImpl.RefreshCircuitState;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.CatalogueSource;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.RefreshOutcome;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the current copy of the catalogue ({@link CatalogueDocument}) on behalf of one or more
+ * {@link ClientImpl} instances, and keeps it up-to-date.
+ *
+ * <p>
+ * This is where the catalogue is actually loaded (from persistent cache), refreshed (both manually
+ * and automatically) and stored back in the cache. {@link ClientImpl} is merely a facade, which
+ * runs its queries against {@link #getDoc()}.
+ * </p>
+ *
+ * <p>
+ * Each {@link ClientImpl} usually has its own, private {@link CatalogueHolder}. However, if
+ * {@link ClientImplOptions#isCatalogueSharing()} is on, then a single holder is shared by all
+ * clients which use the same {@link CatalogueFetcher} (see {@link #acquire(ClientImplOptions)}).
+ * Such shared holders are reference-counted, and they are stopped once the last of their clients
+ * is closed.
+ * </p>
+ */
+class CatalogueHolder {
+
+  private static final String CATALOGUE_CACHE_KEY = "latest-catalogue";
+  private static final String INDEX_CACHE_KEY = "latest-catalogue-index";
+  private static final String METADATA_CACHE_KEY = "latest-catalogue-meta";
+  private static final String PLACEHOLDER_ETAG = "empty-placeholder";
+  private static final Logger logger = LoggerFactory.getLogger(CatalogueHolder.class);
+
+  /**
+   * All currently used shared holders, keyed by their {@link CatalogueFetcher}s. Holders which are
+   * still being constructed are represented by incomplete futures. All access must be synchronized
+   * on the map itself (but the holders are constructed outside of this lock).
+   */
+  private static final Map<CatalogueFetcher, CompletableFuture<CatalogueHolder>> sharedHolders =
+      new HashMap<>();
+
+  /**
+   * Get a {@link CatalogueHolder} for a new {@link ClientImpl} instance.
+   *
+   * <p>
+   * If {@link ClientImplOptions#isCatalogueSharing()} is on, and a shared holder for the same
+   * {@link CatalogueFetcher} already exists, then it will be reused (and the given options, other
+   * than the fetcher, will be ignored - a warning is logged if they differ from the options of the
+   * shared holder). Otherwise, a new holder is created. In both cases, the caller must call
+   * {@link #release()} once it's done using it.
+   * </p>
+   *
+   * <p>
+   * If the shared holder is still being constructed by another client, then we wait for it. This
+   * guarantees that the catalogue won't be fetched more than once, without blocking the clients
+   * which use other fetchers.
+   * </p>
+   *
+   * @param options The options of the {@link ClientImpl} being constructed.
+   * @return A {@link CatalogueHolder} (either new or shared).
+   */
+  static CatalogueHolder acquire(ClientImplOptions options) {
+    if (!options.isCatalogueSharing()) {
+      return new CatalogueHolder(options, false);
+    }
+    CatalogueFetcher fetcher = options.getCatalogueFetcher();
+    while (true) {
+      CompletableFuture<CatalogueHolder> future;
+      boolean creating;
+      synchronized (sharedHolders) {
+        future = sharedHolders.get(fetcher);
+        creating = future == null;
+        if (creating) {
+          future = new CompletableFuture<>();
+          sharedHolders.put(fetcher, future);
+        }
+      }
+      if (creating) {
+        return createSharedHolder(options, future);
+      }
+      CatalogueHolder holder;
+      try {
+        holder = future.join();
+      } catch (CompletionException e) {
+        // Its construction has failed. Try again (we might end up constructing it ourselves).
+        continue;
+      }
+      synchronized (sharedHolders) {
+        if (sharedHolders.get(fetcher) == future) {
+          logger.debug("Reusing a shared catalogue holder for {}", fetcher);
+          holder.refCount++;
+          warnAboutIgnoredOptions(holder.options, options);
+          return holder;
+        }
+      }
+      // It has been released by all its clients while we were waiting. Try again.
+    }
+  }
+
+  /**
+   * Add the option's name to the list, unless its values are the same.
+   */
+  private static void checkIgnoredOption(List<String> ignored, String name, boolean same) {
+    if (!same) {
+      ignored.add(name);
+    }
+  }
+
+  /**
+   * Construct a new shared holder, and complete the given (already registered) future with it. If
+   * the construction fails, then the future is unregistered (and completed exceptionally, so that
+   * the clients waiting for it can try again).
+   */
+  private static CatalogueHolder createSharedHolder(ClientImplOptions options,
+      CompletableFuture<CatalogueHolder> future) {
+    logger.debug("Creating a new shared catalogue holder for {}", options.getCatalogueFetcher());
+    CatalogueHolder holder = null;
+    try {
+      holder = new CatalogueHolder(options, true);
+    } finally {
+      if (holder == null) {
+        synchronized (sharedHolders) {
+          sharedHolders.remove(options.getCatalogueFetcher());
+        }
+        future.completeExceptionally(
+            new IllegalStateException("Could not construct the shared catalogue holder"));
+      }
+    }
+    future.complete(holder);
+    return holder;
+  }
+
+  /**
+   * Create an empty {@link CatalogueDocument}. We use it when no other copy of the catalogue is
+   * available.
+   */
+  private static CatalogueDocument createEmptyPlaceholder() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<catalogue xmlns='");
+    sb.append(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI);
+    sb.append("'></catalogue>");
+    byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+    Date expires = new Date(0);
+    Http200RegistryResponse emptyResponse =
+        new Http200RegistryResponse(content, PLACEHOLDER_ETAG, expires);
+    try {
+      return new CatalogueDocument(emptyResponse);
+    } catch (CatalogueParserException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * If the persistent cache contains a {@link CatalogueMetadata} record matching the given
+   * document, then extend the document's expiry date accordingly.
+   *
+   * <p>
+   * Such records are written when HTTP 304 responses are received (see
+   * {@link #storeMetadata(Map, CatalogueDocument)}). Records with different ETags refer to other
+   * versions of the catalogue, and are ignored.
+   * </p>
+   */
+  private static void applyCachedMetadata(Map<String, byte[]> cache,
+      CatalogueDocument document) {
+    CatalogueMetadata metadata = readMetadata(cache);
+    if (metadata == null) {
+      return;
+    }
+    if (Objects.equals(metadata.getETag(), document.getETag())) {
+      document.extendExpiryDate(metadata.getExpires());
+    } else {
+      logger.debug("Cached metadata refers to a different catalogue version. Ignoring.");
+    }
+  }
+
+  /**
+   * Try to acquire an exclusive lock on the given channel (without blocking).
+   *
+   * @return The lock, or <b>null</b> if it's held by someone else (another process, or another
+   *         {@link CatalogueHolder} in this JVM).
+   * @throws IOException if the lock could not be acquired for other reasons (e.g. the file system
+   *         doesn't support locking).
+   */
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read an entry from the persistent cache.
+   *
+   * <p>
+   * If the cache is a {@link FilePersistentCacheMap}, then the entry will be read directly from the
+   * memory-mapped file (without copying it).
+   * </p>
+   *
+   * <p>
+   * Errors thrown by the cache are logged and treated as cache misses (a failing cache must not
+   * break the refreshes).
+   * </p>
+   *
+   * @return Either a {@link ByteBuffer} with the value, or <b>null</b> if the entry was not found
+   *         (or could not be read).
+   */
+  private static ByteBuffer readFromCache(Map<String, byte[]> cache, String key) {
+    final Object event = FlightRecorderEvents.INSTANCE.beginCacheAccess();
+    ByteBuffer result;
+    try {
+      if (cache instanceof FilePersistentCacheMap) {
+        result = ((FilePersistentCacheMap) cache).getBuffer(key);
+      } else {
+        byte[] data = cache.get(key);
+        result = data == null ? null : ByteBuffer.wrap(data);
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Could not read \"" + key + "\" from the persistent cache: " + e);
+      result = null;
+    }
+    FlightRecorderEvents.INSTANCE.endCacheAccess(event, key, false,
+        result == null ? 0 : result.remaining());
+    return result;
+  }
+
+  /**
+   * Read the {@link CatalogueMetadata} record from the persistent cache.
+   *
+   * @return Either the metadata, or <b>null</b> if it was not found (or was invalid).
+   */
+  private static CatalogueMetadata readMetadata(Map<String, byte[]> cache) {
+    ByteBuffer data = readFromCache(cache, METADATA_CACHE_KEY);
+    if (data == null) {
+      return null;
+    }
+    try {
+      return CatalogueMetadata.deserialize(data);
+    } catch (CouldNotDeserialize e) {
+      logger.debug("Could not load cached catalogue metadata: {}", e.getClass().getSimpleName());
+      return null;
+    }
+  }
+
+  /**
+   * Log a warning if a client which joins a shared holder has been configured differently than the
+   * client which has created it (see {@link #acquire(ClientImplOptions)}).
+   */
+  private static void warnAboutIgnoredOptions(ClientImplOptions used, ClientImplOptions given) {
+    List<String> ignored = new ArrayList<>();
+    checkIgnoredOption(ignored, "autoRefreshing",
+        used.isAutoRefreshing() == given.isAutoRefreshing());
+    checkIgnoredOption(ignored, "circuitBreakerOpenTime",
+        used.getCircuitBreakerOpenTime() == given.getCircuitBreakerOpenTime());
+    checkIgnoredOption(ignored, "circuitBreakerThreshold",
+        used.getCircuitBreakerThreshold() == given.getCircuitBreakerThreshold());
+    checkIgnoredOption(ignored, "earlyRefreshTime",
+        used.getEarlyRefreshTime() == given.getEarlyRefreshTime());
+    checkIgnoredOption(ignored, "indexSnapshotCaching",
+        used.isIndexSnapshotCaching() == given.isIndexSnapshotCaching());
+    checkIgnoredOption(ignored, "initialRefreshInBackground",
+        used.isInitialRefreshInBackground() == given.isInitialRefreshInBackground());
+    checkIgnoredOption(ignored, "lazyKeyDecoding",
+        used.isLazyKeyDecoding() == given.isLazyKeyDecoding());
+    checkIgnoredOption(ignored, "lazyLoading", used.isLazyLoading() == given.isLazyLoading());
+    checkIgnoredOption(ignored, "maxTimeBetweenRetries",
+        used.getMaxTimeBetweenRetries() == given.getMaxTimeBetweenRetries());
+    checkIgnoredOption(ignored, "metricsListener",
+        used.getMetricsListener() == given.getMetricsListener());
+    checkIgnoredOption(ignored, "minTimeBetweenQueries",
+        used.getMinTimeBetweenQueries() == given.getMinTimeBetweenQueries());
+    checkIgnoredOption(ignored, "persistentCacheMap",
+        used.getPersistentCacheMap() == given.getPersistentCacheMap());
+    checkIgnoredOption(ignored, "refreshExecutor",
+        used.getRefreshExecutor() == given.getRefreshExecutor());
+    checkIgnoredOption(ignored, "refreshJitter",
+        used.getRefreshJitter() == given.getRefreshJitter());
+    checkIgnoredOption(ignored, "refreshLockFile",
+        Objects.equals(used.getRefreshLockFile(), given.getRefreshLockFile()));
+    checkIgnoredOption(ignored, "retryBackoffMultiplier",
+        Double.compare(used.getRetryBackoffMultiplier(), given.getRetryBackoffMultiplier()) == 0);
+    checkIgnoredOption(ignored, "retryJitter",
+        Double.compare(used.getRetryJitter(), given.getRetryJitter()) == 0);
+    checkIgnoredOption(ignored, "stalenessWarningThreshold",
+        used.getStalenessWarningThreshold() == given.getStalenessWarningThreshold());
+    checkIgnoredOption(ignored, "timeBetweenRetries",
+        used.getTimeBetweenRetries() == given.getTimeBetweenRetries());
+    if (!ignored.isEmpty()) {
+      logger.warn("The catalogue is shared with a client which has been configured differently. "
+          + "These options will be ignored: {}", ignored);
+    }
+  }
+
+  /**
+   * Write an entry to the persistent cache. This is a best-effort operation: errors thrown by the
+   * cache are logged and ignored.
+   *
+   * @return <b>true</b> if the entry has been written.
+   */
+  private static boolean writeToCache(Map<String, byte[]> cache, String key, byte[] value) {
+    final Object event = FlightRecorderEvents.INSTANCE.beginCacheAccess();
+    boolean written;
+    try {
+      cache.put(key, value);
+      written = true;
+    } catch (RuntimeException e) {
+      logger.warn("Could not write \"" + key + "\" to the persistent cache: " + e);
+      written = false;
+    }
+    FlightRecorderEvents.INSTANCE.endCacheAccess(event, key, true, written ? value.length : 0);
+    return written;
+  }
+
+  /**
+   * {@link ClientImplOptions} which we've been constructed with. (If we are shared, then these are
+   * the options of the first client.)
+   */
+  private final ClientImplOptions options;
+
+  /**
+   * True if this holder is registered in {@link #sharedHolders}.
+   */
+  private final boolean shared;
+
+  /**
+   * The number of clients using this holder. Relevant for shared holders only (guarded by
+   * {@link #sharedHolders}).
+   */
+  private int refCount;
+
+  /**
+   * The instance of the {@link CatalogueDocument} which we are currently operating on.
+   *
+   * <p>
+   * This is not final, because a new instance of the {@link CatalogueDocument} is created whenever
+   * the content of the catalogue changes (see {@link ClientImplOptions#isAutoRefreshing()}).
+   * </p>
+   */
+  private volatile CatalogueDocument doc;
+
+  /**
+   * If {@link ClientImplOptions#isLazyLoading()} is true, then {@link #doc} remains <b>null</b>
+   * until it is needed (see {@link #getDoc()}). In the meantime, we use this metadata (read from
+   * the persistent cache during construction) to tell the expiry date of the cached copy. In other
+   * cases, it will be null.
+   */
+  private final CatalogueMetadata pendingMetadata;
+
+  /**
+   * RSA keys decoded for all the versions of the catalogue we've loaded. It allows new versions to
+   * decode only the keys which have changed. Keys which are no longer used by {@link #doc} are
+   * evicted (see {@link #setDoc(CatalogueDocument)}).
+   */
+  private final RsaKeyCache keyCache = new RsaKeyCache();
+
+  /**
+   * Used for synchronizing the deferred loading of {@link #doc} (see {@link #getDoc()}).
+   */
+  private final Object loadLock = new Object();
+
+  /**
+   * The number of refreshes which have failed since the last successful one. Modified only in
+   * (synchronized) {@link #refresh()}.
+   */
+  private volatile int consecutiveFailures;
+
+  /**
+   * If the circuit breaker has been opened (see {@link #getCircuitState()}), this is the time (in
+   * milliseconds since epoch) until which automatic refreshes are suspended. Modified only in
+   * (synchronized) {@link #refresh()}.
+   */
+  private volatile long circuitOpenUntil;
+
+  /**
+   * The circuit breaker state which has been last reported to our {@link MetricsListener} (see
+   * {@link #reportCircuitState()}). Modified only in (synchronized) {@link #refresh()}.
+   */
+  private RefreshCircuitState reportedCircuitState = RefreshCircuitState.CLOSED;
+
+  /**
+   * Completed once {@link #doc} contains a usable catalogue (see {@link #getReadyFuture()}).
+   */
+  private final CompletableFuture<Void> readyFuture = new CompletableFuture<>();
+
+  /**
+   * Listeners notified whenever {@link #doc} is replaced (see
+   * {@link #addChangeListener(CatalogueChangeListener)}).
+   */
+  private final List<CatalogueChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * The most recently scheduled notification of {@link #changeListeners}. New notifications are
+   * chained to it, so that they are delivered in order (guarded by this).
+   */
+  private CompletableFuture<Void> lastNotification = CompletableFuture.completedFuture(null);
+
+  /**
+   * This will be used if {@link ClientImplOptions#isAutoRefreshing()} is true. Otherwise, it will
+   * be null.
+   */
+  private final ScheduledExecutorService executor;
+
+  /**
+   * True if {@link #executor} has been created by us (and should be shut down once we're done).
+   * False if it was supplied via {@link ClientImplOptions#setRefreshExecutor}.
+   */
+  private final boolean ownExecutor;
+
+  /**
+   * Our periodical refresh task, run by {@link #executor} (or null, if {@link #executor} is null).
+   */
+  private final SelfSchedulableTask refreshTask;
+
+  private CatalogueHolder(ClientImplOptions options, boolean shared) {
+
+    this.options = options;
+    this.shared = shared;
+    this.refCount = 1;
+
+    /*
+     * If we are provided with a persistent cache, then will try to load a copy of the catalogue
+     * directly from it.
+     */
+
+    Map<String, byte[]> cache = this.options.getPersistentCacheMap();
+    CatalogueMetadata metadata = null;
+    if (cache != null && this.options.isLazyLoading()) {
+
+      /*
+       * In lazy-loading mode, we only read the small metadata record now. The catalogue itself
+       * will be loaded when it's first needed.
+       */
+
+      metadata = readMetadata(cache);
+      if (metadata != null) {
+        logger.debug("Found cached catalogue metadata. The catalogue will be loaded lazily.");
+      } else {
+        logger.debug("No valid catalogue metadata found in cache. Lazy loading is not possible.");
+      }
+    }
+    this.pendingMetadata = metadata;
+    if (metadata == null) {
+      this.setDoc(this.loadInitialDoc());
+      if (cache != null && this.options.isLazyLoading() && this.readyFuture.isDone()) {
+        // Caches written by older versions have no metadata. Make sure the next load is lazy.
+        this.storeMetadata(cache, this.doc);
+      }
+    }
+
+    if (options.isAutoRefreshing()) {
+
+      /*
+       * If our current copy of the catalogue has expired, then we will attempt to refresh it during
+       * the construction time. This will cause the object to be constructed much slower, but it
+       * seems safer, as the caller might want to use the client right after the call. (Unless we
+       * were asked not to block - then it will be refreshed by the scheduled task, which is run
+       * immediately.)
+       */
+
+      if (this.getExpiryDate().after(new Date())) {
+        logger.debug("The cached copy seems to be acceptable. "
+            + "We won't be refreshing it (this will speed up the construction).");
+      } else if (this.options.isInitialRefreshInBackground()) {
+        logger.debug("Our cached copy of the catalogue has expired. "
+            + "It will be refreshed in a background thread.");
+      } else {
+        logger.debug("Our cached copy of the catalogue has expired. "
+            + "We will refresh it now (this might make construction a bit slower).");
+        try {
+          if (!this.refreshCoordinated()) {
+            logger.debug("Another process is refreshing the catalogue. "
+                + "We will load it from the cache later on.");
+          }
+        } catch (RefreshFailureException e2) {
+          this.logRefreshFailure(
+              "Failed to fetch a fresh copy of the catalogue during construction "
+                  + "(we will keep trying in a background thread).",
+              e2);
+        }
+      }
+
+      /*
+       * Set up a periodical catalogue refresh task. THIS SHOULD BE THE LAST SECTION (because we're
+       * starting new threads here).
+       */
+
+      if (this.options.getRefreshExecutor() != null) {
+        this.executor = this.options.getRefreshExecutor();
+        this.ownExecutor = false;
+      } else {
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        this.ownExecutor = true;
+      }
+      this.refreshTask =
+          new SelfSchedulableTask(this.executor, this.options.getMinTimeBetweenQueries()) {
+
+            /**
+             * The expiry date for which {@link #plannedRefreshTime} has been computed.
+             */
+            private Date plannedExpiryDate;
+
+            /**
+             * The time at which we plan to refresh the catalogue (see
+             * {@link CatalogueHolder#computeRefreshTime(Date)}).
+             */
+            private Date plannedRefreshTime;
+
+            @Override
+            protected Date runAndScheduleNext() {
+              try {
+                logger.trace("runAndScheduleNext was called");
+                // If the catalogue was not loaded yet, then this will load it (warm-up).
+                CatalogueHolder.this.getDoc();
+                Date now = new Date();
+                Date refreshTime = this.getRefreshTime();
+                if (refreshTime.after(now)) {
+                  logger.trace("No refresh was necessary. Will retry at {}", refreshTime);
+                  return refreshTime;
+                }
+                if (CatalogueHolder.this.getCircuitState() == RefreshCircuitState.OPEN) {
+                  Date openUntil = new Date(CatalogueHolder.this.circuitOpenUntil);
+                  logger.trace("Circuit breaker is open. Will retry at {}", openUntil);
+                  return openUntil;
+                }
+                if (!CatalogueHolder.this.refreshCoordinated()) {
+                  // Another process is refreshing it. We will check the cache again soon.
+                  return new Date(now.getTime() + CatalogueHolder.this.options
+                      .getMinTimeBetweenQueries());
+                }
+                return this.getRefreshTime();
+              } catch (RefreshFailureException e) {
+                long delay = CatalogueHolder.this.computeRetryDelay();
+                CatalogueHolder.this.logRefreshFailure(
+                    "Scheduled catalogue refresh failed. Will retry in " + delay + "ms.", e);
+                MetricsListener metrics = CatalogueHolder.this.options.getMetricsListener();
+                if (metrics != null) {
+                  metrics.refreshRetryScheduled(delay);
+                }
+                return new Date(new Date().getTime() + delay);
+              }
+            }
+
+            private Date getRefreshTime() {
+              // Keep the same (random) refresh time until the expiry date changes.
+              Date expiryDate = CatalogueHolder.this.getExpiryDate();
+              if (!expiryDate.equals(this.plannedExpiryDate)) {
+                this.plannedExpiryDate = expiryDate;
+                this.plannedRefreshTime = CatalogueHolder.this.computeRefreshTime(expiryDate);
+              }
+              return this.plannedRefreshTime;
+            }
+
+          };
+      this.refreshTask.schedule(0);
+
+    } else {
+      this.executor = null;
+      this.ownExecutor = false;
+      this.refreshTask = null;
+    }
+  }
+
+  /**
+   * Register a listener to be notified whenever a new version of the catalogue is put to use (see
+   * {@link CatalogueChangeListener}).
+   */
+  void addChangeListener(CatalogueChangeListener listener) {
+    this.changeListeners.add(listener);
+  }
+
+  /**
+   * Compute the time at which the catalogue with the given expiry date should be automatically
+   * refreshed.
+   *
+   * <p>
+   * This is the expiry date moved back by {@link ClientImplOptions#getEarlyRefreshTime()}, and then
+   * by a random amount of time, up to {@link ClientImplOptions#getRefreshJitter()}. This way, the
+   * new copy is usually ready before the old one expires, and multiple clients (e.g. in a cluster)
+   * don't query the Registry Service at the very same moment.
+   * </p>
+   */
+  Date computeRefreshTime(Date expiryDate) {
+    long time = expiryDate.getTime() - this.options.getEarlyRefreshTime();
+    long jitter = this.options.getRefreshJitter();
+    if (jitter > 0) {
+      time -= ThreadLocalRandom.current().nextLong(jitter + 1);
+    }
+    return new Date(time);
+  }
+
+  /**
+   * Compute the delay before the next automatic refresh attempt, after a failed one.
+   *
+   * <p>
+   * The delay starts at {@link ClientImplOptions#getTimeBetweenRetries()}, and grows exponentially
+   * (see {@link ClientImplOptions#getRetryBackoffMultiplier()}) with each subsequent failure, up to
+   * {@link ClientImplOptions#getMaxTimeBetweenRetries()}. Then, a random jitter is applied (see
+   * {@link ClientImplOptions#getRetryJitter()}). If the circuit breaker is open, then we will wait
+   * at least until it becomes half-open.
+   * </p>
+   *
+   * @return The delay in milliseconds.
+   */
+  long computeRetryDelay() {
+    int failures = Math.max(1, this.consecutiveFailures);
+    double delay = this.options.getTimeBetweenRetries()
+        * Math.pow(this.options.getRetryBackoffMultiplier(), failures - 1);
+    delay = Math.min(delay, Math.max(this.options.getMaxTimeBetweenRetries(),
+        this.options.getTimeBetweenRetries()));
+    double jitter = this.options.getRetryJitter();
+    if (jitter > 0) {
+      delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+    }
+    long result = (long) delay;
+    if (this.getCircuitState() == RefreshCircuitState.OPEN) {
+      result = Math.max(result, this.circuitOpenUntil - System.currentTimeMillis());
+    }
+    return result;
+  }
+
+  /**
+   * @return The current state of the refresh circuit breaker.
+   */
+  RefreshCircuitState getCircuitState() {
+    int threshold = this.options.getCircuitBreakerThreshold();
+    if (threshold <= 0 || this.consecutiveFailures < threshold) {
+      return RefreshCircuitState.CLOSED;
+    }
+    if (System.currentTimeMillis() < this.circuitOpenUntil) {
+      return RefreshCircuitState.OPEN;
+    }
+    return RefreshCircuitState.HALF_OPEN;
+  }
+
+  /**
+   * @return The number of refreshes which have failed since the last successful one.
+   */
+  int getConsecutiveFailures() {
+    return this.consecutiveFailures;
+  }
+
+  /**
+   * Get the {@link CatalogueDocument} we are currently operating on, loading it first, if it
+   * hasn't been loaded yet (see {@link ClientImplOptions#isLazyLoading()}).
+   */
+  CatalogueDocument getDoc() {
+    CatalogueDocument result = this.doc;
+    if (result == null) {
+      synchronized (this.loadLock) {
+        result = this.doc;
+        if (result == null) {
+          logger.debug("Loading the catalogue (deferred by lazy-loading)");
+          result = this.loadInitialDoc();
+          this.applyPendingMetadata(result);
+          this.setDoc(result);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return The expiry date of the currently held catalogue copy (without loading it, if it hasn't
+   *         been loaded yet).
+   */
+  Date getExpiryDate() {
+    // No need to synchronize. Simply get the expiry date of the currently held doc.
+    CatalogueDocument current = this.doc;
+    if (current == null) {
+      // Not loaded yet (lazy-loading mode).
+      return this.pendingMetadata.getExpires();
+    }
+    return current.getExpiryDate();
+  }
+
+  /**
+   * Same as {@link #getExpiryDate()}, but without allocating a new {@link Date} (this is called by
+   * every query).
+   *
+   * @return The expiry time (in milliseconds since the epoch) of the currently held catalogue copy.
+   */
+  long getExpiryTime() {
+    CatalogueDocument current = this.doc;
+    if (current == null) {
+      // Not loaded yet (lazy-loading mode).
+      return this.pendingMetadata.getExpires().getTime();
+    }
+    return current.getExpiryTime();
+  }
+
+  /**
+   * @return A future which is completed once a usable catalogue is loaded. It must not be exposed
+   *         to the callers directly (they could complete it).
+   */
+  CompletableFuture<Void> getReadyFuture() {
+    return this.readyFuture;
+  }
+
+  /**
+   * Fetch a fresh copy of the catalogue, and start using it (as described in
+   * {@link RegistryClient#refresh()}).
+   *
+   * <p>
+   * Refreshes are serialized, so that multiple clients sharing this holder don't fetch the
+   * catalogue in parallel. Their outcomes are tracked by our circuit breaker (see
+   * {@link #getCircuitState()}), but - unlike automatic refreshes - calls to this method are never
+   * suspended by it.
+   * </p>
+   */
+  synchronized void refresh() throws RefreshFailureException {
+    final long start = System.nanoTime();
+    // The circuit breaker might have become half-open in the meantime.
+    this.reportCircuitState();
+    RefreshOutcome outcome;
+    try {
+      outcome = this.doRefresh();
+    } catch (RefreshFailureException e) {
+      this.recordRefreshFailure();
+      this.reportCircuitState();
+      this.reportRefresh(RefreshOutcome.FAILED, start);
+      throw e;
+    }
+    this.recordRefreshSuccess();
+    this.reportCircuitState();
+    this.reportRefresh(outcome, start);
+  }
+
+  /**
+   * Refresh the catalogue, coordinating with other processes (if
+   * {@link ClientImplOptions#getRefreshLockFile()} is set).
+   *
+   * <p>
+   * In coordinated mode, we first check if some other process has already stored a newer copy of
+   * the catalogue in the (shared) persistent cache. If so, then we simply load it. Otherwise, we
+   * try to acquire the lock file, and - if we succeed - we refresh the catalogue ourselves (and
+   * store it in the cache for others). If the lock is held by some other process, then we do
+   * nothing (the other process is probably fetching the catalogue right now).
+   * </p>
+   *
+   * @return <b>true</b> if the catalogue has been refreshed (or loaded from the cache),
+   *         <b>false</b> if another process is refreshing it.
+   */
+  synchronized boolean refreshCoordinated() throws RefreshFailureException {
+    Path lockFile = this.options.getRefreshLockFile();
+    Map<String, byte[]> cache = this.options.getPersistentCacheMap();
+    if (lockFile == null || cache == null) {
+      this.refresh();
+      return true;
+    }
+    if (this.reloadFromCacheIfNewer(cache)) {
+      return true;
+    }
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      logger.warn("Could not open the lock file {}. Refreshing without coordination: {}", lockFile,
+          e.toString());
+      this.refresh();
+      return true;
+    }
+    try {
+      FileLock lock;
+      try {
+        lock = tryLock(channel);
+      } catch (IOException e) {
+        logger.warn("Could not lock the lock file {}. Refreshing without coordination: {}",
+            lockFile, e.toString());
+        this.refresh();
+        return true;
+      }
+      if (lock == null) {
+        logger.debug("The lock is held by another process. It will refresh the catalogue.");
+        return false;
+      }
+      // Check again. The previous lock holder might have just completed its refresh.
+      if (!this.reloadFromCacheIfNewer(cache)) {
+        logger.debug("Lock acquired. Refreshing the catalogue.");
+        this.refresh();
+      }
+      return true;
+    } finally {
+      try {
+        // This also releases the lock.
+        channel.close();
+      } catch (IOException e) {
+        logger.warn("Could not close the lock file {}: {}", lockFile, e.toString());
+      }
+    }
+  }
+
+  /**
+   * Release the holder previously acquired via {@link #acquire(ClientImplOptions)}.
+   *
+   * <p>
+   * Once the holder is released by all its clients, its background threads are stopped.
+   * </p>
+   */
+  void release() {
+    boolean stop;
+    if (this.shared) {
+      synchronized (sharedHolders) {
+        this.refCount--;
+        stop = this.refCount == 0;
+        if (stop) {
+          sharedHolders.remove(this.options.getCatalogueFetcher());
+        }
+      }
+    } else {
+      // Private holders have just a single client.
+      stop = true;
+    }
+    if (stop) {
+      this.stop();
+    } else {
+      logger.debug("Catalogue holder is still used by other clients");
+    }
+  }
+
+  /**
+   * Unregister a listener previously registered via
+   * {@link #addChangeListener(CatalogueChangeListener)}.
+   */
+  void removeChangeListener(CatalogueChangeListener listener) {
+    this.changeListeners.remove(listener);
+  }
+
+  /**
+   * Apply the {@link #pendingMetadata} (which we've been reporting the expiry date from, until the
+   * catalogue was loaded) to the lazily loaded document, if it describes this very document.
+   *
+   * <p>
+   * The metadata might have been rewritten since the document was loaded, so the document's own
+   * expiry date might be older than the one we've already reported. We make sure it doesn't move
+   * backwards. Metadata with a different ETag describes another copy of the catalogue (e.g. the
+   * cached catalogue could not be read, or it has been replaced), and its expiry date is not
+   * applied.
+   * </p>
+   */
+  private void applyPendingMetadata(CatalogueDocument document) {
+    if (Objects.equals(this.pendingMetadata.getETag(), document.getETag())) {
+      document.extendExpiryDate(this.pendingMetadata.getExpires());
+    } else {
+      logger.warn("Cached catalogue metadata (ETag {}) doesn't match the loaded catalogue "
+          + "(ETag {}). Its expiry date ({}) won't be used.", this.pendingMetadata.getETag(),
+          document.getETag(), this.pendingMetadata.getExpires());
+    }
+  }
+
+  /**
+   * The actual implementation of {@link #refresh()}.
+   *
+   * @return Either {@link RefreshOutcome#UPDATED} or {@link RefreshOutcome#NOT_MODIFIED}.
+   */
+  private RefreshOutcome doRefresh() throws RefreshFailureException {
+    logger.trace("Starting a new refresh call");
+
+    // Fetch the new catalogue from server.
+
+    CatalogueFetcher catalogueFetcher = this.options.getCatalogueFetcher();
+    CatalogueDocument current = this.getDoc();
+    RegistryResponse someResponse;
+    final long fetchStart = System.nanoTime();
+    final Object fetchEvent = FlightRecorderEvents.INSTANCE.beginFetch();
+    try {
+      logger.trace("Fetching response from the catalogueFetcher");
+      someResponse = catalogueFetcher.fetchCatalogue(current.getETag());
+      if (logger.isTraceEnabled()) {
+        logger.trace("Response fetched successfully: " + someResponse.getClass());
+      }
+    } catch (IOException e) {
+      FlightRecorderEvents.INSTANCE.endFetch(fetchEvent, 0, 0);
+      logger.debug("CatalogueFetcher has thrown an IOException", e);
+      throw new RefreshFailureException("Problem fetching the catalogue from server", e);
+    }
+    int status = 0;
+    long bytes = 0;
+    if (someResponse instanceof Http200RegistryResponse) {
+      status = 200;
+      bytes = ((Http200RegistryResponse) someResponse).getContent().length;
+    } else if (someResponse instanceof Http304RegistryResponse) {
+      status = 304;
+    }
+    FlightRecorderEvents.INSTANCE.endFetch(fetchEvent, status, bytes);
+    MetricsListener metrics = this.options.getMetricsListener();
+    if (metrics != null && status != 0) {
+      metrics.catalogueFetched(status, bytes, System.nanoTime() - fetchStart);
+    }
+
+    // What kind of response did we receive?
+
+    if (someResponse instanceof Http304RegistryResponse) {
+
+      /*
+       * Catalogue did not change since the previous call. This means that we already have the
+       * current version of the catalogue already parsed in our fields.
+       */
+
+      if (logger.isInfoEnabled()) {
+        logger
+            .info("Extending the expiry date of our catalogue copy: " + someResponse.getExpires());
+      }
+      current.extendExpiryDate(someResponse.getExpires());
+
+      Map<String, byte[]> cache = this.options.getPersistentCacheMap();
+      if (cache != null) {
+        /*
+         * We don't rewrite the catalogue itself. Instead, we store its new expiry date under a
+         * separate (small) key, which will be taken into account when the catalogue is loaded.
+         */
+        logger.trace("Extending the expiry date of the cached copy too...");
+        this.storeMetadata(cache, current);
+      }
+
+      return RefreshOutcome.NOT_MODIFIED;
+
+    } else if (someResponse instanceof Http200RegistryResponse) {
+
+      /*
+       * Catalogue has changed. We will create a new document (along with all the indexes), and -
+       * once we complete this - start using it. (In the meantime, we will keep serving the previous
+       * document.) Parts of the previous document which didn't change will be reused.
+       */
+
+      logger.trace("Preparing a new catalogue copy");
+      Http200RegistryResponse response = (Http200RegistryResponse) someResponse;
+      CatalogueDocument newDoc;
+      final long parseStart = System.nanoTime();
+      try {
+        newDoc = new CatalogueDocument(response, current, this.keyCache,
+            this.options.isLazyKeyDecoding());
+        this.reportParse(CatalogueSource.REGISTRY, response, parseStart);
+        this.setDoc(newDoc);
+        logger.info("Catalogue copy successfully updated: {}", newDoc);
+        this.logFootprint(newDoc);
+      } catch (CatalogueParserException e) {
+        logger.debug("Could not parse the new catalogue", e);
+        throw new RefreshFailureException(e);
+      }
+
+      // Also store the new response in persistent cache (if we have one).
+
+      Map<String, byte[]> cache = this.options.getPersistentCacheMap();
+      if (cache != null) {
+        logger.trace("Storing the new copy to cache...");
+        if (writeToCache(cache, CATALOGUE_CACHE_KEY, response.serialize())) {
+          if (this.options.isIndexSnapshotCaching()) {
+            this.storeIndexSnapshot(cache, newDoc);
+          }
+          // Metadata goes last. Other processes use it to detect that a new copy is complete.
+          this.storeMetadata(cache, newDoc);
+        }
+      }
+      return RefreshOutcome.UPDATED;
+
+    } else {
+      throw new RuntimeException(
+          "CatalogueFetcher returned an unsupported RegistryResponse subclass: "
+              + someResponse.getClass());
+    }
+  }
+
+  /**
+   * Load the initial copy of the catalogue, either from the persistent cache (if we have one), or
+   * - if that fails - create an empty placeholder.
+   */
+  private CatalogueDocument loadInitialDoc() {
+    Map<String, byte[]> cache = this.options.getPersistentCacheMap();
+    CatalogueDocument result = null;
+    if (cache != null) {
+      logger.debug("Attempting to load a catalogue from cache");
+      result = this.loadFromCache(cache, null);
+    }
+    if (result == null) {
+      // If no cache was provided, or loading failed, then use an empty placeholder.
+      result = createEmptyPlaceholder();
+    }
+    return result;
+  }
+
+  /**
+   * Try to load a copy of the catalogue from the persistent cache.
+   *
+   * <p>
+   * If {@link ClientImplOptions#isIndexSnapshotCaching()} is on, then we will first try to use the
+   * cached {@link IndexSnapshot} (and avoid parsing the catalogue). If it is missing or invalid,
+   * then we'll parse the catalogue, and store a fresh snapshot for the next time.
+   * </p>
+   *
+   * @param previous The catalogue copy we are currently using (if any). Its unchanged parts will
+   *        be reused while parsing.
+   * @return Either a {@link CatalogueDocument}, or <b>null</b> if no valid copy was found.
+   */
+  private CatalogueDocument loadFromCache(Map<String, byte[]> cache,
+      CatalogueDocument previous) {
+    ByteBuffer data = readFromCache(cache, CATALOGUE_CACHE_KEY);
+    if (data == null) {
+      logger.debug("Cached copy not found");
+      return null;
+    }
+    Http200RegistryResponse cachedResponse;
+    try {
+      cachedResponse = Http200RegistryResponse.deserialize(data);
+    } catch (CouldNotDeserialize e) {
+      logger.debug("Could not load the catalogue from cache: {}", e.getClass().getSimpleName());
+      return null;
+    }
+    if (this.options.isIndexSnapshotCaching()) {
+      ByteBuffer snapshotData = readFromCache(cache, INDEX_CACHE_KEY);
+      if (snapshotData != null) {
+        final long start = System.nanoTime();
+        try {
+          CatalogueDocument result =
+              new CatalogueDocument(cachedResponse, IndexSnapshot.deserialize(snapshotData),
+                  this.keyCache, this.options.isLazyKeyDecoding());
+          this.reportParse(CatalogueSource.INDEX_SNAPSHOT, cachedResponse, start);
+          applyCachedMetadata(cache, result);
+          logger.info("Loaded a catalogue from cache (using index snapshot): {}", result);
+          return result;
+        } catch (CatalogueParserException | CouldNotDeserialize e) {
+          logger.debug("Could not use the cached index snapshot: {}",
+              e.getClass().getSimpleName());
+        }
+      }
+    }
+    final long start = System.nanoTime();
+    try {
+      CatalogueDocument result = new CatalogueDocument(cachedResponse, previous,
+          this.keyCache, this.options.isLazyKeyDecoding());
+      this.reportParse(CatalogueSource.CACHE, cachedResponse, start);
+      applyCachedMetadata(cache, result);
+      logger.info("Loaded a catalogue from cache: {}", result);
+      if (this.options.isIndexSnapshotCaching()) {
+        this.storeIndexSnapshot(cache, result);
+      }
+      return result;
+    } catch (CatalogueParserException e) {
+      logger.debug("Could not load the catalogue from cache: {}", e.getClass().getSimpleName());
+      return null;
+    }
+  }
+
+  /**
+   * Check if the persistent cache contains a newer copy of the catalogue (e.g. one stored by
+   * another process), and if so, start using it.
+   *
+   * @return <b>true</b> if a newer copy was found (and is now used).
+   */
+  private boolean reloadFromCacheIfNewer(Map<String, byte[]> cache) {
+    CatalogueMetadata metadata = readMetadata(cache);
+    if (metadata == null || !metadata.getExpires().after(this.getExpiryDate())) {
+      return false;
+    }
+    CatalogueDocument current = this.getDoc();
+    if (Objects.equals(metadata.getETag(), current.getETag())) {
+      logger.info("Another process has extended the expiry date of the catalogue: {}",
+          metadata.getExpires());
+      current.extendExpiryDate(metadata.getExpires());
+      return true;
+    }
+    CatalogueDocument newDoc = this.loadFromCache(cache, current);
+    if (newDoc == null || !newDoc.getExpiryDate().after(current.getExpiryDate())) {
+      return false;
+    }
+    this.setDoc(newDoc);
+    logger.info("Catalogue copy updated by another process: {}", newDoc);
+    this.logFootprint(newDoc);
+    return true;
+  }
+
+  /**
+   * Log the estimated heap footprint of a new copy of the catalogue (so that memory regressions
+   * are visible in the logs).
+   */
+  private void logFootprint(CatalogueDocument document) {
+    if (logger.isInfoEnabled()) {
+      logger.info("Estimated heap footprint of the new catalogue copy: {}",
+          document.estimateFootprint());
+    }
+  }
+
+  /**
+   * A helper method for logging {@link RegistryClient.RefreshFailureException} exceptions.
+   *
+   * <p>
+   * It logs the message with different severity, depending on the current "level of staleness" (if
+   * the cached copy becomes really stale, it will start to produce warnings).
+   * </p>
+   */
+  private void logRefreshFailure(String message, RefreshFailureException ex) {
+    long age = new Date().getTime() - this.getExpiryDate().getTime();
+    if (age > this.options.getStalenessWarningThreshold()) {
+      if (logger.isWarnEnabled()) {
+        logger.warn(message + ": " + ex);
+      }
+    } else {
+      if (logger.isInfoEnabled()) {
+        logger.info(message + ": " + ex);
+      }
+    }
+  }
+
+  /**
+   * Compute the differences between the given documents, and pass them to all
+   * {@link #changeListeners}.
+   *
+   * <p>
+   * This is done asynchronously, in our {@link #executor} (if we have one), so that the caller (a
+   * refresh) doesn't need to wait for it. Without an executor, the listeners are called in the
+   * current thread.
+   * </p>
+   */
+  private synchronized void notifyChangeListeners(final CatalogueDocument previous,
+      final CatalogueDocument current) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        CatalogueChangeEvent event = current.computeChangesSince(previous);
+        logger.debug("Notifying catalogue change listeners: {}", event);
+        for (CatalogueChangeListener listener : CatalogueHolder.this.changeListeners) {
+          try {
+            listener.catalogueChanged(event);
+          } catch (RuntimeException e) {
+            logger.warn("CatalogueChangeListener has thrown an exception", e);
+          }
+        }
+      }
+    };
+    try {
+      if (this.executor != null) {
+        this.lastNotification = this.lastNotification.thenRunAsync(task, this.executor);
+      } else {
+        this.lastNotification = this.lastNotification.thenRun(task);
+      }
+    } catch (RejectedExecutionException e) {
+      logger.debug("Executor has been shut down. Catalogue change listeners won't be notified.");
+    }
+  }
+
+  /**
+   * Update the circuit breaker state after a failed refresh.
+   */
+  private void recordRefreshFailure() {
+    int failures = this.consecutiveFailures + 1;
+    this.consecutiveFailures = failures;
+    int threshold = this.options.getCircuitBreakerThreshold();
+    if (threshold > 0 && failures >= threshold) {
+      this.circuitOpenUntil =
+          System.currentTimeMillis() + this.options.getCircuitBreakerOpenTime();
+      if (failures == threshold) {
+        logger.warn("{} consecutive refreshes have failed. Automatic refreshes will be suspended "
+            + "until {}.", failures, new Date(this.circuitOpenUntil));
+      }
+    }
+  }
+
+  /**
+   * Update the circuit breaker state after a successful refresh.
+   */
+  private void recordRefreshSuccess() {
+    if (this.getCircuitState() != RefreshCircuitState.CLOSED) {
+      logger.info("Catalogue refreshed successfully. Automatic refreshes are resumed.");
+    }
+    this.consecutiveFailures = 0;
+    this.circuitOpenUntil = 0;
+  }
+
+  /**
+   * Report the current state of the circuit breaker to our {@link MetricsListener} (if we have
+   * one), if it has changed since it was last reported.
+   */
+  private void reportCircuitState() {
+    RefreshCircuitState state = this.getCircuitState();
+    if (state == this.reportedCircuitState) {
+      return;
+    }
+    this.reportedCircuitState = state;
+    MetricsListener metrics = this.options.getMetricsListener();
+    if (metrics != null) {
+      metrics.circuitStateChanged(state);
+    }
+  }
+
+  /**
+   * Report the time it took to build a new {@link CatalogueDocument} to our
+   * {@link MetricsListener} (if we have one).
+   */
+  private void reportParse(CatalogueSource source, Http200RegistryResponse response, long start) {
+    MetricsListener metrics = this.options.getMetricsListener();
+    if (metrics != null) {
+      metrics.catalogueParsed(source, response.getContent().length, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Report the outcome of a refresh to our {@link MetricsListener} (if we have one).
+   */
+  private void reportRefresh(RefreshOutcome outcome, long start) {
+    MetricsListener metrics = this.options.getMetricsListener();
+    if (metrics != null) {
+      long staleness = Math.max(0, System.currentTimeMillis() - this.getExpiryDate().getTime());
+      metrics.refreshCompleted(outcome, System.nanoTime() - start, staleness);
+    }
+  }
+
+  /**
+   * Start operating on a new {@link CatalogueDocument} (and notify the {@link #changeListeners}
+   * about it).
+   */
+  private void setDoc(CatalogueDocument newDoc) {
+    final Object event = FlightRecorderEvents.INSTANCE.beginSwap();
+    final CatalogueDocument previous = this.doc;
+    this.doc = newDoc;
+    this.keyCache.retainAll(newDoc.getRsaKeyFingerprints());
+    FlightRecorderEvents.INSTANCE.endSwap(event, previous != null ? previous.getETag() : null,
+        newDoc.getETag());
+    if (!PLACEHOLDER_ETAG.equals(newDoc.getETag())) {
+      this.readyFuture.complete(null);
+    }
+    if (previous != null && !this.changeListeners.isEmpty()) {
+      this.notifyChangeListeners(previous, newDoc);
+    }
+  }
+
+  /**
+   * Stop our refresh task (and the threads we have started).
+   */
+  private void stop() {
+    if (this.refreshTask != null) {
+      this.refreshTask.cancel();
+    }
+    if (this.ownExecutor) {
+      this.executor.shutdownNow();
+      try {
+        if (this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+          logger.info("All threads exited successfully.");
+        } else {
+          logger.warn("Some threads are still running, but we won't wait anymore.");
+        }
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for threads to finish.");
+      }
+    }
+  }
+
+  /**
+   * Store the {@link IndexSnapshot} of the given document in the persistent cache.
+   */
+  private void storeIndexSnapshot(Map<String, byte[]> cache, CatalogueDocument document) {
+    if (document.getETag() == null) {
+      // Without an ETag, we wouldn't be able to tell if the snapshot matches the catalogue.
+      logger.debug("Catalogue has no ETag. Index snapshot won't be stored.");
+      return;
+    }
+    logger.trace("Storing the index snapshot to cache...");
+    writeToCache(cache, INDEX_CACHE_KEY, document.toIndexSnapshot().serialize());
+  }
+
+  /**
+   * Store the {@link CatalogueMetadata} (ETag and current expiry date) of the given document in the
+   * persistent cache.
+   */
+  private void storeMetadata(Map<String, byte[]> cache, CatalogueDocument document) {
+    logger.trace("Storing the catalogue metadata to cache...");
+    CatalogueMetadata metadata =
+        new CatalogueMetadata(document.getETag(), document.getExpiryDate());
+    writeToCache(cache, METADATA_CACHE_KEY, metadata.serialize());
+  }
+}
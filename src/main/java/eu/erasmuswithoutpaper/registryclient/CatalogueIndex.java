@@ -0,0 +1,70 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+/**
+ * The in-memory indexes which {@link ClientImpl} builds for each copy of the catalogue.
+ *
+ * <p>
+ * These are used for reporting the estimated memory footprint of the catalogue (see
+ * {@link CatalogueBuildReport#getEstimatedSize(CatalogueIndex)}). Objects shared by many indexes
+ * (e.g. HEI ID strings) are counted only once, in the index which owns them.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public enum CatalogueIndex {
+
+  /**
+   * "Client certificate fingerprint -&gt; covered HEI IDs" index (used by
+   * {@link RegistryClient#getHeisCoveredByCertificate(java.security.cert.Certificate)} and
+   * similar methods).
+   */
+  CERTIFICATE_HEIS,
+
+  /**
+   * "Client RSA key fingerprint -&gt; covered HEI IDs" index (used by
+   * {@link RegistryClient#getHeisCoveredByClientKey(java.security.interfaces.RSAPublicKey)} and
+   * similar methods).
+   */
+  CLIENT_KEY_HEIS,
+
+  /**
+   * Sets of HEI IDs covered by each <code>&lt;host&gt;</code> element (this index owns the HEI ID
+   * strings referenced by {@link #CERTIFICATE_HEIS} and {@link #CLIENT_KEY_HEIS}).
+   */
+  HOST_HEIS,
+
+  /**
+   * Sets of server RSA key fingerprints covering each <code>&lt;host&gt;</code> element.
+   */
+  HOST_SERVER_KEYS,
+
+  /**
+   * "other-id type -&gt; other-id value -&gt; HEI ID" index (used by
+   * {@link RegistryClient#findHeiId(String, String)}).
+   */
+  OTHER_ID_HEIS,
+
+  /**
+   * "HEI ID -&gt; {@link HeiEntry}" index, including the names and other IDs already extracted
+   * from the <code>&lt;hei&gt;</code> elements.
+   */
+  HEI_ENTRIES,
+
+  /**
+   * API entries of all hosts, and the "API namespace and local name -&gt; API entries" index
+   * (used by {@link RegistryClient#findApis(ApiSearchConditions)} and similar methods).
+   */
+  API_ENTRIES,
+
+  /**
+   * RSA keys found in the catalogue's <code>&lt;binaries&gt;</code> section (both the decoded
+   * ones, and - in lazy key decoding mode - the ones waiting to be decoded).
+   */
+  RSA_KEYS,
+
+  /**
+   * Content fingerprints of <code>&lt;host&gt;</code> and <code>&lt;hei&gt;</code> elements, which
+   * allow the next copy of the catalogue to reuse the data of the elements which didn't change.
+   */
+  SECTION_FINGERPRINTS
+}
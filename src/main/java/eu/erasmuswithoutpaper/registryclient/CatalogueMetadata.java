@@ -0,0 +1,93 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse.CouldNotDeserialize;
+
+/**
+ * A small record describing the freshness of the cached catalogue copy (its ETag and expiry date).
+ *
+ * <p>
+ * {@link ClientImpl} stores it in the persistent cache under a separate key, so that a HTTP 304
+ * response (which only extends the expiry date of the catalogue we already have) can be persisted
+ * by rewriting just a few bytes, instead of the whole catalogue.
+ * </p>
+ */
+class CatalogueMetadata {
+
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * Deserialize the metadata from a raw byte buffer (previously produced by {@link #serialize()}).
+   */
+  static CatalogueMetadata deserialize(ByteBuffer raw) throws CouldNotDeserialize {
+    try {
+      DataInputStream in = new DataInputStream(new Utils.ByteBufferInputStream(raw.duplicate()));
+      if (in.readInt() != FORMAT_VERSION) {
+        throw new CouldNotDeserialize();
+      }
+      String etag = in.readBoolean() ? in.readUTF() : null;
+      Date expires = new Date(in.readLong());
+      if (in.available() != 0) {
+        throw new CouldNotDeserialize();
+      }
+      return new CatalogueMetadata(etag, expires);
+    } catch (EOFException e) {
+      throw new CouldNotDeserialize();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private final String etag;
+  private final Date expires;
+
+  /**
+   * @param etag The ETag of the catalogue this metadata refers to (possibly <b>null</b>).
+   * @param expires The expiry date of this catalogue.
+   */
+  CatalogueMetadata(String etag, Date expires) {
+    this.etag = etag;
+    this.expires = new Date(expires.getTime());
+  }
+
+  /**
+   * @return The ETag of the catalogue this metadata refers to (possibly <b>null</b>).
+   */
+  String getETag() {
+    return this.etag;
+  }
+
+  /**
+   * @return The expiry date of the catalogue.
+   */
+  Date getExpires() {
+    return new Date(this.expires.getTime());
+  }
+
+  /**
+   * Serialize this object. (Used for persistent caching.)
+   */
+  byte[] serialize() {
+    try {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(data);
+      out.writeInt(FORMAT_VERSION);
+      out.writeBoolean(this.etag != null);
+      if (this.etag != null) {
+        out.writeUTF(this.etag);
+      }
+      out.writeLong(this.expires.getTime());
+      out.flush();
+      return data.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
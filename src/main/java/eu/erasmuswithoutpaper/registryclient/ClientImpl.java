@@ -1,21 +1,20 @@
 package eu.erasmuswithoutpaper.registryclient;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import eu.erasmuswithoutpaper.registryclient.CatalogueDocument.CatalogueParserException;
-import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse;
-import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse.CouldNotDeserialize;
-import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http304RegistryResponse;
-import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.RegistryResponse;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.QueryFamily;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -91,7 +90,32 @@ import org.w3c.dom.Element;
  */
 public class ClientImpl implements RegistryClient {
 
-  private static final String CATALOGUE_CACHE_KEY = "latest-catalogue";
+  /**
+   * The state of the circuit breaker which guards automatic catalogue refreshes (see
+   * {@link ClientImplOptions#setCircuitBreakerThreshold(int)}).
+   *
+   * @since 1.11.0
+   */
+  public enum RefreshCircuitState {
+
+    /**
+     * Refreshes work as usual (this is also the state when the circuit breaker is disabled).
+     */
+    CLOSED,
+
+    /**
+     * Too many consecutive refreshes have failed. Automatic refreshes are suspended for a while.
+     */
+    OPEN,
+
+    /**
+     * Automatic refreshes were suspended, but the suspension time has passed. The next refresh will
+     * be attempted. If it succeeds, then the circuit will be closed, otherwise it will be opened
+     * again.
+     */
+    HALF_OPEN
+  }
+
   private static final Logger logger = LoggerFactory.getLogger(ClientImpl.class);
 
   /**
@@ -100,20 +124,32 @@ public class ClientImpl implements RegistryClient {
   private final ClientImplOptions options;
 
   /**
-   * The instance of the {@link CatalogueDocument} which we are currently operating on.
-   *
-   * <p>
-   * This is not final, because a new instance of the {@link CatalogueDocument} is created whenever
-   * the content of the catalogue changes (see {@link ClientImplOptions#isAutoRefreshing()}).
-   * </p>
+   * Holds the copy of the catalogue we are operating on, and keeps it up-to-date. It might be
+   * shared with other {@link ClientImpl} instances (see
+   * {@link ClientImplOptions#setCatalogueSharing(boolean)}).
+   */
+  private final CatalogueHolder holder;
+
+  /**
+   * Set once {@link #close()} is called (to make sure we release {@link #holder} only once).
+   */
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  /**
+   * Listeners registered via {@link #addCatalogueChangeListener(CatalogueChangeListener)}. We need
+   * to keep track of them, in order to unregister them from {@link #holder} when we're closed.
    */
-  private volatile CatalogueDocument doc;
+  private final List<CatalogueChangeListener> changeListeners = new CopyOnWriteArrayList<>();
 
   /**
-   * This will be used if {@link ClientImplOptions#isAutoRefreshing()} is true. Otherwise, it will
-   * be null.
+   * {@link ClientImplOptions#getMetricsListener()}, or null if metrics are turned off.
    */
-  private final ScheduledExecutorService executor;
+  private final MetricsListener metrics;
+
+  /**
+   * {@link ClientImplOptions#getQueryEventSampling()}.
+   */
+  private final int queryEventSampling;
 
   /**
    * Construct {@link ClientImpl} with default {@link ClientImplOptions}.
@@ -129,148 +165,80 @@ public class ClientImpl implements RegistryClient {
    *        (if they do, then behavior will be undetermined).
    */
   public ClientImpl(ClientImplOptions options) {
-
     this.options = options;
+    this.metrics = options.getMetricsListener();
+    this.queryEventSampling = options.getQueryEventSampling();
     logger.info("Constructing new ClientImpl with options: {}", options);
+    this.holder = CatalogueHolder.acquire(options);
+  }
 
-    /*
-     * If we are provided with a persistent cache, then will try to load a copy of the catalogue
-     * directly from it.
-     */
-
-    Map<String, byte[]> cache = this.options.getPersistentCacheMap();
-    if (cache != null) {
-      logger.debug("Attempting to load a catalogue from cache");
-      byte[] data = cache.get(CATALOGUE_CACHE_KEY);
-      if (data != null) {
-        try {
-          Http200RegistryResponse cachedResponse =
-              Http200RegistryResponse.deserialize(cache.get(CATALOGUE_CACHE_KEY));
-          this.doc = new CatalogueDocument(cachedResponse);
-          logger.info("Loaded a catalogue from cache: {}", this.doc);
-        } catch (CatalogueParserException | CouldNotDeserialize e) {
-          if (logger.isDebugEnabled()) {
-            logger.debug("Could not load the catalogue from cache: {}",
-                e.getClass().getSimpleName());
-          }
-        }
-      }
-    }
-
-    // If no cache was provided, or loading failed, then use an empty placeholder.
-
-    if (this.doc == null) {
-      StringBuilder sb = new StringBuilder();
-      sb.append("<catalogue xmlns='");
-      sb.append(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI);
-      sb.append("'></catalogue>");
-      byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
-      String newETag = "empty-placeholder";
-      Date expires = new Date(0);
-      Http200RegistryResponse emptyResponse =
-          new Http200RegistryResponse(content, newETag, expires);
-      try {
-        this.doc = new CatalogueDocument(emptyResponse);
-      } catch (CatalogueParserException e) {
-        throw new RuntimeException(e);
-      }
-    }
-
-    if (options.isAutoRefreshing()) {
-
-      /*
-       * If our current copy of the catalogue has expired, then we will attempt to refresh it during
-       * the construction time. This will cause the object to be constructed much slower, but it
-       * seems safer, as the caller might want to use the client right after the call.
-       */
-
-      if (this.getExpiryDate().after(new Date())) {
-        logger.debug("The cached copy seems to be acceptable. "
-            + "We won't be refreshing it (this will speed up the construction).");
-      } else {
-        logger.debug("Our cached copy of the catalogue has expired. "
-            + "We will refresh it now (this might make construction a bit slower).");
-        try {
-          this.refresh();
-        } catch (RefreshFailureException e2) {
-          this.logRefreshFailure(
-              "Failed to fetch a fresh copy of the catalogue during construction "
-                  + "(we will keep trying in a background thread).",
-              e2);
-        }
-      }
-
-      /*
-       * Set up a periodical catalogue refresh task. THIS SHOULD BE THE LAST SECTION (because we're
-       * starting new threads here).
-       */
-
-      this.executor = Executors.newSingleThreadScheduledExecutor();
-      this.executor.schedule(
-          new SelfSchedulableTask(this.executor, this.options.getMinTimeBetweenQueries()) {
-
-            @Override
-            protected Date runAndScheduleNext() {
-              try {
-                logger.trace("runAndScheduleNext was called");
-                Date now = new Date();
-                Date expiryDate = ClientImpl.this.getExpiryDate();
-                if (expiryDate.after(now)) {
-                  logger.trace("No refresh was necessary. Will retry at {}", expiryDate);
-                  return ClientImpl.this.getExpiryDate();
-                }
-                ClientImpl.this.refresh();
-                return ClientImpl.this.getExpiryDate();
-              } catch (RefreshFailureException e) {
-                ClientImpl.this
-                    .logRefreshFailure("Scheduled catalogue refresh failed. Will retry in "
-                        + ClientImpl.this.options.getTimeBetweenRetries() + "ms.", e);
-                return new Date(
-                    new Date().getTime() + ClientImpl.this.options.getTimeBetweenRetries());
-              }
-            }
-
-          }, 0, TimeUnit.MILLISECONDS);
-
-    } else {
-      this.executor = null;
+  /**
+   * Register a listener to be notified whenever this client starts using a new version of the
+   * catalogue.
+   *
+   * <p>
+   * The listener receives a {@link CatalogueChangeEvent} describing the differences between the
+   * previous and the new version of the catalogue. See {@link CatalogueChangeListener} for details.
+   * Listeners are unregistered automatically when the client is closed.
+   * </p>
+   *
+   * @param listener The listener to register.
+   * @since 1.11.0
+   */
+  public void addCatalogueChangeListener(CatalogueChangeListener listener) {
+    if (listener == null) {
+      throw new IllegalArgumentException();
     }
+    this.changeListeners.add(listener);
+    this.holder.addChangeListener(listener);
   }
 
   @Override
   public boolean areHeisCoveredByCertificate(Collection<String> heiIds, Certificate clientCert)
       throws UnacceptableStalenessException {
-    return this.getHeisCoveredByCertificate(clientCert).containsAll(heiIds);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().getHeisCoveredByCertificate(clientCert).containsAll(heiIds);
+    } finally {
+      this.endQuery(QueryFamily.CERTIFICATE, start);
+    }
   }
 
   @Override
   public boolean areHeisCoveredByCertificate(String[] heiIds, Certificate clientCert)
       throws UnacceptableStalenessException {
-    Collection<String> heis = this.getHeisCoveredByCertificate(clientCert);
-    for (String heiId : heiIds) {
-      if (!heis.contains(heiId)) {
-        return false;
-      }
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.coveredByCertificate(heiIds, clientCert);
+    } finally {
+      this.endQuery(QueryFamily.CERTIFICATE, start);
     }
-    return true;
   }
 
   @Override
   public boolean areHeisCoveredByClientKey(Collection<String> heiIds, RSAPublicKey clientKey)
       throws UnacceptableStalenessException {
-    return this.getHeisCoveredByClientKey(clientKey).containsAll(heiIds);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().getHeisCoveredByClientKey(clientKey).containsAll(heiIds);
+    } finally {
+      this.endQuery(QueryFamily.CLIENT_KEY, start);
+    }
   }
 
   @Override
   public boolean areHeisCoveredByClientKey(String[] heiIds, RSAPublicKey clientKey)
       throws UnacceptableStalenessException {
-    Collection<String> heis = this.getHeisCoveredByClientKey(clientKey);
-    for (String heiId : heiIds) {
-      if (!heis.contains(heiId)) {
-        return false;
-      }
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.coveredByClientKey(heiIds, clientKey);
+    } finally {
+      this.endQuery(QueryFamily.CLIENT_KEY, start);
     }
-    return true;
   }
 
   @Override
@@ -347,237 +315,365 @@ public class ClientImpl implements RegistryClient {
     }
   }
 
+  /**
+   * Wait until this client holds a usable copy of the catalogue (see {@link #getReadyFuture()}).
+   *
+   * <p>
+   * This is useful if you have constructed the client with
+   * {@link ClientImplOptions#setInitialRefreshInBackground(boolean)} (or
+   * {@link ClientImplOptions#setLazyLoading(boolean)}), but you'd still like to make sure that the
+   * catalogue is available before you begin using it.
+   * </p>
+   *
+   * @param timeout the maximum time to wait.
+   * @param unit the time unit of the timeout argument.
+   * @return <b>true</b> if the client is ready, <b>false</b> if the timeout has elapsed before it
+   *         became ready.
+   * @throws InterruptedException if the current thread was interrupted while waiting.
+   * @since 1.11.0
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    try {
+      this.holder.getReadyFuture().get(timeout, unit);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      // Should not happen. We never complete it exceptionally.
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void close() {
+    if (!this.closed.compareAndSet(false, true)) {
+      return;
+    }
     logger.info("ClientImpl is closing");
-    if (this.executor != null) {
-      this.executor.shutdownNow();
-      try {
-        if (this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
-          logger.info("All threads exited successfully.");
-        } else {
-          logger.warn("Some threads are still running, but we won't wait anymore.");
-        }
-      } catch (InterruptedException e) {
-        logger.warn("Interrupted while waiting for threads to finish.");
-      }
+    for (CatalogueChangeListener listener : this.changeListeners) {
+      this.holder.removeChangeListener(listener);
     }
+    this.changeListeners.clear();
+    this.holder.release();
     logger.info("ClientImpl finished closing");
   }
 
   @Override
   public Element findApi(ApiSearchConditions conditions) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findApi(conditions);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findApi(conditions);
+    } finally {
+      this.endQuery(QueryFamily.API, start);
+    }
   }
 
   @Override
   public Collection<Element> findApis(ApiSearchConditions conditions) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findApis(conditions);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findApis(conditions);
+    } finally {
+      this.endQuery(QueryFamily.API, start);
+    }
   }
 
   @Override
   public HeiEntry findHei(String id) throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findHei(id);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findHei(id);
+    } finally {
+      this.endQuery(QueryFamily.HEI, start);
+    }
   }
 
   @Override
   public HeiEntry findHei(String type, String value) throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findHei(type, value);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findHei(type, value);
+    } finally {
+      this.endQuery(QueryFamily.HEI, start);
+    }
   }
 
   @Override
   public String findHeiId(String type, String value) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findHeiId(type, value);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findHeiId(type, value);
+    } finally {
+      this.endQuery(QueryFamily.HEI, start);
+    }
   }
 
   @Override
   public Collection<HeiEntry> findHeis(ApiSearchConditions conditions)
       throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.findHeis(conditions);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().findHeis(conditions);
+    } finally {
+      this.endQuery(QueryFamily.HEI, start);
+    }
   }
 
   @Override
   public RSAPublicKey findRsaPublicKey(String fingerprint) throws UnacceptableStalenessException {
-    this.assertAcceptableStaleness();
-    return this.doc.findRsaPublicKey(fingerprint);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().findRsaPublicKey(fingerprint);
+    } finally {
+      this.endQuery(QueryFamily.SERVER_KEY, start);
+    }
   }
 
   @Override
   public Collection<HeiEntry> getAllHeis() throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.getAllHeis();
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().getAllHeis();
+    } finally {
+      this.endQuery(QueryFamily.HEI, start);
+    }
+  }
+
+  /**
+   * Get a report describing how the copy of the catalogue currently in use has been built.
+   *
+   * <p>
+   * The report contains the duration of each phase of building the catalogue's indexes (XML
+   * parsing, index building, key decoding, etc.), and the estimated retained size of each index.
+   * See {@link CatalogueBuildReport} for details. The sizes are estimated when the report is first
+   * requested for the given copy of the catalogue (this takes a few milliseconds for a typical
+   * catalogue), and then reused.
+   * </p>
+   *
+   * <p>
+   * Note, that before the first successful refresh (or cache load), an empty placeholder copy of
+   * the catalogue is in use. In lazy-loading mode (see
+   * {@link ClientImplOptions#setLazyLoading(boolean)}), calling this method causes the cached copy
+   * to be loaded.
+   * </p>
+   *
+   * @return A {@link CatalogueBuildReport} of the catalogue copy in use.
+   * @since 1.11.0
+   */
+  public CatalogueBuildReport getCatalogueBuildReport() {
+    return this.getDoc().getBuildReport();
+  }
+
+  /**
+   * Estimate how much heap the catalogue copy currently in use takes.
+   *
+   * <p>
+   * The returned {@link CatalogueFootprint} contains the estimated retained size of the DOM, and of
+   * each of the indexes. It is computed from the sizes of the indexes (without walking the heap),
+   * which takes a few milliseconds for a typical catalogue. The same estimate is also logged (on
+   * the INFO level) after each successful refresh.
+   * </p>
+   *
+   * <p>
+   * In lazy-loading mode (see {@link ClientImplOptions#setLazyLoading(boolean)}), calling this
+   * method causes the cached copy to be loaded.
+   * </p>
+   *
+   * @return A {@link CatalogueFootprint} of the catalogue copy in use.
+   * @since 1.11.0
+   */
+  public CatalogueFootprint getCatalogueFootprint() {
+    return this.getDoc().estimateFootprint();
+  }
+
+  /**
+   * @return The number of catalogue refreshes (both automatic and manual) which have failed since
+   *         the last successful one.
+   * @since 1.11.0
+   */
+  public int getConsecutiveRefreshFailures() {
+    return this.holder.getConsecutiveFailures();
   }
 
   @Override
   public Date getExpiryDate() {
     // No need to synchronize. Simply get the expiry date of the currently held doc.
-    return this.doc.getExpiryDate();
+    return this.holder.getExpiryDate();
+  }
+
+  /**
+   * Get a future which completes once this client holds a usable copy of the catalogue.
+   *
+   * <p>
+   * A copy is considered usable when it has been either loaded from the persistent cache, or
+   * fetched from the Registry Service. In lazy-loading mode (see
+   * {@link ClientImplOptions#setLazyLoading(boolean)}), this happens only after the cached copy is
+   * actually loaded - either by the background warm-up task (if auto-refreshing is on), or by the
+   * first query. Note, that if no usable copy is available, and it cannot be fetched, then the
+   * returned future might never complete.
+   * </p>
+   *
+   * <p>
+   * The returned future cannot be used to complete the underlying one, so it's safe to pass it
+   * around.
+   * </p>
+   *
+   * @return A {@link CompletableFuture} which completes once a usable catalogue is loaded.
+   * @since 1.11.0
+   */
+  public CompletableFuture<Void> getReadyFuture() {
+    return this.holder.getReadyFuture().thenApply(v -> v);
+  }
+
+  /**
+   * @return The current state of the circuit breaker which guards automatic refreshes. See
+   *         {@link ClientImplOptions#setCircuitBreakerThreshold(int)}.
+   * @since 1.11.0
+   */
+  public RefreshCircuitState getRefreshCircuitState() {
+    return this.holder.getCircuitState();
   }
 
   @Override
   public Collection<String> getHeisCoveredByCertificate(Certificate clientCert) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.getHeisCoveredByCertificate(clientCert);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().getHeisCoveredByCertificate(clientCert);
+    } finally {
+      this.endQuery(QueryFamily.CERTIFICATE, start);
+    }
   }
 
   @Override
   public Collection<String> getHeisCoveredByClientKey(RSAPublicKey clientKey)
       throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.getHeisCoveredByClientKey(clientKey);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().getHeisCoveredByClientKey(clientKey);
+    } finally {
+      this.endQuery(QueryFamily.CLIENT_KEY, start);
+    }
   }
 
   @Override
   public RSAPublicKey getServerKeyCoveringApi(Element apiElement)
       throws UnacceptableStalenessException, InvalidApiEntryElement {
-    this.assertAcceptableStaleness();
-    return this.doc.getServerKeyCoveringApi(apiElement);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().getServerKeyCoveringApi(apiElement);
+    } finally {
+      this.endQuery(QueryFamily.SERVER_KEY, start);
+    }
   }
 
   @Override
   public Collection<RSAPublicKey> getServerKeysCoveringApi(Element apiElement)
       throws UnacceptableStalenessException, InvalidApiEntryElement {
-    this.assertAcceptableStaleness();
-    return this.doc.getServerKeysCoveringApi(apiElement);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().getServerKeysCoveringApi(apiElement);
+    } finally {
+      this.endQuery(QueryFamily.SERVER_KEY, start);
+    }
   }
 
   @Override
   public boolean isApiCoveredByServerKey(Element apiElement, RSAPublicKey serverKey)
       throws UnacceptableStalenessException, InvalidApiEntryElement {
-    this.assertAcceptableStaleness();
-    return this.doc.isApiCoveredByServerKey(apiElement, serverKey);
+    final long start = this.startQuery();
+    try {
+      this.assertAcceptableStaleness();
+      return this.getDoc().isApiCoveredByServerKey(apiElement, serverKey);
+    } finally {
+      this.endQuery(QueryFamily.SERVER_KEY, start);
+    }
   }
 
   @Override
   public boolean isCertificateKnown(Certificate clientCert) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.isCertificateKnown(clientCert);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().isCertificateKnown(clientCert);
+    } finally {
+      this.endQuery(QueryFamily.CERTIFICATE, start);
+    }
   }
 
   @Override
   public boolean isClientKeyKnown(RSAPublicKey clientKey) throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.doc.isClientKeyKnown(clientKey);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().isClientKeyKnown(clientKey);
+    } finally {
+      this.endQuery(QueryFamily.CLIENT_KEY, start);
+    }
   }
 
   @Override
   public boolean isHeiCoveredByCertificate(String heiId, Certificate clientCert) {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.areHeisCoveredByCertificate(new String[] { heiId }, clientCert);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().isHeiCoveredByCertificate(heiId, clientCert);
+    } finally {
+      this.endQuery(QueryFamily.CERTIFICATE, start);
+    }
   }
 
   @Override
   public boolean isHeiCoveredByClientKey(String heiId, RSAPublicKey clientKey)
       throws UnacceptableStalenessException {
-    // Since expiry date can only be extended, there is no need to synchronize.
-    this.assertAcceptableStaleness();
-    return this.areHeisCoveredByClientKey(new String[] { heiId }, clientKey);
+    final long start = this.startQuery();
+    try {
+      // Since expiry date can only be extended, there is no need to synchronize.
+      this.assertAcceptableStaleness();
+      return this.getDoc().isHeiCoveredByClientKey(heiId, clientKey);
+    } finally {
+      this.endQuery(QueryFamily.CLIENT_KEY, start);
+    }
   }
 
   @Override
   public void refresh() throws RefreshFailureException {
-    logger.trace("Starting a new refresh call");
-
-    // Fetch the new catalogue from server.
-
-    CatalogueFetcher catalogueFetcher = this.options.getCatalogueFetcher();
-    RegistryResponse someResponse;
-    try {
-      logger.trace("Fetching response from the catalogueFetcher");
-      someResponse = catalogueFetcher.fetchCatalogue(this.doc.getETag());
-      if (logger.isTraceEnabled()) {
-        logger.trace("Response fetched successfully: " + someResponse.getClass());
-      }
-    } catch (IOException e) {
-      logger.debug("CatalogueFetcher has thrown an IOException", e);
-      throw new RefreshFailureException("Problem fetching the catalogue from server", e);
-    }
-
-    // What kind of response did we receive?
-
-    if (someResponse instanceof Http304RegistryResponse) {
-
-      /*
-       * Catalogue did not change since the previous call. This means that we already have the
-       * current version of the catalogue already parsed in our fields.
-       */
-
-      if (logger.isInfoEnabled()) {
-        logger
-            .info("Extending the expiry date of our catalogue copy: " + someResponse.getExpires());
-      }
-      this.doc.extendExpiryDate(someResponse.getExpires());
-
-      Map<String, byte[]> cache = this.options.getPersistentCacheMap();
-      if (cache != null) {
-        logger.trace("Trying to extend the expiry date of the cached copy too...");
-        byte[] data = cache.get(CATALOGUE_CACHE_KEY);
-        if (data != null) {
-          try {
-            Http200RegistryResponse oldCachedResponse = Http200RegistryResponse.deserialize(data);
-            Http200RegistryResponse newCachedResponse =
-                new Http200RegistryResponse(oldCachedResponse.getContent(),
-                    oldCachedResponse.getETag(), this.doc.getExpiryDate());
-            cache.put(CATALOGUE_CACHE_KEY, newCachedResponse.serialize());
-            logger.trace("Successfully updated");
-          } catch (CouldNotDeserialize e) {
-            logger.info("Could not extend the expiry date of the cached copy");
-          }
-        } else {
-          logger.debug("Cached copy not found");
-        }
-      }
-
-      return;
-
-    } else if (someResponse instanceof Http200RegistryResponse) {
-
-      /*
-       * Catalogue has changed. We will create a new document (along with all the indexes), and -
-       * once we complete this - start using it. (In the meantime, we will keep serving the previous
-       * document.)
-       */
-
-      logger.trace("Preparing a new catalogue copy");
-      Http200RegistryResponse response = (Http200RegistryResponse) someResponse;
-      try {
-        this.doc = new CatalogueDocument(response);
-        logger.info("Catalogue copy successfully updated: {}", this.doc);
-      } catch (CatalogueParserException e) {
-        logger.debug("Could not parse the new catalogue", e);
-        throw new RefreshFailureException(e);
-      }
-
-      // Also store the new response in persistent cache (if we have one).
-
-      Map<String, byte[]> cache = this.options.getPersistentCacheMap();
-      if (cache != null) {
-        logger.trace("Storing the new copy to cache...");
-        cache.put(CATALOGUE_CACHE_KEY, response.serialize());
-      }
+    this.holder.refresh();
+  }
 
-    } else {
-      throw new RuntimeException(
-          "CatalogueFetcher returned an unsupported RegistryResponse subclass: "
-              + someResponse.getClass());
+  /**
+   * Unregister a listener previously registered via
+   * {@link #addCatalogueChangeListener(CatalogueChangeListener)}.
+   *
+   * @param listener The listener to unregister. If it's not registered, then nothing happens.
+   * @since 1.11.0
+   */
+  public void removeCatalogueChangeListener(CatalogueChangeListener listener) {
+    if (this.changeListeners.remove(listener)) {
+      this.holder.removeChangeListener(listener);
     }
   }
 
@@ -588,31 +684,80 @@ public class ClientImpl implements RegistryClient {
    *         {@link ClientImplOptions#getMaxAcceptableStaleness()}.
    */
   private void assertAcceptableStaleness() {
-    Date acceptableUntil =
-        new Date(this.getExpiryDate().getTime() + this.options.getMaxAcceptableStaleness());
-    if (new Date().after(acceptableUntil)) {
+    // This is called by every query, so we compare plain timestamps (instead of allocating Dates).
+    long acceptableUntil = this.holder.getExpiryTime() + this.options.getMaxAcceptableStaleness();
+    if (System.currentTimeMillis() > acceptableUntil) {
       throw new UnacceptableStalenessException();
     }
   }
 
   /**
-   * A helper method for logging {@link RegistryClient.RefreshFailureException} exceptions.
-   *
-   * <p>
-   * It logs the message with different severity, depending on the current "level of staleness" (if
-   * the cached copy becomes really stale, it will start to produce warnings).
-   * </p>
+   * Check if all the given HEIs are covered by the given certificate (without checking the
+   * staleness).
    */
-  private void logRefreshFailure(String message, RefreshFailureException ex) {
-    long age = new Date().getTime() - this.getExpiryDate().getTime();
-    if (age > this.options.getStalenessWarningThreshold()) {
-      if (logger.isWarnEnabled()) {
-        logger.warn(message + ": " + ex);
+  private boolean coveredByCertificate(String[] heiIds, Certificate clientCert) {
+    Collection<String> heis = this.getDoc().getHeisCoveredByCertificate(clientCert);
+    for (String heiId : heiIds) {
+      if (!heis.contains(heiId)) {
+        return false;
       }
-    } else {
-      if (logger.isInfoEnabled()) {
-        logger.info(message + ": " + ex);
+    }
+    return true;
+  }
+
+  /**
+   * Check if all the given HEIs are covered by the given client key (without checking the
+   * staleness).
+   */
+  private boolean coveredByClientKey(String[] heiIds, RSAPublicKey clientKey) {
+    Collection<String> heis = this.getDoc().getHeisCoveredByClientKey(clientKey);
+    for (String heiId : heiIds) {
+      if (!heis.contains(heiId)) {
+        return false;
       }
     }
+    return true;
+  }
+
+  /**
+   * Report a completed query to our {@link MetricsListener} (if we have one), and - if it was
+   * sampled - to the Java Flight Recorder.
+   *
+   * @param start The value previously returned by {@link #startQuery()}.
+   */
+  private void endQuery(QueryFamily family, long start) {
+    if (start == 0) {
+      return;
+    }
+    long duration = System.nanoTime() - start;
+    if (this.metrics != null) {
+      this.metrics.queryCompleted(family, duration);
+    }
+    if (this.queryEventSampling > 0
+        && (this.queryEventSampling == 1
+            || ThreadLocalRandom.current().nextInt(this.queryEventSampling) == 0)
+        && FlightRecorderEvents.INSTANCE.isQueryEnabled()) {
+      FlightRecorderEvents.INSTANCE.queryCompleted(family, duration);
+    }
+  }
+
+  /**
+   * Get the {@link CatalogueDocument} we are currently operating on.
+   */
+  private CatalogueDocument getDoc() {
+    return this.holder.getDoc();
+  }
+
+  /**
+   * @return The start time of a query, to be passed to {@link #endQuery(QueryFamily, long)}, or 0
+   *         if the query doesn't need to be timed. (We don't read the clock if metrics and query
+   *         events are turned off.)
+   */
+  private long startQuery() {
+    if (this.metrics != null
+        || (this.queryEventSampling > 0 && FlightRecorderEvents.INSTANCE.isQueryEnabled())) {
+      return System.nanoTime();
+    }
+    return 0;
   }
 }
@@ -1,6 +1,9 @@
 package eu.erasmuswithoutpaper.registryclient;
 
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import eu.erasmuswithoutpaper.registryclient.RegistryClient.UnacceptableStalenessException;
 
@@ -14,9 +17,25 @@ public class ClientImplOptions {
   private CatalogueFetcher catalogueFetcher;
   private long maxAcceptableStaleness;
   private boolean autoRefreshing;
+  private boolean catalogueSharing;
+  private long earlyRefreshTime;
+  private long refreshJitter;
+  private boolean initialRefreshInBackground;
   private Map<String, byte[]> persistentCacheMap;
+  private boolean indexSnapshotCaching;
+  private boolean lazyKeyDecoding;
+  private boolean lazyLoading;
+  private MetricsListener metricsListener;
+  private ScheduledExecutorService refreshExecutor;
+  private Path refreshLockFile;
   private long minTimeBetweenQueries;
+  private int queryEventSampling;
   private long timeBetweenRetries;
+  private double retryBackoffMultiplier;
+  private long maxTimeBetweenRetries;
+  private double retryJitter;
+  private int circuitBreakerThreshold;
+  private long circuitBreakerOpenTime;
 
   /**
    * Create a new set of options, initialized with default values.
@@ -31,9 +50,25 @@ public class ClientImplOptions {
     this.catalogueFetcher = new DefaultCatalogueFetcher();
     this.maxAcceptableStaleness = 5 * 86400000;
     this.autoRefreshing = false;
+    this.catalogueSharing = false;
+    this.earlyRefreshTime = 0;
+    this.refreshJitter = 0;
+    this.initialRefreshInBackground = false;
     this.persistentCacheMap = null;
+    this.indexSnapshotCaching = false;
+    this.lazyKeyDecoding = false;
+    this.lazyLoading = false;
+    this.metricsListener = null;
+    this.refreshExecutor = null;
+    this.refreshLockFile = null;
     this.minTimeBetweenQueries = 60000;
+    this.queryEventSampling = 0;
     this.timeBetweenRetries = 180000;
+    this.retryBackoffMultiplier = 1.0;
+    this.maxTimeBetweenRetries = 3600000;
+    this.retryJitter = 0.0;
+    this.circuitBreakerThreshold = 0;
+    this.circuitBreakerOpenTime = 900000;
   }
 
   /**
@@ -44,6 +79,33 @@ public class ClientImplOptions {
     return this.catalogueFetcher;
   }
 
+  /**
+   * @return The time for which automatic refreshes are suspended once the circuit breaker opens.
+   *         See {@link #setCircuitBreakerOpenTime(long)}.
+   * @since 1.11.0
+   */
+  public long getCircuitBreakerOpenTime() {
+    return this.circuitBreakerOpenTime;
+  }
+
+  /**
+   * @return The number of consecutive failures which opens the circuit breaker. See
+   *         {@link #setCircuitBreakerThreshold(int)}.
+   * @since 1.11.0
+   */
+  public int getCircuitBreakerThreshold() {
+    return this.circuitBreakerThreshold;
+  }
+
+  /**
+   * @return The time by which the auto-refresh is moved ahead of expiry. See
+   *         {@link #setEarlyRefreshTime(long)}.
+   * @since 1.11.0
+   */
+  public long getEarlyRefreshTime() {
+    return this.earlyRefreshTime;
+  }
+
   /**
    * @return The maximum staleness to be tolerated. See {@link #setMaxAcceptableStaleness(long)}.
    */
@@ -51,6 +113,24 @@ public class ClientImplOptions {
     return this.maxAcceptableStaleness;
   }
 
+  /**
+   * @return The upper limit of the time between retries. See
+   *         {@link #setMaxTimeBetweenRetries(long)}.
+   * @since 1.11.0
+   */
+  public long getMaxTimeBetweenRetries() {
+    return this.maxTimeBetweenRetries;
+  }
+
+  /**
+   * @return The {@link MetricsListener} previously set via
+   *         {@link #setMetricsListener(MetricsListener)} (or <b>null</b>).
+   * @since 1.11.0
+   */
+  public MetricsListener getMetricsListener() {
+    return this.metricsListener;
+  }
+
   /**
    * @return The minimum time between Registry queries. See {@link #setMinTimeBetweenQueries(long)}.
    */
@@ -66,6 +146,58 @@ public class ClientImplOptions {
     return this.persistentCacheMap;
   }
 
+  /**
+   * @return The sampling interval of Java Flight Recorder query events. See
+   *         {@link #setQueryEventSampling(int)}.
+   * @since 1.11.0
+   */
+  public int getQueryEventSampling() {
+    return this.queryEventSampling;
+  }
+
+  /**
+   * @return The factor by which the time between retries grows. See
+   *         {@link #setRetryBackoffMultiplier(double)}.
+   * @since 1.11.0
+   */
+  public double getRetryBackoffMultiplier() {
+    return this.retryBackoffMultiplier;
+  }
+
+  /**
+   * @return The maximum random reduction of the time between retries. See
+   *         {@link #setRetryJitter(double)}.
+   * @since 1.11.0
+   */
+  public double getRetryJitter() {
+    return this.retryJitter;
+  }
+
+  /**
+   * @return The lock file used for coordinating refreshes. See {@link #setRefreshLockFile(Path)}.
+   * @since 1.11.0
+   */
+  public Path getRefreshLockFile() {
+    return this.refreshLockFile;
+  }
+
+  /**
+   * @return The maximum random spread of auto-refresh times. See {@link #setRefreshJitter(long)}.
+   * @since 1.11.0
+   */
+  public long getRefreshJitter() {
+    return this.refreshJitter;
+  }
+
+  /**
+   * @return The executor to be used for refreshing. See
+   *         {@link #setRefreshExecutor(ScheduledExecutorService)}.
+   * @since 1.11.0
+   */
+  public ScheduledExecutorService getRefreshExecutor() {
+    return this.refreshExecutor;
+  }
+
   /**
    * Return the minimum staleness of the catalogue, above which {@link ClientImpl} will begin to
    * report warning-level messages in its logs.
@@ -92,6 +224,46 @@ public class ClientImplOptions {
     return this.autoRefreshing;
   }
 
+  /**
+   * @return The value previously set via {@link #setCatalogueSharing(boolean)}.
+   * @since 1.11.0
+   */
+  public boolean isCatalogueSharing() {
+    return this.catalogueSharing;
+  }
+
+  /**
+   * @return The value previously set via {@link #setIndexSnapshotCaching(boolean)}.
+   * @since 1.11.0
+   */
+  public boolean isIndexSnapshotCaching() {
+    return this.indexSnapshotCaching;
+  }
+
+  /**
+   * @return The value previously set via {@link #setInitialRefreshInBackground(boolean)}.
+   * @since 1.11.0
+   */
+  public boolean isInitialRefreshInBackground() {
+    return this.initialRefreshInBackground;
+  }
+
+  /**
+   * @return The value previously set via {@link #setLazyKeyDecoding(boolean)}.
+   * @since 1.11.0
+   */
+  public boolean isLazyKeyDecoding() {
+    return this.lazyKeyDecoding;
+  }
+
+  /**
+   * @return The value previously set via {@link #setLazyLoading(boolean)}.
+   * @since 1.11.0
+   */
+  public boolean isLazyLoading() {
+    return this.lazyLoading;
+  }
+
   /**
    * Set auto-refreshing on or off. Default is off (to avoid accidental "DoS attacks" on
    * misconfiguration), but it is recommended to turn it on.
@@ -132,6 +304,226 @@ public class ClientImplOptions {
     return this;
   }
 
+  /**
+   * Set the time for which automatic refreshes are suspended, once the circuit breaker opens.
+   * Default is 15 minutes.
+   *
+   * <p>
+   * This option is relevant only if the circuit breaker is enabled (see
+   * {@link #setCircuitBreakerThreshold(int)}). Once this time passes, the circuit breaker becomes
+   * half-open, and a single refresh is attempted. If it fails, the circuit breaker opens again (for
+   * the same amount of time).
+   * </p>
+   *
+   * @param milliseconds the time, in milliseconds.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setCircuitBreakerOpenTime(long milliseconds) {
+    if (milliseconds < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.circuitBreakerOpenTime = milliseconds;
+    return this;
+  }
+
+  /**
+   * Enable the circuit breaker for automatic refreshes. Default is 0 (disabled).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. Once the given number of consecutive
+   * refreshes fail (e.g. because the Registry Service is down), the circuit breaker "opens", and
+   * automatic refreshes are suspended for a while (see {@link #setCircuitBreakerOpenTime(long)}).
+   * This way, an outage of the Registry Service won't keep the refreshing thread busy with requests
+   * which are most likely to fail (and time out). Manual calls to {@link ClientImpl#refresh()} are
+   * never suspended (and a successful one closes the circuit breaker). You can check the current
+   * state via {@link ClientImpl#getRefreshCircuitState()}.
+   * </p>
+   *
+   * @param failures the number of consecutive failures which opens the circuit breaker, or 0 to
+   *        disable it.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setCircuitBreakerThreshold(int failures) {
+    if (failures < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.circuitBreakerThreshold = failures;
+    return this;
+  }
+
+  /**
+   * Allow multiple {@link ClientImpl} instances to share a single copy of the catalogue. Default is
+   * off.
+   *
+   * <p>
+   * By default, each {@link ClientImpl} keeps its own copy of the catalogue (and its own background
+   * thread for refreshing it). If your application constructs multiple clients (e.g. one per
+   * module), then the same catalogue will be fetched, parsed and kept in memory multiple times.
+   * Once this option is turned on, all clients which use equal {@link CatalogueFetcher}s (e.g.
+   * {@link DefaultCatalogueFetcher}s pointing to the same Registry Service) will use a single,
+   * process-wide copy of the catalogue, which is fetched and parsed only once per refresh. This
+   * shared copy is released once all of its clients are closed.
+   * </p>
+   *
+   * <p>
+   * Note, that the shared copy is managed according to the options of the <b>first</b> client which
+   * has created it (e.g. its persistent cache and auto-refreshing settings). Options of the
+   * subsequent clients are ignored (and a warning is logged if they differ), with the exception of
+   * {@link #setMaxAcceptableStaleness(long)} (which is always applied per client). Also note, that
+   * calling {@link ClientImpl#refresh()} on any of these clients will refresh the shared copy.
+   * </p>
+   *
+   * @param catalogueSharing <b>true</b> to share the catalogue with other clients, <b>false</b> to
+   *        keep a private copy.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setCatalogueSharing(boolean catalogueSharing) {
+    this.catalogueSharing = catalogueSharing;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to refresh the catalogue some time <b>before</b> it expires. Default is
+   * 0 (refresh when it expires).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. If set, the new copy of the catalogue
+   * will usually be fetched (and parsed) before the current copy expires, so the client never
+   * serves an expired copy. The value should be considerably smaller than the usual lifetime of the
+   * catalogue (as declared by the Registry Service), otherwise the catalogue will be refreshed as
+   * often as {@link #setMinTimeBetweenQueries(long)} allows. See also
+   * {@link #setRefreshJitter(long)}.
+   * </p>
+   *
+   * @param milliseconds the time, in milliseconds.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setEarlyRefreshTime(long milliseconds) {
+    if (milliseconds < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.earlyRefreshTime = milliseconds;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to also keep a snapshot of its catalogue indexes in the persistent
+   * cache. Default is off.
+   *
+   * <p>
+   * This option is relevant only if {@link #setPersistentCacheMap(Map)} is also set. Once it is
+   * turned on, {@link ClientImpl} will store a compact, binary snapshot of all its indexes next to
+   * the raw catalogue (under a separate key). During construction, this snapshot will be loaded
+   * instead of parsing the cached catalogue, which makes the construction much faster. The XML will
+   * be parsed later, and only if it is actually needed (i.e. when API entry elements are
+   * requested).
+   * </p>
+   *
+   * <p>
+   * Snapshots are validated against the ETag of the cached catalogue (and the version of the
+   * snapshot format). Invalid snapshots are ignored (and rebuilt), so it's safe to turn this option
+   * on and off at any time. Note, that this will roughly double the size of your cache.
+   * </p>
+   *
+   * @param indexSnapshotCaching <b>true</b> to turn index snapshots on, <b>false</b> to turn them
+   *        off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setIndexSnapshotCaching(boolean indexSnapshotCaching) {
+    this.indexSnapshotCaching = indexSnapshotCaching;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to never refresh the catalogue during construction. Default is off.
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode (see {@link #setAutoRefreshing(boolean)}).
+   * By default, if there's no fresh copy of the catalogue in the persistent cache, then
+   * {@link ClientImpl} will attempt to fetch it during construction. This might block your
+   * application's startup for quite a long time (e.g. when the Registry Service is unreachable and
+   * the connection times out). Once this option is turned on, the constructor will return
+   * immediately, and the initial refresh will be run in the background thread instead.
+   * </p>
+   *
+   * <p>
+   * Until the catalogue is fetched, the client will use the stale copy from the cache (or an empty
+   * one, if the cache is empty). You can use {@link ClientImpl#awaitReady(long, TimeUnit)} or
+   * {@link ClientImpl#getReadyFuture()} to wait until a usable copy of the catalogue is loaded.
+   * </p>
+   *
+   * @param initialRefreshInBackground <b>true</b> to refresh the catalogue in background,
+   *        <b>false</b> to refresh it during construction.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setInitialRefreshInBackground(boolean initialRefreshInBackground) {
+    this.initialRefreshInBackground = initialRefreshInBackground;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to defer decoding RSA keys until they are actually needed. Default is
+   * off.
+   *
+   * <p>
+   * By default, all RSA public keys found in the catalogue are decoded into
+   * {@link java.security.interfaces.RSAPublicKey} objects whenever a new copy of the catalogue is
+   * loaded. Most applications use only a few of these keys though. Once this option is turned on,
+   * keys will be kept in their compact, encoded form, and each of them will be decoded when it is
+   * first requested (e.g. via
+   * {@link RegistryClient#findRsaPublicKey(String)} or
+   * {@link RegistryClient#getServerKeyCoveringApi(org.w3c.dom.Element)}). The decoded key is then
+   * memoized, so subsequent calls return the same object.
+   * </p>
+   *
+   * <p>
+   * This makes loading the catalogue faster, at the expense of a slightly slower first lookup of
+   * each key.
+   * </p>
+   *
+   * @param lazyKeyDecoding <b>true</b> to turn lazy key decoding on, <b>false</b> to turn it off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setLazyKeyDecoding(boolean lazyKeyDecoding) {
+    this.lazyKeyDecoding = lazyKeyDecoding;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to defer loading the cached catalogue until it is actually needed.
+   * Default is off.
+   *
+   * <p>
+   * This option is relevant only if {@link #setPersistentCacheMap(Map)} is also set. By default,
+   * {@link ClientImpl} loads (and parses) the cached catalogue during construction, which might
+   * noticeably delay the startup of your application. Once this option is turned on, the
+   * constructor will read only a small metadata record from the cache (which allows it to tell if
+   * the cached copy is fresh). The catalogue itself will be loaded either by a background warm-up
+   * task (if auto-refreshing is turned on), or by the first query (whichever comes first). You can
+   * use {@link ClientImpl#getReadyFuture()} to find out when it's done.
+   * </p>
+   *
+   * <p>
+   * If the metadata record is missing (e.g. the cache was written by an older version of this
+   * library), then the catalogue will be loaded during construction, as usual.
+   * </p>
+   *
+   * @param lazyLoading <b>true</b> to turn lazy loading on, <b>false</b> to turn it off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setLazyLoading(boolean lazyLoading) {
+    this.lazyLoading = lazyLoading;
+    return this;
+  }
+
   /**
    * Set a limit on maximum allowed staleness of the used catalogue. Default is 5 days.
    *
@@ -160,6 +552,47 @@ public class ClientImplOptions {
     return this;
   }
 
+  /**
+   * Set an upper limit on the time between retries. Default is 1 hour.
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode, and only if
+   * {@link #setRetryBackoffMultiplier(double)} is greater than 1. The time between retries won't
+   * grow beyond this limit (but the limit is never lower than {@link #getTimeBetweenRetries()}).
+   * </p>
+   *
+   * @param milliseconds time, in milliseconds.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setMaxTimeBetweenRetries(long milliseconds) {
+    if (milliseconds < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.maxTimeBetweenRetries = milliseconds;
+    return this;
+  }
+
+  /**
+   * Set a listener which will receive the metrics of this client (query and refresh timings, bytes
+   * fetched, etc.). Default is <b>null</b> (no metrics are collected).
+   *
+   * <p>
+   * See {@link MetricsListener} for details, and {@link InMemoryMetricsListener} for a ready-made
+   * implementation. If {@link #setCatalogueSharing(boolean)} is on, then refresh-related metrics
+   * are reported only to the listener of the first client using the shared catalogue (query
+   * metrics are always reported to the client's own listener).
+   * </p>
+   *
+   * @param metricsListener the listener to use, or <b>null</b> to turn the metrics off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setMetricsListener(MetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+    return this;
+  }
+
   /**
    * Set a <b>minimum</b> time between subsequent auto-refresh queries. Default is 60 seconds.
    * Usually there is no need to change this default. It is relevant only in unit-tests.
@@ -213,12 +646,175 @@ public class ClientImplOptions {
     return this;
   }
 
+  /**
+   * Emit Java Flight Recorder events for a sample of the queries. Default is 0 (no query events).
+   *
+   * <p>
+   * When run on Java 11 or later, {@link ClientImpl} emits Java Flight Recorder events describing
+   * the lifecycle of the catalogue (fetches, parsing and index building phases, swaps of the
+   * catalogue copy, persistent cache reads and writes). All of these events belong to the "EWP
+   * Registry Client" category, and - as all JFR events - they cost next to nothing unless they are
+   * enabled in a running recording.
+   * </p>
+   *
+   * <p>
+   * Queries are much more frequent, so query events need to be turned on here (and also enabled in
+   * the recording, as they are disabled by default). If set to N, then - on average - every N-th
+   * query will be recorded. On Java 8, this option has no effect.
+   * </p>
+   *
+   * @param interval the sampling interval (1 to record all queries), or 0 to turn query events
+   *        off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setQueryEventSampling(int interval) {
+    if (interval < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.queryEventSampling = interval;
+    return this;
+  }
+
+  /**
+   * Coordinate automatic refreshes with other processes, via the given lock file. Default is
+   * <b>null</b> (no coordination).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode, and only if the persistent cache (see
+   * {@link #setPersistentCacheMap(Map)}) is shared by multiple processes - e.g. multiple JVMs on
+   * the same host, using {@link FilePersistentCacheMap}s pointing at the same directory. All of
+   * these processes should use the same lock file.
+   * </p>
+   *
+   * <p>
+   * Once set, whenever the catalogue needs to be refreshed, {@link ClientImpl} will first check if
+   * some other process has already stored a newer copy in the cache (and load it, if so). If not,
+   * then it will try to acquire an OS-level lock on the given file. Only the process which holds
+   * the lock will query the Registry Service (and store the result in the cache). The other
+   * processes will keep checking the cache (every {@link #getMinTimeBetweenQueries()}), and load
+   * the new copy once it appears there. If the lock holder dies, the lock is released by the OS.
+   * </p>
+   *
+   * <p>
+   * Note, that manual calls to {@link ClientImpl#refresh()} are not coordinated.
+   * </p>
+   *
+   * @param lockFile the path of the lock file (it will be created if it doesn't exist), or
+   *        <b>null</b> to turn coordination off.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setRefreshLockFile(Path lockFile) {
+    this.refreshLockFile = lockFile;
+    return this;
+  }
+
+  /**
+   * Make the time between retries grow exponentially. Default is 1.0 (fixed time between retries).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. The first retry happens after
+   * {@link #getTimeBetweenRetries()}, and each subsequent one waits this many times longer than the
+   * previous one (up to {@link #getMaxTimeBetweenRetries()}). For example, with the multiplier of
+   * 2.0, and the default time between retries, the client will retry after 3, 6, 12, 24, ...
+   * minutes.
+   * </p>
+   *
+   * @param multiplier the multiplier (at least 1.0).
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setRetryBackoffMultiplier(double multiplier) {
+    if (!(multiplier >= 1.0)) {
+      throw new IllegalArgumentException();
+    }
+    this.retryBackoffMultiplier = multiplier;
+    return this;
+  }
+
+  /**
+   * Randomize the time between retries. Default is 0.0 (no randomization).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. Each time between retries (see
+   * {@link #setTimeBetweenRetries(long)}) will be reduced by a random fraction of itself, up to the
+   * given value. For example, with the jitter of 0.5, the client will wait between 50% and 100% of
+   * the computed time. This spreads the load on the Registry Service once it recovers from an
+   * outage.
+   * </p>
+   *
+   * @param jitter the maximum fraction, between 0.0 and 1.0.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setRetryJitter(double jitter) {
+    if (!(jitter >= 0.0 && jitter <= 1.0)) {
+      throw new IllegalArgumentException();
+    }
+    this.retryJitter = jitter;
+    return this;
+  }
+
+  /**
+   * Spread the auto-refresh times randomly. Default is 0 (no spread).
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. By default, all clients refresh their
+   * catalogues at the very same moment (when it expires, see also
+   * {@link #setEarlyRefreshTime(long)}). If you have many clients (e.g. a large cluster of nodes),
+   * this causes all of them to hit the Registry Service (and to parse the new catalogue) at the
+   * same time. If set, each refresh will be moved ahead by a random amount of time, up to the given
+   * limit.
+   * </p>
+   *
+   * @param milliseconds the maximum spread, in milliseconds.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setRefreshJitter(long milliseconds) {
+    if (milliseconds < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.refreshJitter = milliseconds;
+    return this;
+  }
+
+  /**
+   * Tell {@link ClientImpl} to run its auto-refreshing task on the given executor. Default is
+   * <b>null</b>.
+   *
+   * <p>
+   * This option is relevant only in auto-refreshing mode. By default, each {@link ClientImpl}
+   * creates its own single-threaded executor, which is shut down when the client is closed. If you
+   * construct many clients (e.g. in tests, or in multi-tenant deployments), you might want to
+   * supply a single, shared executor instead. (It can be any {@link ScheduledExecutorService}, e.g.
+   * one backed by virtual threads, if your JDK supports them.)
+   * </p>
+   *
+   * <p>
+   * Executors supplied here are <b>not</b> shut down by {@link ClientImpl}. When the client is
+   * closed, it only cancels its own task. You are responsible for shutting the executor down once
+   * all your clients are closed.
+   * </p>
+   *
+   * @param refreshExecutor the executor to use, or <b>null</b> to let {@link ClientImpl} create its
+   *        own.
+   * @return This object.
+   * @since 1.11.0
+   */
+  public ClientImplOptions setRefreshExecutor(ScheduledExecutorService refreshExecutor) {
+    this.refreshExecutor = refreshExecutor;
+    return this;
+  }
+
   /**
    * Set a time between query retries, when no valid response was received. Default is 3 minutes.
    *
    * <p>
    * This option is relevant only in auto-refreshing mode. If the catalogue cannot be retrieved for
-   * some reason, this is the time we will wait before we retry.
+   * some reason, this is the time we will wait before we retry. See also
+   * {@link #setRetryBackoffMultiplier(double)} and {@link #setCircuitBreakerThreshold(int)}.
    * </p>
    *
    * @param milliseconds time, in milliseconds.
@@ -233,6 +829,18 @@ public class ClientImplOptions {
   public String toString() {
     return "ClientImplOptions [catalogueFetcher=" + this.catalogueFetcher
         + ", maxAcceptableStaleness=" + this.maxAcceptableStaleness + ", autoRefreshing="
-        + this.autoRefreshing + ", persistentCacheProvider=" + this.persistentCacheMap + "]";
+        + this.autoRefreshing + ", catalogueSharing=" + this.catalogueSharing
+        + ", earlyRefreshTime=" + this.earlyRefreshTime + ", refreshJitter=" + this.refreshJitter
+        + ", initialRefreshInBackground=" + this.initialRefreshInBackground
+        + ", persistentCacheProvider=" + this.persistentCacheMap + ", queryEventSampling="
+        + this.queryEventSampling
+        + ", indexSnapshotCaching=" + this.indexSnapshotCaching + ", lazyKeyDecoding="
+        + this.lazyKeyDecoding + ", lazyLoading=" + this.lazyLoading + ", metricsListener="
+        + this.metricsListener + ", refreshExecutor=" + this.refreshExecutor
+        + ", refreshLockFile=" + this.refreshLockFile
+        + ", retryBackoffMultiplier=" + this.retryBackoffMultiplier + ", maxTimeBetweenRetries="
+        + this.maxTimeBetweenRetries + ", retryJitter=" + this.retryJitter
+        + ", circuitBreakerThreshold=" + this.circuitBreakerThreshold
+        + ", circuitBreakerOpenTime=" + this.circuitBreakerOpenTime + "]";
   }
 }
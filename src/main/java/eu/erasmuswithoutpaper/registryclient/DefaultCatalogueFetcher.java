@@ -5,8 +5,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.Date;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,13 +41,14 @@ public class DefaultCatalogueFetcher implements CatalogueFetcher {
   }
 
   private final String registryDomain;
+  private final SSLSocketFactory sslSocketFactory;
 
   /**
    * Initialize with the default (official) Registry Service (
    * <code>registry.erasmuswithoutpaper.eu</code>).
    */
   public DefaultCatalogueFetcher() {
-    this.registryDomain = "registry.erasmuswithoutpaper.eu";
+    this("registry.erasmuswithoutpaper.eu");
   }
 
   /**
@@ -60,7 +64,48 @@ public class DefaultCatalogueFetcher implements CatalogueFetcher {
    * @since 1.1.0
    */
   public DefaultCatalogueFetcher(String customRegistryDomain) {
+    this(customRegistryDomain, null);
+  }
+
+  /**
+   * Same as {@link #DefaultCatalogueFetcher(String)}, but allows you to also customize the TLS
+   * connections.
+   *
+   * <p>
+   * This is useful mostly for testing, e.g. when the alternate installation uses a self-signed
+   * certificate (which needs to be explicitly trusted by the given socket factory).
+   * </p>
+   *
+   * @param customRegistryDomain domain name at which an alternate Registry Service installation has
+   *        been set up (it may also include a port number, e.g. <code>localhost:8443</code>).
+   * @param sslSocketFactory the socket factory to use for HTTPS connections, or <code>null</code>
+   *        to use the default one.
+   * @since 1.11.0
+   */
+  public DefaultCatalogueFetcher(String customRegistryDomain, SSLSocketFactory sslSocketFactory) {
     this.registryDomain = customRegistryDomain;
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  /**
+   * Two {@link DefaultCatalogueFetcher}s are equal if they fetch the catalogue from the same
+   * Registry Service installation (and use the same {@link SSLSocketFactory}). (This allows
+   * {@link ClientImpl}s to share their catalogue, see
+   * {@link ClientImplOptions#setCatalogueSharing(boolean)}.)
+   *
+   * @since 1.11.0
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || this.getClass() != obj.getClass()) {
+      return false;
+    }
+    DefaultCatalogueFetcher other = (DefaultCatalogueFetcher) obj;
+    return this.registryDomain.equals(other.registryDomain)
+        && Objects.equals(this.sslSocketFactory, other.sslSocketFactory);
   }
 
   @Override
@@ -69,9 +114,13 @@ public class DefaultCatalogueFetcher implements CatalogueFetcher {
 
     logger.debug("Opening HTTPS connection to {}", url);
     HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+    if (this.sslSocketFactory != null) {
+      conn.setSSLSocketFactory(this.sslSocketFactory);
+    }
     conn.setRequestMethod("GET");
     conn.setAllowUserInteraction(false);
     conn.setRequestProperty("If-None-Match", previousETag);
+    conn.setRequestProperty("Accept-Encoding", "gzip");
     conn.setConnectTimeout(10 * 1000); // 10 sec, establish a connection
     conn.setReadTimeout(60 * 1000); // 60 sec, read whole
     conn.connect();
@@ -94,6 +143,9 @@ public class DefaultCatalogueFetcher implements CatalogueFetcher {
       case 200:
         String newETag = conn.getHeaderField("ETag");
         InputStream is = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+          is = new GZIPInputStream(is);
+        }
         byte[] content = readEntireStream(is);
         is.close();
         logger.debug("Read {} bytes with ETag {}", content.length, newETag);
@@ -104,4 +156,14 @@ public class DefaultCatalogueFetcher implements CatalogueFetcher {
         throw new IOException("Unexpected Registry API response status: " + status);
     }
   }
+
+  @Override
+  public int hashCode() {
+    return this.registryDomain.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "DefaultCatalogueFetcher[" + this.registryDomain + "]";
+  }
 }
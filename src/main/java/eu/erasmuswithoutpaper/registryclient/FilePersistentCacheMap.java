@@ -0,0 +1,386 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file-backed {@link Map}, designed to be used as {@link ClientImpl}'s persistent cache (see
+ * {@link ClientImplOptions#setPersistentCacheMap(Map)}).
+ *
+ * <p>
+ * Each entry is kept in a separate file in the given directory:
+ * </p>
+ *
+ * <ul>
+ * <li>Writes are <b>atomic</b>. The value is first written to a temporary file, which is then
+ * renamed to its destination. Readers (including other processes sharing the same directory) will
+ * always see either the previous, or the new value - never a partially written one.</li>
+ * <li>Reads are <b>memory-mapped</b>. {@link ClientImpl} uses {@link #getBuffer(String)} to read
+ * the values directly from the mapped file, without copying them into fresh arrays. Regular
+ * {@link #get(Object)} calls are also supported (but they need to copy the data).</li>
+ * </ul>
+ *
+ * <p>
+ * Keys are mapped to file names. Characters other than ASCII letters, digits, dots, dashes and
+ * underscores are escaped, so any string is a valid key. It is safe to use this map from multiple
+ * threads (and processes), but note that the {@link Map#put(Object, Object)} and
+ * {@link Map#remove(Object)} methods always return <b>null</b> (previous values are not read
+ * back).
+ * </p>
+ *
+ * <p>
+ * I/O errors (e.g. a full disk) are thrown as {@link UncheckedIOException}s. {@link ClientImpl}
+ * treats them as cache misses (for reads), and ignores them (for writes), so a failing cache never
+ * breaks a refresh.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public class FilePersistentCacheMap extends AbstractMap<String, byte[]> {
+
+  private static final Logger logger = LoggerFactory.getLogger(FilePersistentCacheMap.class);
+
+  private static final String SUFFIX = ".cache";
+  private static final String TEMP_PREFIX = "write-";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Temporary files older than this are assumed to be left behind by a crashed process (and are
+   * removed when a new map is created). Younger ones might still be written to by other processes.
+   */
+  private static final long STALE_TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+  private static final char[] hexCode = "0123456789abcdef".toCharArray();
+
+  private static String decodeKey(String fileName) {
+    String encoded = fileName.substring(0, fileName.length() - SUFFIX.length());
+    StringBuilder sb = new StringBuilder();
+    int pos = 0;
+    while (pos < encoded.length()) {
+      char ch = encoded.charAt(pos);
+      if (ch == '%') {
+        // Escaped UTF-8 bytes. Collect all consecutive ones.
+        List<Byte> bytes = new ArrayList<>();
+        while (pos < encoded.length() && encoded.charAt(pos) == '%') {
+          bytes.add((byte) Integer.parseInt(encoded.substring(pos + 1, pos + 3), 16));
+          pos += 3;
+        }
+        byte[] data = new byte[bytes.size()];
+        for (int j = 0; j < data.length; j++) {
+          data[j] = bytes.get(j);
+        }
+        sb.append(new String(data, StandardCharsets.UTF_8));
+      } else {
+        sb.append(ch);
+        pos++;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String encodeKey(String key) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      char ch = (char) (b & 0xFF);
+      if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+          || ch == '-' || ch == '_' || (ch == '.' && sb.length() > 0)) {
+        sb.append(ch);
+      } else {
+        sb.append('%');
+        sb.append(hexCode[(b >> 4) & 0xF]);
+        sb.append(hexCode[b & 0xF]);
+      }
+    }
+    return sb.append(SUFFIX).toString();
+  }
+
+  private final Path directory;
+
+  /**
+   * Create a new map, backed by the files in the given directory.
+   *
+   * <p>
+   * Temporary files left behind by crashed processes (older than an hour) are removed.
+   * </p>
+   *
+   * @param directory The directory in which the entries will be stored. It will be created if it
+   *        doesn't exist yet. You should not store any other files in it.
+   * @throws IOException if the directory could not be created.
+   */
+  public FilePersistentCacheMap(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+    this.removeStaleTempFiles();
+  }
+
+  @Override
+  public void clear() {
+    for (String key : this.keySet()) {
+      this.remove(key);
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (!(key instanceof String)) {
+      return false;
+    }
+    return Files.isRegularFile(this.getPath((String) key));
+  }
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    return new AbstractSet<Map.Entry<String, byte[]>>() {
+
+      @Override
+      public Iterator<Map.Entry<String, byte[]>> iterator() {
+        final Iterator<String> keys = FilePersistentCacheMap.this.listKeys().iterator();
+        return new Iterator<Map.Entry<String, byte[]>>() {
+
+          private String lastKey;
+
+          @Override
+          public boolean hasNext() {
+            return keys.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, byte[]> next() {
+            this.lastKey = keys.next();
+            return new Entry(this.lastKey);
+          }
+
+          @Override
+          public void remove() {
+            if (this.lastKey == null) {
+              throw new IllegalStateException();
+            }
+            FilePersistentCacheMap.this.remove(this.lastKey);
+            this.lastKey = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return FilePersistentCacheMap.this.listKeys().size();
+      }
+    };
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  public byte[] get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    ByteBuffer buffer = this.getBuffer((String) key);
+    if (buffer == null) {
+      return null;
+    }
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  /**
+   * Get the value of the entry, without copying it.
+   *
+   * <p>
+   * The returned buffer is read-only, and it is usually mapped directly to the file. It will remain
+   * valid even if the entry is replaced (or removed) afterwards.
+   * </p>
+   *
+   * @param key The key of the entry.
+   * @return Either a read-only {@link ByteBuffer} or <b>null</b>, if there's no such entry.
+   * @throws UncheckedIOException if the entry exists, but could not be read.
+   */
+  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE")
+  public ByteBuffer getBuffer(String key) {
+    Path path = this.getPath(key);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size == 0) {
+        // Empty files cannot be mapped on all platforms.
+        return ByteBuffer.allocate(0).asReadOnlyBuffer();
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return The directory in which the entries are stored.
+   */
+  public Path getDirectory() {
+    return this.directory;
+  }
+
+  @Override
+  @SuppressFBWarnings({ "PZLA_PREFER_ZERO_LENGTH_ARRAYS",
+      "RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE", "RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE" })
+  public byte[] put(String key, byte[] value) {
+    Path target = this.getPath(key);
+    Path temp = null;
+    try {
+      temp = Files.createTempFile(this.directory, TEMP_PREFIX, TEMP_SUFFIX);
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+          OutputStream out = Channels.newOutputStream(channel)) {
+        out.write(value);
+        out.flush();
+        channel.force(false);
+      }
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        logger.debug("Atomic moves are not supported in {}", this.directory);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          logger.debug("Could not remove the temporary file {}", temp);
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  public byte[] remove(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    try {
+      Files.deleteIfExists(this.getPath((String) key));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "FilePersistentCacheMap[" + this.directory + "]";
+  }
+
+  private Path getPath(String key) {
+    return this.directory.resolve(encodeKey(key));
+  }
+
+  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE")
+  private List<String> listKeys() {
+    List<String> result = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+      for (Path path : stream) {
+        result.add(decodeKey(path.getFileName().toString()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return result;
+  }
+
+  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE")
+  private void removeStaleTempFiles() {
+    long threshold = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(this.directory, TEMP_PREFIX + "*" + TEMP_SUFFIX)) {
+      for (Path path : stream) {
+        try {
+          FileTime modified = Files.getLastModifiedTime(path);
+          if (modified.toMillis() < threshold) {
+            logger.debug("Removing a stale temporary file {}", path);
+            Files.deleteIfExists(path);
+          }
+        } catch (IOException e) {
+          logger.debug("Could not remove the temporary file {}", path);
+        }
+      }
+    } catch (IOException e) {
+      logger.debug("Could not list the temporary files in {}", this.directory);
+    }
+  }
+
+  /**
+   * A live entry of the map. Its value is read on demand, and {@link #setValue(byte[])} writes
+   * through to the file. Values are compared by their contents (the arrays are read anew on each
+   * call, so comparing them by identity would break {@link Map#equals(Object)} and
+   * {@link Map#hashCode()}).
+   */
+  private class Entry implements Map.Entry<String, byte[]> {
+
+    private final String key;
+
+    private Entry(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+      Object otherValue = other.getValue();
+      return this.key.equals(other.getKey()) && (otherValue == null || otherValue instanceof byte[])
+          && Arrays.equals(this.getValue(), (byte[]) otherValue);
+    }
+
+    @Override
+    public String getKey() {
+      return this.key;
+    }
+
+    @Override
+    public byte[] getValue() {
+      return FilePersistentCacheMap.this.get(this.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.key.hashCode() ^ Arrays.hashCode(this.getValue());
+    }
+
+    @Override
+    public byte[] setValue(byte[] value) {
+      return FilePersistentCacheMap.this.put(this.key, value);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueBuildReport.Phase;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.QueryFamily;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events describing the lifecycle of the catalogue (fetches, index
+ * building phases, swaps of the catalogue copy in use, persistent cache reads and writes) and -
+ * optionally - the queries.
+ *
+ * <p>
+ * The library needs to run on Java 8, so it cannot use the <code>jdk.jfr</code> API directly. This
+ * base class does nothing. The actual events are implemented by a subclass, which is compiled
+ * separately (from <code>src/main/java11</code>, only when the library is built with JDK 11 or
+ * later) and loaded reflectively. If it cannot be loaded (e.g. we are running on Java 8), then
+ * this no-op implementation is used instead.
+ * </p>
+ *
+ * <p>
+ * Each event is split into a <code>begin*</code> and <code>end*</code> call. The object returned by
+ * <code>begin*</code> needs to be passed to the matching <code>end*</code> call. It is <b>null</b>
+ * if the event is not enabled in any of the running recordings (so that disabled events cost next
+ * to nothing).
+ * </p>
+ */
+class FlightRecorderEvents {
+
+  /**
+   * The name of the JDK 11+ implementation class.
+   */
+  private static final String JFR_IMPLEMENTATION =
+      "eu.erasmuswithoutpaper.registryclient.JfrFlightRecorderEvents";
+
+  private static final Logger logger = LoggerFactory.getLogger(FlightRecorderEvents.class);
+
+  /**
+   * The implementation to be used (either the JFR one, or a no-op one).
+   */
+  static final FlightRecorderEvents INSTANCE = load();
+
+  private static FlightRecorderEvents load() {
+    try {
+      Class<?> cls = Class.forName(JFR_IMPLEMENTATION);
+      FlightRecorderEvents result =
+          (FlightRecorderEvents) cls.getDeclaredConstructor().newInstance();
+      logger.debug("Java Flight Recorder events are available");
+      return result;
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      logger.debug("Java Flight Recorder events are not available: {}", e.toString());
+      return new FlightRecorderEvents();
+    }
+  }
+
+  /**
+   * @return The beginning of a single phase of building a new {@link CatalogueDocument}.
+   */
+  Object beginBuildPhase() {
+    return null;
+  }
+
+  /**
+   * @return The beginning of a persistent cache read or write.
+   */
+  Object beginCacheAccess() {
+    return null;
+  }
+
+  /**
+   * @return The beginning of a {@link CatalogueFetcher#fetchCatalogue(String)} call.
+   */
+  Object beginFetch() {
+    return null;
+  }
+
+  /**
+   * @return The beginning of a swap of the {@link CatalogueDocument} in use.
+   */
+  Object beginSwap() {
+    return null;
+  }
+
+  /**
+   * @param event The object returned by {@link #beginBuildPhase()}.
+   * @param phase The phase which has just ended.
+   */
+  void endBuildPhase(Object event, Phase phase) {
+  }
+
+  /**
+   * @param event The object returned by {@link #beginCacheAccess()}.
+   * @param key The cache key.
+   * @param write <b>true</b> for writes, <b>false</b> for reads.
+   * @param bytes The size of the value read or written (0 if it was not found).
+   */
+  void endCacheAccess(Object event, String key, boolean write, long bytes) {
+  }
+
+  /**
+   * @param event The object returned by {@link #beginFetch()}.
+   * @param status The HTTP status of the response (200 or 304), or 0 if the fetch has failed.
+   * @param bytes The size of the fetched catalogue (0 for HTTP 304 responses).
+   */
+  void endFetch(Object event, int status, long bytes) {
+  }
+
+  /**
+   * @param event The object returned by {@link #beginSwap()}.
+   * @param previousETag The ETag of the replaced copy (or <b>null</b>, if there was none).
+   * @param newETag The ETag of the new copy.
+   */
+  void endSwap(Object event, String previousETag, String newETag) {
+  }
+
+  /**
+   * Check if query events are enabled in any of the running recordings. (Unlike other events, query
+   * events are timed by the caller. They are also sampled - see
+   * {@link ClientImplOptions#setQueryEventSampling(int)}.)
+   *
+   * @return <b>true</b> if {@link #queryCompleted(QueryFamily, long)} should be called.
+   */
+  boolean isQueryEnabled() {
+    return false;
+  }
+
+  /**
+   * @param family The family of the query.
+   * @param duration The time it took to run the query (in nanoseconds).
+   */
+  void queryCompleted(QueryFamily family, long duration) {
+  }
+}
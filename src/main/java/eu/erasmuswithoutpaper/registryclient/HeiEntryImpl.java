@@ -20,6 +20,11 @@ class HeiEntryImpl implements HeiEntry {
     private final Map<String, String> allNames;
     private final Map<String, List<String>> otherIds;
 
+    private Extras(Map<String, String> allNames, Map<String, List<String>> otherIds) {
+      this.allNames = allNames;
+      this.otherIds = otherIds;
+    }
+
     private Extras(HeiEntryImpl hei) {
       this.allNames = new HashMap<>();
       this.otherIds = new HashMap<>();
@@ -61,11 +66,37 @@ class HeiEntryImpl implements HeiEntry {
 
   private volatile Extras extras = null;
 
+  /**
+   * The DOM-independent equivalent of this entry, created when it is first requested (see
+   * {@link #detach()}). Null for entries which are already detached.
+   */
+  private volatile HeiEntryImpl detached = null;
+
   HeiEntryImpl(String id, Element heiElem) {
     this.id = id;
     this.elem = heiElem;
   }
 
+  /**
+   * Create an entry which doesn't need the DOM at all (used when the entry is restored from an
+   * {@link IndexSnapshot}).
+   *
+   * @param id SCHAC ID of the HEI.
+   * @param allNames "xml:lang -> name" map.
+   * @param otherIds "other-id type -> values" map.
+   */
+  HeiEntryImpl(String id, Map<String, String> allNames, Map<String, List<String>> otherIds) {
+    this.id = id;
+    this.elem = null;
+    this.extras = new Extras(allNames, otherIds);
+  }
+
+  private HeiEntryImpl(String id, Extras extras) {
+    this.id = id;
+    this.elem = null;
+    this.extras = extras;
+  }
+
   @Override
   public String getId() {
     return this.id;
@@ -127,6 +158,71 @@ class HeiEntryImpl implements HeiEntry {
     return Collections.unmodifiableCollection(values);
   }
 
+  /**
+   * Get an equivalent entry which doesn't reference the DOM (so it can be reused by other versions
+   * of the catalogue, without keeping this version's DOM in memory).
+   *
+   * <p>
+   * If this entry's data hasn't been extracted from the DOM yet, then it is extracted now. The
+   * detached entry is created only once, so all subsequent versions of the catalogue share the
+   * same instance.
+   * </p>
+   *
+   * @return Either this entry (if it is already detached), or a detached entry sharing this
+   *         entry's data.
+   */
+  HeiEntryImpl detach() {
+    if (this.elem == null) {
+      return this;
+    }
+    if (this.detached == null) {
+      synchronized (this) {
+        if (this.detached == null) {
+          this.detached = new HeiEntryImpl(this.id, this.getExtras());
+        }
+      }
+    }
+    return this.detached;
+  }
+
+  /**
+   * Estimate the retained size of this entry (see {@link SizeEstimator}), excluding the DOM. The
+   * data which hasn't been extracted from the DOM yet is not counted (and it is not extracted by
+   * this method).
+   *
+   * @return The estimated size, in bytes.
+   */
+  long estimateSize() {
+    long result = 24 + SizeEstimator.string(this.id);
+    Extras current = this.extras;
+    if (current != null) {
+      result += 16 + SizeEstimator.hashMap(current.allNames.size())
+          + SizeEstimator.strings(current.allNames.keySet())
+          + SizeEstimator.strings(current.allNames.values())
+          + SizeEstimator.hashMap(current.otherIds.size());
+      for (Map.Entry<String, List<String>> entry : current.otherIds.entrySet()) {
+        result += SizeEstimator.string(entry.getKey())
+            + SizeEstimator.arrayList(entry.getValue().size())
+            + SizeEstimator.strings(entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return "xml:lang -> name" map of this HEI (for internal use only, do not modify).
+   */
+  Map<String, String> getAllNames() {
+    return this.getExtras().allNames;
+  }
+
+  /**
+   * @return "other-id type -> values" map of this HEI (for internal use only, do not modify).
+   */
+  Map<String, List<String>> getAllOtherIds() {
+    return this.getExtras().otherIds;
+  }
+
   private Extras getExtras() {
     if (this.extras == null) {
       synchronized (this) {
@@ -0,0 +1,242 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import eu.erasmuswithoutpaper.registryclient.ClientImpl.RefreshCircuitState;
+
+/**
+ * A simple {@link MetricsListener}, which keeps all the metrics in memory.
+ *
+ * <p>
+ * Each timed event is aggregated by a {@link Timer} (count, total and maximum duration). Retry
+ * delays are aggregated by a {@link Timer} too, and circuit breaker state changes are counted. All
+ * methods are thread-safe and lock-free, so a single instance can be shared by many clients.
+ * </p>
+ *
+ * <pre style="margin: 1em 2em">
+ * InMemoryMetricsListener metrics = new InMemoryMetricsListener();
+ * ClientImplOptions options = new ClientImplOptions();
+ * options.setMetricsListener(metrics);
+ * ...
+ * metrics.getQueryTimer(QueryFamily.CLIENT_KEY).getMean(TimeUnit.MICROSECONDS);
+ * </pre>
+ *
+ * @since 1.11.0
+ */
+public class InMemoryMetricsListener implements MetricsListener {
+
+  /**
+   * Aggregated durations of a single kind of event.
+   *
+   * @since 1.11.0
+   */
+  public static final class Timer {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    private Timer() {}
+
+    /**
+     * @return The number of recorded events.
+     */
+    public long getCount() {
+      return this.count.sum();
+    }
+
+    /**
+     * @param unit The unit in which to return the result.
+     * @return The duration of the longest recorded event.
+     */
+    public long getMax(TimeUnit unit) {
+      return unit.convert(this.max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit The unit in which to return the result.
+     * @return The mean duration of the recorded events (or 0, if none were recorded).
+     */
+    public double getMean(TimeUnit unit) {
+      long events = this.count.sum();
+      if (events == 0) {
+        return 0;
+      }
+      return (double) this.total.sum() / events / unit.toNanos(1);
+    }
+
+    /**
+     * @param unit The unit in which to return the result.
+     * @return The total duration of all the recorded events.
+     */
+    public long getTotal(TimeUnit unit) {
+      return unit.convert(this.total.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return "Timer[count=" + this.getCount() + ", mean=" + this.getMean(TimeUnit.MICROSECONDS)
+          + "us, max=" + this.getMax(TimeUnit.MICROSECONDS) + "us]";
+    }
+
+    private void record(long duration) {
+      this.count.increment();
+      this.total.add(duration);
+      this.max.accumulate(duration);
+    }
+  }
+
+  private static <K extends Enum<K>> Map<K, LongAdder> newCounters(Class<K> keyType) {
+    Map<K, LongAdder> result = new EnumMap<>(keyType);
+    for (K key : keyType.getEnumConstants()) {
+      result.put(key, new LongAdder());
+    }
+    return result;
+  }
+
+  private static <K extends Enum<K>> Map<K, Timer> newTimers(Class<K> keyType) {
+    Map<K, Timer> result = new EnumMap<>(keyType);
+    for (K key : keyType.getEnumConstants()) {
+      result.put(key, new Timer());
+    }
+    return result;
+  }
+
+  private final Map<QueryFamily, Timer> queryTimers = newTimers(QueryFamily.class);
+  private final Map<RefreshOutcome, Timer> refreshTimers = newTimers(RefreshOutcome.class);
+  private final Map<CatalogueSource, Timer> parseTimers = newTimers(CatalogueSource.class);
+  private final Map<RefreshCircuitState, LongAdder> circuitStateChanges =
+      newCounters(RefreshCircuitState.class);
+  private final Timer fetch200Timer = new Timer();
+  private final Timer fetch304Timer = new Timer();
+  private final Timer retryDelayTimer = new Timer();
+  private final LongAdder bytesFetched = new LongAdder();
+  private volatile long staleness;
+  private volatile RefreshCircuitState circuitState = RefreshCircuitState.CLOSED;
+
+  @Override
+  public void catalogueFetched(int status, long bytes, long duration) {
+    (status == 304 ? this.fetch304Timer : this.fetch200Timer).record(duration);
+    this.bytesFetched.add(bytes);
+  }
+
+  @Override
+  public void catalogueParsed(CatalogueSource source, long bytes, long duration) {
+    this.parseTimers.get(source).record(duration);
+  }
+
+  @Override
+  public void circuitStateChanged(RefreshCircuitState state) {
+    this.circuitStateChanges.get(state).increment();
+    this.circuitState = state;
+  }
+
+  /**
+   * @return The total size of all the catalogues fetched from the Registry Service.
+   */
+  public long getBytesFetched() {
+    return this.bytesFetched.sum();
+  }
+
+  /**
+   * @return The most recently reported state of the refresh circuit breaker. See
+   *         {@link MetricsListener#circuitStateChanged(RefreshCircuitState)}.
+   */
+  public RefreshCircuitState getCircuitState() {
+    return this.circuitState;
+  }
+
+  /**
+   * @param state The state of the refresh circuit breaker.
+   * @return The number of times the circuit breaker has changed to the given state.
+   */
+  public long getCircuitStateChangeCount(RefreshCircuitState state) {
+    return this.circuitStateChanges.get(state).sum();
+  }
+
+  /**
+   * @param status Either 200 or 304.
+   * @return The timer of the fetches which resulted in the given HTTP status.
+   */
+  public Timer getFetchTimer(int status) {
+    switch (status) {
+      case 200:
+        return this.fetch200Timer;
+      case 304:
+        return this.fetch304Timer;
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+
+  /**
+   * @param source The source of the catalogue.
+   * @return The timer of parsing the catalogues loaded from the given source.
+   */
+  public Timer getParseTimer(CatalogueSource source) {
+    return this.parseTimers.get(source);
+  }
+
+  /**
+   * @param family The family of queries.
+   * @return The timer of the queries of the given family.
+   */
+  public Timer getQueryTimer(QueryFamily family) {
+    return this.queryTimers.get(family);
+  }
+
+  /**
+   * @param outcome The outcome of the refreshes.
+   * @return The timer of the refreshes which had the given outcome.
+   */
+  public Timer getRefreshTimer(RefreshOutcome outcome) {
+    return this.refreshTimers.get(outcome);
+  }
+
+  /**
+   * @return The timer of the delays after which failed automatic refreshes have been retried. Its
+   *         durations are the delays (not the time it took to compute them). See
+   *         {@link MetricsListener#refreshRetryScheduled(long)}.
+   */
+  public Timer getRetryDelayTimer() {
+    return this.retryDelayTimer;
+  }
+
+  /**
+   * @return The staleness (in milliseconds) reported after the most recent refresh. See
+   *         {@link MetricsListener#refreshCompleted(RefreshOutcome, long, long)}.
+   */
+  public long getStaleness() {
+    return this.staleness;
+  }
+
+  @Override
+  public void queryCompleted(QueryFamily family, long duration) {
+    this.queryTimers.get(family).record(duration);
+  }
+
+  @Override
+  public void refreshCompleted(RefreshOutcome outcome, long duration, long staleness) {
+    this.refreshTimers.get(outcome).record(duration);
+    this.staleness = staleness;
+  }
+
+  @Override
+  public void refreshRetryScheduled(long delay) {
+    this.retryDelayTimer.record(TimeUnit.MILLISECONDS.toNanos(delay));
+  }
+
+  @Override
+  public String toString() {
+    return "InMemoryMetricsListener[queries=" + this.queryTimers + ", refreshes="
+        + this.refreshTimers + ", parses=" + this.parseTimers + ", fetches200="
+        + this.fetch200Timer + ", fetches304=" + this.fetch304Timer + ", bytesFetched="
+        + this.getBytesFetched() + ", staleness=" + this.staleness + ", circuitState="
+        + this.circuitState + ", circuitStateChanges=" + this.circuitStateChanges
+        + ", retryDelays=" + this.retryDelayTimer + "]";
+  }
+}
@@ -0,0 +1,389 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueDocument.ApiEntryRecord;
+import eu.erasmuswithoutpaper.registryclient.CatalogueFetcher.Http200RegistryResponse.CouldNotDeserialize;
+
+/**
+ * A compact, serializable copy of all the indexes of a {@link CatalogueDocument}.
+ *
+ * <p>
+ * {@link ClientImpl} stores these snapshots in its persistent cache, next to the raw catalogue
+ * response (see {@link ClientImplOptions#setIndexSnapshotCaching(boolean)}). This allows it to
+ * recreate the {@link CatalogueDocument} without parsing the XML during construction. Each snapshot
+ * is bound to a particular version of the catalogue (by its ETag and content length), and to the
+ * particular version of the snapshot format.
+ * </p>
+ *
+ * <p>
+ * All strings are stored only once (in a string table), and are referred to by their indexes. This
+ * keeps the snapshot small, and allows the restored indexes to share their string instances.
+ * </p>
+ */
+class IndexSnapshot {
+
+  /**
+   * Magic number at the beginning of each serialized snapshot ("EWPI").
+   */
+  private static final int MAGIC = 0x45575049;
+
+  /**
+   * Version of the binary format. Snapshots in other versions are rejected (and rebuilt).
+   */
+  static final int FORMAT_VERSION = 1;
+
+  /**
+   * Helper class for assigning indexes to strings while writing.
+   */
+  private static class StringTable {
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    private int indexOf(String value) {
+      if (value == null) {
+        return -1;
+      }
+      Integer index = this.indexes.get(value);
+      if (index == null) {
+        index = this.strings.size();
+        this.indexes.put(value, index);
+        this.strings.add(value);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Deserialize a snapshot from a raw byte array, as previously created by {@link #serialize()}.
+   *
+   * @param raw serialized snapshot.
+   * @return the snapshot.
+   * @throws CouldNotDeserialize if the data is corrupted, or has been written in a different
+   *         version of the format.
+   */
+  static IndexSnapshot deserialize(byte[] raw) throws CouldNotDeserialize {
+    return deserialize(ByteBuffer.wrap(raw));
+  }
+
+  /**
+   * Same as {@link #deserialize(byte[])}, but reads the data directly from a buffer (e.g. a
+   * memory-mapped file, see {@link FilePersistentCacheMap#getBuffer(String)}).
+   */
+  static IndexSnapshot deserialize(ByteBuffer raw) throws CouldNotDeserialize {
+    try {
+      DataInputStream in = new DataInputStream(new Utils.ByteBufferInputStream(raw.duplicate()));
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new CouldNotDeserialize();
+      }
+      final String[] strings = new String[readCount(in)];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] data = new byte[readCount(in)];
+        in.readFully(data);
+        strings[i] = new String(data, StandardCharsets.UTF_8);
+      }
+      final String etag = readString(in, strings);
+      final int contentLength = in.readInt();
+
+      int hostCount = readCount(in);
+      List<Set<String>> hostHeis = new ArrayList<>(hostCount);
+      List<Set<String>> hostServerKeys = new ArrayList<>(hostCount);
+      for (int i = 0; i < hostCount; i++) {
+        hostHeis.add(readStringSet(in, strings));
+        hostServerKeys.add(readStringSet(in, strings));
+      }
+      final Map<String, Set<String>> certHeis = readStringSetMap(in, strings);
+      final Map<String, Set<String>> cliKeyHeis = readStringSetMap(in, strings);
+
+      int typeCount = readCount(in);
+      Map<String, Map<String, String>> heiIdMaps = new HashMap<>();
+      for (int i = 0; i < typeCount; i++) {
+        String type = readString(in, strings);
+        int valueCount = readCount(in);
+        Map<String, String> mapForType = new HashMap<>();
+        for (int j = 0; j < valueCount; j++) {
+          mapForType.put(readString(in, strings), readString(in, strings));
+        }
+        heiIdMaps.put(type, mapForType);
+      }
+
+      int heiCount = readCount(in);
+      List<HeiEntryImpl> heiEntries = new ArrayList<>(heiCount);
+      for (int i = 0; i < heiCount; i++) {
+        String id = readString(in, strings);
+        int nameCount = readCount(in);
+        Map<String, String> names = new HashMap<>();
+        for (int j = 0; j < nameCount; j++) {
+          names.put(readString(in, strings), readString(in, strings));
+        }
+        int otherIdTypeCount = readCount(in);
+        Map<String, List<String>> otherIds = new HashMap<>();
+        for (int j = 0; j < otherIdTypeCount; j++) {
+          String type = readString(in, strings);
+          int valueCount = readCount(in);
+          List<String> values = new ArrayList<>(valueCount);
+          for (int k = 0; k < valueCount; k++) {
+            values.add(readString(in, strings));
+          }
+          otherIds.put(type, values);
+        }
+        heiEntries.add(new HeiEntryImpl(id, names, otherIds));
+      }
+
+      int apiCount = readCount(in);
+      List<ApiEntryRecord> apiEntries = new ArrayList<>(apiCount);
+      for (int i = 0; i < apiCount; i++) {
+        String namespaceUri = readString(in, strings);
+        String localName = readString(in, strings);
+        String version = readString(in, strings);
+        int host = in.readInt();
+        apiEntries.add(new ApiEntryRecord(namespaceUri, localName, version, host, i));
+      }
+
+      int keyCount = readCount(in);
+      Map<String, byte[]> encodedKeys = new HashMap<>();
+      for (int i = 0; i < keyCount; i++) {
+        String fingerprint = readString(in, strings);
+        byte[] data = new byte[readCount(in)];
+        in.readFully(data);
+        encodedKeys.put(fingerprint, data);
+      }
+
+      if (in.read() != -1) {
+        throw new CouldNotDeserialize();
+      }
+      return new IndexSnapshot(etag, contentLength, certHeis, cliKeyHeis, hostHeis,
+          hostServerKeys, heiIdMaps, heiEntries, apiEntries, encodedKeys);
+    } catch (IOException | RuntimeException e) {
+      // Truncated data, invalid string indexes, negative sizes etc.
+      throw new CouldNotDeserialize();
+    }
+  }
+
+  /**
+   * Read the size of a collection (or an array), and make sure that it's sane. (Each element takes
+   * at least one byte, so no valid size can exceed the number of bytes left.)
+   */
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0 || count > in.available()) {
+      throw new IOException("Invalid size: " + count);
+    }
+    return count;
+  }
+
+  private static String readString(DataInputStream in, String[] strings) throws IOException {
+    int index = in.readInt();
+    if (index == -1) {
+      return null;
+    }
+    return strings[index];
+  }
+
+  private static Set<String> readStringSet(DataInputStream in, String[] strings)
+      throws IOException {
+    int size = readCount(in);
+    Set<String> result = new HashSet<>();
+    for (int i = 0; i < size; i++) {
+      result.add(readString(in, strings));
+    }
+    return result;
+  }
+
+  private static Map<String, Set<String>> readStringSetMap(DataInputStream in, String[] strings)
+      throws IOException {
+    int size = readCount(in);
+    Map<String, Set<String>> result = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      String key = readString(in, strings);
+      result.put(key, readStringSet(in, strings));
+    }
+    return result;
+  }
+
+  private static void writeStrings(DataOutputStream out, StringTable table,
+      Collection<String> values) throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      out.writeInt(table.indexOf(value));
+    }
+  }
+
+  private static void writeStringSetMap(DataOutputStream out, StringTable table,
+      Map<String, Set<String>> map) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<String, Set<String>> entry : map.entrySet()) {
+      out.writeInt(table.indexOf(entry.getKey()));
+      writeStrings(out, table, entry.getValue());
+    }
+  }
+
+  private final String etag;
+  private final int contentLength;
+  private final Map<String, Set<String>> certHeis;
+  private final Map<String, Set<String>> cliKeyHeis;
+  private final List<Set<String>> hostHeis;
+  private final List<Set<String>> hostServerKeys;
+  private final Map<String, Map<String, String>> heiIdMaps;
+  private final List<HeiEntryImpl> heiEntries;
+  private final List<ApiEntryRecord> apiEntries;
+  private final Map<String, byte[]> encodedKeys;
+
+  IndexSnapshot(String etag, int contentLength, Map<String, Set<String>> certHeis,
+      Map<String, Set<String>> cliKeyHeis, List<Set<String>> hostHeis,
+      List<Set<String>> hostServerKeys, Map<String, Map<String, String>> heiIdMaps,
+      List<HeiEntryImpl> heiEntries, List<ApiEntryRecord> apiEntries,
+      Map<String, byte[]> encodedKeys) {
+    this.etag = etag;
+    this.contentLength = contentLength;
+    this.certHeis = certHeis;
+    this.cliKeyHeis = cliKeyHeis;
+    this.hostHeis = hostHeis;
+    this.hostServerKeys = hostServerKeys;
+    this.heiIdMaps = heiIdMaps;
+    this.heiEntries = heiEntries;
+    this.apiEntries = apiEntries;
+    this.encodedKeys = encodedKeys;
+  }
+
+  /**
+   * Serialize this snapshot. (Used for persistent caching of the indexes.)
+   *
+   * @return serialized snapshot, which can be read back with {@link #deserialize(byte[])}.
+   */
+  byte[] serialize() {
+    try {
+
+      // Write the body first. This will fill the string table.
+
+      StringTable table = new StringTable();
+      ByteArrayOutputStream bodyData = new ByteArrayOutputStream();
+      DataOutputStream body = new DataOutputStream(bodyData);
+
+      body.writeInt(table.indexOf(this.etag));
+      body.writeInt(this.contentLength);
+
+      body.writeInt(this.hostHeis.size());
+      for (int i = 0; i < this.hostHeis.size(); i++) {
+        writeStrings(body, table, this.hostHeis.get(i));
+        writeStrings(body, table, this.hostServerKeys.get(i));
+      }
+      writeStringSetMap(body, table, this.certHeis);
+      writeStringSetMap(body, table, this.cliKeyHeis);
+
+      body.writeInt(this.heiIdMaps.size());
+      for (Map.Entry<String, Map<String, String>> entry : this.heiIdMaps.entrySet()) {
+        body.writeInt(table.indexOf(entry.getKey()));
+        body.writeInt(entry.getValue().size());
+        for (Map.Entry<String, String> idEntry : entry.getValue().entrySet()) {
+          body.writeInt(table.indexOf(idEntry.getKey()));
+          body.writeInt(table.indexOf(idEntry.getValue()));
+        }
+      }
+
+      body.writeInt(this.heiEntries.size());
+      for (HeiEntryImpl hei : this.heiEntries) {
+        body.writeInt(table.indexOf(hei.getId()));
+        Map<String, String> names = hei.getAllNames();
+        body.writeInt(names.size());
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+          body.writeInt(table.indexOf(entry.getKey()));
+          body.writeInt(table.indexOf(entry.getValue()));
+        }
+        Map<String, List<String>> otherIds = hei.getAllOtherIds();
+        body.writeInt(otherIds.size());
+        for (Map.Entry<String, List<String>> entry : otherIds.entrySet()) {
+          body.writeInt(table.indexOf(entry.getKey()));
+          writeStrings(body, table, entry.getValue());
+        }
+      }
+
+      body.writeInt(this.apiEntries.size());
+      for (ApiEntryRecord api : this.apiEntries) {
+        body.writeInt(table.indexOf(api.getNamespaceUri()));
+        body.writeInt(table.indexOf(api.getLocalName()));
+        body.writeInt(table.indexOf(api.getVersion()));
+        body.writeInt(api.getHost());
+      }
+
+      body.writeInt(this.encodedKeys.size());
+      for (Map.Entry<String, byte[]> entry : this.encodedKeys.entrySet()) {
+        body.writeInt(table.indexOf(entry.getKey()));
+        body.writeInt(entry.getValue().length);
+        body.write(entry.getValue());
+      }
+      body.flush();
+
+      // Then write the header, the string table, and the body.
+
+      ByteArrayOutputStream data = new ByteArrayOutputStream(bodyData.size() * 2);
+      DataOutputStream out = new DataOutputStream(data);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(table.strings.size());
+      for (String value : table.strings) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      bodyData.writeTo(out);
+      out.flush();
+      return data.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  List<ApiEntryRecord> getApiEntries() {
+    return this.apiEntries;
+  }
+
+  Map<String, Set<String>> getCertHeis() {
+    return this.certHeis;
+  }
+
+  Map<String, Set<String>> getCliKeyHeis() {
+    return this.cliKeyHeis;
+  }
+
+  int getContentLength() {
+    return this.contentLength;
+  }
+
+  Map<String, byte[]> getEncodedKeys() {
+    return this.encodedKeys;
+  }
+
+  String getETag() {
+    return this.etag;
+  }
+
+  List<HeiEntryImpl> getHeiEntries() {
+    return this.heiEntries;
+  }
+
+  Map<String, Map<String, String>> getHeiIdMaps() {
+    return this.heiIdMaps;
+  }
+
+  List<Set<String>> getHostHeis() {
+    return this.hostHeis;
+  }
+
+  List<Set<String>> getHostServerKeys() {
+    return this.hostServerKeys;
+  }
+}
@@ -0,0 +1,173 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import eu.erasmuswithoutpaper.registryclient.ClientImpl.RefreshCircuitState;
+
+/**
+ * Receives timings and counters from {@link ClientImpl}, so that they can be passed on to a
+ * metrics library of your choice.
+ *
+ * <p>
+ * Listeners are set via {@link ClientImplOptions#setMetricsListener(MetricsListener)}. All methods
+ * have empty default implementations, so you need to override only the ones you're interested in.
+ * If you don't need an external library, then you can use the ready-made
+ * {@link InMemoryMetricsListener}.
+ * </p>
+ *
+ * <p>
+ * Methods are called synchronously, from the threads doing the work (including the threads which
+ * run your queries), so they must be thread-safe and they should return quickly. Exceptions thrown
+ * by them are <b>not</b> caught. All durations are given in nanoseconds.
+ * </p>
+ *
+ * @since 1.11.0
+ */
+public interface MetricsListener {
+
+  /**
+   * The source from which a copy of the catalogue has been loaded.
+   */
+  enum CatalogueSource {
+
+    /**
+     * A fresh copy, fetched from the Registry Service.
+     */
+    REGISTRY,
+
+    /**
+     * A copy parsed from the persistent cache (see
+     * {@link ClientImplOptions#setPersistentCacheMap(java.util.Map)}).
+     */
+    CACHE,
+
+    /**
+     * A copy restored from the cached index snapshot (see
+     * {@link ClientImplOptions#setIndexSnapshotCaching(boolean)}).
+     */
+    INDEX_SNAPSHOT
+  }
+
+  /**
+   * Families of {@link RegistryClient} queries. Each <code>assert*</code> method belongs to the
+   * same family as its <code>is*</code> or <code>are*</code> counterpart.
+   */
+  enum QueryFamily {
+
+    /**
+     * {@link RegistryClient#findApi} and {@link RegistryClient#findApis}.
+     */
+    API,
+
+    /**
+     * All the <code>findHei*</code> methods, and {@link RegistryClient#getAllHeis()}.
+     */
+    HEI,
+
+    /**
+     * Queries for client certificates (e.g. {@link RegistryClient#isCertificateKnown} and
+     * {@link RegistryClient#getHeisCoveredByCertificate}).
+     */
+    CERTIFICATE,
+
+    /**
+     * Queries for client keys (e.g. {@link RegistryClient#isClientKeyKnown} and
+     * {@link RegistryClient#getHeisCoveredByClientKey}).
+     */
+    CLIENT_KEY,
+
+    /**
+     * Queries for server keys (e.g. {@link RegistryClient#findRsaPublicKey} and
+     * {@link RegistryClient#getServerKeyCoveringApi}).
+     */
+    SERVER_KEY
+  }
+
+  /**
+   * The outcome of a single catalogue refresh.
+   */
+  enum RefreshOutcome {
+
+    /**
+     * The catalogue has changed (HTTP 200), and the new copy is now in use.
+     */
+    UPDATED,
+
+    /**
+     * The catalogue didn't change (HTTP 304). Its expiry date has been extended.
+     */
+    NOT_MODIFIED,
+
+    /**
+     * The refresh has failed (the previous copy is still in use).
+     */
+    FAILED
+  }
+
+  /**
+   * Called after a response has been received from the {@link CatalogueFetcher}.
+   *
+   * @param status Either 200 or 304.
+   * @param bytes The size of the fetched catalogue (0 for HTTP 304 responses).
+   * @param duration The time it took to fetch it.
+   */
+  default void catalogueFetched(int status, long bytes, long duration) {
+  }
+
+  /**
+   * Called after a new copy of the catalogue has been parsed (and all its indexes built).
+   *
+   * @param source Where the catalogue came from.
+   * @param bytes The size of the catalogue.
+   * @param duration The time it took to parse it (and build the indexes).
+   */
+  default void catalogueParsed(CatalogueSource source, long bytes, long duration) {
+  }
+
+  /**
+   * Called when the state of the refresh circuit breaker changes (see
+   * {@link ClientImpl#getRefreshCircuitState()}).
+   *
+   * <p>
+   * The transition from {@link RefreshCircuitState#OPEN} to {@link RefreshCircuitState#HALF_OPEN}
+   * happens as time passes, so it is reported only once a refresh is attempted in the half-open
+   * state.
+   * </p>
+   *
+   * @param state The new state.
+   */
+  default void circuitStateChanged(RefreshCircuitState state) {
+  }
+
+  /**
+   * Called after each {@link RegistryClient} query.
+   *
+   * <p>
+   * This is called also when the query throws an exception (e.g.
+   * {@link RegistryClient.UnacceptableStalenessException}).
+   * </p>
+   *
+   * @param family The family of the query.
+   * @param duration The time it took to run the query.
+   */
+  default void queryCompleted(QueryFamily family, long duration) {
+  }
+
+  /**
+   * Called after each catalogue refresh (both automatic and manual).
+   *
+   * @param outcome The outcome of the refresh.
+   * @param duration The time it took (including fetching and parsing).
+   * @param staleness The number of <b>milliseconds</b> which have passed since the catalogue copy
+   *        in use (after the refresh) has expired, or 0 if it's not expired.
+   */
+  default void refreshCompleted(RefreshOutcome outcome, long duration, long staleness) {
+  }
+
+  /**
+   * Called after an automatic refresh has failed, once the next attempt has been scheduled (see
+   * {@link ClientImplOptions#setTimeBetweenRetries(long)}).
+   *
+   * @param delay The number of <b>milliseconds</b> after which the refresh will be retried.
+   */
+  default void refreshRetryScheduled(long delay) {
+  }
+}
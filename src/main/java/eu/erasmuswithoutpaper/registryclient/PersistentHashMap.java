@@ -0,0 +1,556 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable, persistent hash map, implemented as a hash array mapped trie (HAMT).
+ *
+ * <p>
+ * "Modifying" methods ({@link #plus(Object, Object)}, {@link #minus(Object)} and
+ * {@link #withContentsOf(Map)}) never change the map they are called on. Instead, they return a
+ * new map, which shares all the unchanged nodes of the trie with the original one. Only the nodes
+ * on the paths leading to the changed entries are copied. {@link CatalogueDocument} uses this to
+ * keep the indexes of consecutive versions of the catalogue in the same nodes, so that each refresh
+ * costs (in terms of memory) only as much as the catalogue has actually changed.
+ * </p>
+ *
+ * <p>
+ * Values are compared with {@link Object#equals(Object)}. If a new value is equal to the one
+ * already present, then the old value is kept (and no nodes are copied). Null keys are not
+ * supported. Instances are thread-safe.
+ * </p>
+ *
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+  /**
+   * A node of the trie which contains at most 32 children (either entries, or sub-nodes), indexed
+   * by a 5-bit slice of their hashes.
+   */
+  private static final class BitmapNode extends TrieNode {
+
+    /**
+     * Bit <code>i</code> is set if the node contains a child for the hash slice <code>i</code>.
+     */
+    private int bitmap;
+
+    BitmapNode(Object edit, int bitmap, Object[] array) {
+      super(edit, array);
+      this.bitmap = bitmap;
+    }
+
+    @Override
+    TrieNode assoc(Object edit, int shift, int hash, Object key, Object value,
+        boolean[] addedLeaf) {
+      int bit = bitpos(hash, shift);
+      int idx = this.index(bit);
+      if ((this.bitmap & bit) != 0) {
+        Object existingKey = this.array[idx];
+        Object existingValue = this.array[idx + 1];
+        if (existingKey == null) {
+          TrieNode child =
+              ((TrieNode) existingValue).assoc(edit, shift + BITS, hash, key, value, addedLeaf);
+          return child == existingValue ? this : this.withSlot(edit, idx + 1, child);
+        }
+        if (key.equals(existingKey)) {
+          return isSameValue(existingValue, value) ? this : this.withSlot(edit, idx + 1, value);
+        }
+        addedLeaf[0] = true;
+        TrieNode child =
+            createNode(edit, shift + BITS, existingKey, existingValue, hash, key, value);
+        TrieNode result = this.withSlot(edit, idx, null);
+        result.array[idx + 1] = child;
+        return result;
+      }
+      addedLeaf[0] = true;
+      Object[] newArray = new Object[this.array.length + 2];
+      System.arraycopy(this.array, 0, newArray, 0, idx);
+      newArray[idx] = key;
+      newArray[idx + 1] = value;
+      System.arraycopy(this.array, idx, newArray, idx + 2, this.array.length - idx);
+      if (this.isOwnedBy(edit)) {
+        this.array = newArray;
+        this.bitmap |= bit;
+        return this;
+      }
+      return new BitmapNode(edit, this.bitmap | bit, newArray);
+    }
+
+    @Override
+    TrieNode copy(Object edit) {
+      return new BitmapNode(edit, this.bitmap, this.array.clone());
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((this.bitmap & bit) == 0) {
+        return NOT_FOUND;
+      }
+      int idx = this.index(bit);
+      Object existingKey = this.array[idx];
+      if (existingKey == null) {
+        return ((TrieNode) this.array[idx + 1]).find(shift + BITS, hash, key);
+      }
+      return key.equals(existingKey) ? this.array[idx + 1] : NOT_FOUND;
+    }
+
+    @Override
+    TrieNode without(Object edit, int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((this.bitmap & bit) == 0) {
+        return this;
+      }
+      int idx = this.index(bit);
+      Object existingKey = this.array[idx];
+      Object existingValue = this.array[idx + 1];
+      if (existingKey == null) {
+        TrieNode child = ((TrieNode) existingValue).without(edit, shift + BITS, hash, key);
+        if (child == existingValue) {
+          return this;
+        }
+        if (child != null) {
+          return this.withSlot(edit, idx + 1, child);
+        }
+      } else if (!key.equals(existingKey)) {
+        return this;
+      }
+      if (this.bitmap == bit) {
+        return null;
+      }
+      Object[] newArray = new Object[this.array.length - 2];
+      System.arraycopy(this.array, 0, newArray, 0, idx);
+      System.arraycopy(this.array, idx + 2, newArray, idx, newArray.length - idx);
+      if (this.isOwnedBy(edit)) {
+        this.array = newArray;
+        this.bitmap ^= bit;
+        return this;
+      }
+      return new BitmapNode(edit, this.bitmap ^ bit, newArray);
+    }
+
+    /**
+     * @return The position of the key of the child with the given bit in {@link TrieNode#array}.
+     */
+    private int index(int bit) {
+      return 2 * Integer.bitCount(this.bitmap & (bit - 1));
+    }
+  }
+
+  /**
+   * A leaf node which contains entries with different keys, but identical hashes.
+   */
+  private static final class CollisionNode extends TrieNode {
+
+    private final int hash;
+
+    CollisionNode(Object edit, int hash, Object[] array) {
+      super(edit, array);
+      this.hash = hash;
+    }
+
+    @Override
+    TrieNode assoc(Object edit, int shift, int hash, Object key, Object value,
+        boolean[] addedLeaf) {
+      if (hash != this.hash) {
+        // Nest this node in a new bitmap node, and put the new entry next to it.
+        TrieNode parent =
+            new BitmapNode(edit, bitpos(this.hash, shift), new Object[] { null, this });
+        return parent.assoc(edit, shift, hash, key, value, addedLeaf);
+      }
+      int idx = this.indexOf(key);
+      if (idx >= 0) {
+        return isSameValue(this.array[idx + 1], value) ? this
+            : this.withSlot(edit, idx + 1, value);
+      }
+      addedLeaf[0] = true;
+      Object[] newArray = Arrays.copyOf(this.array, this.array.length + 2);
+      newArray[this.array.length] = key;
+      newArray[this.array.length + 1] = value;
+      if (this.isOwnedBy(edit)) {
+        this.array = newArray;
+        return this;
+      }
+      return new CollisionNode(edit, this.hash, newArray);
+    }
+
+    @Override
+    TrieNode copy(Object edit) {
+      return new CollisionNode(edit, this.hash, this.array.clone());
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key) {
+      int idx = hash == this.hash ? this.indexOf(key) : -1;
+      return idx >= 0 ? this.array[idx + 1] : NOT_FOUND;
+    }
+
+    @Override
+    TrieNode without(Object edit, int shift, int hash, Object key) {
+      int idx = hash == this.hash ? this.indexOf(key) : -1;
+      if (idx < 0) {
+        return this;
+      }
+      if (this.array.length == 2) {
+        return null;
+      }
+      Object[] newArray = new Object[this.array.length - 2];
+      System.arraycopy(this.array, 0, newArray, 0, idx);
+      System.arraycopy(this.array, idx + 2, newArray, idx, newArray.length - idx);
+      if (this.isOwnedBy(edit)) {
+        this.array = newArray;
+        return this;
+      }
+      return new CollisionNode(edit, this.hash, newArray);
+    }
+
+    private int indexOf(Object key) {
+      for (int idx = 0; idx < this.array.length; idx += 2) {
+        if (key.equals(this.array[idx])) {
+          return idx;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Iterates over all entries of the trie, depth-first.
+   */
+  private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+    private final Object[][] arrays = new Object[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth;
+    private Map.Entry<K, V> nextEntry;
+
+    EntryIterator(TrieNode root) {
+      this.arrays[0] = root.array;
+      this.depth = 1;
+      this.advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return this.nextEntry != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (this.nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K, V> result = this.nextEntry;
+      this.advance();
+      return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      while (this.depth > 0) {
+        Object[] array = this.arrays[this.depth - 1];
+        int pos = this.positions[this.depth - 1];
+        if (pos >= array.length) {
+          this.depth--;
+          continue;
+        }
+        this.positions[this.depth - 1] = pos + 2;
+        if (array[pos] == null) {
+          this.arrays[this.depth] = ((TrieNode) array[pos + 1]).array;
+          this.positions[this.depth] = 0;
+          this.depth++;
+        } else {
+          this.nextEntry =
+              new AbstractMap.SimpleImmutableEntry<>((K) array[pos], (V) array[pos + 1]);
+          return;
+        }
+      }
+      this.nextEntry = null;
+    }
+  }
+
+  /**
+   * A node of the trie.
+   *
+   * <p>
+   * Nodes are immutable once they become a part of a {@link PersistentHashMap}. However, bulk
+   * operations (such as {@link PersistentHashMap#withContentsOf(Map)}) are allowed to modify the
+   * nodes they have created themselves (these are marked with the operation's <code>edit</code>
+   * token), which saves a lot of copying.
+   * </p>
+   */
+  private abstract static class TrieNode {
+
+    /**
+     * The token of the bulk operation which has created this node, or <b>null</b>.
+     */
+    private final Object edit;
+
+    /**
+     * Key-value pairs, one pair per child. If the key is <b>null</b>, then the value is a sub-node.
+     */
+    Object[] array;
+
+    TrieNode(Object edit, Object[] array) {
+      this.edit = edit;
+      this.array = array;
+    }
+
+    /**
+     * Put the entry into the subtree rooted at this node.
+     *
+     * @return Either this node (if nothing has changed), or its modified copy.
+     */
+    abstract TrieNode assoc(Object edit, int shift, int hash, Object key, Object value,
+        boolean[] addedLeaf);
+
+    abstract TrieNode copy(Object edit);
+
+    /**
+     * @return Either the value, or {@link PersistentHashMap#NOT_FOUND}.
+     */
+    abstract Object find(int shift, int hash, Object key);
+
+    boolean isOwnedBy(Object edit) {
+      return edit != null && this.edit == edit;
+    }
+
+    /**
+     * Remove the entry from the subtree rooted at this node.
+     *
+     * @return Either this node (if nothing has changed), its modified copy, or <b>null</b> if the
+     *         subtree became empty.
+     */
+    abstract TrieNode without(Object edit, int shift, int hash, Object key);
+
+    TrieNode withSlot(Object edit, int idx, Object value) {
+      TrieNode result = this.isOwnedBy(edit) ? this : this.copy(edit);
+      result.array[idx] = value;
+      return result;
+    }
+  }
+
+  private static final int BITS = 5;
+
+  /**
+   * Bitmap nodes at shifts 0 to 30, plus a collision node.
+   */
+  private static final int MAX_DEPTH = 8;
+
+  private static final Object NOT_FOUND = new Object();
+
+  private static final PersistentHashMap<Object, Object> EMPTY_MAP =
+      new PersistentHashMap<>(new BitmapNode(null, 0, new Object[0]), 0);
+
+  /**
+   * Create a map with the same entries as the given one.
+   *
+   * @param map The map to copy. If it is a {@link PersistentHashMap} already, then it is returned
+   *        as it is.
+   * @return A new map.
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentHashMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+    if (map instanceof PersistentHashMap) {
+      return (PersistentHashMap<K, V>) map;
+    }
+    return PersistentHashMap.<K, V>empty().withContentsOf(map);
+  }
+
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentHashMap<K, V> empty() {
+    return (PersistentHashMap<K, V>) EMPTY_MAP;
+  }
+
+  private static int bitpos(int hash, int shift) {
+    return 1 << ((hash >>> shift) & 0x1f);
+  }
+
+  private static TrieNode createNode(Object edit, int shift, Object key1, Object value1, int hash2,
+      Object key2, Object value2) {
+    int hash1 = key1.hashCode();
+    if (hash1 == hash2) {
+      return new CollisionNode(edit, hash1, new Object[] { key1, value1, key2, value2 });
+    }
+    boolean[] ignored = new boolean[1];
+    return new BitmapNode(edit, 0, new Object[0])
+        .assoc(edit, shift, hash1, key1, value1, ignored)
+        .assoc(edit, shift, hash2, key2, value2, ignored);
+  }
+
+  /**
+   * Add the given node, and all the nodes of its subtree, to the set.
+   */
+  private static void collectNodes(TrieNode node, Set<TrieNode> out) {
+    out.add(node);
+    for (int i = 0; i < node.array.length; i += 2) {
+      if (node.array[i] == null) {
+        collectNodes((TrieNode) node.array[i + 1], out);
+      }
+    }
+  }
+
+  private static boolean isSameValue(Object value1, Object value2) {
+    return value1 == value2 || (value1 != null && value1.equals(value2));
+  }
+
+  private final TrieNode root;
+
+  private final int entryCount;
+
+  private PersistentHashMap(TrieNode root, int size) {
+    this.root = root;
+    this.entryCount = size;
+  }
+
+  /**
+   * @return The number of nodes of this map's trie.
+   */
+  int countNodes() {
+    Set<TrieNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    collectNodes(this.root, nodes);
+    return nodes.size();
+  }
+
+  /**
+   * Count the nodes of this map's trie which are also a part of the other map's trie. This is
+   * meant for verifying that derived maps actually share their unchanged nodes.
+   *
+   * @param other The map to compare with (usually, the map this one has been derived from).
+   * @return The number of shared nodes (see also {@link #countNodes()}).
+   */
+  int countSharedNodes(PersistentHashMap<?, ?> other) {
+    Set<TrieNode> otherNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    collectNodes(other.root, otherNodes);
+    Set<TrieNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    collectNodes(this.root, nodes);
+    nodes.retainAll(otherNodes);
+    return nodes.size();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key != null && this.root.find(0, key.hashCode(), key) != NOT_FOUND;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new AbstractSet<Map.Entry<K, V>>() {
+
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(PersistentHashMap.this.root);
+      }
+
+      @Override
+      public int size() {
+        return PersistentHashMap.this.entryCount;
+      }
+    };
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    if (key == null) {
+      return null;
+    }
+    Object value = this.root.find(0, key.hashCode(), key);
+    return value == NOT_FOUND ? null : (V) value;
+  }
+
+  /**
+   * @param key The key to remove.
+   * @return A map without the given key (this map, if the key was not present).
+   */
+  PersistentHashMap<K, V> minus(Object key) {
+    if (!this.containsKey(key)) {
+      return this;
+    }
+    return newMap(this.root.without(null, 0, key.hashCode(), key), this.entryCount - 1);
+  }
+
+  /**
+   * @param key The key to put.
+   * @param value The value to put.
+   * @return A map with the given entry (this map, if an equal entry was already present).
+   */
+  PersistentHashMap<K, V> plus(K key, V value) {
+    boolean[] addedLeaf = new boolean[1];
+    TrieNode newRoot = this.root.assoc(null, 0, key.hashCode(), key, value, addedLeaf);
+    if (newRoot == this.root) {
+      return this;
+    }
+    return new PersistentHashMap<>(newRoot, addedLeaf[0] ? this.entryCount + 1 : this.entryCount);
+  }
+
+  @Override
+  public int size() {
+    return this.entryCount;
+  }
+
+  /**
+   * Create a map with exactly the same entries as the given one, sharing as many nodes with this
+   * map as possible.
+   *
+   * <p>
+   * This is the most efficient way of deriving a new version of an index from the previous one. The
+   * cost (both in time and memory) of the returned map's new nodes is proportional to the number of
+   * entries which differ between the two maps. Entries whose values are equal are kept intact.
+   * </p>
+   *
+   * @param target The map whose entries should be present in the result.
+   * @return A map equal to <code>target</code> (this map, if they are already equal).
+   */
+  PersistentHashMap<K, V> withContentsOf(Map<? extends K, ? extends V> target) {
+    if (target == this) {
+      return this;
+    }
+    final Object edit = new Object();
+    boolean[] addedLeaf = new boolean[1];
+    TrieNode newRoot = this.root;
+    int newSize = this.entryCount;
+    for (Map.Entry<? extends K, ? extends V> entry : target.entrySet()) {
+      K key = entry.getKey();
+      addedLeaf[0] = false;
+      newRoot = newRoot.assoc(edit, 0, key.hashCode(), key, entry.getValue(), addedLeaf);
+      if (addedLeaf[0]) {
+        newSize++;
+      }
+    }
+    if (newSize != target.size()) {
+      // Some of our keys are not present in the target. The nodes of this map are never modified
+      // in place, so it's safe to iterate over them.
+      for (K key : this.keySet()) {
+        if (!target.containsKey(key)) {
+          newRoot = newRoot.without(edit, 0, key.hashCode(), key);
+          newSize--;
+          if (newRoot == null) {
+            break;
+          }
+        }
+      }
+    }
+    if (newRoot == this.root) {
+      return this;
+    }
+    return newMap(newRoot, newSize);
+  }
+
+  private PersistentHashMap<K, V> newMap(TrieNode newRoot, int newSize) {
+    if (newRoot == null || newSize == 0) {
+      return empty();
+    }
+    return new PersistentHashMap<>(newRoot, newSize);
+  }
+}
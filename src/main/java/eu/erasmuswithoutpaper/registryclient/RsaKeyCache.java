@@ -0,0 +1,130 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe cache of decoded {@link RSAPublicKey}s, shared by all versions of the catalogue held
+ * by a single {@link CatalogueHolder}.
+ *
+ * <p>
+ * Decoding RSA keys (via {@link KeyFactory#generatePublic}) is a noticeable part of the time needed
+ * to build a new {@link CatalogueDocument}, while keys rarely change between versions of the
+ * catalogue. This cache allows {@link CatalogueDocument}s to decode only the keys which are new.
+ * </p>
+ *
+ * <p>
+ * Keys are identified by their SHA-256 fingerprints (the <code>sha-256</code> attributes in the
+ * catalogue), but a cached key is reused only if its encoding is identical to the one being
+ * decoded. Keys which are no longer referenced by the catalogue are evicted via
+ * {@link #retainAll(Collection)}.
+ * </p>
+ */
+class RsaKeyCache {
+
+  /**
+   * A decoded key, along with the encoding it has been decoded from.
+   */
+  private static final class CachedKey {
+
+    private final byte[] encoded;
+    private final RSAPublicKey key;
+
+    CachedKey(byte[] encoded, RSAPublicKey key) {
+      this.encoded = encoded;
+      this.key = key;
+    }
+
+    boolean matches(byte[] otherEncoded) {
+      return Arrays.equals(this.encoded, otherEncoded);
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(RsaKeyCache.class);
+
+  /**
+   * {@link KeyFactory} instances are not guaranteed to be thread-safe, so each thread uses its own.
+   */
+  private static final ThreadLocal<KeyFactory> rsaKeyFactory = ThreadLocal.withInitial(() -> {
+    try {
+      return KeyFactory.getInstance("RSA");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  });
+
+  /**
+   * Decode the key, or return <b>null</b> if the data couldn't be decoded as an RSA key.
+   */
+  private static CachedKey decode(String fingerprint, byte[] encoded) {
+    RSAPublicKey key;
+    try {
+      key = (RSAPublicKey) rsaKeyFactory.get().generatePublic(new X509EncodedKeySpec(encoded));
+    } catch (InvalidKeySpecException | ClassCastException e) {
+      if (logger.isWarnEnabled()) {
+        logger.warn("Could not load object " + fingerprint + " as RSAPublicKey: " + e);
+      }
+      return null;
+    }
+    return new CachedKey(encoded, key);
+  }
+
+  /**
+   * "SHA-256 -> cached key" map of all cached keys.
+   */
+  private final ConcurrentHashMap<String, CachedKey> keys = new ConcurrentHashMap<>();
+
+  /**
+   * Get the decoded key with the given fingerprint and encoding, decoding it only if it is not yet
+   * in the cache.
+   *
+   * <p>
+   * Cache hits don't take any locks. Keys are decoded while holding the lock of their map entry
+   * only, so different keys can be decoded concurrently (but each one is decoded just once).
+   * </p>
+   *
+   * @param fingerprint The SHA-256 fingerprint of the key, as stated in the catalogue.
+   * @param encoded The X.509 encoding of the key. It is kept by the cache, so it must not be
+   *        modified afterwards.
+   * @return Either the decoded key, or <b>null</b> if the data couldn't be decoded as an RSA key.
+   */
+  RSAPublicKey getOrDecode(String fingerprint, byte[] encoded) {
+    CachedKey cached = this.keys.get(fingerprint);
+    if (cached == null || !cached.matches(encoded)) {
+      cached = this.keys.compute(fingerprint,
+          (key, current) -> current != null && current.matches(encoded) ? current
+              : decode(key, encoded));
+    }
+    return cached != null ? cached.key : null;
+  }
+
+  /**
+   * Evict all keys, other than the ones with the given fingerprints.
+   *
+   * @param fingerprints The fingerprints of the keys which are still in use.
+   */
+  void retainAll(Collection<String> fingerprints) {
+    int before = this.keys.size();
+    this.keys.keySet().retainAll(fingerprints);
+    int evicted = before - this.keys.size();
+    if (evicted > 0) {
+      logger.debug("Evicted {} RSA keys which are no longer in use", evicted);
+    }
+  }
+
+  /**
+   * @return The number of currently cached keys.
+   */
+  int size() {
+    return this.keys.size();
+  }
+}
@@ -1,24 +1,46 @@
 package eu.erasmuswithoutpaper.registryclient;
 
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * This is a simple {@link Runnable} wrapper that allows it to dynamically schedule <b>a next run of
  * itself</b> (with help of the provided executor).
+ *
+ * <p>
+ * The executor might be shared with other tasks. Use {@link #cancel()} (instead of shutting down
+ * the executor) to stop this particular task.
+ * </p>
  */
 abstract class SelfSchedulableTask implements Runnable {
 
+  private static final Logger logger = LoggerFactory.getLogger(SelfSchedulableTask.class);
+
   private final ScheduledExecutorService executor;
   private final long minPeriod;
 
+  /**
+   * The currently scheduled run of this task. Guarded by this object.
+   */
+  private ScheduledFuture<?> future;
+
+  /**
+   * Set by {@link #cancel()}. Guarded by this object.
+   */
+  private boolean cancelled;
+
   /**
    * Create a new task.
    *
    * <p>
-   * Please note, that this constructor will not schedule the <b>first</b> run. You will need to do
-   * it yourself.
+   * Please note, that this constructor will not schedule the <b>first</b> run. You will need to
+   * call {@link #schedule(long)} yourself.
    * </p>
    *
    * @param executor an {@link ScheduledExecutorService} to use when scheduling subsequent runs of
@@ -32,6 +54,18 @@ abstract class SelfSchedulableTask implements Runnable {
     this.minPeriod = minPeriod;
   }
 
+  /**
+   * Cancel this task. The scheduled run will be cancelled (or interrupted, if it is currently
+   * running), and no subsequent runs will be scheduled. The executor itself is not affected.
+   */
+  synchronized void cancel() {
+    this.cancelled = true;
+    if (this.future != null) {
+      this.future.cancel(true);
+      this.future = null;
+    }
+  }
+
   @Override
   public final void run() {
     Date nextRun = this.runAndScheduleNext();
@@ -42,7 +76,23 @@ abstract class SelfSchedulableTask implements Runnable {
     if (delay < this.minPeriod) {
       delay = this.minPeriod;
     }
-    this.executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+    this.schedule(delay);
+  }
+
+  /**
+   * Schedule a run of this task (unless it has been cancelled).
+   *
+   * @param delay the delay, in milliseconds.
+   */
+  synchronized void schedule(long delay) {
+    if (this.cancelled) {
+      return;
+    }
+    try {
+      this.future = this.executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Could not schedule the task. Has the executor been shut down?");
+    }
   }
 
   /**
@@ -0,0 +1,143 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collection;
+
+/**
+ * Cheap estimates of the retained sizes of the objects held by the catalogue's indexes (see
+ * {@link CatalogueIndex}).
+ *
+ * <p>
+ * The estimates are computed from the number and length of the objects only (no heap walking, and
+ * no reflection). They assume a 64-bit JVM with compressed object pointers (12-byte object headers,
+ * 4-byte references, 8-byte alignment) and compact strings (1 byte per Latin-1 character).
+ * </p>
+ */
+final class SizeEstimator {
+
+  /**
+   * The size of a single (compressed) reference.
+   */
+  static final int REFERENCE = 4;
+
+  /**
+   * The size of a single {@link java.util.HashMap} entry: the node object (32 bytes), plus its
+   * share of the table (assuming the default load factor).
+   */
+  private static final int HASH_MAP_ENTRY = 40;
+
+  /**
+   * The size of a {@link java.util.HashMap} object, and its table's header.
+   */
+  private static final int HASH_MAP = 64;
+
+  /**
+   * The size of a single {@link PersistentHashMap} entry: two slots of the node's array, plus its
+   * share of the trie nodes.
+   */
+  private static final int PERSISTENT_MAP_ENTRY = 16;
+
+  /**
+   * The size of a {@link RSAPublicKey} object, excluding its modulus (which is stored twice: as a
+   * {@link java.math.BigInteger}, and as a part of the X.509 encoding).
+   */
+  private static final int RSA_KEY = 256;
+
+  /**
+   * The number of bytes taken by the DOM per each byte of the raw XML content. Measured for the
+   * JDK's default parser, after the indexes have been built. (The parser expands its deferred
+   * nodes only as they are accessed, so a freshly parsed DOM takes about four bytes per byte. Once
+   * the host sections have been read, it takes about six.)
+   */
+  private static final int DOM_BYTES_PER_CONTENT_BYTE = 6;
+
+  /**
+   * @return The size of an array with the given number of elements.
+   */
+  static long array(long length, int elementSize) {
+    return align(16 + length * elementSize);
+  }
+
+  /**
+   * @return The size of an {@link java.util.ArrayList} with the given number of elements (but
+   *         excluding the elements themselves).
+   */
+  static long arrayList(int size) {
+    return 24 + array(size, REFERENCE);
+  }
+
+  /**
+   * @return The size of the given byte array.
+   */
+  static long bytes(byte[] data) {
+    return array(data.length, 1);
+  }
+
+  /**
+   * @return The size of a parsed DOM of an XML document with the given length (in bytes).
+   */
+  static long dom(int contentLength) {
+    return (long) contentLength * DOM_BYTES_PER_CONTENT_BYTE;
+  }
+
+  /**
+   * @return The size of a {@link java.util.HashMap} (or a
+   *         {@link java.util.concurrent.ConcurrentHashMap}) with the given number of entries (but
+   *         excluding the keys and values themselves).
+   */
+  static long hashMap(int size) {
+    return HASH_MAP + (long) size * HASH_MAP_ENTRY;
+  }
+
+  /**
+   * @return The size of a {@link java.util.HashSet} with the given number of elements (but
+   *         excluding the elements themselves).
+   */
+  static long hashSet(int size) {
+    return 16 + hashMap(size);
+  }
+
+  /**
+   * @return The size of a {@link PersistentHashMap} with the given number of entries (but excluding
+   *         the keys and values themselves).
+   */
+  static long persistentMap(int size) {
+    return 24 + (long) size * PERSISTENT_MAP_ENTRY;
+  }
+
+  /**
+   * @return The size of the given RSA key.
+   */
+  static long rsaKey(RSAPublicKey key) {
+    int modulusBytes = (key.getModulus().bitLength() + 7) / 8;
+    // The X.509 encoding adds about 40 bytes of DER headers and the public exponent.
+    return RSA_KEY + array(modulusBytes, 1) + array(modulusBytes + 40, 1);
+  }
+
+  /**
+   * @return The size of the given string (0 for <b>null</b>).
+   */
+  static long string(String value) {
+    if (value == null) {
+      return 0;
+    }
+    return 24 + array(value.length(), 1);
+  }
+
+  /**
+   * @return The sum of the sizes of the given strings.
+   */
+  static long strings(Collection<String> values) {
+    long result = 0;
+    for (String value : values) {
+      result += string(value);
+    }
+    return result;
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  private SizeEstimator() {}
+}
@@ -1,14 +1,17 @@
 package eu.erasmuswithoutpaper.registryclient;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.interfaces.RSAPublicKey;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.RandomAccess;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -17,12 +20,62 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 class Utils { // NOPMD
 
+  /**
+   * An {@link InputStream} reading directly from a {@link ByteBuffer} (without copying it).
+   */
+  static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer a {@link ByteBuffer} to read from. Its position will be advanced while reading,
+     *        so you might want to pass a {@link ByteBuffer#duplicate()} here.
+     */
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int available() {
+      return this.buffer.remaining();
+    }
+
+    @Override
+    public int read() {
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      return this.buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, this.buffer.remaining());
+      this.buffer.get(bytes, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, this.buffer.remaining()));
+      this.buffer.position(this.buffer.position() + skipped);
+      return skipped;
+    }
+  }
+
   /**
    * Helper class for {@link Utils#asElementList(NodeList)}.
    */
@@ -49,6 +102,18 @@ class Utils { // NOPMD
 
   private static final Logger logger = LoggerFactory.getLogger(Utils.class);
 
+  /**
+   * Fingerprints are computed on every credential-related query, so each thread reuses its own
+   * SHA-256 digest (instead of looking up a new one every time).
+   */
+  private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  });
+
   private static void trySetFeature(DocumentBuilderFactory factory, String feature, boolean value) {
     try {
       factory.setFeature(feature, value);
@@ -80,38 +145,57 @@ class Utils { // NOPMD
     return list.getLength() == 0 ? Collections.<Node>emptyList() : new NodeListWrapper(list);
   }
 
+  /**
+   * Compute a SHA-256 fingerprint of the content of the given element (including its attributes
+   * and all its descendants).
+   *
+   * <p>
+   * Elements with equal fingerprints have the same names, attributes (the order doesn't matter) and
+   * content, so any data extracted from one of them is also valid for the other.
+   * </p>
+   *
+   * @param elem the element to compute the fingerprint for.
+   * @return lower-case hex string.
+   */
+  static String computeContentFingerprint(Element elem) {
+    MessageDigest md = getSha256();
+    updateContentDigest(md, elem);
+    return printHexBinary(md.digest());
+  }
+
   static String extractFingerprint(Certificate cert) {
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
-    }
+    MessageDigest md = getSha256();
     try {
       md.update(cert.getEncoded());
     } catch (CertificateEncodingException e) {
       throw new RuntimeException(e);
     }
     byte[] binDigest = md.digest();
-    return printHexBinary(binDigest).toLowerCase(Locale.ENGLISH);
+    return printHexBinary(binDigest);
   }
 
   static String extractFingerprint(RSAPublicKey publicKey) {
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
-    }
+    MessageDigest md = getSha256();
     md.update(publicKey.getEncoded());
     byte[] binDigest = md.digest();
-    return printHexBinary(binDigest).toLowerCase(Locale.ENGLISH);
+    return printHexBinary(binDigest);
   }
 
-  private static final char[] hexCode = "0123456789ABCDEF".toCharArray();
+  /**
+   * @return This thread's SHA-256 digest, ready to use.
+   */
+  private static MessageDigest getSha256() {
+    MessageDigest md = sha256.get();
+    // In case the previous use has been interrupted by an exception.
+    md.reset();
+    return md;
+  }
+
+  private static final char[] hexCode = "0123456789abcdef".toCharArray();
 
   // javax.xml.bind.DatatypeConverter copy so that code can work with JDK >=11 without any
-  // additional jar (DatatypeConverter was removed in JDK 11 and Deprecated since JDK 9)
+  // additional jar (DatatypeConverter was removed in JDK 11 and Deprecated since JDK 9). Unlike
+  // the original, it produces lower-case output (which is what all our fingerprints use).
   private static String printHexBinary(byte[] data) {
     StringBuilder builder = new StringBuilder(data.length * 2);
     for (byte b : data) {
@@ -121,6 +205,46 @@ class Utils { // NOPMD
     return builder.toString();
   }
 
+  /**
+   * Feed a length-prefixed string to the digest (so that different sequences of strings never
+   * produce the same input).
+   */
+  private static void updateDigest(MessageDigest md, char type, String value) {
+    byte[] data = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    md.update((byte) type);
+    md.update(ByteBuffer.allocate(4).putInt(data.length).array());
+    md.update(data);
+  }
+
+  private static void updateContentDigest(MessageDigest md, Node node) {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        updateDigest(md, '<', node.getNamespaceURI());
+        updateDigest(md, ' ', node.getLocalName());
+        NamedNodeMap attrs = node.getAttributes();
+        List<String> attrKeys = new ArrayList<>(attrs.getLength());
+        for (int i = 0; i < attrs.getLength(); i++) {
+          Attr attr = (Attr) attrs.item(i);
+          attrKeys.add("{" + attr.getNamespaceURI() + "}" + attr.getName() + "=" + attr.getValue());
+        }
+        Collections.sort(attrKeys);
+        for (String attrKey : attrKeys) {
+          updateDigest(md, '@', attrKey);
+        }
+        for (Node child : asNodeList(node.getChildNodes())) {
+          updateContentDigest(md, child);
+        }
+        md.update((byte) '>');
+        break;
+      case Node.TEXT_NODE:
+      case Node.CDATA_SECTION_NODE:
+        updateDigest(md, 't', node.getNodeValue());
+        break;
+      default:
+        // Comments and processing instructions don't carry any data we'd use.
+    }
+  }
+
   /**
    * Get a new, safely configured instance of {@link DocumentBuilder}.
    *
@@ -0,0 +1,209 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueBuildReport.Phase;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.QueryFamily;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder implementation of {@link FlightRecorderEvents}.
+ *
+ * <p>
+ * This class requires JDK 11 or later. It is compiled separately from the rest of the library, and
+ * it is loaded reflectively (see {@link FlightRecorderEvents#INSTANCE}). All events belong to the
+ * "EWP Registry Client" category. Query events are disabled by default (they need to be enabled
+ * explicitly in the recording's settings).
+ * </p>
+ */
+class JfrFlightRecorderEvents extends FlightRecorderEvents {
+
+  private static final String PREFIX = "eu.erasmuswithoutpaper.registryclient.";
+
+  @Name(PREFIX + "CatalogueFetch")
+  @Label("Catalogue Fetch")
+  @Description("A catalogue fetched from the Registry Service")
+  @Category("EWP Registry Client")
+  @StackTrace(false)
+  static class FetchEvent extends Event {
+
+    @Label("Status")
+    @Description("HTTP status of the response (0 if the fetch has failed)")
+    int status;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name(PREFIX + "CatalogueBuildPhase")
+  @Label("Catalogue Build Phase")
+  @Description("A single phase of parsing the catalogue and building its indexes")
+  @Category("EWP Registry Client")
+  @StackTrace(false)
+  static class BuildPhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+  }
+
+  @Name(PREFIX + "CatalogueSwap")
+  @Label("Catalogue Swap")
+  @Description("A new copy of the catalogue put to use")
+  @Category("EWP Registry Client")
+  @StackTrace(false)
+  static class SwapEvent extends Event {
+
+    @Label("Previous ETag")
+    String previousETag;
+
+    @Label("ETag")
+    String newETag;
+  }
+
+  @Name(PREFIX + "PersistentCacheAccess")
+  @Label("Persistent Cache Access")
+  @Description("A catalogue-related entry read from, or written to, the persistent cache")
+  @Category("EWP Registry Client")
+  @StackTrace(false)
+  static class CacheAccessEvent extends Event {
+
+    @Label("Key")
+    String key;
+
+    @Label("Write")
+    boolean write;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name(PREFIX + "Query")
+  @Label("Registry Client Query")
+  @Description("A sampled RegistryClient query")
+  @Category("EWP Registry Client")
+  @Enabled(false)
+  static class QueryEvent extends Event {
+
+    @Label("Family")
+    String family;
+
+    @Label("Query Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long queryDuration;
+  }
+
+  private static Object begin(EventType type, Event event) {
+    if (!type.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  private final EventType buildPhaseType = EventType.getEventType(BuildPhaseEvent.class);
+  private final EventType cacheAccessType = EventType.getEventType(CacheAccessEvent.class);
+  private final EventType fetchType = EventType.getEventType(FetchEvent.class);
+  private final EventType queryType = EventType.getEventType(QueryEvent.class);
+  private final EventType swapType = EventType.getEventType(SwapEvent.class);
+
+  @Override
+  Object beginBuildPhase() {
+    return begin(this.buildPhaseType, new BuildPhaseEvent());
+  }
+
+  @Override
+  Object beginCacheAccess() {
+    return begin(this.cacheAccessType, new CacheAccessEvent());
+  }
+
+  @Override
+  Object beginFetch() {
+    return begin(this.fetchType, new FetchEvent());
+  }
+
+  @Override
+  Object beginSwap() {
+    return begin(this.swapType, new SwapEvent());
+  }
+
+  @Override
+  void endBuildPhase(Object event, Phase phase) {
+    if (event == null) {
+      return;
+    }
+    BuildPhaseEvent buildPhase = (BuildPhaseEvent) event;
+    buildPhase.end();
+    if (buildPhase.shouldCommit()) {
+      buildPhase.phase = phase.name();
+      buildPhase.commit();
+    }
+  }
+
+  @Override
+  void endCacheAccess(Object event, String key, boolean write, long bytes) {
+    if (event == null) {
+      return;
+    }
+    CacheAccessEvent access = (CacheAccessEvent) event;
+    access.end();
+    if (access.shouldCommit()) {
+      access.key = key;
+      access.write = write;
+      access.bytes = bytes;
+      access.commit();
+    }
+  }
+
+  @Override
+  void endFetch(Object event, int status, long bytes) {
+    if (event == null) {
+      return;
+    }
+    FetchEvent fetch = (FetchEvent) event;
+    fetch.end();
+    if (fetch.shouldCommit()) {
+      fetch.status = status;
+      fetch.bytes = bytes;
+      fetch.commit();
+    }
+  }
+
+  @Override
+  void endSwap(Object event, String previousETag, String newETag) {
+    if (event == null) {
+      return;
+    }
+    SwapEvent swap = (SwapEvent) event;
+    swap.end();
+    if (swap.shouldCommit()) {
+      swap.previousETag = previousETag;
+      swap.newETag = newETag;
+      swap.commit();
+    }
+  }
+
+  @Override
+  boolean isQueryEnabled() {
+    return this.queryType.isEnabled();
+  }
+
+  @Override
+  void queryCompleted(QueryFamily family, long duration) {
+    QueryEvent query = new QueryEvent();
+    if (query.shouldCommit()) {
+      query.family = family.name();
+      query.queryDuration = duration;
+      query.commit();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collection;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Verifies that the hot {@link RegistryClient} queries stay within their per-call allocation
+ * budgets.
+ *
+ * <p>
+ * Each query is first warmed up (so that it gets JIT-compiled), and then the average number of
+ * bytes allocated per call is measured with the current thread's allocation counter (see
+ * <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes</code>). The budgets have some
+ * headroom for JVM differences (e.g. no escape analysis), but they are low enough to catch a query
+ * which starts copying collections, allocating digests, or building temporary strings. If the JVM
+ * cannot measure allocations, then these tests are skipped.
+ * </p>
+ */
+public class AllocationBudgetTests extends TestBase {
+
+  private interface Query {
+    Object call() throws Exception;
+  }
+
+  private static final int WARMUP_CALLS = 20000;
+  private static final int MEASURED_CALLS = 2000;
+
+  private static com.sun.management.ThreadMXBean threadBean;
+  private static ClientImpl cli;
+  private static Certificate cert1024;
+  private static RSAPublicKey public1024;
+  private static Element api;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      threadBean = (com.sun.management.ThreadMXBean) bean;
+      if (!threadBean.isThreadAllocatedMemorySupported()) {
+        threadBean = null;
+      } else if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+      }
+    }
+
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    cli = new ClientImpl(options);
+    cli.refresh();
+
+    cert1024 = getCert("cert1024.pem");
+    public1024 = getPublicKey("public1024.pem");
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired("urn:bla", "standalone2");
+    api = cli.findApi(conds);
+    assertThat(api).isNotNull();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    cli.close();
+  }
+
+  // The fingerprint-based queries are bound by the copies returned by getEncoded(), and by the
+  // fingerprint string itself (certificates are larger than raw keys, hence the larger budget).
+
+  @Test
+  public void testCertificateQueries() {
+    assertThat(cli.isCertificateKnown(cert1024)).isTrue();
+    assertThat(cli.isHeiCoveredByCertificate("john.example.com", cert1024)).isTrue();
+
+    this.assertBudget("isCertificateKnown", 1280, () -> cli.isCertificateKnown(cert1024));
+    this.assertBudget("isHeiCoveredByCertificate", 1280,
+        () -> cli.isHeiCoveredByCertificate("john.example.com", cert1024));
+    this.assertBudget("getHeisCoveredByCertificate", 1280,
+        () -> cli.getHeisCoveredByCertificate(cert1024));
+  }
+
+  @Test
+  public void testClientKeyQueries() {
+    String[] heiIds = new String[] { "john.example.com", "bob.example.com" };
+    assertThat(cli.isClientKeyKnown(public1024)).isTrue();
+    assertThat(cli.isHeiCoveredByClientKey("john.example.com", public1024)).isTrue();
+    assertThat(cli.areHeisCoveredByClientKey(heiIds, public1024)).isTrue();
+
+    this.assertBudget("isClientKeyKnown", 640, () -> cli.isClientKeyKnown(public1024));
+    this.assertBudget("isHeiCoveredByClientKey", 640,
+        () -> cli.isHeiCoveredByClientKey("john.example.com", public1024));
+    this.assertBudget("getHeisCoveredByClientKey", 640,
+        () -> cli.getHeisCoveredByClientKey(public1024));
+    this.assertBudget("areHeisCoveredByClientKey", 640,
+        () -> cli.areHeisCoveredByClientKey(heiIds, public1024));
+  }
+
+  @Test
+  public void testHeiQueries() {
+    assertThat(cli.findHei("bob.example.com")).isNotNull();
+    assertThat(cli.findHeiId("erasmus", " Bob01 ")).isEqualTo("bob.example.com");
+
+    this.assertBudget("findHei", 128, () -> cli.findHei("bob.example.com"));
+    this.assertBudget("findHeiId", 256, () -> cli.findHeiId("erasmus", " Bob01 "));
+  }
+
+  @Test
+  public void testServerKeyQueries() {
+    RSAPublicKey key = cli.getServerKeyCoveringApi(api);
+    assertThat(key).isNotNull();
+    String fingerprint = Utils.extractFingerprint(key);
+    assertThat(cli.isApiCoveredByServerKey(api, public1024)).isTrue();
+    assertThat(cli.findRsaPublicKey(fingerprint)).isEqualTo(key);
+
+    this.assertBudget("getServerKeyCoveringApi", 256, () -> cli.getServerKeyCoveringApi(api));
+    this.assertBudget("isApiCoveredByServerKey", 640,
+        () -> cli.isApiCoveredByServerKey(api, public1024));
+    this.assertBudget("findRsaPublicKey", 128, () -> cli.findRsaPublicKey(fingerprint));
+  }
+
+  @Test
+  public void testApiQueries() {
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired("urn:bla", "standalone2");
+    Collection<Element> apis = cli.findApis(conds);
+    assertThat(apis).isNotEmpty();
+
+    this.assertBudget("findApi", 1536, () -> cli.findApi(conds));
+    this.assertBudget("findApis", 1536, () -> cli.findApis(conds));
+  }
+
+  /**
+   * Warm up the query, and verify that it allocates less than the given number of bytes per call
+   * (on average).
+   */
+  private void assertBudget(String name, long budget, Query query) {
+    Assume.assumeTrue("Allocation measurement is not supported by this JVM", threadBean != null);
+    try {
+      for (int i = 0; i < WARMUP_CALLS; i++) {
+        query.call();
+      }
+      long threadId = Thread.currentThread().getId();
+      final long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < MEASURED_CALLS; i++) {
+        query.call();
+      }
+      long perCall = (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+      assertThat(perCall).as(name + " bytes allocated per call").isLessThanOrEqualTo(budget);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,418 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates large, synthetic <code>catalogue-v1</code> documents, for scale testing.
+ *
+ * <p>
+ * The generated catalogues are deterministic: the same settings always produce exactly the same
+ * document (and the same credentials). Use {@link #setRevision(int)} to get a slightly different
+ * version of the same catalogue (e.g. to test refreshes).
+ * </p>
+ *
+ * <p>
+ * HEIs are split evenly (in document order) between hosts. Each host implements
+ * {@link #setApisPerHost(int)} of the {@link #setApiClassCount(int)} generated API classes (all of
+ * them with the local name {@value #API_LOCAL_NAME}, in {@link #getApiNamespace(int)} namespaces),
+ * and has its own set of client certificates, client keys and server keys.
+ * </p>
+ *
+ * <p>
+ * Note that the generated credentials are good only for identifying hosts. Certificates are not
+ * valid X.509 structures, and RSA keys don't have matching private keys (they are generated from
+ * random numbers, which is much faster than generating real key pairs).
+ * </p>
+ *
+ * @see FakeCatalogueFetcher#setCatalogueToUse(GeneratedCatalogue)
+ */
+public class CatalogueGenerator {
+
+  /**
+   * A generated catalogue, along with the credentials it refers to.
+   */
+  public static class GeneratedCatalogue {
+
+    private final byte[] content;
+    private final String eTag;
+    private final List<String> heiIds;
+    private final int hostCount;
+    private final List<List<Certificate>> certificates;
+    private final List<List<RSAPublicKey>> clientKeys;
+    private final List<List<RSAPublicKey>> serverKeys;
+
+    private GeneratedCatalogue(byte[] content, String eTag, List<String> heiIds, int hostCount,
+        List<List<Certificate>> certificates, List<List<RSAPublicKey>> clientKeys,
+        List<List<RSAPublicKey>> serverKeys) {
+      this.content = content;
+      this.eTag = eTag;
+      this.heiIds = Collections.unmodifiableList(heiIds);
+      this.hostCount = hostCount;
+      this.certificates = certificates;
+      this.clientKeys = clientKeys;
+      this.serverKeys = serverKeys;
+    }
+
+    /**
+     * @param host The index of the host.
+     * @return The client certificates used by this host.
+     */
+    public List<Certificate> getCertificates(int host) {
+      return this.certificates.get(host);
+    }
+
+    /**
+     * @param host The index of the host.
+     * @return The client keys used by this host.
+     */
+    public List<RSAPublicKey> getClientKeys(int host) {
+      return this.clientKeys.get(host);
+    }
+
+    /**
+     * @return The raw catalogue (UTF-8 encoded XML).
+     */
+    public byte[] getContent() {
+      return this.content;
+    }
+
+    /**
+     * @return The ETag of this catalogue (different for each revision).
+     */
+    public String getETag() {
+      return this.eTag;
+    }
+
+    /**
+     * @return All HEI IDs (in document order).
+     */
+    public List<String> getHeiIds() {
+      return this.heiIds;
+    }
+
+    /**
+     * @param host The index of the host.
+     * @return The IDs of the HEIs covered by this host.
+     */
+    public List<String> getHeiIds(int host) {
+      return this.heiIds.subList(getFirstHei(host, this.heiIds.size(), this.hostCount),
+          getFirstHei(host + 1, this.heiIds.size(), this.hostCount));
+    }
+
+    /**
+     * @return The number of hosts in the catalogue.
+     */
+    public int getHostCount() {
+      return this.hostCount;
+    }
+
+    /**
+     * @param hei The index of the HEI (in {@link #getHeiIds()}).
+     * @return The index of the host which covers this HEI.
+     */
+    public int getHostOf(int hei) {
+      return (int) ((long) hei * this.hostCount / this.heiIds.size());
+    }
+
+    /**
+     * @param host The index of the host.
+     * @return The server keys used by this host.
+     */
+    public List<RSAPublicKey> getServerKeys(int host) {
+      return this.serverKeys.get(host);
+    }
+
+    /**
+     * @param expires The expiry date to use.
+     * @return A new response containing this catalogue.
+     */
+    public CatalogueFetcher.Http200RegistryResponse newResponse(Date expires) {
+      return new CatalogueFetcher.Http200RegistryResponse(this.content, this.eTag, expires);
+    }
+  }
+
+  /**
+   * A {@link Certificate} which is nothing more than its encoding. This is all that
+   * {@link RegistryClient} needs (it identifies certificates by their SHA-256 fingerprints).
+   */
+  private static class FakeCertificate extends Certificate {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] encoded;
+
+    FakeCertificate(byte[] encoded) {
+      super("X.509");
+      this.encoded = encoded;
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return this.encoded.clone();
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+      return "FakeCertificate";
+    }
+
+    @Override
+    public void verify(PublicKey key) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void verify(PublicKey key, String sigProvider) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * The local name of all generated API entries.
+   */
+  public static final String API_LOCAL_NAME = "api";
+
+  private static final String[] OTHER_ID_TYPES =
+      { "erasmus", "pic", "previous-schac", "erasmus-charter" };
+
+  /**
+   * @param apiClass The index of the API class.
+   * @return The namespace URI of the generated API class.
+   */
+  public static String getApiNamespace(int apiClass) {
+    return "urn:generated:api" + apiClass;
+  }
+
+  private static int getFirstHei(int host, int heiCount, int hostCount) {
+    // The smallest i such that i * hostCount / heiCount >= host.
+    return (int) (((long) host * heiCount + hostCount - 1) / hostCount);
+  }
+
+  private int heiCount = 100;
+  private int hostCount = 10;
+  private int otherIdsPerHei = 2;
+  private int certificatesPerHost = 1;
+  private int clientKeysPerHost = 1;
+  private int serverKeysPerHost = 1;
+  private int apiClassCount = 10;
+  private int apisPerHost = 3;
+  private int versionsPerApiClass = 5;
+  private int revision = 0;
+  private long seed = 0;
+
+  /**
+   * Generate the catalogue.
+   *
+   * @return The generated catalogue.
+   */
+  public GeneratedCatalogue generate() {
+    Random random = new Random(this.seed);
+    List<String> heiIds = new ArrayList<>(this.heiCount);
+    for (int i = 0; i < this.heiCount; i++) {
+      heiIds.add("hei" + i + ".example.com");
+    }
+    List<List<Certificate>> certificates = new ArrayList<>(this.hostCount);
+    List<List<RSAPublicKey>> clientKeys = new ArrayList<>(this.hostCount);
+    List<List<RSAPublicKey>> serverKeys = new ArrayList<>(this.hostCount);
+    for (int host = 0; host < this.hostCount; host++) {
+      List<Certificate> certs = new ArrayList<>(this.certificatesPerHost);
+      for (int i = 0; i < this.certificatesPerHost; i++) {
+        certs.add(new FakeCertificate(("certificate " + i + " of host " + host + " (seed "
+            + this.seed + ")").getBytes(StandardCharsets.UTF_8)));
+      }
+      certificates.add(Collections.unmodifiableList(certs));
+      clientKeys.add(newKeys(random, this.clientKeysPerHost));
+      serverKeys.add(newKeys(random, this.serverKeysPerHost));
+    }
+
+    StringBuilder sb = new StringBuilder(this.heiCount * 512 + this.hostCount * 1024);
+    sb.append("<catalogue xmlns=\"").append(RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI)
+        .append("\">\n");
+    for (int host = 0; host < this.hostCount; host++) {
+      sb.append("<host>\n<apis-implemented>\n");
+      for (int i = 0; i < Math.min(this.apisPerHost, this.apiClassCount); i++) {
+        int apiClass = (host + i) % this.apiClassCount;
+        sb.append("<api xmlns=\"").append(getApiNamespace(apiClass)).append("\" version=\"1.")
+            .append((host + apiClass) % this.versionsPerApiClass).append(".0\">");
+        sb.append("<url>https://host").append(host).append(".example.com/api").append(apiClass)
+            .append("</url></api>\n");
+      }
+      sb.append("</apis-implemented>\n<institutions-covered>\n");
+      int end = getFirstHei(host + 1, this.heiCount, this.hostCount);
+      for (int i = getFirstHei(host, this.heiCount, this.hostCount); i < end; i++) {
+        sb.append("<hei-id>").append(heiIds.get(i)).append("</hei-id>\n");
+      }
+      sb.append("</institutions-covered>\n<client-credentials-in-use>\n");
+      for (Certificate cert : certificates.get(host)) {
+        sb.append("<certificate sha-256=\"").append(Utils.extractFingerprint(cert))
+            .append("\"/>\n");
+      }
+      for (RSAPublicKey key : clientKeys.get(host)) {
+        sb.append("<rsa-public-key sha-256=\"").append(Utils.extractFingerprint(key))
+            .append("\"/>\n");
+      }
+      sb.append("</client-credentials-in-use>\n<server-credentials-in-use>\n");
+      for (RSAPublicKey key : serverKeys.get(host)) {
+        sb.append("<rsa-public-key sha-256=\"").append(Utils.extractFingerprint(key))
+            .append("\"/>\n");
+      }
+      sb.append("</server-credentials-in-use>\n</host>\n");
+    }
+    sb.append("<institutions>\n");
+    for (int i = 0; i < this.heiCount; i++) {
+      sb.append("<hei id=\"").append(heiIds.get(i)).append("\">\n");
+      for (int j = 0; j < this.otherIdsPerHei; j++) {
+        sb.append("<other-id type=\"").append(OTHER_ID_TYPES[j % OTHER_ID_TYPES.length])
+            .append("\">").append(getOtherId(i, j)).append("</other-id>\n");
+      }
+      sb.append("<name xml:lang=\"en\">University ").append(i);
+      if (this.revision > 0 && i % 100 == this.revision % 100) {
+        sb.append(" (revision ").append(this.revision).append(')');
+      }
+      sb.append("</name>\n<name xml:lang=\"es\">Universidad ").append(i).append("</name>\n");
+      sb.append("</hei>\n");
+    }
+    sb.append("</institutions>\n<binaries>\n");
+    for (int host = 0; host < this.hostCount; host++) {
+      appendKeys(sb, clientKeys.get(host));
+      appendKeys(sb, serverKeys.get(host));
+    }
+    sb.append("</binaries>\n</catalogue>\n");
+    return new GeneratedCatalogue(sb.toString().getBytes(StandardCharsets.UTF_8),
+        "generated-" + this.seed + "-r" + this.revision, heiIds, this.hostCount, certificates,
+        clientKeys, serverKeys);
+  }
+
+  /**
+   * @param hei The index of the HEI.
+   * @param index The index of the other-id (its type is determined by this index).
+   * @return The value of this other-id, as it appears in the generated catalogue.
+   */
+  public static String getOtherId(int hei, int index) {
+    return (index / OTHER_ID_TYPES.length) + "-" + (100000 + hei);
+  }
+
+  /**
+   * @param index The index of the other-id.
+   * @return The type of this other-id, as it appears in the generated catalogue.
+   */
+  public static String getOtherIdType(int index) {
+    return OTHER_ID_TYPES[index % OTHER_ID_TYPES.length];
+  }
+
+  public CatalogueGenerator setApiClassCount(int apiClassCount) {
+    this.apiClassCount = requirePositive(apiClassCount);
+    return this;
+  }
+
+  public CatalogueGenerator setApisPerHost(int apisPerHost) {
+    this.apisPerHost = requireNonNegative(apisPerHost);
+    return this;
+  }
+
+  public CatalogueGenerator setCertificatesPerHost(int certificatesPerHost) {
+    this.certificatesPerHost = requireNonNegative(certificatesPerHost);
+    return this;
+  }
+
+  public CatalogueGenerator setClientKeysPerHost(int clientKeysPerHost) {
+    this.clientKeysPerHost = requireNonNegative(clientKeysPerHost);
+    return this;
+  }
+
+  public CatalogueGenerator setHeiCount(int heiCount) {
+    this.heiCount = requirePositive(heiCount);
+    return this;
+  }
+
+  public CatalogueGenerator setHostCount(int hostCount) {
+    this.hostCount = requirePositive(hostCount);
+    return this;
+  }
+
+  public CatalogueGenerator setOtherIdsPerHei(int otherIdsPerHei) {
+    this.otherIdsPerHei = requireNonNegative(otherIdsPerHei);
+    return this;
+  }
+
+  /**
+   * Each revision (other than 0) renames a different one in a hundred HEIs.
+   */
+  public CatalogueGenerator setRevision(int revision) {
+    this.revision = requireNonNegative(revision);
+    return this;
+  }
+
+  /**
+   * Different seeds produce different credentials (everything else stays the same).
+   */
+  public CatalogueGenerator setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  public CatalogueGenerator setServerKeysPerHost(int serverKeysPerHost) {
+    this.serverKeysPerHost = requireNonNegative(serverKeysPerHost);
+    return this;
+  }
+
+  public CatalogueGenerator setVersionsPerApiClass(int versionsPerApiClass) {
+    this.versionsPerApiClass = requirePositive(versionsPerApiClass);
+    return this;
+  }
+
+  private void appendKeys(StringBuilder sb, List<RSAPublicKey> keys) {
+    for (RSAPublicKey key : keys) {
+      sb.append("<rsa-public-key sha-256=\"").append(Utils.extractFingerprint(key)).append("\">")
+          .append(Base64.getEncoder().encodeToString(key.getEncoded()))
+          .append("</rsa-public-key>\n");
+    }
+  }
+
+  private List<RSAPublicKey> newKeys(Random random, int count) {
+    List<RSAPublicKey> keys = new ArrayList<>(count);
+    try {
+      KeyFactory factory = KeyFactory.getInstance("RSA");
+      for (int i = 0; i < count; i++) {
+        BigInteger modulus = new BigInteger(1024, random).setBit(1023).setBit(0);
+        keys.add((RSAPublicKey) factory
+            .generatePublic(new RSAPublicKeySpec(modulus, BigInteger.valueOf(65537))));
+      }
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    return Collections.unmodifiableList(keys);
+  }
+
+  private int requireNonNegative(int value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    return value;
+  }
+
+  private int requirePositive(int value) {
+    if (value <= 0) {
+      throw new IllegalArgumentException();
+    }
+    return value;
+  }
+}
@@ -4,41 +4,194 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.interfaces.RSAPublicKey;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import eu.erasmuswithoutpaper.registryclient.CatalogueBuildReport.Phase;
+import eu.erasmuswithoutpaper.registryclient.CatalogueChangeEvent.ApiChange;
+import eu.erasmuswithoutpaper.registryclient.ClientImpl.RefreshCircuitState;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.CatalogueSource;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.QueryFamily;
+import eu.erasmuswithoutpaper.registryclient.MetricsListener.RefreshOutcome;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
 import eu.erasmuswithoutpaper.registryclient.RegistryClient.UnacceptableStalenessException;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.w3c.dom.Element;
 
 public class ClientImplIntegrationTests extends TestBase {
 
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   @Test
-  public void testPersistentCacheUsage() {
+  public void testFilePersistentCacheMap() throws Exception {
 
-    // We will use these fetchers in this test.
+    Path dir = this.tempFolder.getRoot().toPath().resolve("cache");
+    FilePersistentCacheMap cache = new FilePersistentCacheMap(dir);
+    assertThat(Files.isDirectory(dir)).isTrue();
+    assertThat(cache).isEmpty();
+
+    // Basic map operations. Any string should be a valid key.
+
+    cache.put("simple-key", new byte[] { 1, 2, 3 });
+    cache.put("../weird/key: \u0105", new byte[] { 4 });
+    cache.put(".hidden", new byte[0]);
+    assertThat(cache).hasSize(3);
+    assertThat(cache.keySet()).containsOnly("simple-key", "../weird/key: \u0105", ".hidden");
+    assertThat(cache.get("simple-key")).containsExactly(1, 2, 3);
+    assertThat(cache.get("../weird/key: \u0105")).containsExactly(4);
+    assertThat(cache.get(".hidden")).isEmpty();
+    assertThat(cache.get("missing")).isNull();
+    assertThat(cache.getBuffer("missing")).isNull();
+    assertThat(cache.containsKey("simple-key")).isTrue();
+    assertThat(cache.containsKey("missing")).isFalse();
+    try (Stream<Path> files = Files.list(dir)) {
+      // Entries must not escape the directory, and no temporary files should be left behind.
+      assertThat(files.filter(p -> !p.getFileName().toString().endsWith(".cache"))).isEmpty();
+    }
+
+    // Buffers should remain valid after the entry is replaced.
+
+    ByteBuffer buffer = cache.getBuffer("simple-key");
+    assertThat(buffer.isReadOnly()).isTrue();
+    cache.put("simple-key", new byte[] { 5, 6 });
+    assertThat(buffer.remaining()).isEqualTo(3);
+    assertThat(buffer.get(2)).isEqualTo((byte) 3);
+    assertThat(cache.get("simple-key")).containsExactly(5, 6);
+
+    // Entries are compared by their values' contents.
+
+    Map.Entry<String, byte[]> entry = null;
+    for (Map.Entry<String, byte[]> candidate : cache.entrySet()) {
+      if (candidate.getKey().equals("simple-key")) {
+        entry = candidate;
+      }
+    }
+    assertThat(entry).isEqualTo(entry);
+    assertThat(entry).isEqualTo(new SimpleEntry<>("simple-key", new byte[] { 5, 6 }));
+    assertThat(entry).isNotEqualTo(new SimpleEntry<>("simple-key", new byte[] { 5 }));
+    assertThat(entry.hashCode()).isEqualTo(entry.hashCode());
+    assertThat(cache.hashCode()).isEqualTo(cache.hashCode());
+
+    // A new instance should see the same entries.
 
-    final CatalogueFetcher fetcher1 = new CatalogueFetcher() {
+    cache.remove("../weird/key: \u0105");
+    assertThat(new FilePersistentCacheMap(dir)).containsOnlyKeys("simple-key", ".hidden");
+    cache.clear();
+    assertThat(new FilePersistentCacheMap(dir)).isEmpty();
+
+    // Temporary files left behind by crashed processes are removed (unless they are fresh).
+
+    Path staleTemp = Files.write(dir.resolve("write-1.tmp"), new byte[] { 1 });
+    Files.setLastModifiedTime(staleTemp,
+        FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    Path freshTemp = Files.write(dir.resolve("write-2.tmp"), new byte[] { 1 });
+    assertThat(new FilePersistentCacheMap(dir)).isEmpty();
+    assertThat(staleTemp).doesNotExist();
+    assertThat(freshTemp).exists();
+    Files.delete(freshTemp);
+
+    // Use it as ClientImpl's cache.
+
+    ClientImplOptions options = new ClientImplOptions();
+    options.setIndexSnapshotCaching(true);
+    options.setPersistentCacheMap(cache);
+    final CatalogueFetcher delegate = fetcher("catalogue1.xml", 300000);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
 
       @Override
       public RegistryResponse fetchCatalogue(String eTag) throws IOException {
-        byte[] content = TestBase.getFile("catalogue1.xml");
-        String newETag = "catalogue1.xml";
-        Date expires = new Date(new Date().getTime() + 300000);
-        return new Http200RegistryResponse(content, newETag, expires);
+        if ("catalogue1.xml".equals(eTag)) {
+          return new Http304RegistryResponse(new Date(new Date().getTime() + 600000));
+        }
+        return delegate.fetchCatalogue(eTag);
       }
-    };
-    final CatalogueFetcher fetcher2 = new CatalogueFetcher() {
+    });
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      assertThat(cli.findApis(new ApiSearchConditions())).hasSize(11);
+    }
+    assertThat(cache).containsKeys("latest-catalogue", "latest-catalogue-index");
+    byte[] cachedCatalogue = cache.get("latest-catalogue");
+
+    // HTTP 304 responses should extend the expiry date without rewriting the catalogue.
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      assertThat(cli.getExpiryDate()).isAfter(new Date(new Date().getTime() + 400000));
+    }
+    assertThat(cache.get("latest-catalogue")).isEqualTo(cachedCatalogue);
+    Date cachedExpiry =
+        CatalogueMetadata.deserialize(cache.getBuffer("latest-catalogue-meta")).getExpires();
+    assertThat(cachedExpiry).isAfter(new Date(new Date().getTime() + 400000));
+
+    options.setCatalogueFetcher(failingFetcher());
+    try (RegistryClient cli = new ClientImpl(options)) {
+      this.verifyCatalogue1(cli);
+    }
+
+    // Cache errors should never break the refreshes (they are treated as cache misses).
+
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    options.setCatalogueFetcher(fetcher);
+    options.setPersistentCacheMap(new HashMap<String, byte[]>() {
+      private static final long serialVersionUID = 1L;
 
       @Override
-      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
-        throw new IOException();
+      public byte[] get(Object key) {
+        throw new UncheckedIOException(new IOException("Unreadable"));
       }
-    };
+
+      @Override
+      public byte[] put(String key, byte[] value) {
+        throw new UncheckedIOException(new IOException("Disk full"));
+      }
+    });
+    try (RegistryClient cli = new ClientImpl(options)) {
+      cli.refresh();
+      this.verifyCatalogue1(cli);
+    }
+  }
+
+  @Test
+  public void testPersistentCacheUsage() {
+
+    // We will use these fetchers in this test.
+
+    final CatalogueFetcher fetcher1 = fetcher("catalogue1.xml", 300000);
+    final CatalogueFetcher fetcher2 = failingFetcher();
 
     /*
      * We will use a simple in-memory cache. Note that these options will be reused for many clients
@@ -109,4 +262,1231 @@ public class ClientImplIntegrationTests extends TestBase {
     }
   }
 
+  @Test
+  public void testIndexSnapshotCaching() {
+
+    final CatalogueFetcher fetcher1 = fetcher("catalogue1.xml", 300000);
+    final CatalogueFetcher fetcher2 = failingFetcher();
+
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setIndexSnapshotCaching(true);
+    Map<String, byte[]> cache = new HashMap<>();
+    options.setPersistentCacheMap(cache);
+
+    // Fetch the catalogue. Both the catalogue and its index snapshot should be cached.
+
+    options.setCatalogueFetcher(fetcher1);
+    try (RegistryClient cli = new ClientImpl(options)) {
+      assertThat(cli.findApis(new ApiSearchConditions())).hasSize(11);
+    }
+    assertThat(cache).containsKeys("latest-catalogue", "latest-catalogue-index");
+    byte[] snapshot = cache.get("latest-catalogue-index");
+
+    // Load it from the snapshot. All queries should work as usual.
+
+    options.setCatalogueFetcher(fetcher2);
+    try (RegistryClient cli = new ClientImpl(options)) {
+      this.verifyCatalogue1(cli);
+    }
+
+    // Break the snapshot. The client should fall back to parsing, and fix the snapshot.
+
+    cache.put("latest-catalogue-index", "broken!".getBytes());
+    try (RegistryClient cli = new ClientImpl(options)) {
+      this.verifyCatalogue1(cli);
+    }
+    assertThat(cache.get("latest-catalogue-index")).isEqualTo(snapshot);
+
+    // Snapshots shouldn't be used if they don't match the cached catalogue.
+
+    cache.put("latest-catalogue", new CatalogueFetcher.Http200RegistryResponse(
+        TestBase.getFile("catalogue2.xml"), "catalogue2.xml", new Date()).serialize());
+    try (RegistryClient cli = new ClientImpl(options)) {
+      assertThat(cli.findApis(new ApiSearchConditions())).hasSize(1);
+    }
+  }
+
+  @Test
+  public void testLazyLoading() throws Exception {
+
+    final Date expires = new Date(new Date().getTime() + 300000);
+    final CatalogueFetcher fetcher1 = fetcher("catalogue1.xml", expires);
+    final CatalogueFetcher fetcher2 = failingFetcher();
+
+    ClientImplOptions options = new ClientImplOptions();
+    options.setLazyLoading(true);
+    Map<String, byte[]> cache = new HashMap<>();
+    options.setPersistentCacheMap(cache);
+
+    // Without a cached copy, the client is not ready until the catalogue is fetched.
+
+    options.setCatalogueFetcher(fetcher1);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(cli.getReadyFuture().isDone()).isFalse();
+      cli.refresh();
+      assertThat(cli.getReadyFuture().isDone()).isTrue();
+    }
+    assertThat(cache).containsKeys("latest-catalogue", "latest-catalogue-meta");
+
+    // The cached copy should not be loaded until the first query.
+
+    options.setCatalogueFetcher(fetcher2);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(cli.getReadyFuture().isDone()).isFalse();
+      assertThat(cli.getExpiryDate()).isEqualTo(expires);
+      this.verifyCatalogue1(cli);
+      assertThat(cli.getReadyFuture().isDone()).isTrue();
+    }
+
+    // Once reported, the expiry date should not move backwards when the catalogue is loaded.
+
+    byte[] metadata = cache.get("latest-catalogue-meta");
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cache.put("latest-catalogue-meta",
+          new CatalogueMetadata("catalogue1.xml", new Date(expires.getTime() - 60000)).serialize());
+      assertThat(cli.getExpiryDate()).isEqualTo(expires);
+      this.verifyCatalogue1(cli);
+      assertThat(cli.getExpiryDate()).isEqualTo(expires);
+    }
+
+    // Metadata of a different copy of the catalogue should not be applied.
+
+    Date laterExpires = new Date(expires.getTime() + 60000);
+    cache.put("latest-catalogue-meta", new CatalogueMetadata("other", laterExpires).serialize());
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(cli.getExpiryDate()).isEqualTo(laterExpires);
+      this.verifyCatalogue1(cli);
+      assertThat(cli.getExpiryDate()).isEqualTo(expires);
+    }
+    cache.put("latest-catalogue-meta", metadata);
+
+    // In auto-refreshing mode, it should be loaded in the background.
+
+    options.setAutoRefreshing(true);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.getReadyFuture().get(10, TimeUnit.SECONDS);
+      this.verifyCatalogue1(cli);
+    }
+
+    // Caches without metadata should still work (the catalogue is loaded during construction).
+
+    options.setAutoRefreshing(false);
+    cache.remove("latest-catalogue-meta");
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(cli.getReadyFuture().isDone()).isTrue();
+      this.verifyCatalogue1(cli);
+    }
+    assertThat(cache).containsKey("latest-catalogue-meta");
+  }
+
+  @Test
+  public void testInitialRefreshInBackground() throws Exception {
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setInitialRefreshInBackground(true);
+    final CatalogueFetcher delegate = fetcher("catalogue1.xml", 300000);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return delegate.fetchCatalogue(eTag);
+      }
+    });
+
+    // The constructor should not wait for the fetcher.
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(cli.awaitReady(100, TimeUnit.MILLISECONDS)).isFalse();
+      assertThat(cli.getReadyFuture().isDone()).isFalse();
+      latch.countDown();
+      assertThat(cli.awaitReady(10, TimeUnit.SECONDS)).isTrue();
+      assertThat(cli.getReadyFuture().isDone()).isTrue();
+      this.verifyCatalogue1(cli);
+    }
+  }
+
+  @Test
+  public void testCatalogueSharing() throws Exception {
+
+    final AtomicInteger fetchCount = new AtomicInteger();
+    CatalogueFetcher fetcher = fetcher("catalogue1.xml", 300000, fetchCount);
+    ClientImplOptions options1 = new ClientImplOptions();
+    options1.setCatalogueSharing(true);
+    options1.setCatalogueFetcher(fetcher);
+    ClientImplOptions options2 = new ClientImplOptions();
+    options2.setCatalogueSharing(true);
+    options2.setCatalogueFetcher(fetcher);
+
+    ClientImpl cli1 = new ClientImpl(options1);
+    cli1.refresh();
+    assertThat(fetchCount.get()).isEqualTo(1);
+
+    // The second client should use the same copy (without fetching it again).
+
+    ClientImpl cli2 = new ClientImpl(options2);
+    assertThat(cli2.getReadyFuture().isDone()).isTrue();
+    this.verifyCatalogue1(cli2);
+    assertThat(fetchCount.get()).isEqualTo(1);
+
+    // It should remain usable after the first client is closed (even if closed twice).
+
+    cli1.close();
+    cli1.close();
+    this.verifyCatalogue1(cli2);
+
+    // Clients which don't share should have their own copies.
+
+    options1.setCatalogueSharing(false);
+    try (ClientImpl cli3 = new ClientImpl(options1)) {
+      assertThat(cli3.getReadyFuture().isDone()).isFalse();
+    }
+
+    // Once all clients are closed, the shared copy should be released.
+
+    cli2.close();
+    try (ClientImpl cli4 = new ClientImpl(options2)) {
+      assertThat(cli4.getReadyFuture().isDone()).isFalse();
+    }
+
+    // Default fetchers should be shared if they use the same Registry Service.
+
+    assertThat(new DefaultCatalogueFetcher()).isEqualTo(new DefaultCatalogueFetcher())
+        .isNotEqualTo(new DefaultCatalogueFetcher("dev-registry.erasmuswithoutpaper.eu"));
+    assertThat(new DefaultCatalogueFetcher().hashCode())
+        .isEqualTo(new DefaultCatalogueFetcher().hashCode());
+  }
+
+  @Test
+  public void testConcurrentCatalogueSharing() throws Exception {
+
+    final CountDownLatch fetchStarted = new CountDownLatch(1);
+    final CountDownLatch fetchAllowed = new CountDownLatch(1);
+    final AtomicInteger fetchCount = new AtomicInteger();
+    final CatalogueFetcher delegate = fetcher("catalogue1.xml", 300000, fetchCount);
+    CatalogueFetcher slowFetcher = new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        fetchStarted.countDown();
+        try {
+          fetchAllowed.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return delegate.fetchCatalogue(eTag);
+      }
+    };
+    ClientImplOptions slowOptions = new ClientImplOptions();
+    slowOptions.setCatalogueSharing(true);
+    slowOptions.setAutoRefreshing(true);
+    slowOptions.setCatalogueFetcher(slowFetcher);
+
+    // The first client refreshes the shared copy during its construction.
+
+    final BlockingQueue<ClientImpl> constructed = new LinkedBlockingQueue<>();
+    Thread first = new Thread(() -> constructed.add(new ClientImpl(slowOptions)));
+    first.start();
+    assertThat(fetchStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // The second one (differently configured) waits for it, without fetching it again.
+
+    ClientImplOptions joiningOptions = new ClientImplOptions();
+    joiningOptions.setCatalogueSharing(true);
+    joiningOptions.setCatalogueFetcher(slowFetcher);
+    Thread second = new Thread(() -> constructed.add(new ClientImpl(joiningOptions)));
+    second.start();
+
+    // Meanwhile, clients sharing other catalogues shouldn't be blocked.
+
+    FakeCatalogueFetcher otherFetcher = new FakeCatalogueFetcher();
+    otherFetcher.setCatalogueToUse("catalogue1.xml");
+    ClientImplOptions otherOptions = new ClientImplOptions();
+    otherOptions.setCatalogueSharing(true);
+    otherOptions.setCatalogueFetcher(otherFetcher);
+    try (ClientImpl other = new ClientImpl(otherOptions)) {
+      other.refresh();
+      this.verifyCatalogue1(other);
+    }
+    assertThat(constructed).isEmpty();
+
+    fetchAllowed.countDown();
+    first.join(10000);
+    second.join(10000);
+    assertThat(constructed).hasSize(2);
+    assertThat(fetchCount.get()).isEqualTo(1);
+    for (ClientImpl cli : constructed) {
+      this.verifyCatalogue1(cli);
+      cli.close();
+    }
+  }
+
+  @Test
+  public void testSharedRefreshExecutor() throws Exception {
+
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    executor.setRemoveOnCancelPolicy(true);
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setRefreshExecutor(executor);
+    options.setCatalogueFetcher(fetcher("catalogue1.xml", 300000));
+
+    try {
+      ClientImpl cli1 = new ClientImpl(options);
+      ClientImpl cli2 = new ClientImpl(options);
+
+      // Both clients should have their refresh tasks scheduled on the same executor.
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (executor.getQueue().size() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(executor.getQueue()).hasSize(2);
+
+      // Closing a client should cancel its task only (and leave the executor running).
+
+      cli1.close();
+      assertThat(executor.isShutdown()).isFalse();
+      assertThat(executor.getQueue()).hasSize(1);
+      this.verifyCatalogue1(cli2);
+      cli2.close();
+      assertThat(executor.getQueue()).isEmpty();
+      assertThat(executor.isShutdown()).isFalse();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testEarlyAndJitteredRefresh() throws Exception {
+
+    final List<Long> fetchTimes = Collections.synchronizedList(new ArrayList<Long>());
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setMinTimeBetweenQueries(10);
+    options.setEarlyRefreshTime(2500);
+    final CatalogueFetcher delegate = fetcher("catalogue1.xml", 3000);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        fetchTimes.add(System.currentTimeMillis());
+        return delegate.fetchCatalogue(eTag);
+      }
+    });
+
+    // The second fetch should happen well before the first copy expires.
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (fetchTimes.size() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(fetchTimes.size()).isGreaterThanOrEqualTo(2);
+      assertThat(fetchTimes.get(1) - fetchTimes.get(0)).isLessThan(2000);
+      assertThat(cli.getExpiryDate()).isAfter(new Date());
+    }
+
+    // Refresh times should be spread randomly within the jitter range.
+
+    options.setAutoRefreshing(false);
+    options.setRefreshJitter(1000);
+    CatalogueHolder holder = CatalogueHolder.acquire(options);
+    try {
+      Date expiry = new Date(1000000);
+      Set<Long> seen = new HashSet<>();
+      for (int i = 0; i < 100; i++) {
+        long time = holder.computeRefreshTime(expiry).getTime();
+        assertThat(time).isBetween(1000000L - 2500 - 1000, 1000000L - 2500);
+        seen.add(time);
+      }
+      assertThat(seen.size()).isGreaterThan(1);
+    } finally {
+      holder.release();
+    }
+  }
+
+  @Test
+  public void testRetryBackoffAndCircuitBreaker() throws Exception {
+
+    final AtomicInteger fetchCount = new AtomicInteger();
+    final CatalogueFetcher failingFetcher = failingFetcher(fetchCount);
+    final CatalogueFetcher workingFetcher = fetcher("catalogue1.xml", 300000);
+
+    // Retry delays should grow exponentially (up to the limit).
+
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(failingFetcher);
+    options.setTimeBetweenRetries(1000);
+    options.setRetryBackoffMultiplier(2.0);
+    options.setMaxTimeBetweenRetries(5000);
+    options.setCircuitBreakerThreshold(3);
+    options.setCircuitBreakerOpenTime(200);
+    InMemoryMetricsListener metrics = new InMemoryMetricsListener();
+    options.setMetricsListener(metrics);
+    CatalogueHolder holder = CatalogueHolder.acquire(options);
+    try {
+      List<Long> delays = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        try {
+          holder.refresh();
+          fail("Exception expected");
+        } catch (RefreshFailureException e) {
+          // Expected.
+        }
+        assertThat(holder.getConsecutiveFailures()).isEqualTo(i + 1);
+        if (i < 2) {
+          assertThat(holder.getCircuitState()).isEqualTo(RefreshCircuitState.CLOSED);
+        } else {
+          assertThat(holder.getCircuitState()).isEqualTo(RefreshCircuitState.OPEN);
+        }
+        delays.add(holder.computeRetryDelay());
+      }
+      assertThat(delays).containsExactly(1000L, 2000L, 4000L, 5000L);
+      assertThat(metrics.getCircuitState()).isEqualTo(RefreshCircuitState.OPEN);
+      assertThat(metrics.getCircuitStateChangeCount(RefreshCircuitState.OPEN)).isEqualTo(1);
+
+      // Once the open time passes, the circuit breaker should become half-open.
+
+      Thread.sleep(250);
+      assertThat(holder.getCircuitState()).isEqualTo(RefreshCircuitState.HALF_OPEN);
+
+      // A successful refresh should close it.
+
+      options.setCatalogueFetcher(workingFetcher);
+      holder.refresh();
+      assertThat(holder.getCircuitState()).isEqualTo(RefreshCircuitState.CLOSED);
+      assertThat(holder.getConsecutiveFailures()).isEqualTo(0);
+
+      // Both transitions should be reported.
+
+      assertThat(metrics.getCircuitStateChangeCount(RefreshCircuitState.HALF_OPEN)).isEqualTo(1);
+      assertThat(metrics.getCircuitStateChangeCount(RefreshCircuitState.CLOSED)).isEqualTo(1);
+      assertThat(metrics.getCircuitState()).isEqualTo(RefreshCircuitState.CLOSED);
+    } finally {
+      holder.release();
+    }
+
+    // Jitter should reduce the delays randomly.
+
+    options.setCatalogueFetcher(failingFetcher);
+    options.setRetryBackoffMultiplier(1.0);
+    options.setRetryJitter(0.5);
+    options.setCircuitBreakerThreshold(0);
+    holder = CatalogueHolder.acquire(options);
+    try {
+      try {
+        holder.refresh();
+        fail("Exception expected");
+      } catch (RefreshFailureException e) {
+        // Expected.
+      }
+      Set<Long> seen = new HashSet<>();
+      for (int i = 0; i < 100; i++) {
+        long delay = holder.computeRetryDelay();
+        assertThat(delay).isBetween(500L, 1000L);
+        seen.add(delay);
+      }
+      assertThat(seen.size()).isGreaterThan(1);
+    } finally {
+      holder.release();
+    }
+
+    // Once open, automatic refreshes should be suspended (but manual ones should not).
+
+    options.setAutoRefreshing(true);
+    options.setMinTimeBetweenQueries(10);
+    options.setTimeBetweenRetries(10);
+    options.setCircuitBreakerThreshold(2);
+    options.setCircuitBreakerOpenTime(3600000);
+    InMemoryMetricsListener autoMetrics = new InMemoryMetricsListener();
+    options.setMetricsListener(autoMetrics);
+    fetchCount.set(0);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (cli.getRefreshCircuitState() != RefreshCircuitState.OPEN
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(cli.getRefreshCircuitState()).isEqualTo(RefreshCircuitState.OPEN);
+      assertThat(cli.getConsecutiveRefreshFailures()).isEqualTo(2);
+      Thread.sleep(200);
+      assertThat(fetchCount.get()).isEqualTo(2);
+
+      // Only the failure of the automatic refresh is retried (until the circuit breaker closes).
+
+      assertThat(autoMetrics.getRetryDelayTimer().getCount()).isEqualTo(1);
+      assertThat(autoMetrics.getRetryDelayTimer().getMax(TimeUnit.MINUTES)).isGreaterThan(50);
+      try {
+        cli.refresh();
+        fail("Exception expected");
+      } catch (RefreshFailureException e) {
+        // Expected.
+      }
+      assertThat(fetchCount.get()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void testRefreshLockFile() throws Exception {
+
+    final AtomicInteger fetchCount = new AtomicInteger();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setMinTimeBetweenQueries(10);
+    options.setPersistentCacheMap(new ConcurrentHashMap<String, byte[]>());
+    Path lockFile = this.tempFolder.getRoot().toPath().resolve("refresh.lock");
+    options.setRefreshLockFile(lockFile);
+    options.setCatalogueFetcher(fetcher("catalogue1.xml", 1500, fetchCount));
+
+    // The first client fetches the catalogue. The second one loads it from the cache.
+
+    try (ClientImpl cli1 = new ClientImpl(options); ClientImpl cli2 = new ClientImpl(options)) {
+      assertThat(fetchCount.get()).isEqualTo(1);
+      this.verifyCatalogue1(cli2);
+
+      try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+          FileLock lock = channel.lock()) {
+
+        // While the lock is held by "another process", the clients should not fetch anything.
+
+        assertThat(lock.isValid()).isTrue();
+        Thread.sleep(2000);
+        assertThat(cli1.getExpiryDate()).isBefore(new Date());
+        assertThat(fetchCount.get()).isEqualTo(1);
+
+        // Once the "other process" stores a new copy, both should load it.
+
+        Date expires = new Date(new Date().getTime() + 300000);
+        Map<String, byte[]> cache = options.getPersistentCacheMap();
+        cache.put("latest-catalogue", new CatalogueFetcher.Http200RegistryResponse(
+            TestBase.getFile("catalogue2.xml"), "catalogue2.xml", expires).serialize());
+        cache.put("latest-catalogue-meta",
+            new CatalogueMetadata("catalogue2.xml", expires).serialize());
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((cli1.getExpiryDate().before(expires) || cli2.getExpiryDate().before(expires))
+            && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertThat(cli1.getExpiryDate()).isEqualTo(expires);
+        assertThat(cli2.getExpiryDate()).isEqualTo(expires);
+        assertThat(cli1.findApis(new ApiSearchConditions())).hasSize(1);
+        assertThat(cli2.findApis(new ApiSearchConditions())).hasSize(1);
+        assertThat(fetchCount.get()).isEqualTo(1);
+      }
+    }
+  }
+
+  @Test
+  public void testCatalogueChangeListener() throws Exception {
+
+    final AtomicReference<byte[]> content = new AtomicReference<>(getFile("catalogue1.xml"));
+    final AtomicInteger version = new AtomicInteger();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(true);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        Date expires = new Date(new Date().getTime() + 300000);
+        return new Http200RegistryResponse(content.get(), "v" + version.incrementAndGet(),
+            expires);
+      }
+    });
+    final BlockingQueue<CatalogueChangeEvent> events = new LinkedBlockingQueue<>();
+    CatalogueChangeListener listener = new CatalogueChangeListener() {
+
+      @Override
+      public void catalogueChanged(CatalogueChangeEvent event) {
+        events.add(event);
+      }
+    };
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.addCatalogueChangeListener(listener);
+
+      // Rename a HEI and change a version of one of the APIs.
+
+      String modified = new String(getFile("catalogue1.xml"), StandardCharsets.UTF_8)
+          .replace("<name>John's University</name>", "<name>John's College</name>")
+          .replace("<e2:echo version=\"2.1.17\">", "<e2:echo version=\"2.2.0\">");
+      content.set(modified.getBytes(StandardCharsets.UTF_8));
+      cli.refresh();
+      CatalogueChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+      assertThat(event).isNotNull();
+      assertThat(event.getPreviousETag()).isEqualTo("v1");
+      assertThat(event.getNewETag()).isEqualTo("v2");
+      assertThat(event.getAddedHeiIds()).isEmpty();
+      assertThat(event.getRemovedHeiIds()).isEmpty();
+      assertThat(event.getRenamedHeiIds()).containsExactly("john.example.com");
+      assertThat(event.getAddedCredentials()).isEmpty();
+      assertThat(event.getRevokedCredentials()).isEmpty();
+      assertThat(event.getApiChanges()).hasSize(1);
+      ApiChange change = event.getApiChanges().get(0);
+      assertThat(change.getType()).isEqualTo(ApiChange.Type.VERSION_CHANGED);
+      assertThat(change.getHostHeiIds()).containsExactly("bob.example.com");
+      assertThat(change.getLocalName()).isEqualTo("echo");
+      assertThat(change.getPreviousVersion()).isEqualTo("2.1.17");
+      assertThat(change.getNewVersion()).isEqualTo("2.2.0");
+
+      // Switch to a completely different catalogue.
+
+      content.set(getFile("catalogue2.xml"));
+      cli.refresh();
+      event = events.poll(10, TimeUnit.SECONDS);
+      assertThat(event).isNotNull();
+      assertThat(event.isEmpty()).isFalse();
+      assertThat(event.getAddedHeiIds()).isEmpty();
+      assertThat(event.getRemovedHeiIds()).containsExactlyInAnyOrder("bob.example.com",
+          "john.example.com", "fred.example.com", "weird.example.com");
+      assertThat(event.getAddedCredentials()).isEmpty();
+      assertThat(event.getRevokedCredentials()).contains(
+          "19fdd48a85595958035a1a42da8065709a585f78cc01b4df428f68eab39b9dda",
+          "4ecc086c841bc8ffa39ea03fa83243e4cda62cd5087e91a3259c09cb2278e15b");
+      boolean discoveryChanged = false;
+      for (ApiChange apiChange : event.getApiChanges()) {
+        if (apiChange.getHostHeiIds().isEmpty() && apiChange.getLocalName().equals("discovery")) {
+          assertThat(apiChange.getType()).isEqualTo(ApiChange.Type.VERSION_CHANGED);
+          assertThat(apiChange.getPreviousVersion()).isEqualTo("4.1.0");
+          assertThat(apiChange.getNewVersion()).isEqualTo("4.0.0");
+          discoveryChanged = true;
+        } else {
+          assertThat(apiChange.getType()).isEqualTo(ApiChange.Type.REMOVED);
+        }
+      }
+      assertThat(discoveryChanged).isTrue();
+
+      // Unregistered listeners should not be notified.
+
+      cli.removeCatalogueChangeListener(listener);
+      content.set(getFile("catalogue1.xml"));
+      cli.refresh();
+      assertThat(events.poll(200, TimeUnit.MILLISECONDS)).isNull();
+    }
+  }
+
+  @Test
+  public void testIncrementalRebuild() throws Exception {
+
+    final AtomicReference<byte[]> content = new AtomicReference<>(getFile("catalogue1.xml"));
+    final AtomicInteger version = new AtomicInteger();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        Date expires = new Date(new Date().getTime() + 300000);
+        return new Http200RegistryResponse(content.get(), "v" + version.incrementAndGet(),
+            expires);
+      }
+    });
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      this.verifyCatalogue1(cli);
+      RSAPublicKey key = cli.findRsaPublicKey(
+          "4ecc086c841bc8ffa39ea03fa83243e4cda62cd5087e91a3259c09cb2278e15b");
+      assertThat(key).isNotNull();
+
+      // Change a single host and a single HEI. Everything else should be reused.
+
+      String modified = new String(getFile("catalogue1.xml"), StandardCharsets.UTF_8)
+          .replace("<name>John's University</name>", "<name>John's College</name>")
+          .replace("<url>https://example.com/super-other</url>",
+              "<url>https://example.com/super-other-2</url>");
+      content.set(modified.getBytes(StandardCharsets.UTF_8));
+      cli.refresh();
+      this.verifyCatalogue1(cli);
+      assertThat(cli.findRsaPublicKey(
+          "4ecc086c841bc8ffa39ea03fa83243e4cda62cd5087e91a3259c09cb2278e15b")).isSameAs(key);
+      assertThat(cli.findHei("john.example.com").getName()).isEqualTo("John's College");
+      assertThat(cli.findHei("bob.example.com").getName("es")).isEqualTo("Universidad de Bob");
+      ApiSearchConditions conds = new ApiSearchConditions();
+      conds.setApiClassRequired("urn:other", "other-api", "1.1.7");
+      Element api = cli.findApi(conds);
+      assertThat(api.getElementsByTagNameNS("urn:other", "url").item(0).getTextContent())
+          .isEqualTo("https://example.com/super-other-2");
+      assertThat(cli.getHeisCoveredByClientKey(getPublicKey("public1024.pem")))
+          .containsExactlyInAnyOrder("bob.example.com", "john.example.com", "weird.example.com");
+      CatalogueBuildReport report = cli.getCatalogueBuildReport();
+      assertThat(report.getReusedHostCount()).isEqualTo(report.getHostCount() - 1);
+      assertThat(report.getReusedHeiCount()).isEqualTo(report.getHeiCount() - 1);
+      HeiEntry bob = cli.findHei("bob.example.com");
+
+      // Going back to the original version should work too. Unchanged HEIs should be carried
+      // forward as the same instances.
+
+      content.set(getFile("catalogue1.xml"));
+      cli.refresh();
+      this.verifyCatalogue1(cli);
+      assertThat(cli.findHei("john.example.com").getName()).isEqualTo("John's University");
+      assertThat(cli.findHei("bob.example.com")).isSameAs(bob);
+      report = cli.getCatalogueBuildReport();
+      assertThat(report.getReusedHostCount()).isEqualTo(report.getHostCount() - 1);
+      assertThat(report.getReusedHeiCount()).isEqualTo(report.getHeiCount() - 1);
+    }
+
+    // The same, at the document level. HEIs should be reused even if they were never queried, and
+    // unchanged hosts should keep their data.
+
+    Date expires = new Date(new Date().getTime() + 300000);
+    byte[] modified = new String(getFile("catalogue1.xml"), StandardCharsets.UTF_8)
+        .replace("<name>John's University</name>", "<name>John's College</name>")
+        .replace("<url>https://example.com/super-other</url>",
+            "<url>https://example.com/super-other-2</url>")
+        .getBytes(StandardCharsets.UTF_8);
+    RsaKeyCache keyCache = new RsaKeyCache();
+    CatalogueDocument doc1 = new CatalogueDocument(
+        new CatalogueFetcher.Http200RegistryResponse(getFile("catalogue1.xml"), "d1", expires),
+        (CatalogueDocument) null, keyCache, false);
+    CatalogueDocument doc2 = new CatalogueDocument(
+        new CatalogueFetcher.Http200RegistryResponse(modified, "d2", expires), doc1, keyCache,
+        false);
+    CatalogueDocument doc3 = new CatalogueDocument(
+        new CatalogueFetcher.Http200RegistryResponse(modified, "d3", expires), doc2, keyCache,
+        false);
+    CatalogueBuildReport report = doc2.getBuildReport();
+    assertThat(report.getReusedHeiCount()).isEqualTo(report.getHeiCount() - 1);
+    assertThat(report.getReusedHostCount()).isEqualTo(report.getHostCount() - 1);
+    assertThat(doc3.findHei("bob.example.com")).isSameAs(doc2.findHei("bob.example.com"));
+    assertThat(doc3.findHei("john.example.com").getName()).isEqualTo("John's College");
+    List<Set<String>> hostHeis1 = doc1.toIndexSnapshot().getHostHeis();
+    List<Set<String>> hostHeis2 = doc2.toIndexSnapshot().getHostHeis();
+    List<Set<String>> hostHeis3 = doc3.toIndexSnapshot().getHostHeis();
+    int sameHosts = 0;
+    for (int host = 0; host < hostHeis1.size(); host++) {
+      if (hostHeis2.get(host) == hostHeis1.get(host)) {
+        sameHosts++;
+      }
+      assertThat(hostHeis3.get(host)).isSameAs(hostHeis2.get(host));
+    }
+    assertThat(sameHosts).isEqualTo(hostHeis1.size() - 1);
+  }
+
+  @Test
+  public void testHeiEntriesSharing() throws Exception {
+    CatalogueGenerator generator = new CatalogueGenerator().setHeiCount(1000).setHostCount(30);
+    Date expires = new Date(new Date().getTime() + 300000);
+    RsaKeyCache keyCache = new RsaKeyCache();
+    CatalogueDocument doc0 = new CatalogueDocument(generator.generate().newResponse(expires),
+        (CatalogueDocument) null, keyCache, false);
+    CatalogueDocument doc1 = new CatalogueDocument(
+        generator.setRevision(1).generate().newResponse(expires), doc0, keyCache, false);
+    CatalogueDocument doc2 = new CatalogueDocument(
+        generator.setRevision(2).generate().newResponse(expires), doc1, keyCache, false);
+
+    // Revision 2 differs from revision 1 in 20 HEIs. All other entries, and most of the trie
+    // nodes, should be shared.
+
+    PersistentHashMap<String, HeiEntry> entries1 = doc1.getHeiEntries();
+    PersistentHashMap<String, HeiEntry> entries2 = doc2.getHeiEntries();
+    int sameEntries = 0;
+    for (Map.Entry<String, HeiEntry> entry : entries2.entrySet()) {
+      if (entries1.get(entry.getKey()) == entry.getValue()) {
+        sameEntries++;
+      }
+    }
+    assertThat(sameEntries).isEqualTo(980);
+    assertThat(entries2.countSharedNodes(entries1)).isGreaterThan(entries2.countNodes() / 2);
+
+    // Once all the entries are detached from the DOM, an unchanged catalogue should share the
+    // whole index.
+
+    CatalogueDocument doc3 = new CatalogueDocument(generator.generate().newResponse(expires),
+        doc2, keyCache, false);
+    CatalogueDocument doc4 = new CatalogueDocument(generator.generate().newResponse(expires),
+        doc3, keyCache, false);
+    assertThat(doc3.getBuildReport().getReusedHeiCount()).isEqualTo(1000);
+    assertThat(doc4.getHeiEntries()).isSameAs(doc3.getHeiEntries());
+  }
+
+  @Test
+  public void testLazyKeyDecoding() throws Exception {
+    String fingerprint = "4ecc086c841bc8ffa39ea03fa83243e4cda62cd5087e91a3259c09cb2278e15b";
+    CatalogueFetcher.Http200RegistryResponse response =
+        new CatalogueFetcher.Http200RegistryResponse(getFile("catalogue1.xml"), "catalogue1.xml",
+            new Date(new Date().getTime() + 300000));
+    CatalogueDocument eager = new CatalogueDocument(response);
+
+    // No keys should be decoded during construction.
+
+    RsaKeyCache keyCache = new RsaKeyCache();
+    CatalogueDocument lazy = new CatalogueDocument(response, (CatalogueDocument) null, keyCache,
+        true);
+    assertThat(keyCache.size()).isEqualTo(0);
+    String brokenFingerprint = "89a5cce39127d8d873b912fdc810b739584d212414b1c78f38b3f9db5973dcc4";
+    assertThat(eager.getRsaKeyFingerprints()).doesNotContain(brokenFingerprint);
+    assertThat(lazy.getRsaKeyFingerprints()).containsAll(eager.getRsaKeyFingerprints())
+        .contains(brokenFingerprint);
+    assertThat(lazy.toIndexSnapshot().getEncodedKeys()).containsKeys(
+        eager.getRsaKeyFingerprints().toArray(new String[0]));
+
+    // Keys should be decoded on first use, and memoized.
+
+    RSAPublicKey key = lazy.findRsaPublicKey(fingerprint);
+    assertThat(key).isEqualTo(eager.findRsaPublicKey(fingerprint));
+    assertThat(lazy.findRsaPublicKey(fingerprint)).isSameAs(key);
+    assertThat(keyCache.size()).isEqualTo(1);
+    assertThat(lazy.findRsaPublicKey("unknown")).isNull();
+
+    // Keys which cannot be decoded should be dropped, just like in the eager mode.
+
+    assertThat(lazy.findRsaPublicKey(brokenFingerprint)).isNull();
+    assertThat(lazy.getRsaKeyFingerprints()).isEqualTo(eager.getRsaKeyFingerprints());
+
+    // The same should work for the documents created from snapshots.
+
+    RsaKeyCache otherCache = new RsaKeyCache();
+    CatalogueDocument fromSnapshot =
+        new CatalogueDocument(response, lazy.toIndexSnapshot(), otherCache, true);
+    assertThat(otherCache.size()).isEqualTo(0);
+    assertThat(fromSnapshot.findRsaPublicKey(fingerprint)).isEqualTo(key);
+    assertThat(otherCache.size()).isEqualTo(1);
+
+    // And, of course, the client should behave just like in the eager mode.
+
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setLazyKeyDecoding(true);
+    options.setCatalogueFetcher(fetcher("catalogue1.xml", 300000));
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      this.verifyCatalogue1(cli);
+      assertThat(cli.findRsaPublicKey(fingerprint)).isSameAs(cli.findRsaPublicKey(fingerprint));
+    }
+  }
+
+  @Test
+  public void testRsaKeyCache() {
+    RsaKeyCache cache = new RsaKeyCache();
+    byte[] encoded1024 = getPublicKey("public1024.pem").getEncoded();
+    byte[] encoded2048 = getPublicKey("public2048.pem").getEncoded();
+
+    // The same key should be decoded only once.
+
+    RSAPublicKey key = cache.getOrDecode("k1", encoded1024);
+    assertThat(key.getEncoded()).isEqualTo(encoded1024);
+    assertThat(cache.getOrDecode("k1", encoded1024.clone())).isSameAs(key);
+
+    // A cached key must not be reused if its encoding differs.
+
+    RSAPublicKey otherKey = cache.getOrDecode("k1", encoded2048);
+    assertThat(otherKey).isNotSameAs(key);
+    assertThat(otherKey.getEncoded()).isEqualTo(encoded2048);
+    assertThat(cache.getOrDecode("k2", "broken!".getBytes(StandardCharsets.UTF_8))).isNull();
+
+    // Unused keys should be evicted.
+
+    cache.getOrDecode("k2", encoded1024);
+    assertThat(cache.size()).isEqualTo(2);
+    cache.retainAll(Collections.singleton("k2"));
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.getOrDecode("k1", encoded2048)).isNotSameAs(otherKey);
+
+    // Concurrent requests for the same key should get the same instance.
+
+    Set<RSAPublicKey> decoded = ConcurrentHashMap.newKeySet();
+    Stream.generate(encoded2048::clone).limit(1000).parallel()
+        .forEach(encoded -> decoded.add(cache.getOrDecode("k3", encoded)));
+    assertThat(decoded).hasSize(1);
+  }
+
+  @Test
+  public void testGeneratedCatalogue() throws Exception {
+    CatalogueGenerator generator = new CatalogueGenerator().setHeiCount(1000).setHostCount(30)
+        .setOtherIdsPerHei(5).setCertificatesPerHost(2).setClientKeysPerHost(2)
+        .setServerKeysPerHost(3).setApiClassCount(7).setApisPerHost(4).setVersionsPerApiClass(3);
+    CatalogueGenerator.GeneratedCatalogue catalogue = generator.generate();
+
+    // Generated catalogues should be deterministic.
+
+    assertThat(generator.generate().getContent()).isEqualTo(catalogue.getContent());
+    assertThat(generator.setSeed(1).generate().getContent()).isNotEqualTo(catalogue.getContent());
+    generator.setSeed(0);
+
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse(catalogue);
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    options.setAutoRefreshing(false);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      assertThat(cli.getAllHeis()).hasSize(1000);
+      int coveredHeis = 0;
+      for (int host = 0; host < catalogue.getHostCount(); host++) {
+        List<String> heiIds = catalogue.getHeiIds(host);
+        coveredHeis += heiIds.size();
+        for (RSAPublicKey key : catalogue.getClientKeys(host)) {
+          assertThat(cli.getHeisCoveredByClientKey(key))
+              .containsExactlyInAnyOrderElementsOf(heiIds);
+        }
+        assertThat(cli.getHeisCoveredByCertificate(catalogue.getCertificates(host).get(1)))
+            .hasSameSizeAs(heiIds);
+        for (RSAPublicKey key : catalogue.getServerKeys(host)) {
+          assertThat(cli.findRsaPublicKey(Utils.extractFingerprint(key))).isEqualTo(key);
+        }
+        for (int i = 0; i < heiIds.size(); i++) {
+          assertThat(catalogue.getHostOf(catalogue.getHeiIds().indexOf(heiIds.get(i))))
+              .isEqualTo(host);
+        }
+      }
+      assertThat(coveredHeis).isEqualTo(1000);
+      assertThat(cli.findHeiId(CatalogueGenerator.getOtherIdType(4),
+          CatalogueGenerator.getOtherId(123, 4))).isEqualTo("hei123.example.com");
+
+      ApiSearchConditions conds = new ApiSearchConditions();
+      conds.setApiClassRequired(CatalogueGenerator.getApiNamespace(3),
+          CatalogueGenerator.API_LOCAL_NAME);
+      conds.setRequiredHei("hei500.example.com");
+      Element api = cli.findApi(conds);
+      assertThat(api).isNotNull();
+      assertThat(cli.isApiCoveredByServerKey(api, catalogue.getServerKeys(15).get(2))).isTrue();
+
+      // A new revision should rename some HEIs.
+
+      fetcher.setCatalogueToUse(generator.setRevision(1).generate());
+      cli.refresh();
+      assertThat(cli.findHei("hei1.example.com").getName("en"))
+          .isEqualTo("University 1 (revision 1)");
+      assertThat(cli.findHei("hei2.example.com").getName("en")).isEqualTo("University 2");
+    }
+  }
+
+  @Test
+  public void testRegistrySimulator() throws Exception {
+    try (RegistrySimulator simulator = new RegistrySimulator()) {
+      simulator.setCatalogue(getFile("catalogue1.xml"), "catalogue1.xml");
+      ClientImplOptions options = new ClientImplOptions();
+      options.setCatalogueFetcher(simulator.newCatalogueFetcher());
+      options.setAutoRefreshing(false);
+      assertThat(options.getCatalogueFetcher()).isEqualTo(simulator.newCatalogueFetcher())
+          .isNotEqualTo(new DefaultCatalogueFetcher(simulator.getRegistryDomain()));
+      try (ClientImpl cli = new ClientImpl(options)) {
+        cli.refresh();
+        this.verifyCatalogue1(cli);
+        assertThat(cli.getExpiryDate()).isAfter(new Date(new Date().getTime() + 240000));
+        long uncompressed = simulator.getBytesSent();
+        assertThat(uncompressed).isEqualTo(getFile("catalogue1.xml").length);
+
+        // Conditional requests should be answered with HTTP 304.
+
+        simulator.setExpiresIn(600000);
+        cli.refresh();
+        assertThat(simulator.getNotModifiedCount()).isEqualTo(1);
+        assertThat(simulator.getBytesSent()).isEqualTo(uncompressed);
+        assertThat(cli.getExpiryDate()).isAfter(new Date(new Date().getTime() + 540000));
+
+        // Compressed responses should be decoded.
+
+        simulator.setGzipEnabled(true);
+        simulator.setCatalogue(getFile("catalogue2.xml"), "catalogue2.xml");
+        cli.refresh();
+        assertThat(simulator.getBytesSent() - uncompressed)
+            .isLessThan(getFile("catalogue2.xml").length);
+        assertThat(cli.findHei("bob.example.com")).isNull();
+        simulator.setConditionalRequestsSupported(false);
+        simulator.setCatalogue(getFile("catalogue1.xml"), "catalogue1.xml");
+        cli.refresh();
+        this.verifyCatalogue1(cli);
+        cli.refresh();
+        assertThat(simulator.getNotModifiedCount()).isEqualTo(1);
+
+        // Failures should be reported (and the previous copy kept).
+
+        simulator.failNextRequests(1, 503);
+        try {
+          cli.refresh();
+          fail("Exception expected.");
+        } catch (RefreshFailureException e) {
+          assertThat(e.getCause()).hasMessageContaining("503");
+        }
+        simulator.failNextRequests(10, 0);
+        try {
+          cli.refresh();
+          fail("Exception expected.");
+        } catch (RefreshFailureException e) {
+          // Expected.
+        }
+        simulator.failNextRequests(0, 0);
+        this.verifyCatalogue1(cli);
+
+        // Latency and bandwidth limits should slow the fetch down.
+
+        simulator.setGzipEnabled(false);
+        simulator.setLatency(100);
+        simulator.setBandwidth(getFile("catalogue1.xml").length * 5);
+        long start = System.nanoTime();
+        cli.refresh();
+        assertThat(System.nanoTime() - start).isGreaterThan(250000000L);
+        this.verifyCatalogue1(cli);
+      }
+    }
+  }
+
+  @Test
+  public void testMetricsListener() throws Exception {
+    InMemoryMetricsListener metrics = new InMemoryMetricsListener();
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    Map<String, byte[]> cache = new ConcurrentHashMap<>();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    options.setPersistentCacheMap(cache);
+    options.setMetricsListener(metrics);
+    try (ClientImpl cli = new ClientImpl(options)) {
+      assertThat(metrics.getParseTimer(CatalogueSource.REGISTRY).getCount()).isEqualTo(0);
+
+      // Refreshes should be timed, and their outcomes counted.
+
+      cli.refresh();
+      cli.refresh();
+      fetcher.setCatalogueToUse("non-existent.xml");
+      try {
+        cli.refresh();
+        fail("Exception expected.");
+      } catch (RefreshFailureException e) {
+        // Expected.
+      }
+      assertThat(metrics.getRefreshTimer(RefreshOutcome.UPDATED).getCount()).isEqualTo(1);
+      assertThat(metrics.getRefreshTimer(RefreshOutcome.NOT_MODIFIED).getCount()).isEqualTo(1);
+      assertThat(metrics.getRefreshTimer(RefreshOutcome.FAILED).getCount()).isEqualTo(1);
+      assertThat(metrics.getFetchTimer(200).getCount()).isEqualTo(1);
+      assertThat(metrics.getFetchTimer(304).getCount()).isEqualTo(1);
+      assertThat(metrics.getBytesFetched()).isEqualTo(getFile("catalogue1.xml").length);
+      assertThat(metrics.getParseTimer(CatalogueSource.REGISTRY).getCount()).isEqualTo(1);
+      assertThat(metrics.getParseTimer(CatalogueSource.REGISTRY).getTotal(TimeUnit.NANOSECONDS))
+          .isPositive();
+      // FakeCatalogueFetcher's responses expire immediately.
+      assertThat(metrics.getStaleness()).isGreaterThanOrEqualTo(0);
+
+      // Queries should be timed per family (each query exactly once).
+
+      this.verifyCatalogue1(cli);
+      for (QueryFamily family : QueryFamily.values()) {
+        assertThat(metrics.getQueryTimer(family).getCount()).as(family.toString()).isPositive();
+      }
+      long before = metrics.getQueryTimer(QueryFamily.CLIENT_KEY).getCount();
+      cli.isHeiCoveredByClientKey("bob.example.com", getPublicKey("public1536.pem"));
+      cli.assertHeiIsCoveredByClientKey("bob.example.com", getPublicKey("public1536.pem"));
+      assertThat(metrics.getQueryTimer(QueryFamily.CLIENT_KEY).getCount()).isEqualTo(before + 2);
+      assertThat(metrics.getQueryTimer(QueryFamily.CLIENT_KEY).getMax(TimeUnit.NANOSECONDS))
+          .isGreaterThanOrEqualTo(
+              (long) metrics.getQueryTimer(QueryFamily.CLIENT_KEY).getMean(TimeUnit.NANOSECONDS));
+    }
+
+    // Catalogues loaded from the cache should be reported too.
+
+    options.setIndexSnapshotCaching(true);
+    new ClientImpl(options).close();
+    assertThat(metrics.getParseTimer(CatalogueSource.CACHE).getCount()).isEqualTo(1);
+    new ClientImpl(options).close();
+    assertThat(metrics.getParseTimer(CatalogueSource.INDEX_SNAPSHOT).getCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCatalogueBuildReport() throws Exception {
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    Map<String, byte[]> cache = new ConcurrentHashMap<>();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    options.setPersistentCacheMap(cache);
+    options.setIndexSnapshotCaching(true);
+    try (ClientImpl cli = new ClientImpl(options)) {
+
+      // Before the first refresh, the empty placeholder is in use.
+
+      assertThat(cli.getCatalogueBuildReport().getHostCount()).isEqualTo(0);
+
+      cli.refresh();
+      CatalogueBuildReport report = cli.getCatalogueBuildReport();
+      assertThat(report.getETag()).isEqualTo("catalogue1.xml");
+      assertThat(report.getContentLength()).isEqualTo(getFile("catalogue1.xml").length);
+      assertThat(report.getPhases()).containsExactly(Phase.XML_PARSING, Phase.HOST_INDEXES,
+          Phase.OTHER_ID_INDEX, Phase.HEI_INDEX, Phase.KEY_DECODING, Phase.PERSISTENT_INDEXES);
+      long sum = 0;
+      for (Phase phase : report.getPhases()) {
+        sum += report.getDuration(phase, TimeUnit.NANOSECONDS);
+      }
+      assertThat(report.getTotalDuration(TimeUnit.NANOSECONDS)).isGreaterThanOrEqualTo(sum);
+      assertThat(report.getDuration(Phase.SNAPSHOT_RESTORE, TimeUnit.NANOSECONDS)).isEqualTo(0);
+      assertThat(report.getAllocatedBytes(Phase.XML_PARSING)).isNotEqualTo(0);
+      assertThat(report.getAllocatedBytes(Phase.SNAPSHOT_RESTORE)).isEqualTo(-1);
+      assertThat(report.getHeiCount()).isEqualTo(cli.getAllHeis().size());
+      assertThat(report.getHostCount()).isPositive();
+      assertThat(report.getReusedHostCount()).isEqualTo(0);
+      assertThat(report.getApiEntryCount()).isPositive();
+      assertThat(report.getRsaKeyCount()).isPositive();
+      long total = 0;
+      for (CatalogueIndex index : CatalogueIndex.values()) {
+        assertThat(report.getEstimatedSize(index)).as(index.toString()).isPositive();
+        total += report.getEstimatedSize(index);
+      }
+      assertThat(report.getEstimatedTotalSize()).isEqualTo(total);
+
+      // The report is computed once per catalogue copy (a 304 response keeps the same copy).
+
+      cli.refresh();
+      assertThat(cli.getCatalogueBuildReport()).isSameAs(report);
+      assertThat(report.toString()).contains("HOST_INDEXES=", "API_ENTRIES=");
+    }
+
+    // Catalogues restored from index snapshots skip most of the phases.
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      CatalogueBuildReport report = cli.getCatalogueBuildReport();
+      assertThat(report.getPhases()).containsExactly(Phase.KEY_DECODING, Phase.SNAPSHOT_RESTORE);
+      assertThat(report.getHeiCount()).isEqualTo(cli.getAllHeis().size());
+      assertThat(report.getEstimatedSize(CatalogueIndex.HEI_ENTRIES)).isPositive();
+    }
+  }
+
+  @Test
+  public void testConcurrentReadsDuringRefreshes() throws Exception {
+    ConcurrentStressHarness harness = new ConcurrentStressHarness(500);
+    ConcurrentStressHarness.Result result = harness.run(4, 1, TimeUnit.SECONDS);
+    assertThat(result.getFirstViolation()).isNull();
+    assertThat(result.getViolations()).isEqualTo(0);
+    assertThat(result.getOperations()).isPositive();
+    assertThat(result.getRefreshes()).isPositive();
+    assertThat(result.getThreads()).isEqualTo(4);
+  }
+
+  @Test
+  public void testCatalogueFootprint() throws Exception {
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    options.setPersistentCacheMap(new ConcurrentHashMap<>());
+    options.setIndexSnapshotCaching(true);
+    int contentLength = getFile("catalogue1.xml").length;
+    try (ClientImpl cli = new ClientImpl(options)) {
+      cli.refresh();
+      CatalogueFootprint footprint = cli.getCatalogueFootprint();
+      assertThat(footprint.getETag()).isEqualTo("catalogue1.xml");
+      assertThat(footprint.isDomParsed()).isTrue();
+      assertThat(footprint.getDomSize()).isGreaterThan(contentLength);
+      long total = 0;
+      for (CatalogueIndex index : CatalogueIndex.values()) {
+        assertThat(footprint.getIndexSize(index)).as(index.toString()).isPositive();
+        total += footprint.getIndexSize(index);
+      }
+      assertThat(footprint.getIndexesSize()).isEqualTo(total);
+      assertThat(footprint.getTotalSize()).isEqualTo(footprint.getDomSize() + total);
+      assertThat(footprint.toString()).contains("dom=", "HEI_ENTRIES=");
+
+      // The indexes match the ones reported by the build report.
+
+      assertThat(footprint.getIndexSize(CatalogueIndex.HOST_HEIS)).isEqualTo(
+          cli.getCatalogueBuildReport().getEstimatedSize(CatalogueIndex.HOST_HEIS));
+    }
+
+    // Catalogues restored from index snapshots keep the raw content until the DOM is needed.
+
+    try (ClientImpl cli = new ClientImpl(options)) {
+      CatalogueFootprint footprint = cli.getCatalogueFootprint();
+      assertThat(footprint.isDomParsed()).isFalse();
+      assertThat(footprint.getDomSize()).isBetween((long) contentLength,
+          (long) contentLength + 24);
+      assertThat(footprint.toString()).contains("(raw content)");
+
+      assertThat(cli.findApis(new ApiSearchConditions())).isNotEmpty();
+      footprint = cli.getCatalogueFootprint();
+      assertThat(footprint.isDomParsed()).isTrue();
+      assertThat(footprint.getDomSize()).isGreaterThan(contentLength);
+    }
+  }
+
+  /**
+   * @return A {@link CatalogueFetcher} which always fails with an {@link IOException}.
+   */
+  private static CatalogueFetcher failingFetcher() {
+    return failingFetcher(new AtomicInteger());
+  }
+
+  /**
+   * Same as {@link #failingFetcher()}, but also counts the (failed) fetches.
+   */
+  private static CatalogueFetcher failingFetcher(final AtomicInteger fetchCount) {
+    return new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        fetchCount.incrementAndGet();
+        throw new IOException();
+      }
+    };
+  }
+
+  /**
+   * @return A {@link CatalogueFetcher} which always serves the given test file (with HTTP 200, and
+   *         the file name as the ETag), with the given expiry date.
+   */
+  private static CatalogueFetcher fetcher(final String filename, final Date expires) {
+    return new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        return new Http200RegistryResponse(TestBase.getFile(filename), filename, expires);
+      }
+    };
+  }
+
+  /**
+   * Same as {@link #fetcher(String, Date)}, but each response expires the given number of
+   * milliseconds after it has been fetched.
+   */
+  private static CatalogueFetcher fetcher(String filename, long expiresInMillis) {
+    return fetcher(filename, expiresInMillis, new AtomicInteger());
+  }
+
+  /**
+   * Same as {@link #fetcher(String, long)}, but also counts the fetches.
+   */
+  private static CatalogueFetcher fetcher(final String filename, final long expiresInMillis,
+      final AtomicInteger fetchCount) {
+    return new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) throws IOException {
+        fetchCount.incrementAndGet();
+        Date expires = new Date(new Date().getTime() + expiresInMillis);
+        return new Http200RegistryResponse(TestBase.getFile(filename), filename, expires);
+      }
+    };
+  }
+
+  private void verifyCatalogue1(RegistryClient cli) {
+    assertThat(cli.isCertificateKnown(getCert("cert1024.pem"))).isTrue();
+    assertThat(cli.getHeisCoveredByClientKey(getPublicKey("public1536.pem")))
+        .containsExactlyInAnyOrder("john.example.com", "bob.example.com", "fred.example.com");
+    assertThat(cli.findHeiId("erasmus", " Bob01 ")).isEqualTo("bob.example.com");
+    assertThat(cli.findHei("bob.example.com").getName("es")).isEqualTo("Universidad de Bob");
+    assertThat(cli.findHei("bob.example.com").getOtherIds("previous-schac"))
+        .containsExactlyInAnyOrder("bob.com", "bob.org");
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired("urn:other", "other-api", "1.1.6");
+    assertThat(cli.findHeis(conds)).containsExactlyInAnyOrder(cli.findHei("john.example.com"),
+        cli.findHei("fred.example.com"));
+    conds.setRequiredHei("fred.example.com");
+    Element api = cli.findApi(conds);
+    assertThat(api.getAttribute("version")).isEqualTo("1.1.7");
+    assertThat(cli.getServerKeysCoveringApi(api)).isEmpty();
+    conds = new ApiSearchConditions();
+    conds.setApiClassRequired("urn:bla", "standalone2");
+    RSAPublicKey public1024 = getPublicKey("public1024.pem");
+    assertThat(cli.getServerKeyCoveringApi(cli.findApi(conds))).isEqualTo(public1024);
+    assertThat(cli.findApis(new ApiSearchConditions())).hasSize(11);
+    assertThat(cli.findRsaPublicKey(
+        "89a5cce39127d8d873b912fdc810b739584d212414b1c78f38b3f9db5973dcc4")).isNull();
+  }
 }
@@ -0,0 +1,365 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueGenerator.GeneratedCatalogue;
+import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Runs mixed read workloads against a single {@link ClientImpl}, shared by many threads, while
+ * another thread keeps swapping the catalogue between two revisions underneath.
+ *
+ * <p>
+ * Each read operation consists of an authentication check, an API lookup (followed by a server key
+ * check of the returned API entry element) and a HEI name lookup. Every result is verified, so the
+ * harness doubles as a correctness check: the results must be consistent with one of the revisions,
+ * and no single result may mix the data of both revisions (a "torn" snapshot). Such
+ * inconsistencies are reported as {@link Result#getViolations() violations}.
+ * </p>
+ *
+ * <p>
+ * Apart from the throughput, the harness reports how often (and for how long) the reader threads
+ * were blocked on monitors, or waiting, while running the queries (see {@link ThreadMXBean}).
+ * </p>
+ *
+ * @see ClientImplIntegrationTests#testConcurrentReadsDuringRefreshes() Example of how it's used
+ */
+public class ConcurrentStressHarness {
+
+  /**
+   * The outcome of a single {@link ConcurrentStressHarness#run(int, long, TimeUnit)}.
+   */
+  public static class Result {
+
+    private final int threads;
+    private final long elapsed;
+    private final long operations;
+    private final long refreshes;
+    private final long violations;
+    private final String firstViolation;
+    private final long blockedCount;
+    private final long blockedTime;
+    private final long waitedCount;
+    private final long waitedTime;
+
+    private Result(int threads, long elapsed, long operations, long refreshes, long violations,
+        String firstViolation, long blockedCount, long blockedTime, long waitedCount,
+        long waitedTime) {
+      this.threads = threads;
+      this.elapsed = elapsed;
+      this.operations = operations;
+      this.refreshes = refreshes;
+      this.violations = violations;
+      this.firstViolation = firstViolation;
+      this.blockedCount = blockedCount;
+      this.blockedTime = blockedTime;
+      this.waitedCount = waitedCount;
+      this.waitedTime = waitedTime;
+    }
+
+    /**
+     * @return The total number of times the reader threads were blocked on a monitor.
+     */
+    public long getBlockedCount() {
+      return this.blockedCount;
+    }
+
+    /**
+     * @return The total time (in milliseconds) the reader threads were blocked on monitors, or -1 if
+     *         the JVM doesn't support thread contention monitoring.
+     */
+    public long getBlockedTime() {
+      return this.blockedTime;
+    }
+
+    /**
+     * @return The description of the first violation found (or <b>null</b>, if there were none).
+     */
+    public String getFirstViolation() {
+      return this.firstViolation;
+    }
+
+    /**
+     * @return The total number of read operations completed by all reader threads.
+     */
+    public long getOperations() {
+      return this.operations;
+    }
+
+    /**
+     * @return The number of refreshes completed while the readers were running (each of them
+     *         swapped the catalogue to a different revision).
+     */
+    public long getRefreshes() {
+      return this.refreshes;
+    }
+
+    /**
+     * @return The number of reader threads.
+     */
+    public int getThreads() {
+      return this.threads;
+    }
+
+    /**
+     * @return The number of read operations per second (all threads combined).
+     */
+    public double getThroughput() {
+      return this.operations * 1e9 / this.elapsed;
+    }
+
+    /**
+     * @return The number of read operations whose results were inconsistent (or which threw
+     *         unexpected exceptions).
+     */
+    public long getViolations() {
+      return this.violations;
+    }
+
+    /**
+     * @return The total number of times the reader threads were waiting (e.g. parked on a lock).
+     */
+    public long getWaitedCount() {
+      return this.waitedCount;
+    }
+
+    /**
+     * @return The total time (in milliseconds) the reader threads were waiting, or -1 if the JVM
+     *         doesn't support thread contention monitoring.
+     */
+    public long getWaitedTime() {
+      return this.waitedTime;
+    }
+
+    @Override
+    public String toString() {
+      return "Result[threads=" + this.threads + ", throughput=" + Math.round(this.getThroughput())
+          + " ops/s, operations=" + this.operations + ", refreshes=" + this.refreshes
+          + ", blocked=" + this.blockedCount + " (" + this.blockedTime + " ms), waited="
+          + this.waitedCount + " (" + this.waitedTime + " ms), violations=" + this.violations
+          + (this.firstViolation != null ? " (" + this.firstViolation + ")" : "") + "]";
+    }
+  }
+
+  private static final int API_CLASS_COUNT = 10;
+
+  /**
+   * Every that many operations, each reader also verifies a full {@link ClientImpl#getAllHeis()}
+   * snapshot.
+   */
+  private static final int FULL_SNAPSHOT_INTERVAL = 1000;
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  private final GeneratedCatalogue[] revisions;
+  private final int renamedHeiCount;
+
+  /**
+   * @param heiCount The number of HEIs in the generated catalogue (there will be one host per two
+   *        HEIs).
+   */
+  public ConcurrentStressHarness(int heiCount) {
+    this.revisions = new GeneratedCatalogue[2];
+    for (int revision = 0; revision < this.revisions.length; revision++) {
+      this.revisions[revision] = new CatalogueGenerator().setHeiCount(heiCount)
+          .setHostCount(Math.max(1, heiCount / 2)).setApiClassCount(API_CLASS_COUNT)
+          .setApisPerHost(3).setRevision(revision).generate();
+    }
+    // Revision 1 renames every HEI whose index ends with "01" (see CatalogueGenerator).
+    this.renamedHeiCount = (heiCount + 98) / 100;
+  }
+
+  /**
+   * Run the workload.
+   *
+   * @param threads The number of reader threads.
+   * @param duration For how long the readers should run.
+   * @param unit The unit of the duration.
+   * @return The {@link Result}.
+   * @throws RefreshFailureException if the initial catalogue could not be loaded.
+   * @throws InterruptedException if interrupted while waiting for the threads to finish.
+   */
+  public Result run(int threads, long duration, TimeUnit unit)
+      throws RefreshFailureException, InterruptedException {
+    final AtomicInteger fetches = new AtomicInteger();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setAutoRefreshing(false);
+    options.setCatalogueFetcher(new CatalogueFetcher() {
+
+      @Override
+      public RegistryResponse fetchCatalogue(String eTag) {
+        GeneratedCatalogue catalogue =
+            ConcurrentStressHarness.this.revisions[fetches.getAndIncrement() % 2];
+        return catalogue.newResponse(new Date(System.currentTimeMillis() + 3600000));
+      }
+    });
+    boolean contentionMonitoring = threadBean.isThreadContentionMonitoringSupported();
+    boolean contentionMonitoringWasEnabled =
+        contentionMonitoring && threadBean.isThreadContentionMonitoringEnabled();
+    if (contentionMonitoring) {
+      threadBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    try (ClientImpl client = new ClientImpl(options)) {
+      client.refresh();
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicLong operations = new AtomicLong();
+      final AtomicLong violations = new AtomicLong();
+      final AtomicReference<String> firstViolation = new AtomicReference<>();
+      final AtomicLong refreshes = new AtomicLong();
+      final long[] contention = new long[4];
+      final long deadline = unit.toNanos(duration);
+
+      List<Thread> readers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final int offset = i * 7919;
+        readers.add(new Thread(() -> {
+          awaitQuietly(start);
+          long end = System.nanoTime() + deadline;
+          long done = 0;
+          while (System.nanoTime() < end) {
+            String violation;
+            try {
+              violation = this.read(client, (int) ((offset + done) % this.getHeiCount()),
+                  done % FULL_SNAPSHOT_INTERVAL == 0);
+            } catch (RuntimeException e) {
+              violation = e.toString();
+            }
+            if (violation != null) {
+              violations.incrementAndGet();
+              firstViolation.compareAndSet(null, violation);
+            }
+            done++;
+          }
+          operations.addAndGet(done);
+          // This needs to be read before the thread dies.
+          ThreadInfo info = threadBean.getThreadInfo(Thread.currentThread().getId());
+          synchronized (contention) {
+            contention[0] += info.getBlockedCount();
+            contention[1] += info.getBlockedTime();
+            contention[2] += info.getWaitedCount();
+            contention[3] += info.getWaitedTime();
+          }
+        }, "stress-reader-" + i));
+      }
+      Thread refresher = new Thread(() -> {
+        awaitQuietly(start);
+        long end = System.nanoTime() + deadline;
+        while (System.nanoTime() < end) {
+          try {
+            client.refresh();
+            refreshes.incrementAndGet();
+          } catch (RefreshFailureException e) {
+            firstViolation.compareAndSet(null, e.toString());
+            violations.incrementAndGet();
+          }
+        }
+      }, "stress-refresher");
+
+      for (Thread reader : readers) {
+        reader.start();
+      }
+      refresher.start();
+      long started = System.nanoTime();
+      start.countDown();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      long elapsed = System.nanoTime() - started;
+      refresher.join();
+
+      return new Result(threads, elapsed, operations.get(), refreshes.get(), violations.get(),
+          firstViolation.get(), contention[0], contentionMonitoring ? contention[1] : -1,
+          contention[2], contentionMonitoring ? contention[3] : -1);
+    } finally {
+      if (contentionMonitoring && !contentionMonitoringWasEnabled) {
+        threadBean.setThreadContentionMonitoringEnabled(false);
+      }
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int getHeiCount() {
+    return this.revisions[0].getHeiIds().size();
+  }
+
+  /**
+   * Run a single read operation, and verify its results.
+   *
+   * @return The description of the inconsistency found, or <b>null</b> if there was none.
+   */
+  private String read(ClientImpl client, int hei, boolean fullSnapshot) {
+    GeneratedCatalogue catalogue = this.revisions[0];
+    int host = catalogue.getHostOf(hei);
+    String heiId = catalogue.getHeiIds().get(hei);
+
+    RSAPublicKey clientKey = catalogue.getClientKeys(host).get(0);
+    if (!client.isHeiCoveredByClientKey(heiId, clientKey)) {
+      return heiId + " is not covered by its host's client key";
+    }
+
+    int apiClass = host % API_CLASS_COUNT;
+    String namespace = CatalogueGenerator.getApiNamespace(apiClass);
+    ApiSearchConditions conds = new ApiSearchConditions();
+    conds.setApiClassRequired(namespace, CatalogueGenerator.API_LOCAL_NAME);
+    conds.setRequiredHei(heiId);
+    Element api = client.findApi(conds);
+    if (api == null) {
+      return "No API found for " + heiId;
+    }
+    String url = api.getElementsByTagNameNS(namespace, "url").item(0).getTextContent();
+    if (!url.equals("https://host" + host + ".example.com/api" + apiClass)) {
+      return "API of " + heiId + " has an unexpected URL: " + url;
+    }
+    if (!catalogue.getServerKeys(host).get(0).equals(client.getServerKeyCoveringApi(api))) {
+      return "API of " + heiId + " is not covered by its host's server key";
+    }
+
+    HeiEntry entry = client.findHei(heiId);
+    if (entry == null) {
+      return heiId + " not found";
+    }
+    String name = entry.getName();
+    if (!name.equals("University " + hei)
+        && !name.equals("University " + hei + " (revision 1)")) {
+      return heiId + " has an unexpected name: " + name;
+    }
+    if (!("Universidad " + hei).equals(entry.getName("es"))) {
+      return heiId + " has an unexpected Spanish name: " + entry.getName("es");
+    }
+
+    if (fullSnapshot) {
+      // All HEIs must come from the same revision.
+      int renamed = 0;
+      for (HeiEntry other : client.getAllHeis()) {
+        if (other.getName().endsWith(" (revision 1)")) {
+          renamed++;
+        }
+      }
+      if (renamed != 0 && renamed != this.renamedHeiCount) {
+        return "Torn snapshot: " + renamed + " of " + this.renamedHeiCount + " HEIs renamed";
+      }
+    }
+    return null;
+  }
+}
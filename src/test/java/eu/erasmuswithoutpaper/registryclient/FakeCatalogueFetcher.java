@@ -3,6 +3,8 @@ package eu.erasmuswithoutpaper.registryclient;
 import java.io.IOException;
 import java.util.Date;
 
+import eu.erasmuswithoutpaper.registryclient.CatalogueGenerator.GeneratedCatalogue;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,12 +19,14 @@ public class FakeCatalogueFetcher implements CatalogueFetcher {
   private static final Logger logger = LoggerFactory.getLogger(FakeCatalogueFetcher.class);
 
   private volatile String catalogueToUse;
+  private volatile GeneratedCatalogue generatedCatalogue;
   private volatile Integer lastReturnedStatus;
 
   @Override
   public RegistryResponse fetchCatalogue(String eTag) throws IOException {
     this.lastReturnedStatus = null;
-    String newETag = this.catalogueToUse;
+    GeneratedCatalogue generated = this.generatedCatalogue;
+    String newETag = generated != null ? generated.getETag() : this.catalogueToUse;
 
     // Set it to expire immediately.
 
@@ -35,7 +39,8 @@ public class FakeCatalogueFetcher implements CatalogueFetcher {
       logger.trace(this + " is returning 304.");
       return new Http304RegistryResponse(expires);
     } else {
-      byte[] content = TestBase.getPossiblyNonExistingFile(this.catalogueToUse);
+      byte[] content = generated != null ? generated.getContent()
+          : TestBase.getPossiblyNonExistingFile(this.catalogueToUse);
       this.lastReturnedStatus = 200;
       logger.trace(this + " is returning 200.");
       return new Http200RegistryResponse(content, newETag, expires);
@@ -46,12 +51,23 @@ public class FakeCatalogueFetcher implements CatalogueFetcher {
     return this.lastReturnedStatus;
   }
 
+  /**
+   * Serve a catalogue produced by {@link CatalogueGenerator} (its ETag is used as the ETag of the
+   * responses).
+   */
+  public void setCatalogueToUse(GeneratedCatalogue catalogue) {
+    this.generatedCatalogue = catalogue;
+  }
+
   public void setCatalogueToUse(String filename) {
+    this.generatedCatalogue = null;
     this.catalogueToUse = filename;
   }
 
   @Override
   public String toString() {
-    return "FakeCatalogueFetcher[" + this.catalogueToUse + "]";
+    GeneratedCatalogue generated = this.generatedCatalogue;
+    return "FakeCatalogueFetcher["
+        + (generated != null ? generated.getETag() : this.catalogueToUse) + "]";
   }
 }
@@ -3,12 +3,64 @@ package eu.erasmuswithoutpaper.registryclient;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
 import eu.erasmuswithoutpaper.registryclient.RegistryClient.RefreshFailureException;
 
 import org.junit.Test;
 
 public class GenericTests extends TestBase {
 
+  @Test
+  public void testPersistentHashMap() {
+    Random random = new Random(42);
+    Map<String, Integer> expected = new HashMap<>();
+    PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+
+    // Compare it with a HashMap. "Aa" and "BB" have identical hash codes (collisions).
+
+    for (int i = 0; i < 20000; i++) {
+      String key = (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(3000);
+      final PersistentHashMap<String, Integer> before = map;
+      final Map<String, Integer> beforeCopy = new HashMap<>(expected);
+      if (random.nextInt(3) == 0) {
+        expected.remove(key);
+        map = map.minus(key);
+      } else {
+        Integer value = random.nextInt(5);
+        expected.put(key, value);
+        map = map.plus(key, value);
+      }
+      if (i % 1000 == 0) {
+        // Previous versions must not be affected.
+        assertThat(map).isEqualTo(expected);
+        assertThat(before).isEqualTo(beforeCopy);
+      }
+    }
+    assertThat(map).isEqualTo(expected).hasSameSizeAs(expected);
+    assertThat(map.keySet()).isEqualTo(expected.keySet());
+    assertThat(map.get("missing")).isNull();
+    String someKey = expected.keySet().iterator().next();
+    assertThat(map.plus(someKey, expected.get(someKey))).isSameAs(map);
+
+    // Deriving a map from an equal one should change nothing.
+
+    assertThat(map.withContentsOf(new HashMap<>(expected))).isSameAs(map);
+
+    // Otherwise, only the changes should be applied.
+
+    Map<String, Integer> target = new HashMap<>(expected);
+    target.remove(someKey);
+    target.put("new", 1);
+    PersistentHashMap<String, Integer> derived = map.withContentsOf(target);
+    assertThat(derived).isEqualTo(target);
+    assertThat(map).isEqualTo(expected);
+    assertThat(PersistentHashMap.<String, Integer>empty().withContentsOf(target)).isEqualTo(target);
+    assertThat(derived.withContentsOf(new HashMap<String, Integer>())).isEmpty();
+  }
+
   @Test
   public void testReadingResources() {
     // using isEqualToIgnoringWhitespace to prevent EOL problems
@@ -0,0 +1,327 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import eu.erasmuswithoutpaper.registryclient.CatalogueGenerator.GeneratedCatalogue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded, local stand-in for the Registry Service. It serves the
+ * <code>/catalogue-v1.xml</code> endpoint over HTTPS (with a self-signed certificate for
+ * <code>localhost</code>), and allows the tests and benchmarks to simulate various network
+ * conditions and server behaviors.
+ *
+ * <p>
+ * Use {@link #newCatalogueFetcher()} to get a {@link DefaultCatalogueFetcher} which talks to this
+ * simulator (and trusts its certificate).
+ * </p>
+ *
+ * <p>
+ * All setters may be called while the simulator is running (they affect subsequent requests).
+ * </p>
+ *
+ * @see ClientImplIntegrationTests#testRegistrySimulator() Example of how it's used
+ */
+public class RegistrySimulator implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(RegistrySimulator.class);
+
+  private static final String KEYSTORE_PATH = "registry-simulator.p12";
+  private static final char[] KEYSTORE_PASSWORD = "simulator".toCharArray();
+
+  private static KeyStore loadKeyStore() {
+    try {
+      KeyStore keyStore = KeyStore.getInstance("PKCS12");
+      keyStore.load(TestBase.class.getResourceAsStream("/test-files/" + KEYSTORE_PATH),
+          KEYSTORE_PASSWORD);
+      return keyStore;
+    } catch (GeneralSecurityException | IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private final HttpsServer server;
+  private final ExecutorService executor;
+  private final SSLSocketFactory clientSocketFactory;
+
+  private volatile byte[] content;
+  private volatile String eTag;
+  private volatile long expiresIn = 300000;
+  private volatile boolean conditionalRequestsSupported = true;
+  private volatile boolean gzipEnabled = false;
+  private volatile long latency = 0;
+  private volatile long bandwidth = 0;
+  private final AtomicInteger failuresLeft = new AtomicInteger();
+  private volatile int failureStatus;
+
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger notModifiedCount = new AtomicInteger();
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  /**
+   * Start a new simulator on a random free port. It will serve an empty catalogue until
+   * {@link #setCatalogue(byte[], String)} is called.
+   *
+   * @throws IOException if the server could not be started.
+   */
+  public RegistrySimulator() throws IOException {
+    this.content = ("<catalogue xmlns=\"" + RegistryClient.REGISTRY_CATALOGUE_V1_NAMESPACE_URI
+        + "\"/>").getBytes("UTF-8");
+    this.eTag = "empty";
+    KeyStore keyStore = loadKeyStore();
+    SSLContext serverContext;
+    SSLContext clientContext;
+    try {
+      KeyManagerFactory kmf =
+          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      kmf.init(keyStore, KEYSTORE_PASSWORD);
+      serverContext = SSLContext.getInstance("TLS");
+      serverContext.init(kmf.getKeyManagers(), null, null);
+
+      KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      trustStore.load(null, null);
+      for (String alias : Collections.list(keyStore.aliases())) {
+        trustStore.setCertificateEntry(alias, keyStore.getCertificate(alias));
+      }
+      TrustManagerFactory tmf =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      tmf.init(trustStore);
+      clientContext = SSLContext.getInstance("TLS");
+      clientContext.init(null, tmf.getTrustManagers(), null);
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    this.clientSocketFactory = clientContext.getSocketFactory();
+
+    this.server =
+        HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+    this.server.createContext("/catalogue-v1.xml", this::handle);
+    this.executor = Executors.newCachedThreadPool();
+    this.server.setExecutor(this.executor);
+    this.server.start();
+    logger.debug("{} started", this);
+  }
+
+  /**
+   * Stop the simulator.
+   */
+  @Override
+  public void close() {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Make the next <code>count</code> requests fail.
+   *
+   * @param count The number of requests to fail.
+   * @param status The HTTP status to respond with, or <code>0</code> to abruptly close the
+   *        connection instead (without sending any response).
+   */
+  public void failNextRequests(int count, int status) {
+    this.failureStatus = status;
+    this.failuresLeft.set(count);
+  }
+
+  /**
+   * @return The number of body bytes sent so far (after compression, if it was used).
+   */
+  public long getBytesSent() {
+    return this.bytesSent.get();
+  }
+
+  /**
+   * @return The number of HTTP 304 responses sent so far.
+   */
+  public int getNotModifiedCount() {
+    return this.notModifiedCount.get();
+  }
+
+  /**
+   * @return The domain name (with port) to be used with
+   *         {@link DefaultCatalogueFetcher#DefaultCatalogueFetcher(String, SSLSocketFactory)}.
+   */
+  public String getRegistryDomain() {
+    return "localhost:" + this.server.getAddress().getPort();
+  }
+
+  /**
+   * @return The number of requests received so far.
+   */
+  public int getRequestCount() {
+    return this.requestCount.get();
+  }
+
+  /**
+   * @return A socket factory which trusts the certificate of this simulator.
+   */
+  public SSLSocketFactory getSslSocketFactory() {
+    return this.clientSocketFactory;
+  }
+
+  /**
+   * @return A new {@link DefaultCatalogueFetcher} which fetches the catalogue from this simulator.
+   */
+  public DefaultCatalogueFetcher newCatalogueFetcher() {
+    return new DefaultCatalogueFetcher(this.getRegistryDomain(), this.clientSocketFactory);
+  }
+
+  /**
+   * @param bandwidth The maximum number of body bytes to be sent per second, or <code>0</code> for
+   *        no limit.
+   */
+  public void setBandwidth(long bandwidth) {
+    this.bandwidth = bandwidth;
+  }
+
+  /**
+   * @param content The catalogue to be served.
+   * @param eTag Its ETag.
+   */
+  public void setCatalogue(byte[] content, String eTag) {
+    synchronized (this) {
+      this.content = content;
+      this.eTag = eTag;
+    }
+  }
+
+  /**
+   * Serve a catalogue produced by {@link CatalogueGenerator}.
+   */
+  public void setCatalogue(GeneratedCatalogue catalogue) {
+    this.setCatalogue(catalogue.getContent(), catalogue.getETag());
+  }
+
+  /**
+   * @param supported If false, then <code>If-None-Match</code> headers will be ignored (HTTP 200
+   *        will always be returned). True by default.
+   */
+  public void setConditionalRequestsSupported(boolean supported) {
+    this.conditionalRequestsSupported = supported;
+  }
+
+  /**
+   * @param expiresIn The number of milliseconds after which the served responses expire (the
+   *        <code>Expires</code> header). 5 minutes by default.
+   */
+  public void setExpiresIn(long expiresIn) {
+    this.expiresIn = expiresIn;
+  }
+
+  /**
+   * @param enabled If true, then responses will be compressed (if the client accepts gzip
+   *        encoding). False by default.
+   */
+  public void setGzipEnabled(boolean enabled) {
+    this.gzipEnabled = enabled;
+  }
+
+  /**
+   * @param latency The number of milliseconds to wait before responding to each request.
+   */
+  public void setLatency(long latency) {
+    this.latency = latency;
+  }
+
+  @Override
+  public String toString() {
+    return "RegistrySimulator[" + this.server.getAddress() + "]";
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      this.requestCount.incrementAndGet();
+      if (this.latency > 0) {
+        Thread.sleep(this.latency);
+      }
+      if (this.failuresLeft.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+        if (this.failureStatus != 0) {
+          exchange.sendResponseHeaders(this.failureStatus, -1);
+        }
+        return;
+      }
+      byte[] body;
+      String currentETag;
+      synchronized (this) {
+        body = this.content;
+        currentETag = this.eTag;
+      }
+      DateTimeFormatter format = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+      Instant now = Instant.now();
+      exchange.getResponseHeaders().set("Date", format.format(now));
+      exchange.getResponseHeaders().set("Expires",
+          format.format(now.plusMillis(this.expiresIn)));
+      exchange.getResponseHeaders().set("ETag", currentETag);
+
+      String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      if (this.conditionalRequestsSupported && currentETag.equals(ifNoneMatch)) {
+        this.notModifiedCount.incrementAndGet();
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+      String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if (this.gzipEnabled && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(buffer)) {
+          gzip.write(body);
+        }
+        body = buffer.toByteArray();
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/xml");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        this.write(os, body);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void write(OutputStream os, byte[] body) throws IOException, InterruptedException {
+    int chunk = 16384;
+    long start = System.nanoTime();
+    for (int offset = 0; offset < body.length; offset += chunk) {
+      int length = Math.min(chunk, body.length - offset);
+      long limit = this.bandwidth;
+      if (limit > 0) {
+        // Sleep until we are allowed to send this chunk.
+        long due = start + (offset + length) * 1000000000L / limit;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+      }
+      os.write(body, offset, length);
+      this.bytesSent.addAndGet(length);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package eu.erasmuswithoutpaper.registryclient;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+/**
+ * Tests of {@link JfrFlightRecorderEvents}. These require JDK 11 or later (they are compiled only
+ * by the <code>jfr</code> Maven profile).
+ */
+public class FlightRecorderEventsTests extends TestBase {
+
+  private static final String PREFIX = "eu.erasmuswithoutpaper.registryclient.";
+
+  private static List<String> getValues(List<RecordedEvent> events, String type, String field) {
+    List<String> result = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(PREFIX + type)) {
+        Object value = event.getValue(field);
+        result.add(String.valueOf(value));
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testEventsAreRecorded() throws Exception {
+    assertThat(FlightRecorderEvents.INSTANCE).isInstanceOf(JfrFlightRecorderEvents.class);
+
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    Map<String, byte[]> cache = new ConcurrentHashMap<>();
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+    options.setPersistentCacheMap(cache);
+    options.setQueryEventSampling(1);
+
+    Path file = Files.createTempFile("registry-client", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        for (String name : new String[] { "CatalogueFetch", "CatalogueBuildPhase", "CatalogueSwap",
+            "PersistentCacheAccess", "Query" }) {
+          recording.enable(PREFIX + name).withoutThreshold();
+        }
+        recording.start();
+        try (ClientImpl cli = new ClientImpl(options)) {
+          cli.refresh();
+          cli.refresh();
+          assertThat(cli.findHei("bob.example.com")).isNotNull();
+        }
+        recording.stop();
+        recording.dump(file);
+      }
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+      assertThat(getValues(events, "CatalogueFetch", "status")).containsExactly("200", "304");
+      // (The empty placeholder catalogue, used before the first refresh, is built too.)
+      assertThat(getValues(events, "CatalogueBuildPhase", "phase")).containsSequence(
+          "XML_PARSING", "HOST_INDEXES", "OTHER_ID_INDEX", "HEI_INDEX", "KEY_DECODING",
+          "PERSISTENT_INDEXES");
+      assertThat(getValues(events, "CatalogueSwap", "newETag")).hasSize(2);
+      assertThat(getValues(events, "PersistentCacheAccess", "write")).contains("false", "true");
+      assertThat(getValues(events, "Query", "family")).containsExactly("HEI");
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testQueryEventsAreOffByDefault() throws Exception {
+    FakeCatalogueFetcher fetcher = new FakeCatalogueFetcher();
+    fetcher.setCatalogueToUse("catalogue1.xml");
+    ClientImplOptions options = new ClientImplOptions();
+    options.setCatalogueFetcher(fetcher);
+
+    Path file = Files.createTempFile("registry-client", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable(PREFIX + "Query").withoutThreshold();
+        recording.start();
+        try (ClientImpl cli = new ClientImpl(options)) {
+          cli.refresh();
+          cli.findHei("bob.example.com");
+        }
+        recording.stop();
+        recording.dump(file);
+      }
+      assertThat(getValues(RecordingFile.readAllEvents(file), "Query", "family")).isEmpty();
+    } finally {
+      Files.delete(file);
+    }
+  }
+}